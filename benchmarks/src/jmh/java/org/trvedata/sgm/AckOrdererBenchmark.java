@@ -0,0 +1,82 @@
+package org.trvedata.sgm;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.openjdk.jmh.annotations.*;
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.crypto.IdentityKeyPair;
+import org.trvedata.sgm.misc.DeterministicRandomSource;
+import org.trvedata.sgm.misc.RandomSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures receiving a history of {@code historyDepth} messages, sent round-robin by {@code groupSize} members,
+ * with {@link AckOrderer#queue} and {@link AckOrderer#getReadyMessage}.  The messages are either received in
+ * order, so each is delivered as soon as it is queued, or in reverse order, so that they all wait in the orderer's
+ * backlog until the first messages arrive.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AckOrdererBenchmark {
+    @Param({"8", "128"})
+    public int groupSize;
+
+    @Param({"16", "1024"})
+    public int historyDepth;
+
+    private final AckOrderer<Integer> orderer = new AckOrderer<>();
+    private List<Pair<IdentityKey, Orderer.OrderInfo>> messages;
+    private AckOrderer.State<Integer> receiver;
+
+    @Setup(Level.Trial)
+    public void sendMessages() {
+        RandomSource random = new DeterministicRandomSource(0);
+        ArrayList<IdentityKey> members = new ArrayList<>();
+        for (IdentityKeyPair pair : IdentityKey.generateKeyPairs(groupSize, random)) members.add(pair.getPublicKey());
+        IdentityKey creator = members.get(0);
+        ArrayList<AckOrderer.State<Integer>> senders = new ArrayList<>();
+        for (IdentityKey member : members) senders.add(welcomed(member, creator));
+        messages = new ArrayList<>();
+        for (int i = 0; i < historyDepth; i++) {
+            int sender = i % groupSize;
+            Triple<AckOrderer.State<Integer>, Orderer.OrderInfo, AckOrderer.Timestamp> next =
+                    orderer.getNextOrderInfo(senders.get(sender), null);
+            senders.set(sender, next.getLeft());
+            messages.add(Pair.of(members.get(sender), next.getMiddle()));
+        }
+        receiver = welcomed(IdentityKey.generateKeyPair(random).getPublicKey(), creator);
+    }
+
+    @Benchmark
+    public AckOrderer.State<Integer> receiveInOrder() {
+        AckOrderer.State<Integer> state = receiver;
+        for (int i = 0; i < messages.size(); i++) {
+            state = orderer.queue(state, i, messages.get(i).getLeft(), messages.get(i).getRight());
+            state = orderer.getReadyMessage(state).nextState;
+        }
+        return state;
+    }
+
+    @Benchmark
+    public AckOrderer.State<Integer> receiveReversed() {
+        AckOrderer.State<Integer> state = receiver;
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            state = orderer.queue(state, i, messages.get(i).getLeft(), messages.get(i).getRight());
+        }
+        Orderer.ReadyMessage<Integer, AckOrderer.Timestamp, AckOrderer.State<Integer>> ready;
+        while ((ready = orderer.getReadyMessage(state)) != null) state = ready.nextState;
+        return state;
+    }
+
+    private AckOrderer.State<Integer> welcomed(IdentityKey member, IdentityKey creator) {
+        return orderer.processWelcomeInfo(new AckOrderer.State<>(member), Orderer.OrderInfo.of(null), creator)
+                .getLeft();
+    }
+}
@@ -0,0 +1,43 @@
+package org.trvedata.sgm;
+
+import org.openjdk.jmh.annotations.*;
+import org.trvedata.sgm.misc.DeterministicRandomSource;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one ratchet step of {@link InOrderForwardSecureEncryptionProtocol}: encrypting or decrypting a message
+ * and deriving the next chain key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class InOrderForwardSecureEncryptionProtocolBenchmark {
+    @Param({"32", "1024"})
+    public int payloadBytes;
+
+    private final InOrderForwardSecureEncryptionProtocol protocol = new InOrderForwardSecureEncryptionProtocol();
+    private byte[] payload;
+    private InOrderForwardSecureEncryptionProtocol.State state;
+    private byte[] ciphertext;
+
+    @Setup(Level.Trial)
+    public void generateKey() {
+        payload = new byte[payloadBytes];
+        state = protocol.init(ForwardSecureEncryptionProtocol.Key.random(new DeterministicRandomSource(0)));
+        ciphertext = protocol.encrypt(state, payload).ciphertext;
+    }
+
+    @Benchmark
+    public ForwardSecureEncryptionProtocol.EncryptionResult<InOrderForwardSecureEncryptionProtocol.State> encrypt() {
+        return protocol.encrypt(state, payload);
+    }
+
+    @Benchmark
+    public ForwardSecureEncryptionProtocol.DecryptionResult<InOrderForwardSecureEncryptionProtocol.State> decrypt() {
+        return protocol.decrypt(state, ciphertext);
+    }
+}
@@ -0,0 +1,126 @@
+package org.trvedata.sgm;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.crypto.IdentityKeyPair;
+import org.trvedata.sgm.message.MessageId;
+import org.trvedata.sgm.misc.DeterministicRandomSource;
+import org.trvedata.sgm.misc.RandomSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of {@link StrongRemoveDgm} operations as a function of the group size and of its history.  The
+ * history consists of {@code historyDepth} adds that the viewer (and remover) has ack'd but not everyone has, so
+ * they are still recorded, followed by {@code concurrentAdds} adds that form a chain (a member adds a user, who adds
+ * another user, and so on).  The latter are concurrent to the remove in {@link #removeWithConcurrentAdds}, so the
+ * remove has to cascade through all of them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class StrongRemoveDgmBenchmark {
+    // Number of groups that add and remove each mutate per invocation, so that rebuilding them is not timed and
+    // the per-invocation setup overhead is amortized
+    private static final int BATCH_SIZE = 64;
+
+    @Param({"8", "32", "128", "512"})
+    public int groupSize;
+
+    @Param({"0", "256"})
+    public int historyDepth;
+
+    @Param({"0", "8", "64"})
+    public int concurrentAdds;
+
+    private List<IdentityKey> initialMembers;
+    private List<IdentityKey> historyMembers;
+    private List<IdentityKey> addedMembers;
+    private IdentityKey newMember;
+    private StrongRemoveDgm strongRemoveDgm;
+
+    /**
+     * queryView and serialize do not mutate the StrongRemoveDgm, so they all share one.
+     */
+    @Setup(Level.Trial)
+    public void buildGroup() {
+        // Same keys (hence same member order) in every run
+        RandomSource random = new DeterministicRandomSource(0);
+        initialMembers = generateIdentityKeys(groupSize, random);
+        historyMembers = generateIdentityKeys(historyDepth, random);
+        addedMembers = generateIdentityKeys(concurrentAdds, random);
+        newMember = generateIdentityKeys(1, random).get(0);
+        strongRemoveDgm = newGroup();
+    }
+
+    /**
+     * Fresh groups for add and remove, which mutate them.
+     */
+    @State(Scope.Thread)
+    public static class Batch {
+        private final StrongRemoveDgm[] groups = new StrongRemoveDgm[BATCH_SIZE];
+
+        @Setup(Level.Invocation)
+        public void buildGroups(StrongRemoveDgmBenchmark benchmark) {
+            for (int i = 0; i < BATCH_SIZE; i++) groups[i] = benchmark.newGroup();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void removeWithConcurrentAdds(Batch batch, Blackhole blackhole) {
+        for (StrongRemoveDgm group : batch.groups) {
+            blackhole.consume(group.remove(initialMembers.get(2), Collections.singletonList(initialMembers.get(1)),
+                    new MessageId(initialMembers.get(2), 1)));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void add(Batch batch, Blackhole blackhole) {
+        for (StrongRemoveDgm group : batch.groups) {
+            blackhole.consume(group.add(initialMembers.get(2), newMember, new MessageId(initialMembers.get(2), 1)));
+        }
+    }
+
+    @Benchmark
+    public HashSet<IdentityKey> queryView() {
+        return strongRemoveDgm.queryView(initialMembers.get(2));
+    }
+
+    @Benchmark
+    public Pair<byte[], ArrayList<IdentityKey>> serialize() {
+        return strongRemoveDgm.serialize();
+    }
+
+    private StrongRemoveDgm newGroup() {
+        StrongRemoveDgm group = new StrongRemoveDgm(initialMembers, initialMembers.get(0));
+        IdentityKey historyAdder = initialMembers.get(3);
+        for (int i = 0; i < historyDepth; i++) {
+            MessageId messageId = new MessageId(historyAdder, i + 1);
+            group.add(historyAdder, historyMembers.get(i), messageId);
+            group.ack(initialMembers.get(2), messageId);
+        }
+        IdentityKey adder = initialMembers.get(1);
+        for (int i = 0; i < concurrentAdds; i++) {
+            group.add(adder, addedMembers.get(i), new MessageId(adder, 1));
+            adder = addedMembers.get(i);
+        }
+        return group;
+    }
+
+    private static List<IdentityKey> generateIdentityKeys(int number, RandomSource random) {
+        ArrayList<IdentityKey> result = new ArrayList<>();
+        for (IdentityKeyPair pair : IdentityKey.generateKeyPairs(number, random)) result.add(pair.getPublicKey());
+        return result;
+    }
+}
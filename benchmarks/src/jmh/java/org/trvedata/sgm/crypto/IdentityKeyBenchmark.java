@@ -0,0 +1,44 @@
+package org.trvedata.sgm.crypto;
+
+import org.openjdk.jmh.annotations.*;
+import org.trvedata.sgm.misc.DeterministicRandomSource;
+import org.trvedata.sgm.misc.RandomSource;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures signing with {@link IdentityKeyPair#sign} and verifying with {@link IdentityKey#verify}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class IdentityKeyBenchmark {
+    @Param({"32", "1024"})
+    public int payloadBytes;
+
+    private byte[] payload;
+    private RandomSource random;
+    private IdentityKeyPair keyPair;
+    private byte[] signature;
+
+    @Setup(Level.Trial)
+    public void generateKey() {
+        random = new DeterministicRandomSource(0);
+        payload = new byte[payloadBytes];
+        keyPair = IdentityKey.generateKeyPair(random);
+        signature = keyPair.sign(payload, random);
+    }
+
+    @Benchmark
+    public byte[] sign() {
+        return keyPair.sign(payload, random);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return keyPair.getPublicKey().verify(payload, signature);
+    }
+}
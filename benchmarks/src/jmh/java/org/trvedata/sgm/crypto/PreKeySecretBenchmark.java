@@ -0,0 +1,55 @@
+package org.trvedata.sgm.crypto;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.*;
+import org.trvedata.sgm.misc.DeterministicRandomSource;
+import org.trvedata.sgm.misc.RandomSource;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the X3DH-based {@link PreKeySecret#encrypt} and {@link PreKeySecret#decrypt}, which the first
+ * {@link TwoPartyProtocol} message to each peer uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PreKeySecretBenchmark {
+    @Param({"32", "1024"})
+    public int payloadBytes;
+
+    private byte[] payload;
+    private RandomSource random;
+    private PreKeySecret senderSecret;
+    private IdentityKey sender;
+    private PreKeySecret recipientSecret;
+    private PreKey recipientPreKey;
+    private byte[] ciphertext;
+
+    @Setup(Level.Trial)
+    public void generateKeys() {
+        random = new DeterministicRandomSource(0);
+        payload = new byte[payloadBytes];
+        IdentityKeyPair senderPair = IdentityKey.generateKeyPair(random);
+        sender = senderPair.getPublicKey();
+        senderSecret = new PreKeySecret(senderPair, random);
+        Pair<PreKeySecret, PreKey> recipient = new PreKeySecret(IdentityKey.generateKeyPair(random), random)
+                .generatePreKey(random);
+        recipientSecret = recipient.getLeft();
+        recipientPreKey = recipient.getRight();
+        ciphertext = senderSecret.encrypt(payload, recipientPreKey, random);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        return senderSecret.encrypt(payload, recipientPreKey, random);
+    }
+
+    @Benchmark
+    public Pair<PreKeySecret, byte[]> decrypt() {
+        return recipientSecret.decrypt(ciphertext, sender);
+    }
+}
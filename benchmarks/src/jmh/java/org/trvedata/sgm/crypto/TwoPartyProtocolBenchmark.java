@@ -0,0 +1,61 @@
+package org.trvedata.sgm.crypto;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.*;
+import org.trvedata.sgm.misc.DeterministicRandomSource;
+import org.trvedata.sgm.misc.RandomSource;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TwoPartyProtocol#encrypt} and {@link TwoPartyProtocol#decrypt} once both parties have exchanged
+ * HPKE keys, i.e., past the initial prekey messages (see {@link PreKeySecretBenchmark} for those).  Both methods
+ * leave the protocol instance unchanged, so every invocation starts from the same state.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TwoPartyProtocolBenchmark {
+    @Param({"32", "1024"})
+    public int payloadBytes;
+
+    private byte[] payload;
+    private RandomSource random;
+    private TwoPartyProtocol sender;
+    private TwoPartyProtocol receiver;
+    private byte[] ciphertext;
+
+    @Setup(Level.Trial)
+    public void establishSession() {
+        random = new DeterministicRandomSource(0);
+        payload = new byte[payloadBytes];
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        IdentityKeyPair alice = IdentityKey.generateKeyPair(random);
+        IdentityKeyPair bob = IdentityKey.generateKeyPair(random);
+        TwoPartyProtocol aliceProtocol = new TwoPartyProtocol(preKeySource.registerUser(alice, 1, random), preKeySource,
+                bob.getPublicKey());
+        TwoPartyProtocol bobProtocol = new TwoPartyProtocol(preKeySource.registerUser(bob, 1, random), preKeySource,
+                alice.getPublicKey());
+        // One round trip, so that each side has a key from the other
+        Pair<TwoPartyProtocol, byte[]> first = aliceProtocol.encrypt(payload, random);
+        bobProtocol = bobProtocol.decrypt(first.getRight()).getLeft();
+        Pair<TwoPartyProtocol, byte[]> reply = bobProtocol.encrypt(payload, random);
+        aliceProtocol = first.getLeft().decrypt(reply.getRight()).getLeft();
+        sender = aliceProtocol;
+        receiver = reply.getLeft();
+        ciphertext = sender.encrypt(payload, random).getRight();
+    }
+
+    @Benchmark
+    public Pair<TwoPartyProtocol, byte[]> encrypt() {
+        return sender.encrypt(payload, random);
+    }
+
+    @Benchmark
+    public Pair<TwoPartyProtocol, byte[]> decrypt() {
+        return receiver.decrypt(ciphertext);
+    }
+}
@@ -0,0 +1,52 @@
+package org.trvedata.sgm.misc;
+
+import org.apache.thrift.TException;
+import org.openjdk.jmh.annotations.*;
+import org.trvedata.sgm.message.UpdateMessage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Thrift serialization with {@link Utils#serialize} and {@link Utils#deserialize}, on a DCGKA update
+ * message carrying one two-party ciphertext per other group member.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UtilsBenchmark {
+    private static final int CIPHERTEXT_BYTES = 200;
+
+    @Param({"8", "128", "1024"})
+    public int groupSize;
+
+    private UpdateMessage message;
+    private byte[] serialized;
+
+    @Setup(Level.Trial)
+    public void buildMessage() {
+        RandomSource random = new DeterministicRandomSource(0);
+        ArrayList<ByteBuffer> ciphertexts = new ArrayList<>();
+        for (int i = 0; i < groupSize - 1; i++) {
+            ciphertexts.add(ByteBuffer.wrap(random.nextBytes(CIPHERTEXT_BYTES)));
+        }
+        message = new UpdateMessage(ciphertexts);
+        serialized = Utils.serialize(message);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return Utils.serialize(message);
+    }
+
+    @Benchmark
+    public UpdateMessage deserialize() throws TException {
+        UpdateMessage result = new UpdateMessage();
+        Utils.deserialize(result, serialized);
+        return result;
+    }
+}
@@ -24,6 +24,23 @@ public class CliEvaluation implements Callable<Integer> {
     @Option(names = {"-i", "--iterations"}, defaultValue = "10", description = "Number of iterations for each test scenario")
     public int iterations;
 
+    @Option(names = {"--keypair-pool"}, defaultValue = "0", description = "Capacity of the background pool of " +
+            "pre-generated HPKE key pairs, or 0 to generate key pairs on demand. Note that CPU time spent refilling " +
+            "the pool is not attributed to any client.")
+    public int keyPairPoolCapacity;
+
+    @Option(names = {"--min-group-size"}, defaultValue = "8", description = "Smallest group size to evaluate")
+    public int minGroupSize;
+
+    @Option(names = {"--max-group-size"}, defaultValue = "128", description = "Largest group size to evaluate; " +
+            "group sizes grow by a factor of sqrt(2) from the smallest")
+    public int maxGroupSize;
+
+    @Option(names = {"--workers"}, defaultValue = "0", description = "Number of worker threads that handle all " +
+            "clients' messages, or 0 to give each client its own thread. A small pool makes groups of thousands of " +
+            "members feasible.")
+    public int workerThreads;
+
     public static void main(final String[] args) {
         final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
         if (!threadBean.isThreadCpuTimeSupported()) {
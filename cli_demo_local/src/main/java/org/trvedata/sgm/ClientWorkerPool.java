@@ -0,0 +1,60 @@
+package org.trvedata.sgm;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed pool of worker threads shared by all {@link PooledClient}s of a simulation, so that the number of threads does
+ * not grow with the group size.  Also counts the messages that have been delivered to a client but not yet handled,
+ * so that the simulation can wait until all clients are idle.
+ */
+public class ClientWorkerPool implements AutoCloseable {
+    private final ExecutorService mExecutor;
+    private final AtomicLong mPendingMessages = new AtomicLong(0);
+    private final Object mIdleLock = new Object();
+
+    public ClientWorkerPool(final int numThreads) {
+        Utils.enableCpuTimeForCurrentThread();
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        mExecutor = Executors.newFixedThreadPool(numThreads, runnable -> {
+            final Thread thread = new Thread(runnable, "client-worker-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void execute(final Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    void messageDelivered() {
+        mPendingMessages.incrementAndGet();
+    }
+
+    void messageHandled() {
+        if (mPendingMessages.decrementAndGet() == 0) {
+            synchronized (mIdleLock) {
+                mIdleLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until every message delivered to a client so far, and every message sent while handling those, has been
+     * handled.
+     */
+    public void awaitIdle() throws InterruptedException {
+        synchronized (mIdleLock) {
+            while (mPendingMessages.get() != 0) mIdleLock.wait();
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
@@ -1,11 +1,13 @@
 package org.trvedata.sgm;
 
 import org.trvedata.sgm.DsgmClient.DcgkaChoice;
+import org.trvedata.sgm.crypto.HPKEKeyPairPool;
 import org.trvedata.sgm.crypto.IdentityKey;
 import org.trvedata.sgm.crypto.IdentityKeyPair;
 import org.trvedata.sgm.crypto.InMemoryPreKeySource;
 import org.trvedata.sgm.crypto.PreKeySecret;
 import org.trvedata.sgm.misc.Logger;
+import org.trvedata.sgm.misc.Utils;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -13,6 +15,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
 import static org.trvedata.sgm.MetricsCapturer.MetricCaptureResult;
@@ -20,6 +23,14 @@ import static org.trvedata.sgm.MetricsCapturer.MetricCaptureResult;
 public class EvaluationSimulation {
 
     private final CliEvaluation mArgs;
+    /**
+     * If non-null, clients are {@link PooledClient}s run by this pool, else {@link ThreadedClient}s.
+     */
+    private ClientWorkerPool mWorkerPool;
+    /**
+     * If non-null, the random source of every client's protocols, so that they take fresh HPKE key pairs from it.
+     */
+    private HPKEKeyPairPool mKeyPairPool;
 
     public EvaluationSimulation(final CliEvaluation args) {
         mArgs = args;
@@ -28,7 +39,7 @@ public class EvaluationSimulation {
 
     public void run() throws InterruptedException {
         // test parameters
-        final ArrayList<Integer> groupSizes = groupSizes(8, 128);
+        final ArrayList<Integer> groupSizes = groupSizes(mArgs.minGroupSize, mArgs.maxGroupSize);
         final Operation[] operations = new Operation[]{Operation.MESSAGE, Operation.REMOVE, Operation.ADD, Operation.UPDATE};
         final int iterations = mArgs.iterations;
 
@@ -45,6 +56,9 @@ public class EvaluationSimulation {
         }
         Collections.shuffle(parameters, new Random(0));
 
+        mKeyPairPool = (mArgs.keyPairPoolCapacity > 0) ? new HPKEKeyPairPool(mArgs.keyPairPoolCapacity) : null;
+        mWorkerPool = (mArgs.workerThreads > 0) ? new ClientWorkerPool(mArgs.workerThreads) : null;
+
         // warming up the JVM and JIT
         for (int i = 0; i < iterations; i++) {
             runTestCase(new TestRunParameters(10, Operation.UPDATE, DcgkaChoice.FULL));
@@ -65,6 +79,16 @@ public class EvaluationSimulation {
 
         }
 
+        if (mWorkerPool != null) {
+            mWorkerPool.close();
+            mWorkerPool = null;
+        }
+        if (mKeyPairPool != null) {
+            System.out.println("key pair pool: " + mKeyPairPool.getMetrics());
+            mKeyPairPool.close();
+            mKeyPairPool = null;
+        }
+
         // output CSV
         if (mArgs.csvOutputFolder != null) {
             mArgs.csvOutputFolder.mkdirs();
@@ -99,18 +123,18 @@ public class EvaluationSimulation {
     private TestRunResults runTestCase(final TestRunParameters params) throws InterruptedException {
         final ThreadSafeNetwork network = new ThreadSafeNetwork();
         final InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
-        final ArrayList<ThreadedClient> clients = createThreadedClients(network, preKeySource, params.groupsize, params.dcgkaChoice);
+        final ArrayList<SimulatedClient> clients = createClients(network, preKeySource, params.groupsize, params.dcgkaChoice);
 
         final MetricsCapturer metrics = new MetricsCapturer(network, clients);
 
         // START
-        for (ThreadedClient client : clients) client.start();
+        for (SimulatedClient client : clients) client.start();
 
         final ArrayList<IdentityKey> memberKeys = new ArrayList<>();
-        for (final ThreadedClient client : clients) memberKeys.add((IdentityKey) client.getIdentifier());
+        for (final SimulatedClient client : clients) memberKeys.add((IdentityKey) client.getIdentifier());
 
-        final ThreadedClient sender = clients.get(0);
-        final ArrayList<ThreadedClient> receivers = new ArrayList<>(clients.subList(1, clients.size())); // copy necessary
+        final SimulatedClient sender = clients.get(0);
+        final ArrayList<SimulatedClient> receivers = new ArrayList<>(clients.subList(1, clients.size())); // copy necessary
 
         // Make prekeys for a potential future added member now, since they should not count against the add time
         final IdentityKeyPair toAddKeyPair = IdentityKey.generateKeyPair();
@@ -120,32 +144,32 @@ public class EvaluationSimulation {
         metrics.setupBegin();
 
         sender.createGroup(memberKeys);
-        for (ThreadedClient client : clients) client.waitUntilSetupFinished();
+        for (SimulatedClient client : clients) client.waitUntilSetupFinished();
 
-        // clients need to be stopped and restarted as the thread cpu time can only be read in "finished" thread state
-        for (final ThreadedClient client : clients) client.stop();
-        for (final ThreadedClient client : clients) client.join();
+        // clients need to be stopped and restarted to end the setup's cpu time measurement
+        for (final SimulatedClient client : clients) client.stop();
+        for (final SimulatedClient client : clients) client.join();
         metrics.setupEnd();
-        for (final ThreadedClient client : clients) client.start();
+        for (final SimulatedClient client : clients) client.start();
 
         // OPERATION
-        for (final ThreadedClient client : clients) client.clearNextOperation();
+        for (final SimulatedClient client : clients) client.clearNextOperation();
         metrics.operationBegin();
 
         switch (params.operation) {
             case MESSAGE:
-                for (final ThreadedClient client : receivers) client.expectNextOperation(1);// sender excluded
+                for (final SimulatedClient client : receivers) client.expectNextOperation(1);// sender excluded
                 sender.expectNextOperation(0);
                 sender.sendMessage("0123456789ABCDEF0123456789ABCDEF"); // 32 byte e.g. AES key
                 break;
 
             case ADD:
-                for (final ThreadedClient client : clients) client.expectNextOperation(params.groupsize);
+                for (final SimulatedClient client : clients) client.expectNextOperation(params.groupsize);
                 // Create added client ourselves instead of using DsgmClientFactory, so we can give it the
                 // pre-made prekeys.
                 final DsgmClient dsgmClient = new DsgmClient(network, toAddPreKeySecret, preKeySource, "NewMember",
                         toAddKeyPair, createClientImplementation(params.dcgkaChoice));
-                final ThreadedClient toBeAdded = new ThreadedClient(dsgmClient, network, ThreadedClient.ClientRole.RECIPIENT);
+                final SimulatedClient toBeAdded = createClient(dsgmClient, network, null, SimulatedClient.ClientRole.RECIPIENT);
 
                 toBeAdded.expectNextOperation(params.groupsize);
                 toBeAdded.start();
@@ -156,8 +180,8 @@ public class EvaluationSimulation {
                 break;
 
             case REMOVE:
-                final ThreadedClient toBeRemoved = receivers.get(0);
-                for (final ThreadedClient client : clients) {
+                final SimulatedClient toBeRemoved = receivers.get(0);
+                for (final SimulatedClient client : clients) {
                     if (client != toBeRemoved) client.expectNextOperation(params.groupsize - 2);
                 }
                 toBeRemoved.expectNextOperation(1);
@@ -167,38 +191,55 @@ public class EvaluationSimulation {
                 break;
 
             case UPDATE:
-                for (final ThreadedClient client : clients) client.expectNextOperation(params.groupsize - 1);
+                for (final SimulatedClient client : clients) client.expectNextOperation(params.groupsize - 1);
                 sender.update();
                 break;
         }
 
-        for (final ThreadedClient client : receivers) client.waitUntilNextOperationFinished(params.operation);// sender excluded
+        for (final SimulatedClient client : receivers) client.waitUntilNextOperationFinished(params.operation);// sender excluded
         sender.waitUntilNextOperationFinishedSender();
 
         // CLEAN-UP
-        for (final ThreadedClient client : clients) client.stop();
-        for (final ThreadedClient client : clients) client.join();
+        for (final SimulatedClient client : clients) client.stop();
+        for (final SimulatedClient client : clients) client.join();
         metrics.operationEnd();
 
         return TestRunResults.fromMetricsCapturer(metrics, params);
     }
 
 
-    private ArrayList<ThreadedClient> createThreadedClients(final ThreadSafeNetwork network,
-                                                            final InMemoryPreKeySource inMemoryPreKeySource,
-                                                            final int gs,
-                                                            final DcgkaChoice dcgkaChoice) {
-        final DsgmClientFactory.DgmClientFactoryResult factoryResult = DsgmClientFactory.createClients(network,
-                inMemoryPreKeySource, gs, createClientImplementation(dcgkaChoice));
-        final ArrayList<ThreadedClient> clients = new ArrayList<>(gs);
+    private ArrayList<SimulatedClient> createClients(final ThreadSafeNetwork network,
+                                                     final InMemoryPreKeySource inMemoryPreKeySource,
+                                                     final int gs,
+                                                     final DcgkaChoice dcgkaChoice) {
+        final ArrayList<SimulatedClient> clients = new ArrayList<>(gs);
+        final DsgmClient.DgmClientImplementationConfiguration implementation = createClientImplementation(dcgkaChoice);
+        // In the simulated operations, only the sender (and the added member) start two-party sessions with the other
+        // members, so one prekey each is enough; DsgmClientFactory's gs + 1 prekeys per member would grow
+        // quadratically.
+        final List<IdentityKeyPair> keyPairs = IdentityKey.generateKeyPairs(gs);
         for (int i = 0; i < gs; i++) {
-            clients.add(new ThreadedClient(factoryResult.clients[i], network, gs, i == 0 ? ThreadedClient.ClientRole.SENDER : ThreadedClient.ClientRole.RECIPIENT));
+            final PreKeySecret preKeySecret = inMemoryPreKeySource.registerUser(keyPairs.get(i), i == 0 ? gs : 1);
+            final DsgmClient dsgmClient = new DsgmClient(network, preKeySecret, inMemoryPreKeySource, "Client_" + i,
+                    keyPairs.get(i), implementation);
+            clients.add(createClient(dsgmClient, network, gs,
+                    i == 0 ? SimulatedClient.ClientRole.SENDER : SimulatedClient.ClientRole.RECIPIENT));
         }
         return clients;
     }
 
+    private SimulatedClient createClient(final DsgmClient dsgmClient, final ThreadSafeNetwork network,
+                                         final Integer expectedGroupSize, final SimulatedClient.ClientRole role) {
+        if (mWorkerPool != null) {
+            return new PooledClient(dsgmClient, network, mWorkerPool, expectedGroupSize, role);
+        } else {
+            return new ThreadedClient(dsgmClient, network, expectedGroupSize, role);
+        }
+    }
+
     private DsgmClient.DgmClientImplementationConfiguration createClientImplementation(final DcgkaChoice dcgkaChoice) {
-        return new DsgmClient.DgmClientImplementationConfiguration(dcgkaChoice, true, true, true);
+        return new DsgmClient.DgmClientImplementationConfiguration(dcgkaChoice, true, true, true, null, false,
+                (mKeyPairPool != null) ? mKeyPairPool : Utils.getRandomSource());
     }
 
     public static class TestRunParameters {
@@ -10,38 +10,38 @@ class MetricsCapturer {
     private final Metric setupSentBytes = new TrafficMetric("setupsentbytes");
     private final Metric operationSentBytes = new TrafficMetric("operationsentbytes");
 
-    private final Map<ThreadedClient, TimeMetric> setupTimes = new HashMap<>();
-    private final Map<ThreadedClient, TimeMetric> operationTimes = new HashMap<>();
+    private final Map<SimulatedClient, TimeMetric> setupTimes = new HashMap<>();
+    private final Map<SimulatedClient, TimeMetric> operationTimes = new HashMap<>();
 
     private final ThreadSafeNetwork mNetwork;
-    private final Collection<ThreadedClient> mClients;
+    private final Collection<SimulatedClient> mClients;
 
-    public MetricsCapturer(final ThreadSafeNetwork network, final Collection<ThreadedClient> clients) {
+    public MetricsCapturer(final ThreadSafeNetwork network, final Collection<SimulatedClient> clients) {
         mNetwork = network;
         mClients = clients;
-        for (final ThreadedClient client : mClients) {
+        for (final SimulatedClient client : mClients) {
             setupTimes.put(client, new TimeMetric("setuptime"));
             operationTimes.put(client, new TimeMetric("operationtime"));
         }
     }
 
     public void setupBegin() {
-        for (final ThreadedClient client : mClients) setupTimes.get(client).startValue = 0L;
+        for (final SimulatedClient client : mClients) setupTimes.get(client).startValue = 0L;
         setupSentBytes.startValue = mNetwork.getSentBytes();
     }
 
     public void setupEnd() {
-        for (final ThreadedClient client : mClients) setupTimes.get(client).endValue = client.getCpuTime();
+        for (final SimulatedClient client : mClients) setupTimes.get(client).endValue = client.getCpuTime();
         setupSentBytes.endValue = mNetwork.getSentBytes();
     }
 
     public void operationBegin() {
-        for (final ThreadedClient client : mClients) operationTimes.get(client).startValue = 0L;
+        for (final SimulatedClient client : mClients) operationTimes.get(client).startValue = 0L;
         operationSentBytes.startValue = mNetwork.getSentBytes();
     }
 
     public void operationEnd() {
-        for (final ThreadedClient client : mClients) {
+        for (final SimulatedClient client : mClients) {
             if (operationTimes.get(client) != null) operationTimes.get(client).endValue = client.getCpuTime();
         }
         operationSentBytes.endValue = mNetwork.getSentBytes();
@@ -53,7 +53,7 @@ class MetricsCapturer {
 
     public ArrayList<MetricCaptureResult> getTimeResultsForClients(final EvaluationSimulation.TestRunParameters params) {
         final ArrayList<MetricCaptureResult> results = new ArrayList<>();
-        for (final ThreadedClient client : mClients) {
+        for (final SimulatedClient client : mClients) {
             if (setupTimes.get(client) != null && operationTimes.get(client) != null) {
                 results.add(new MetricCaptureResult(params, client.getRole(), setupTimes.get(client), operationTimes.get(client)));
             }
@@ -103,12 +103,12 @@ class MetricsCapturer {
 
     public static class MetricCaptureResult {
         public final EvaluationSimulation.TestRunParameters params;
-        private final ThreadedClient.ClientRole clientRole;
+        private final SimulatedClient.ClientRole clientRole;
         private final Metric[] metrics;
 
         private MetricCaptureResult(
                 final EvaluationSimulation.TestRunParameters params,
-                final ThreadedClient.ClientRole clientRole,
+                final SimulatedClient.ClientRole clientRole,
                 final Metric... metrics) {
             this.params = params;
             this.clientRole = clientRole;
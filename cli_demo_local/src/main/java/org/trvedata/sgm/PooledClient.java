@@ -0,0 +1,85 @@
+package org.trvedata.sgm;
+
+import org.trvedata.sgm.misc.Logger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link SimulatedClient} whose messages are handled by the worker threads of a {@link ClientWorkerPool}, at most one
+ * at a time and in the order they arrived, so that thousands of clients can be simulated in one JVM.  CPU time is
+ * measured around each message it handles and added up, so measurements do not need to stop any threads: {@link
+ * #stop} and {@link #join} just wait until the whole simulation is idle.
+ */
+public class PooledClient extends SimulatedClient {
+    /**
+     * Maximum number of messages handled in one go before yielding the worker thread to other clients.
+     */
+    private static final int MAX_BATCH = 64;
+
+    private final ConcurrentLinkedQueue<NetworkMessageWithSender> mIncomingMessages = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mIsScheduled = new AtomicBoolean(false);
+    private final AtomicLong mCpuTime = new AtomicLong(0);
+    private final ClientWorkerPool mPool;
+
+    public PooledClient(
+            final DsgmClient dsgmClient,
+            final ThreadSafeNetwork network,
+            final ClientWorkerPool pool,
+            final Integer expectedGroupSize,
+            final ClientRole clientRole) {
+        super(dsgmClient, network, expectedGroupSize, clientRole);
+        mPool = pool;
+        init(mNetwork, mName);
+    }
+
+    @Override
+    public void start() {
+        mCpuTime.set(0);
+    }
+
+    @Override
+    public void stop() {
+        // Messages are handled as long as there are any; join waits for that
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        mPool.awaitIdle();
+    }
+
+    @Override
+    public long getCpuTime() {
+        return mCpuTime.get();
+    }
+
+    @Override
+    public void handleMessageFromNetwork(final Object senderIdentifier, final byte[] message) {
+        mPool.messageDelivered();
+        mIncomingMessages.add(new NetworkMessageWithSender(senderIdentifier, message));
+        schedule();
+    }
+
+    private void schedule() {
+        if (mIsScheduled.compareAndSet(false, true)) mPool.execute(this::handleIncomingMessages);
+    }
+
+    private void handleIncomingMessages() {
+        NetworkMessageWithSender incomingMessage;
+        for (int i = 0; i < MAX_BATCH && (incomingMessage = mIncomingMessages.poll()) != null; i++) {
+            final long startTime = Utils.getCpuTimeForCurrentThread();
+            try {
+                handleMessage(incomingMessage);
+            } catch (RuntimeException exc) {
+                Logger.w(mName, "Failed to handle message: " + exc);
+            } finally {
+                mCpuTime.addAndGet(Utils.getCpuTimeForCurrentThread() - startTime);
+                mPool.messageHandled();
+            }
+        }
+        mIsScheduled.set(false);
+        // A message may have arrived after the last poll but before we cleared mIsScheduled
+        if (!mIncomingMessages.isEmpty()) schedule();
+    }
+}
@@ -2,72 +2,81 @@ package org.trvedata.sgm;
 
 import org.trvedata.sgm.communication.Client;
 import org.trvedata.sgm.communication.Network;
-import org.trvedata.sgm.communication.SimpleNetwork;
+import org.trvedata.sgm.misc.Preconditions;
 
+import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Thread-safe counterpart of {@link org.trvedata.sgm.communication.SimpleNetwork}.  Clients connect rarely but send
+ * constantly, so the connected clients are kept in an immutable snapshot that {@link #connect} replaces (copy on
+ * write) and that {@link #send} and {@link #broadcast} read without locking.  Hence concurrent senders only contend
+ * in the recipients' inboxes, which must be thread-safe (see {@link ThreadedClient} and {@link PooledClient}); a
+ * broadcast hands the same message array to every recipient.
+ */
 public class ThreadSafeNetwork implements Network {
 
-    private final ReentrantLock lock = new ReentrantLock();
-    private final Network mNetwork;
+    private volatile Clients mClients = new Clients(new HashMap<>(), new HashMap<>());
 
     // For the `sent` traffic, broadcast messages are counted only once
     private final AtomicLong mSentBytes = new AtomicLong(0);
 
-    public ThreadSafeNetwork() {
-        mNetwork = new SimpleNetwork();
-    }
-
     @Override
-    public void connect(final Client client, final String name) {
-        lock.lock();
-        try {
-            mNetwork.connect(client, name);
-        } finally {
-            lock.unlock();
-        }
+    public synchronized void connect(final Client client, final String name) {
+        final HashMap<Object, Client> byIdentifier = new HashMap<>(mClients.byIdentifier);
+        final HashMap<Object, String> names = new HashMap<>(mClients.names);
+        byIdentifier.put(client.getIdentifier(), client);
+        names.put(client.getIdentifier(), name);
+        mClients = new Clients(byIdentifier, names);
     }
 
     @Override
     public void send(final Client sender, final Object recipientIdentifier, final byte[] message) {
         mSentBytes.addAndGet(message.length);
-        lock.lock();
-        try {
-            mNetwork.send(sender, recipientIdentifier, message);
-        } finally {
-            lock.unlock();
-        }
+        final Client recipient = mClients.byIdentifier.get(recipientIdentifier);
+        Preconditions.checkArgument(
+                recipient != null,
+                "The client with identifier " + recipientIdentifier + " is not connected to the network.");
+        recipient.handleMessageFromNetwork(sender.getIdentifier(), message);
     }
 
     @Override
     public void broadcast(final Client sender, final byte[] message) {
         mSentBytes.addAndGet(message.length); // only once
-        lock.lock();
-        try {
-            mNetwork.broadcast(sender, message);
-        } finally {
-            lock.unlock();
+        final Object senderIdentifier = sender.getIdentifier();
+        for (final Client client : mClients.all) {
+            if (!client.getIdentifier().equals(senderIdentifier)) {
+                client.handleMessageFromNetwork(senderIdentifier, message);
+            }
         }
     }
 
     @Override
     public String idToName(Object identifier) {
-        lock.lock();
-        try {
-            return mNetwork.idToName(identifier);
-        } finally {
-            lock.unlock();
-        }
+        return mClients.names.getOrDefault(identifier, "<unknown client>");
     }
 
-
     @Override
     public int numClients() {
-        return mNetwork.numClients();
+        return mClients.all.length;
     }
 
     public long getSentBytes() {
         return mSentBytes.get();
     }
+
+    /**
+     * Snapshot of the connected clients; never modified once published.
+     */
+    private static class Clients {
+        private final HashMap<Object, Client> byIdentifier;
+        private final HashMap<Object, String> names;
+        private final Client[] all;
+
+        private Clients(final HashMap<Object, Client> byIdentifier, final HashMap<Object, String> names) {
+            this.byIdentifier = byIdentifier;
+            this.names = names;
+            this.all = byIdentifier.values().toArray(new Client[0]);
+        }
+    }
 }
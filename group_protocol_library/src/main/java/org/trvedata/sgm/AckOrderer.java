@@ -13,6 +13,7 @@ import org.trvedata.sgm.message.MessageId;
 import org.trvedata.sgm.misc.Logger;
 import org.trvedata.sgm.misc.Utils;
 
+import java.io.Serializable;
 import java.util.Collection;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -41,18 +42,41 @@ import static org.assertj.core.api.Assertions.assertThat;
  * (via {@link AckOrderer#getReadyMessage}) but not yet acknowledged.  When using {@link FullDcgkaProtocol},
  * since the DCGKA sends an acknowledgment immediately after receiving such a message, each
  * orderInfo contains at most one acknowledgment.
+ * <p>
+ * Messages that are not ready yet (including those queued before our welcome) can be spilled to a
+ * {@link MessageLog}, so that only their location stays on the heap; they are decoded again when they become ready.
  *
  * @param <M> The type of messages.
  */
 public class AckOrderer<M> implements Orderer<M, AckOrderer.Timestamp, MessageId, AckOrderer.State<M>> {
+    private final MessageLog<M> backlog; // null to keep all queued messages on the heap
+
+    public AckOrderer() {
+        this(null);
+    }
+
+    /**
+     * @param backlog If non-null, messages that are not ready when queued are written to this log instead of being
+     *                kept in the state; see {@link MessageLog}.
+     */
+    public AckOrderer(MessageLog<M> backlog) {
+        this.backlog = backlog;
+    }
 
     @Override
     public State<M> queue(State<M> state, M message, IdentityKey sender, OrderInfo orderInfo) {
+        return queue(state, message, null, sender, orderInfo);
+    }
+
+    /**
+     * Queues message, or if it is null, held, which was held while waiting for our welcome.
+     */
+    private State<M> queue(State<M> state, M message, Held<M> held, IdentityKey sender, OrderInfo orderInfo) {
         if (state.welcomeClock == null) {
             // not yet initialized via processWelcome
-            return state.addToWaitingForWelcome(message, sender, orderInfo);
+            return state.addToWaitingForWelcome(spill(message), sender, orderInfo);
         }
-        Timestamp timestamp = new Timestamp(orderInfo, sender);
+        Timestamp timestamp = new Timestamp(orderInfo, sender, state.memberRegistry);
         // Drop messages that we've already processed.  This includes
         // messages causally prior to our welcome (including the message adding us)
         if (timestamp.messageId.number <= state.clock.get(sender)) {
@@ -63,16 +87,17 @@ public class AckOrderer<M> implements Orderer<M, AckOrderer.Timestamp, MessageId
                 Logger.i("AckOrderer", state.id.hashCode() + ": (queue) Ignoring message we already processed: " +
                         timestamp.messageId);
             }
+            if (held != null) held.release();
             return state;
         }
-        ConsPStack<Pair<M, Timestamp>> newReadyMessages = state.readyMessages;
-        HashPMap<MessageId, TreePVector<Pair<M, Timestamp>>> newUnreadyMessages = state.unreadyMessages;
+        ConsPStack<Pair<Held<M>, Timestamp>> newReadyMessages = state.readyMessages;
+        HashPMap<MessageId, TreePVector<Pair<Held<M>, Timestamp>>> newUnreadyMessages = state.unreadyMessages;
         if (state.clock.get(sender) != timestamp.messageId.number - 1) {
             // Not ready due to sender's previous message.
             /*Logger.d("AckOrderer", state.id.hashCode() + ": (queue) Not ready due to sender's previous message: " +
                     timestamp.messageId + ", clock: " + state.clock);*/
             newUnreadyMessages = Utils.putMulti(newUnreadyMessages, new MessageId(sender, timestamp.messageId.number - 1),
-                    Pair.of(message, timestamp));
+                    Pair.of(held != null ? held : spill(message), timestamp));
         } else {
             if (timestamp.ackedMessageId != null &&
                     (state.clock.get(timestamp.ackedMessageId.author) < timestamp.ackedMessageId.number)) {
@@ -80,43 +105,46 @@ public class AckOrderer<M> implements Orderer<M, AckOrderer.Timestamp, MessageId
                 /*Logger.d("AckOrderer", state.id.hashCode() + ": (queue) Not ready due to ack: " +
                         timestamp.messageId + ", ack: " + timestamp.ackedMessageId + ", clock: " + state.clock);*/
                 newUnreadyMessages = Utils.putMulti(newUnreadyMessages, timestamp.ackedMessageId,
-                        Pair.of(message, timestamp));
+                        Pair.of(held != null ? held : spill(message), timestamp));
             } else {
-                // Ready.
-                newReadyMessages = newReadyMessages.plus(Pair.of(message, timestamp));
+                // Ready.  Not worth spilling, since it is likely delivered right away.
+                newReadyMessages = newReadyMessages.plus(Pair.of(held != null ? held : Held.onHeap(message),
+                        timestamp));
             }
         }
-        return new State<>(state.id, state.clock, state.welcomeClock, state.waitingForWelcome, newReadyMessages,
-                newUnreadyMessages);
+        return new State<>(state.id, state.memberRegistry, state.clock, state.welcomeClock, state.waitingForWelcome,
+                newReadyMessages, newUnreadyMessages);
     }
 
     @Override
     public ReadyMessage<M, Timestamp, State<M>> getReadyMessage(State<M> state) {
         // Loop until we find a ready message that is not a duplicate of a previously processed MessageId.
-        ConsPStack<Pair<M, Timestamp>> newReadyMessages = state.readyMessages;
+        ConsPStack<Pair<Held<M>, Timestamp>> newReadyMessages = state.readyMessages;
         while (!newReadyMessages.isEmpty()) {
-            Pair<M, Timestamp> message = newReadyMessages.get(0);
+            Pair<Held<M>, Timestamp> message = newReadyMessages.get(0);
             newReadyMessages = newReadyMessages.minus(0);
             MessageId messageId = message.getRight().messageId;
             if (state.clock.get(messageId.author) >= messageId.number) {
                 // We've already processed a message with the same MessageId, skip it.
                 Logger.i("AckOrderer", state.id.hashCode() + ": (ready) Ignoring duplicate message: " +
                         messageId);
+                message.getLeft().release();
                 continue;
             }
             assertThat(messageId.number).isEqualTo(state.clock.get(messageId.author) + 1);
             // See if any successors become ready.
             state = state.setClock(state.clock.increment(messageId.author));
-            HashPMap<MessageId, TreePVector<Pair<M, Timestamp>>> newUnreadyMessages = state.unreadyMessages;
-            Collection<Pair<M, Timestamp>> successors = state.unreadyMessages.get(messageId);
+            HashPMap<MessageId, TreePVector<Pair<Held<M>, Timestamp>>> newUnreadyMessages = state.unreadyMessages;
+            Collection<Pair<Held<M>, Timestamp>> successors = state.unreadyMessages.get(messageId);
             if (successors != null && !successors.isEmpty()) {
                 newUnreadyMessages = newUnreadyMessages.minus(messageId);
-                for (Pair<M, Timestamp> successor : successors) {
+                for (Pair<Held<M>, Timestamp> successor : successors) {
                     MessageId successorId = successor.getRight().messageId;
                     if (state.clock.get(successorId.author) >= successorId.number) {
                         // We've already processed a message with the same MessageId, skip it.
                         Logger.i("AckOrderer", state.id.hashCode() + ": (ready) Ignoring duplicate message: " +
                                 successorId);
+                        successor.getLeft().release();
                         continue;
                     }
                     // Unready messages are stored first keyed by their sender's previous message and then by their
@@ -135,9 +163,12 @@ public class AckOrderer<M> implements Orderer<M, AckOrderer.Timestamp, MessageId
                     }
                 }
             }
-            return new ReadyMessage<>(new State<>(state.id, state.clock,
+            // Released first, so that a spilled message is read only once
+            message.getLeft().release();
+            M delivered = message.getLeft().get();
+            return new ReadyMessage<>(new State<>(state.id, state.memberRegistry, state.clock,
                     state.welcomeClock, state.waitingForWelcome, newReadyMessages, newUnreadyMessages),
-                    message.getLeft(), messageId.author, message.getRight());
+                    delivered, messageId.author, message.getRight());
         }
         // If we got here, no messages are ready.
         return null;
@@ -145,20 +176,21 @@ public class AckOrderer<M> implements Orderer<M, AckOrderer.Timestamp, MessageId
 
     @Override
     public State<M> skipReadyMessage(State<M> state) {
-        ConsPStack<Pair<M, Timestamp>> newReadyMessages = state.readyMessages;
+        ConsPStack<Pair<Held<M>, Timestamp>> newReadyMessages = state.readyMessages;
         // Loop until we find a message that is not a duplicate of a previously processed message,
         // skipping that and the rest
         while (!newReadyMessages.isEmpty()) {
-            Pair<M, Timestamp> message = newReadyMessages.get(0);
+            Pair<Held<M>, Timestamp> message = newReadyMessages.get(0);
             newReadyMessages = newReadyMessages.minus(0);
+            message.getLeft().release();
             MessageId messageId = message.getRight().messageId;
             if (state.clock.get(messageId.author) < messageId.number) {
                 // This message is not a duplicate, we're done
                 break;
             }
         }
-        return new State<>(state.id, state.clock, state.welcomeClock, state.waitingForWelcome, newReadyMessages,
-                state.unreadyMessages);
+        return new State<>(state.id, state.memberRegistry, state.clock, state.welcomeClock, state.waitingForWelcome,
+                newReadyMessages, state.unreadyMessages);
     }
 
     @Override
@@ -166,8 +198,8 @@ public class AckOrderer<M> implements Orderer<M, AckOrderer.Timestamp, MessageId
         VectorClock newClock = state.clock.increment(state.id);
         Timestamp timestamp = new Timestamp(new MessageId(state.id, newClock.get(state.id)),
                 ack, null);
-        return Triple.of(new State<>(state.id, newClock, state.welcomeClock, state.waitingForWelcome,
-                state.readyMessages, state.unreadyMessages), timestamp.serialize(), timestamp);
+        return Triple.of(new State<>(state.id, state.memberRegistry, newClock, state.welcomeClock,
+                state.waitingForWelcome, state.readyMessages, state.unreadyMessages), timestamp.serialize(), timestamp);
     }
 
     @Override
@@ -179,14 +211,15 @@ public class AckOrderer<M> implements Orderer<M, AckOrderer.Timestamp, MessageId
             // same timestamp (they all reach this if statement), and the protocol will work as long as
             // they all start with the same timestamp.  Nonetheless, we increment so that the group creator's
             // first message number is 1 instead of 0, like everyone else.
-            clock = (new VectorClock(sender, HashTreePMap.empty())).increment(sender);
-        } else clock = new VectorClock(welcomeInfo.getBytes());
+            clock = (new VectorClock(state.memberRegistry, sender)).increment(sender);
+        } else clock = new VectorClock(state.memberRegistry, welcomeInfo.getBytes());
         MessageId messageId = new MessageId(sender, clock.get(sender));
-        TreePVector<Triple<M, IdentityKey, OrderInfo>> waitingForWelcome = state.waitingForWelcome;
-        state = new State<>(state.id, clock, clock, null, ConsPStack.empty(), HashTreePMap.empty());
+        TreePVector<Triple<Held<M>, IdentityKey, OrderInfo>> waitingForWelcome = state.waitingForWelcome;
+        state = new State<>(state.id, state.memberRegistry, clock, clock, null, ConsPStack.empty(),
+                HashTreePMap.empty());
         // Actually queue messages that were queued before the welcome
-        for (Triple<M, IdentityKey, OrderInfo> queued : waitingForWelcome) {
-            state = queue(state, queued.getLeft(), queued.getMiddle(), queued.getRight());
+        for (Triple<Held<M>, IdentityKey, OrderInfo> queued : waitingForWelcome) {
+            state = queue(state, null, queued.getLeft(), queued.getMiddle(), queued.getRight());
         }
         return Pair.of(state, new Timestamp(messageId, null, clock));
     }
@@ -196,7 +229,46 @@ public class AckOrderer<M> implements Orderer<M, AckOrderer.Timestamp, MessageId
         return OrderInfo.of(state.clock.serialize());
     }
 
-    public static class Timestamp {
+    private Held<M> spill(M message) {
+        return (backlog == null) ? Held.onHeap(message) : backlog.append(message);
+    }
+
+    /**
+     * A queued message, kept either on the heap or in a {@link MessageLog}.
+     */
+    interface Held<M> extends Serializable {
+        M get();
+
+        /**
+         * Called once a state has delivered or dropped the message.  {@link #get} must still work afterwards, since
+         * older states may deliver the message again.
+         */
+        default void release() {
+        }
+
+        static <M> Held<M> onHeap(M message) {
+            return new OnHeap<>(message);
+        }
+    }
+
+    private static final class OnHeap<M> implements Held<M> {
+        private static final long serialVersionUID = 1L;
+
+        private final M message;
+
+        private OnHeap(M message) {
+            this.message = message;
+        }
+
+        @Override
+        public M get() {
+            return message;
+        }
+    }
+
+    public static class Timestamp implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         /**
          * For welcome info, corresponds to add, else corresponds to message itself.
          */
@@ -210,23 +282,23 @@ public class AckOrderer<M> implements Orderer<M, AckOrderer.Timestamp, MessageId
          */
         public final VectorClock clock;
 
-        private Timestamp(MessageId messageId, MessageId ackedMessageId, VectorClock clock) {
+        /* package */ Timestamp(MessageId messageId, MessageId ackedMessageId, VectorClock clock) {
             this.messageId = messageId;
             this.ackedMessageId = ackedMessageId;
             this.clock = clock;
         }
 
-        private Timestamp(OrderInfo serialized, IdentityKey sender) {
+        private Timestamp(OrderInfo serialized, IdentityKey sender, MemberRegistry memberRegistry) {
             try {
                 AckOrdererTimestamp deserialized = new AckOrdererTimestamp();
                 Utils.deserialize(deserialized, serialized.getBytes());
                 messageId = new MessageId(sender, deserialized.getNumber());
                 if (deserialized.isSetAckAuthor()) {
-                    ackedMessageId = new MessageId(new IdentityKey(deserialized.getAckAuthor()),
+                    ackedMessageId = new MessageId(IdentityKey.intern(deserialized.getAckAuthor()),
                             deserialized.getAckNumber());
                 } else ackedMessageId = null;
                 if (deserialized.isSetClock()) {
-                    clock = new VectorClock(deserialized.getClock());
+                    clock = new VectorClock(memberRegistry, deserialized.getClock());
                 } else clock = null;
             } catch (TException | IllegalArgumentException exc) {
                 throw new IllegalArgumentException("Failed to deserialize Timestamp", exc);
@@ -247,25 +319,29 @@ public class AckOrderer<M> implements Orderer<M, AckOrderer.Timestamp, MessageId
     }
 
     public static class State<M> implements Orderer.State {
+        private static final long serialVersionUID = 1L;
+
         private final IdentityKey id;
+        private final MemberRegistry memberRegistry; // shared with the other components' states
         private final VectorClock clock;
         private final VectorClock welcomeClock; // timestamp of the add/create that added us.  Null if
         // processWelcome has not yet been called.
-        private final TreePVector<Triple<M, IdentityKey, OrderInfo>> waitingForWelcome; // Messages that were queued when
-        // processWelcome has not yet been called.  Null if it was called already.
-        private final ConsPStack<Pair<M, Timestamp>> readyMessages;
+        // Messages that were queued when processWelcome has not yet been called.  Null if it was called already.
+        private final TreePVector<Triple<Held<M>, IdentityKey, OrderInfo>> waitingForWelcome;
+        private final ConsPStack<Pair<Held<M>, Timestamp>> readyMessages;
         /* Maps from a MessageId to a collection of messages that are immediate successors of that message,
         i.e., they either ack that message, or they are the next message by the same sender.  Each message
         appears at most once as a value.  In case both the ack and the sender's previous message are missing,
         we first add a message keyed under the sender's previous message, then under its ack.
          */
-        private final HashPMap<MessageId, TreePVector<Pair<M, Timestamp>>> unreadyMessages;
+        private final HashPMap<MessageId, TreePVector<Pair<Held<M>, Timestamp>>> unreadyMessages;
 
-        private State(IdentityKey id, VectorClock clock, VectorClock welcomeClock,
-                      TreePVector<Triple<M, IdentityKey, OrderInfo>> waitingForWelcome,
-                      ConsPStack<Pair<M, Timestamp>> readyMessages,
-                      HashPMap<MessageId, TreePVector<Pair<M, Timestamp>>> unreadyMessages) {
+        private State(IdentityKey id, MemberRegistry memberRegistry, VectorClock clock, VectorClock welcomeClock,
+                      TreePVector<Triple<Held<M>, IdentityKey, OrderInfo>> waitingForWelcome,
+                      ConsPStack<Pair<Held<M>, Timestamp>> readyMessages,
+                      HashPMap<MessageId, TreePVector<Pair<Held<M>, Timestamp>>> unreadyMessages) {
             this.id = id;
+            this.memberRegistry = memberRegistry;
             this.clock = clock;
             this.welcomeClock = welcomeClock;
             this.waitingForWelcome = waitingForWelcome;
@@ -274,20 +350,28 @@ public class AckOrderer<M> implements Orderer<M, AckOrderer.Timestamp, MessageId
         }
 
         public State(IdentityKey id) {
+            this(id, new MemberRegistry());
+        }
+
+        /**
+         * Like {@link #State(IdentityKey)}, but the vector clocks index members using the given registry, which
+         * should be shared with the other components of id's state for this group.
+         */
+        public State(IdentityKey id, MemberRegistry memberRegistry) {
             // The null values are initialized in processWelcomeInfo, which everyone calls when
             // they are added to the group (including the group creator).
-            this(id, null, null, TreePVector.empty(), null, null);
+            this(id, memberRegistry, null, null, TreePVector.empty(), null, null);
         }
 
-        private State<M> addToWaitingForWelcome(M message, IdentityKey sender, OrderInfo orderInfo) {
-            return new State<>(this.id, this.clock, this.welcomeClock,
+        private State<M> addToWaitingForWelcome(Held<M> message, IdentityKey sender, OrderInfo orderInfo) {
+            return new State<>(this.id, this.memberRegistry, this.clock, this.welcomeClock,
                     this.waitingForWelcome.plus(Triple.of(message, sender, orderInfo)), this.readyMessages,
                     this.unreadyMessages);
         }
 
         public State<M> setClock(VectorClock newClock) {
-            return new State<>(this.id, newClock, this.welcomeClock, this.waitingForWelcome, this.readyMessages,
-                    this.unreadyMessages);
+            return new State<>(this.id, this.memberRegistry, newClock, this.welcomeClock, this.waitingForWelcome,
+                    this.readyMessages, this.unreadyMessages);
         }
     }
 }
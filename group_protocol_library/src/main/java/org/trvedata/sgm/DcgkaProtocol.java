@@ -5,7 +5,10 @@ import org.apache.commons.lang3.tuple.Triple;
 import org.trvedata.sgm.crypto.IdentityKey;
 import org.trvedata.sgm.misc.ByteHolder;
 
+import java.io.Serializable;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * A {@link DcgkaProtocol} is an implementation of a DCGKA scheme as described in the current paper draft.
@@ -152,16 +155,44 @@ public interface DcgkaProtocol<T, I, S extends DcgkaProtocol.State> {
         }
     }
 
+    /**
+     * Returns the versions of {@code attachment} (a {@link ControlMessage#attachment} we output) to send to each of
+     * its recipients, e.g., each recipient's own ciphertext.  Members that are not in the returned map get the
+     * message without an attachment.  By default, the map is empty, meaning that the attachment cannot be split and
+     * everyone should get it whole.
+     */
+    default Map<IdentityKey, byte[]> splitAttachment(byte[] attachment) {
+        return Collections.emptyMap();
+    }
+
     class ControlMessage extends ByteHolder {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Bulky data that is sent along with the message but not signed, because the message commits to it (e.g.,
+         * by a hash), or null.  Unlike the message, it may be different for each recipient; see
+         * {@link #splitAttachment}.
+         */
+        public final byte[] attachment;
+
         public ControlMessage(byte[] bytes) {
+            this(bytes, null);
+        }
+
+        public ControlMessage(byte[] bytes, byte[] attachment) {
             super(bytes);
+            this.attachment = attachment;
         }
 
         public static ControlMessage of(byte[] bytes) {
             return new ControlMessage(bytes);
         }
+
+        public static ControlMessage of(byte[] bytes, byte[] attachment) {
+            return new ControlMessage(bytes, attachment);
+        }
     }
 
-    interface State {
+    interface State extends Serializable {
     }
 }
@@ -9,6 +9,8 @@ import org.trvedata.sgm.crypto.IdentityKeyPair;
 import org.trvedata.sgm.crypto.PreKeySecret;
 import org.trvedata.sgm.crypto.PreKeySource;
 import org.trvedata.sgm.misc.Logger;
+import org.trvedata.sgm.misc.RandomSource;
+import org.trvedata.sgm.misc.Utils;
 import org.trvedata.sgm.trivial.TrivialDcgkaProtocol;
 import org.trvedata.sgm.trivial.TrivialForwardSecureEncryptionProtocol;
 import org.trvedata.sgm.trivial.TrivialOrderer;
@@ -17,6 +19,8 @@ import org.trvedata.sgm.trivial.TrivialSignatureProtocol;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * A {@link DsgmClient} is the interface to be used by an application or test environment making use of the DCGKA
@@ -25,6 +29,7 @@ import java.util.List;
 public class DsgmClient extends Client {
 
     private final IdentityKeyPair mIdentityKeyPair;
+    private final boolean mUnicastCiphertexts;
 
     private DsgmProtocol mDsgmProtocol;
     private DsgmProtocol.State mDgmProtocolState;
@@ -47,6 +52,9 @@ public class DsgmClient extends Client {
             final IdentityKeyPair identityKeyPair,
             final DgmClientImplementationConfiguration implementationConfiguration) {
         mIdentityKeyPair = identityKeyPair;
+        mUnicastCiphertexts = implementationConfiguration.unicastCiphertexts;
+        // Shared by the full protocol components
+        MemberRegistry memberRegistry = new MemberRegistry();
 
         DcgkaProtocol dcgkaProtocol;
         DcgkaProtocol.State dcgkaState;
@@ -56,8 +64,10 @@ public class DsgmClient extends Client {
                 dcgkaState = new TrivialDcgkaProtocol.State(identityKeyPair.getPublicKey());
                 break;
             case FULL:
-                dcgkaProtocol = new FullDcgkaProtocol();
-                dcgkaState = new FullDcgkaProtocol.State(identityKeyPair.getPublicKey(), preKeySecret, preKeySource);
+                dcgkaProtocol = new FullDcgkaProtocol(implementationConfiguration.encryptionExecutor,
+                        implementationConfiguration.unicastCiphertexts, implementationConfiguration.randomSource);
+                dcgkaState = new FullDcgkaProtocol.State(identityKeyPair.getPublicKey(), preKeySecret, preKeySource,
+                        memberRegistry);
                 break;
             default:
                 throw new IllegalArgumentException("Unrecognized DcgkaChoice: " + implementationConfiguration.dcgkaChoice);
@@ -74,7 +84,7 @@ public class DsgmClient extends Client {
         Orderer.State ordererState;
         if (implementationConfiguration.fullOrderer) {
             orderer = new AckOrderer();
-            ordererState = new AckOrderer.State<>(identityKeyPair.getPublicKey());
+            ordererState = new AckOrderer.State<>(identityKeyPair.getPublicKey(), memberRegistry);
         } else {
             orderer = new TrivialOrderer();
             ordererState = new TrivialOrderer.State<>();
@@ -82,14 +92,15 @@ public class DsgmClient extends Client {
         SignatureProtocol signatureProtocol;
         SignatureProtocol.State signatureState;
         if (implementationConfiguration.fullSignatureProtocol) {
-            signatureProtocol = new RotatingSignatureProtocol();
-            signatureState = new RotatingSignatureProtocol.State(identityKeyPair);
+            signatureProtocol = new RotatingSignatureProtocol(implementationConfiguration.randomSource);
+            signatureState = new RotatingSignatureProtocol.State(identityKeyPair, memberRegistry);
         } else {
             signatureProtocol = new TrivialSignatureProtocol();
             signatureState = new TrivialSignatureProtocol.State();
         }
 
-        mDsgmProtocol = new ModularDsgm(dcgkaProtocol, forwardSecureEncryptionProtocol, orderer, signatureProtocol);
+        mDsgmProtocol = new ModularDsgm(dcgkaProtocol, forwardSecureEncryptionProtocol, orderer, signatureProtocol,
+                implementationConfiguration.encryptionExecutor);
         mDgmProtocolState = new ModularDsgm.State<>(identityKeyPair.getPublicKey(), dcgkaState, ordererState, signatureState);
 
         init(network, name);
@@ -112,59 +123,86 @@ public class DsgmClient extends Client {
     public void create(Collection<IdentityKey> members) {
         Pair<? extends DsgmProtocol.State, byte[]> result = mDsgmProtocol.create(mDgmProtocolState, members);
         mDgmProtocolState = result.getLeft();
-        sendMessageToGroupMembers(result.getRight());
+        sendMessageToGroupMembers(result.getRight(), true);
     }
 
     public void add(IdentityKey added) {
         Triple<? extends DsgmProtocol.State, byte[], byte[]> result = mDsgmProtocol.add(mDgmProtocolState, added);
         mDgmProtocolState = result.getLeft();
-        sendMessageToGroupMembers(result.getRight());
+        sendMessageToGroupMembers(result.getRight(), true);
         send(added, result.getMiddle());
     }
 
     public void remove(IdentityKey removed) {
         Pair<? extends DsgmProtocol.State, byte[]> result = mDsgmProtocol.remove(mDgmProtocolState, removed);
         mDgmProtocolState = result.getLeft();
-        sendMessageToGroupMembers(result.getRight());
+        sendMessageToGroupMembers(result.getRight(), true);
     }
 
     public void update() {
         Pair<? extends DsgmProtocol.State, byte[]> result = mDsgmProtocol.update(mDgmProtocolState);
         mDgmProtocolState = result.getLeft();
-        sendMessageToGroupMembers(result.getRight());
+        sendMessageToGroupMembers(result.getRight(), true);
     }
 
     public void send(byte[] plaintext) {
         Pair<? extends DsgmProtocol.State, byte[]> result = mDsgmProtocol.send(mDgmProtocolState, plaintext);
         mDgmProtocolState = result.getLeft();
-        sendMessageToGroupMembers(result.getRight());
+        sendMessageToGroupMembers(result.getRight(), false);
     }
 
     @Override
     public void handleMessageFromNetwork(final Object senderIdentifier, final byte[] bytes) {
         try {
-            final Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> receiveResult =
-                    mDsgmProtocol.receive(mDgmProtocolState, bytes);
-            mDgmProtocolState = receiveResult.getLeft();
-
-            for (DsgmProtocol.MessageEffect messageEffect : receiveResult.getRight()) {
-                processMessageEffectToListenerCalls(messageEffect);
-                if (messageEffect.responseMessage != null) {
-                    sendMessageToGroupMembers(messageEffect.responseMessage);
-                }
-            }
+            handleReceiveResult(mDsgmProtocol.receive(mDgmProtocolState, bytes));
         } catch (final Exception e) {
             Logger.w("DsgmClient", name + ": Failed to process incoming message due to " + e.getMessage());
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Equivalent to calling {@link #handleMessageFromNetwork} on each message in order, but uses {@link
+     * DsgmProtocol#receiveBatch}, which verifies their signatures in parallel if this client was configured with an
+     * executor.  Intended for bursts of queued messages, e.g., after a reconnect.
+     */
+    public void handleMessagesFromNetwork(final List<byte[]> messages) {
+        try {
+            handleReceiveResult(mDsgmProtocol.receiveBatch(mDgmProtocolState, messages));
+        } catch (final Exception e) {
+            Logger.w("DsgmClient", name + ": Failed to process incoming messages due to " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void handleReceiveResult(
+            final Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> receiveResult) {
+        mDgmProtocolState = receiveResult.getLeft();
+
+        for (DsgmProtocol.MessageEffect messageEffect : receiveResult.getRight()) {
+            processMessageEffectToListenerCalls(messageEffect);
+            if (messageEffect.responseMessage != null) {
+                sendMessageToGroupMembers(messageEffect.responseMessage, true);
+            }
+        }
+    }
+
     /**
      * Hands the given message over to the network to broadcast.  Note that it will also be sent to
      * connected clients that are not yet in the group, which is fine as long as we use AckOrderer.
+     * With unicast ciphertexts, the recipients of DCGKA ciphertexts each get their own version of the
+     * message (see {@link DsgmProtocol#split}).
+     *
+     * @param isDcgka Whether message may carry DCGKA ciphertexts; application messages are never split.
      */
-    private void sendMessageToGroupMembers(final byte[] message) {
-        broadcast(message);
+    private void sendMessageToGroupMembers(final byte[] message, final boolean isDcgka) {
+        if (!mUnicastCiphertexts || !isDcgka) {
+            broadcast(message);
+            return;
+        }
+        final Pair<byte[], Map<IdentityKey, byte[]>> split = mDsgmProtocol.split(message);
+        if (split.getRight().isEmpty()) broadcast(split.getLeft());
+        else broadcast(split.getLeft(), split.getRight());
     }
 
     /**
@@ -235,16 +273,68 @@ public class DsgmClient extends Client {
         final boolean fullForwardSecureEncryptionProtocol;
         final boolean fullOrderer;
         final boolean fullSignatureProtocol;
+        final Executor encryptionExecutor;
+        final boolean unicastCiphertexts;
+        final RandomSource randomSource;
 
         public DgmClientImplementationConfiguration(
                 final DcgkaChoice dcgkaChoice,
                 final boolean fullForwardSecureEncryptionProtocol,
                 final boolean fullOrderer,
                 final boolean fullSignatureProtocol) {
+            this(dcgkaChoice, fullForwardSecureEncryptionProtocol, fullOrderer, fullSignatureProtocol, null);
+        }
+
+        public DgmClientImplementationConfiguration(
+                final DcgkaChoice dcgkaChoice,
+                final boolean fullForwardSecureEncryptionProtocol,
+                final boolean fullOrderer,
+                final boolean fullSignatureProtocol,
+                final Executor encryptionExecutor) {
+            this(dcgkaChoice, fullForwardSecureEncryptionProtocol, fullOrderer, fullSignatureProtocol,
+                    encryptionExecutor, false);
+        }
+
+        /**
+         * @param encryptionExecutor If non-null and {@code dcgkaChoice} is {@link DcgkaChoice#FULL}, per-recipient
+         *                           encryptions are run in parallel on this executor; see
+         *                           {@link FullDcgkaProtocol#FullDcgkaProtocol(Executor)}.  If non-null, it is also
+         *                           used to verify signatures in parallel in {@link DsgmClient#handleMessagesFromNetwork}.
+         * @param unicastCiphertexts If true and {@code dcgkaChoice} is {@link DcgkaChoice#FULL}, DCGKA messages
+         *                           commit to their per-recipient ciphertexts by a Merkle root and each recipient is
+         *                           sent only its own ciphertext; see
+         *                           {@link FullDcgkaProtocol#FullDcgkaProtocol(Executor, boolean)}.
+         */
+        public DgmClientImplementationConfiguration(
+                final DcgkaChoice dcgkaChoice,
+                final boolean fullForwardSecureEncryptionProtocol,
+                final boolean fullOrderer,
+                final boolean fullSignatureProtocol,
+                final Executor encryptionExecutor,
+                final boolean unicastCiphertexts) {
+            this(dcgkaChoice, fullForwardSecureEncryptionProtocol, fullOrderer, fullSignatureProtocol,
+                    encryptionExecutor, unicastCiphertexts, Utils.getRandomSource());
+        }
+
+        /**
+         * @param randomSource Source of all randomness used by the full protocol components; see
+         *                     {@link FullDcgkaProtocol#FullDcgkaProtocol(Executor, boolean, RandomSource)}.
+         */
+        public DgmClientImplementationConfiguration(
+                final DcgkaChoice dcgkaChoice,
+                final boolean fullForwardSecureEncryptionProtocol,
+                final boolean fullOrderer,
+                final boolean fullSignatureProtocol,
+                final Executor encryptionExecutor,
+                final boolean unicastCiphertexts,
+                final RandomSource randomSource) {
             this.dcgkaChoice = dcgkaChoice;
             this.fullForwardSecureEncryptionProtocol = fullForwardSecureEncryptionProtocol;
             this.fullOrderer = fullOrderer;
             this.fullSignatureProtocol = fullSignatureProtocol;
+            this.encryptionExecutor = encryptionExecutor;
+            this.unicastCiphertexts = unicastCiphertexts;
+            this.randomSource = randomSource;
         }
 
         public static DgmClientImplementationConfiguration full() {
@@ -4,8 +4,12 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 import org.trvedata.sgm.crypto.IdentityKey;
 
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A {@link DsgmProtocol} is an implementation of a Decentralized Group Messaging protocol, which is
@@ -61,12 +65,40 @@ public interface DsgmProtocol<S extends DsgmProtocol.State> {
 
     Pair<S, byte[]> send(S state, byte[] plaintext);
 
+    /**
+     * Splits a message output by this protocol into versions for individual recipients, for networks that can
+     * deliver a broadcast with some recipients getting a different message (see
+     * {@link org.trvedata.sgm.communication.Network#broadcast(org.trvedata.sgm.communication.Client, byte[], Map)}).
+     * Delivering the versions, with or without also delivering the message to their recipients, must be equivalent
+     * to delivering the message.  By default, everyone gets the message itself.
+     *
+     * @return (the message for everyone not in the map, map from recipient to its message).
+     */
+    default Pair<byte[], Map<IdentityKey, byte[]>> split(byte[] message) {
+        return Pair.of(message, Collections.emptyMap());
+    }
+
     /**
      * @return (updated state after all processed messages, ordered list of results of processing
      *messages that became ready from { @ code message })).
      */
     Pair<S, List<MessageEffect>> receive(S state, byte[] message);
 
+    /**
+     * Equivalent to calling {@link DsgmProtocol#receive} on each of {@code messages} in order, and concatenating the
+     * results.  Implementations may override this to handle bursts of messages (e.g., after a reconnect) more
+     * efficiently.
+     */
+    default Pair<S, List<MessageEffect>> receiveBatch(S state, List<byte[]> messages) {
+        ArrayList<MessageEffect> effects = new ArrayList<>();
+        for (byte[] message : messages) {
+            Pair<S, List<MessageEffect>> result = receive(state, message);
+            state = result.getLeft();
+            effects.addAll(result.getRight());
+        }
+        return Pair.of(state, effects);
+    }
+
     /**
      * Returns the current set of group members.
      *
@@ -166,6 +198,10 @@ public interface DsgmProtocol<S extends DsgmProtocol.State> {
         }
     }
 
-    interface State {
+    /**
+     * States, including all component states, are {@link Serializable} so that they can be persisted by a {@link
+     * org.trvedata.sgm.storage.StateStore}.
+     */
+    interface State extends Serializable {
     }
 }
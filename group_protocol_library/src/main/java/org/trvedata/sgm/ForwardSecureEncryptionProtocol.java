@@ -2,8 +2,11 @@ package org.trvedata.sgm;
 
 import org.trvedata.sgm.misc.ByteHolder;
 import org.trvedata.sgm.misc.Constants;
+import org.trvedata.sgm.misc.RandomSource;
 import org.trvedata.sgm.misc.Utils;
 
+import java.io.Serializable;
+
 /**
  * A {@link ForwardSecureEncryptionProtocol} ("Forward-Secure Authenticated Encryption") protocol is the interface used
  * by {@link ModularDsgm} to handle symmetric-key encryption and decryption of application messages.  It is based on the
@@ -56,6 +59,8 @@ public interface ForwardSecureEncryptionProtocol<S extends ForwardSecureEncrypti
     S init(Key key);
 
     class Key extends ByteHolder {
+        private static final long serialVersionUID = 1L;
+
         public Key(final byte[] bytes) {
             super(bytes);
         }
@@ -65,11 +70,15 @@ public interface ForwardSecureEncryptionProtocol<S extends ForwardSecureEncrypti
         }
 
         public static Key random() {
-            return new Key(Utils.getSecureRandomBytes(Constants.KEY_SIZE_BYTES));
+            return random(Utils.getRandomSource());
+        }
+
+        public static Key random(final RandomSource random) {
+            return new Key(random.nextBytes(Constants.KEY_SIZE_BYTES));
         }
     }
 
-    interface State {
+    interface State extends Serializable {
     }
 
     class EncryptionResult<S extends State> {
@@ -3,61 +3,134 @@ package org.trvedata.sgm;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.lang3.tuple.Triple;
 import org.apache.thrift.TException;
-import org.pcollections.HashPMap;
-import org.pcollections.HashTreePMap;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.pcollections.IntTreePMap;
 import org.trvedata.sgm.crypto.*;
 import org.trvedata.sgm.message.*;
 import org.trvedata.sgm.misc.Constants;
 import org.trvedata.sgm.misc.Logger;
+import org.trvedata.sgm.misc.Preconditions;
+import org.trvedata.sgm.misc.RandomSource;
+import org.trvedata.sgm.misc.StructView;
 import org.trvedata.sgm.misc.Utils;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, MessageId, FullDcgkaProtocol.State> {
+    /**
+     * Executor used to encrypt seed secrets for several recipients concurrently, or null to encrypt them
+     * sequentially on the calling thread.
+     */
+    private final Executor encryptionExecutor;
+    /**
+     * Whether create, update and remove messages commit to their seed secret ciphertexts by a Merkle root.
+     */
+    private final boolean commitCiphertexts;
+    /**
+     * Source of seed secrets and of the keys generated by two-party encryptions.
+     */
+    private final RandomSource random;
+
+    public FullDcgkaProtocol() {
+        this(null);
+    }
+
+    /**
+     * If {@code encryptionExecutor} is non-null, the per-recipient {@link TwoPartyProtocol} encryptions done when
+     * generating a seed secret (in create, update and remove) are run on it in parallel, e.g. on
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()}.  The resulting messages and states are identical to
+     * the sequential ones.  In this case the {@link PreKeySource} passed to {@link State} must be thread-safe.
+     */
+    public FullDcgkaProtocol(Executor encryptionExecutor) {
+        this(encryptionExecutor, false);
+    }
+
+    /**
+     * If {@code commitCiphertexts} is set, create, update and remove messages contain only the {@link MerkleTree}
+     * root of their per-recipient seed secret ciphertexts, which is signed with the message.  The ciphertexts are
+     * output as the message's {@link ControlMessage#attachment}, which {@link #splitAttachment} splits into each
+     * recipient's ciphertext and inclusion proof.  A client can then send each recipient only its own ciphertext
+     * (see {@link DsgmProtocol#split}), making the traffic of these operations linear rather than quadratic in the
+     * group size.  Received messages are accepted in either form regardless of this setting.
+     */
+    public FullDcgkaProtocol(Executor encryptionExecutor, boolean commitCiphertexts) {
+        this(encryptionExecutor, commitCiphertexts, Utils.getRandomSource());
+    }
+
+    /**
+     * Like {@link #FullDcgkaProtocol(Executor, boolean)}, but draws all randomness from {@code random}, e.g., a
+     * {@link org.trvedata.sgm.misc.DeterministicRandomSource} for reproducible runs.  Each per-recipient encryption
+     * draws from its own {@link RandomSource#fork}, so runs are reproducible (and identical) with or without
+     * {@code encryptionExecutor}.
+     */
+    public FullDcgkaProtocol(Executor encryptionExecutor, boolean commitCiphertexts, RandomSource random) {
+        Preconditions.checkArgument(random != null, "random must not be null");
+        this.encryptionExecutor = encryptionExecutor;
+        this.commitCiphertexts = commitCiphertexts;
+        this.random = random;
+    }
 
     @Override
     public ProcessReturn<State> process(State state, ControlMessage message, IdentityKey sender,
                                         AckOrderer.Timestamp causalInfo) {
         try {
-            FullDcgkaMessage fullDcgkaMessage = new FullDcgkaMessage();
-            Utils.deserialize(fullDcgkaMessage, message.getBytes());
-            switch (fullDcgkaMessage.getType()) {
+            // Decode the inner message directly from its position in the outer one
+            StructView fullDcgkaMessage = StructView.of(message.getView(), FullDcgkaMessage._Fields.TYPE,
+                    FullDcgkaMessage._Fields.MESSAGE);
+            FullDcgkaMessageType type = FullDcgkaMessageType.findByValue(
+                    fullDcgkaMessage.getI32(FullDcgkaMessage._Fields.TYPE));
+            ByteBuffer inner = fullDcgkaMessage.getBinary(FullDcgkaMessage._Fields.MESSAGE);
+            if (type == null) {
+                throw new IllegalArgumentException("Unrecognized FullDcgkaMessageType: " +
+                        fullDcgkaMessage.getI32(FullDcgkaMessage._Fields.TYPE));
+            }
+            switch (type) {
                 case CREATE:
                     CreateMessage create = new CreateMessage();
-                    Utils.deserialize(create, fullDcgkaMessage.getMessage());
-                    return processCreate(state, create, sender, causalInfo);
+                    Utils.deserialize(create, inner);
+                    return processCreate(state, create, message.attachment, sender, causalInfo);
                 case UPDATE:
                     UpdateMessage update = new UpdateMessage();
-                    Utils.deserialize(update, fullDcgkaMessage.getMessage());
-                    return processUpdate(state, update, sender, causalInfo);
+                    Utils.deserialize(update, inner);
+                    return processUpdate(state, update, message.attachment, sender, causalInfo);
                 case REMOVE:
                     RemoveMessage remove = new RemoveMessage();
-                    Utils.deserialize(remove, fullDcgkaMessage.getMessage());
-                    return processRemove(state, remove, sender, causalInfo);
+                    Utils.deserialize(remove, inner);
+                    return processRemove(state, remove, message.attachment, sender, causalInfo);
                 case ADD:
                     AddMessage add = new AddMessage();
-                    Utils.deserialize(add, fullDcgkaMessage.getMessage());
+                    Utils.deserialize(add, inner);
                     return processAdd(state, add, sender, causalInfo);
                 case WELCOME:
                     WelcomeMessage welcome = new WelcomeMessage();
-                    Utils.deserialize(welcome, fullDcgkaMessage.getMessage());
+                    Utils.deserialize(welcome, inner);
                     return processWelcome(state, welcome, sender, causalInfo);
                 case ACK:
                     AckMessage ack = new AckMessage();
-                    Utils.deserialize(ack, fullDcgkaMessage.getMessage());
+                    Utils.deserialize(ack, inner);
                     return processAck(state, ack, sender, causalInfo);
                 case ACK_WITH_UPDATE:
                     AckWithUpdateMessage ackWithUpdate = new AckWithUpdateMessage();
-                    Utils.deserialize(ackWithUpdate, fullDcgkaMessage.getMessage());
-                    return processAckWithUpdate(state, ackWithUpdate, sender, causalInfo);
+                    Utils.deserialize(ackWithUpdate, inner);
+                    return processAckWithUpdate(state, ackWithUpdate, message.attachment, sender, causalInfo);
                 case ADD_ACK:
                     AddAckMessage addAck = new AddAckMessage();
-                    Utils.deserialize(addAck, fullDcgkaMessage.getMessage());
+                    Utils.deserialize(addAck, inner);
                     return processAddAck(state, addAck, sender, causalInfo);
                 default:
-                    throw new IllegalArgumentException("Unrecognized FullDcgkaMessageType: " + fullDcgkaMessage.getType());
+                    throw new IllegalArgumentException("Unrecognized FullDcgkaMessageType: " + type);
             }
         } catch (TException | IllegalArgumentException exc) {
             throw new IllegalArgumentException("Failed to deserialize in process", exc);
@@ -67,29 +140,32 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
     @Override
     public Pair<State, ControlMessage> create(State state, Collection<IdentityKey> members) {
         CreateMessage create = new CreateMessage();
-        Pair<State, ? extends List<ByteBuffer>> generateResult = generateSeedSecret(state, members);
+        Triple<State, List<IdentityKey>, List<ByteBuffer>> generateResult = generateSeedSecret(state, members);
         state = generateResult.getLeft();
-        create.setCiphertexts(generateResult.getRight());
+        byte[] attachment = putCiphertexts(generateResult, create::setCiphertexts, create::setCiphertextsRoot);
         for (IdentityKey member : members) {
             create.addToIdsExcludingSender(ByteBuffer.wrap(member.serialize()));
         }
 
         FullDcgkaMessage message = new FullDcgkaMessage(FullDcgkaMessageType.CREATE,
                 ByteBuffer.wrap(Utils.serialize(create)));
-        return Pair.of(state, ControlMessage.of(Utils.serialize(message)));
+        return Pair.of(state, ControlMessage.of(Utils.serialize(message), attachment));
     }
 
-    private ProcessReturn<State> processCreate(State state, CreateMessage create, IdentityKey sender,
-                                               AckOrderer.Timestamp causalInfo) {
+    private ProcessReturn<State> processCreate(State state, CreateMessage create, byte[] attachment,
+                                               IdentityKey sender, AckOrderer.Timestamp causalInfo) {
         ArrayList<IdentityKey> members = deserializeIdList(create.getIdsExcludingSender());
         members.add(sender);
         if (!members.contains(state.id)) {
             // Throw an exception, to fulfill the condition stated in the Javadoc for DcgkaProtocol.process.
             throw new IllegalArgumentException("Welcome is not for us: " + causalInfo.messageId);
         }
-        state = state.setStrongRemoveDGM(new StrongRemoveDgm(members, state.id));
+        // The old state keeps its StrongRemoveDgm, so the ciphertext can be checked after replacing it
+        state = state.setStrongRemoveDGM(new StrongRemoveDgm(members, state.id, state.memberRegistry));
+        ByteBuffer ciphertext = getOwnCiphertext(state, sender, state.strongRemoveDGM.queryView(sender),
+                create.getCiphertexts(), create.getCiphertextsRoot(), attachment);
         Triple<State, AckMessage, ForwardSecureEncryptionProtocol.Key> processSeedSecretReturn =
-                processSeedSecret(state, sender, causalInfo.messageId, create.getCiphertexts());
+                processSeedSecret(state, sender, causalInfo.messageId, ciphertext);
         state = processSeedSecretReturn.getLeft();
         state = state.setCreateMessageId(causalInfo.messageId);
         ControlMessage response;
@@ -113,23 +189,30 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
         // Thus we will refuse to process messages from a user that depend on their own removal.
         Collection<MessageId> ackedMessageIds;
         if (!sender.equals(state.id)) {
-            if (state.strongRemoveDGM.isAdd(causalInfo.ackedMessageId) ||
-                    state.strongRemoveDGM.isRemove(causalInfo.ackedMessageId)) {
-                // This condition will fail for acks of the creation and of updates
+            if (state.strongRemoveDGM.isAdd(causalInfo.ackedMessageId)) {
+                state.strongRemoveDGM.ack(sender, causalInfo.ackedMessageId);
+            } else if (state.strongRemoveDGM.isRemove(causalInfo.ackedMessageId)) {
                 state.strongRemoveDGM.ack(sender, causalInfo.ackedMessageId);
+                // The ack shrank sender's view, so their own removes may now be fully acked
+                state = pruneRemovePprfs(state, sender);
             }
+            // Neither condition holds for acks of the creation and of updates
             ackedMessageIds = Collections.singletonList(causalInfo.ackedMessageId);
         } else ackedMessageIds = Collections.emptyList();
 
         ForwardSecureEncryptionProtocol.Key updateSecret;
-        PuncturablePseudorandomFunction pprf = state.pprfs.get(causalInfo.ackedMessageId);
-        if (pprf == null) {
+        PuncturablePseudorandomFunction pprf = state.getPprf(causalInfo.ackedMessageId);
+        // We have no PPRF for a message whose PPRF was pruned, or for our ack of a message we did not get a seed
+        // secret from (e.g. one concurrent to our add).  Either way, the ack's sender has no value in it.
+        if (pprf == null && !state.mayHavePrunedPprf(causalInfo.ackedMessageId) && !sender.equals(state.id)) {
             throw new IllegalArgumentException("No PPRF for acked message");
         }
-        Pair<PuncturablePseudorandomFunction, byte[]> chainUpdatePair = pprf.popValue(sender.serialize());
+        Pair<PuncturablePseudorandomFunction, byte[]> chainUpdatePair =
+                (pprf == null) ? Pair.of(null, null) : pprf.popValue(sender.serialize());
         if (chainUpdatePair.getRight() != null) {
-            // Derive the sender's perMemberSecret from pprf.
-            state = state.putPprf(causalInfo.messageId, chainUpdatePair.getLeft());
+            // Derive the sender's perMemberSecret from pprf, puncturing the acked message's PPRF in place.
+            state = state.putPprf(causalInfo.ackedMessageId, chainUpdatePair.getLeft());
+            state = prunePprf(state, causalInfo.ackedMessageId);
             Pair<State, ForwardSecureEncryptionProtocol.Key> keyUpdatePair =
                     prng(state, sender, chainUpdatePair.getRight());
             state = keyUpdatePair.getLeft();
@@ -161,25 +244,39 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
 
     @Override
     public Pair<State, ControlMessage> update(State state) {
-        Pair<State, UpdateMessage> internal = updateInternal(state);
+        Triple<State, UpdateMessage, byte[]> internal = updateInternal(state);
         FullDcgkaMessage message = new FullDcgkaMessage(FullDcgkaMessageType.UPDATE,
-                ByteBuffer.wrap(Utils.serialize(internal.getRight())));
-        return Pair.of(internal.getLeft(), ControlMessage.of(Utils.serialize(message)));
+                ByteBuffer.wrap(Utils.serialize(internal.getMiddle())));
+        return Pair.of(internal.getLeft(), ControlMessage.of(Utils.serialize(message), internal.getRight()));
     }
 
-    private Pair<State, UpdateMessage> updateInternal(State state) {
+    /**
+     * Returns (updated state, update message, attachment for the update message or null).
+     */
+    private Triple<State, UpdateMessage, byte[]> updateInternal(State state) {
         UpdateMessage update = new UpdateMessage();
-        Pair<State, ? extends List<ByteBuffer>> generateResult = generateSeedSecret(state,
+        Triple<State, List<IdentityKey>, List<ByteBuffer>> generateResult = generateSeedSecret(state,
                 state.strongRemoveDGM.queryWholeWithoutMe());
         state = generateResult.getLeft();
-        update.setCiphertexts(generateResult.getRight());
-        return Pair.of(state, update);
+        byte[] attachment = putCiphertexts(generateResult, update::setCiphertexts, update::setCiphertextsRoot);
+        return Triple.of(state, update, attachment);
+    }
+
+    private ProcessReturn<State> processUpdate(State state, UpdateMessage update, byte[] attachment,
+                                               IdentityKey sender, AckOrderer.Timestamp causalInfo) {
+        ByteBuffer ciphertext = getOwnCiphertext(state, sender, state.strongRemoveDGM.queryView(sender),
+                update.getCiphertexts(), update.getCiphertextsRoot(), attachment);
+        return processUpdate(state, ciphertext, sender, causalInfo);
     }
 
-    private ProcessReturn<State> processUpdate(State state, UpdateMessage update, IdentityKey sender,
+    /**
+     * Like {@link #processUpdate(State, UpdateMessage, byte[], IdentityKey, AckOrderer.Timestamp)}, given our
+     * ciphertext from the update as returned by {@link #getOwnCiphertext}.
+     */
+    private ProcessReturn<State> processUpdate(State state, ByteBuffer ciphertext, IdentityKey sender,
                                                AckOrderer.Timestamp causalInfo) {
         Triple<State, AckMessage, ForwardSecureEncryptionProtocol.Key> processSeedSecretReturn =
-                processSeedSecret(state, sender, causalInfo.messageId, update.getCiphertexts());
+                processSeedSecret(state, sender, causalInfo.messageId, ciphertext);
         state = processSeedSecretReturn.getLeft();
         ControlMessage response;
         if (processSeedSecretReturn.getMiddle() == null) response = ControlMessage.of(null);
@@ -198,20 +295,25 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
         RemoveMessage remove = new RemoveMessage();
         HashSet<IdentityKey> recipients = state.strongRemoveDGM.queryWholeWithoutMe();
         recipients.remove(removed);
-        Pair<State, ? extends List<ByteBuffer>> generateResult = generateSeedSecret(state,
+        Triple<State, List<IdentityKey>, List<ByteBuffer>> generateResult = generateSeedSecret(state,
                 recipients);
         state = generateResult.getLeft();
-        remove.setCiphertexts(generateResult.getRight());
+        byte[] attachment = putCiphertexts(generateResult, remove::setCiphertexts, remove::setCiphertextsRoot);
         remove.setRemoved(removed.serialize());
 
         FullDcgkaMessage message = new FullDcgkaMessage(FullDcgkaMessageType.REMOVE,
                 ByteBuffer.wrap(Utils.serialize(remove)));
-        return Pair.of(state, ControlMessage.of(Utils.serialize(message)));
+        return Pair.of(state, ControlMessage.of(Utils.serialize(message), attachment));
     }
 
-    private ProcessReturn<State> processRemove(State state, RemoveMessage remove, IdentityKey sender,
-                                               AckOrderer.Timestamp causalInfo) {
-        IdentityKey removed = new IdentityKey(remove.getRemoved());
+    private ProcessReturn<State> processRemove(State state, RemoveMessage remove, byte[] attachment,
+                                               IdentityKey sender, AckOrderer.Timestamp causalInfo) {
+        IdentityKey removed = IdentityKey.intern(remove.getRemoved());
+        // Check our ciphertext first: the remove below changes strongRemoveDGM in place, which a dropped message
+        // would leave behind.
+        ByteBuffer ciphertext = getOwnCiphertext(state, sender,
+                state.strongRemoveDGM.queryViewAfterRemove(sender, Collections.singleton(removed)),
+                remove.getCiphertexts(), remove.getCiphertextsRoot(), attachment);
         Collection<IdentityKey> removedCollection = state.strongRemoveDGM.remove(sender,
                 Collections.singleton(removed), causalInfo.messageId);
         if (removedCollection.contains(state.id)) {
@@ -223,21 +325,25 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
         }
 
         Triple<State, AckMessage, ForwardSecureEncryptionProtocol.Key> processSeedSecretReturn =
-                processSeedSecret(state, sender, causalInfo.messageId, remove.getCiphertexts());
+                processSeedSecret(state, sender, causalInfo.messageId, ciphertext);
         state = processSeedSecretReturn.getLeft();
+        // The removal shrank our and sender's views (the only ones that have acked it so far), so our and
+        // sender's removes may now be fully acked.
+        state = pruneRemovePprfs(state, sender);
+        if (!sender.equals(state.id)) state = pruneRemovePprfs(state, state.id);
 
         // Do ack-with-update if needed
         ControlMessage response;
         HashSet<IdentityKey> diffSet = state.strongRemoveDGM.queryView(sender);
         diffSet.removeAll(state.strongRemoveDGM.queryWhole());
         if (!diffSet.isEmpty()) {
-            Pair<State, UpdateMessage> updateResult = updateInternal(state);
+            Triple<State, UpdateMessage, byte[]> updateResult = updateInternal(state);
             state = updateResult.getLeft();
             AckWithUpdateMessage ackWithUpdate = new AckWithUpdateMessage(processSeedSecretReturn.getMiddle(),
-                    updateResult.getRight());
+                    updateResult.getMiddle());
             FullDcgkaMessage ackWithUpdateWrapped = new FullDcgkaMessage(FullDcgkaMessageType.ACK_WITH_UPDATE,
                     ByteBuffer.wrap(Utils.serialize(ackWithUpdate)));
-            response = ControlMessage.of(Utils.serialize(ackWithUpdateWrapped));
+            response = ControlMessage.of(Utils.serialize(ackWithUpdateWrapped), updateResult.getRight());
         } else {
             if (processSeedSecretReturn.getMiddle() == null) response = ControlMessage.of(null);
             else {
@@ -253,10 +359,15 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
     }
 
     private ProcessReturn<State> processAckWithUpdate(State state, AckWithUpdateMessage ackWithUpdate,
-                                                      IdentityKey sender, AckOrderer.Timestamp causalInfo) {
+                                                      byte[] attachment, IdentityKey sender,
+                                                      AckOrderer.Timestamp causalInfo) {
+        // As in processRemove, check our ciphertext before the ack changes strongRemoveDGM
+        UpdateMessage update = ackWithUpdate.getUpdate();
+        ByteBuffer ciphertext = getOwnCiphertext(state, sender,
+                state.strongRemoveDGM.queryViewAfterAck(sender, causalInfo.ackedMessageId),
+                update.getCiphertexts(), update.getCiphertextsRoot(), attachment);
         ProcessReturn<State> ackResult = processAck(state, ackWithUpdate.getAck(), sender, causalInfo);
-        ProcessReturn<State> updateResult = processUpdate(ackResult.state, ackWithUpdate.getUpdate(),
-                sender, causalInfo);
+        ProcessReturn<State> updateResult = processUpdate(ackResult.state, ciphertext, sender, causalInfo);
         return new ProcessReturn<>(updateResult.state, DcgkaMessageType.UPDATE, updateResult.responseMessage,
                 updateResult.updateSecret, null, Collections.emptyList(), Collections.emptyList(),
                 causalInfo.messageId, ackResult.ackedMessageIds);
@@ -267,7 +378,7 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
         // TODO: new user should add themselves after deserializing
         // TODO: once MembershipSet is immutable, instead of doing that, serialize the MembershipSet
         // with the new user added?  Change in process as well.
-        Pair<State, byte[]> myPrfForAdded = encryptTo(state, added, state.prfPrngs.get(state.id));
+        Pair<State, byte[]> myPrfForAdded = encryptTo(state, added, state.getChainKey(state.id));
         state = myPrfForAdded.getLeft();
         WelcomeMessage welcome = new WelcomeMessage(ByteBuffer.wrap(state.strongRemoveDGM.serialize().getLeft()),
                 ByteBuffer.wrap(myPrfForAdded.getRight()));
@@ -282,14 +393,14 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
 
     private ProcessReturn<State> processAdd(State state, AddMessage add,
                                             IdentityKey sender, AckOrderer.Timestamp causalInfo) {
-        IdentityKey added = new IdentityKey(add.getAdded());
+        IdentityKey added = IdentityKey.intern(add.getAdded());
         Collection<IdentityKey> addedCollection;
         if (!state.strongRemoveDGM.add(sender, added, causalInfo.messageId)) {
             addedCollection = Collections.singletonList(added);
         } else addedCollection = Collections.emptyList();
 
         ForwardSecureEncryptionProtocol.Key updateSecret;
-        if (state.strongRemoveDGM.queryView(sender).contains(state.id)) {
+        if (state.strongRemoveDGM.isInView(sender, state.id)) {
             Pair<State, ForwardSecureEncryptionProtocol.Key> prngWelcome = prng(state,
                     sender, "welcome".getBytes());
             state = prngWelcome.getLeft();
@@ -305,7 +416,7 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
         ControlMessage response;
         if (sender.equals(state.id)) response = ControlMessage.of(null);
         else {
-            Pair<State, byte[]> myPrfForAdded = encryptTo(state, added, state.prfPrngs.get(state.id));
+            Pair<State, byte[]> myPrfForAdded = encryptTo(state, added, state.getChainKey(state.id));
             state = myPrfForAdded.getLeft();
             AddAckMessage addAck = new AddAckMessage(ByteBuffer.wrap(myPrfForAdded.getRight()));
             FullDcgkaMessage addAckWrapped = new FullDcgkaMessage(FullDcgkaMessageType.ADD_ACK,
@@ -339,7 +450,7 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
         }
 
         ForwardSecureEncryptionProtocol.Key updateSecret;
-        if (state.strongRemoveDGM.queryView(sender).contains(state.id)) {
+        if (state.strongRemoveDGM.isInView(sender, state.id)) {
             Pair<State, ForwardSecureEncryptionProtocol.Key> prngAdd = prng(state,
                     sender, "add".getBytes());
             state = prngAdd.getLeft();
@@ -353,8 +464,8 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
 
     private ProcessReturn<State> processWelcome(State state, WelcomeMessage welcome, IdentityKey sender,
                                                 AckOrderer.Timestamp causalInfo) {
-        StrongRemoveDgm strongRemoveDGM = StrongRemoveDgm.deserialize(welcome.getStrongRemoveDgm(), state.id)
-                .getLeft();
+        StrongRemoveDgm strongRemoveDGM = StrongRemoveDgm.deserialize(welcome.getStrongRemoveDgm(), state.id,
+                state.memberRegistry).getLeft();
         strongRemoveDGM.add(sender, state.id, causalInfo.messageId);
         state = state.setStrongRemoveDGM(strongRemoveDGM);
         state = state.setAddMessageId(causalInfo.messageId);
@@ -388,41 +499,202 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
 
     /**
      * Generates a random secret, encrypts it for recipients in sorted order (skipping over state.id),
-     * adds those encryptions to message (mutably), and stores the secret in an updated state,
-     * which is returned.
+     * and stores the secret in an updated state, which is returned together with the sorted recipients and
+     * the encryptions.
+     * If encryptionExecutor is set, the encryptions are computed in parallel, then merged into the
+     * state in the same sorted order, so that the result is the same as in the sequential case.
      */
-    private Pair<State, ? extends List<ByteBuffer>> generateSeedSecret(State state, Collection<IdentityKey> recipients) {
+    private Triple<State, List<IdentityKey>, List<ByteBuffer>> generateSeedSecret(State state,
+                                                                                Collection<IdentityKey> recipients) {
         ArrayList<ByteBuffer> result = new ArrayList<>();
-        byte[] secret = Utils.getSecureRandomBytes(Constants.KEY_SIZE_BYTES);
-        List<IdentityKey> sortedRecipients =
-                recipients.stream().sorted().collect(Collectors.toList());
-        for (IdentityKey recipient : sortedRecipients) {
-            if (!recipient.equals(state.id)) {// skip me
-                Pair<State, byte[]> encryptReturn = encryptTo(state, recipient, secret);
+        byte[] secret = random.nextBytes(Constants.KEY_SIZE_BYTES);
+        final IdentityKey myId = state.id;
+        List<IdentityKey> sortedRecipients = recipients.stream().filter(recipient -> !recipient.equals(myId))
+                .sorted().collect(Collectors.toList()); // skip me
+        if (encryptionExecutor == null || sortedRecipients.size() < 2) {
+            for (IdentityKey recipient : sortedRecipients) {
+                Pair<State, byte[]> encryptReturn = encryptTo(state, recipient, secret, random.fork());
                 state = encryptReturn.getLeft();
                 result.add(ByteBuffer.wrap(encryptReturn.getRight()));
             }
+        } else {
+            ArrayList<CompletableFuture<Pair<TwoPartyProtocol, byte[]>>> encryptions = new ArrayList<>();
+            for (IdentityKey recipient : sortedRecipients) {
+                TwoPartyProtocol twoPartyProtocol = getTwoPartyProtocol(state, recipient);
+                RandomSource recipientRandom = random.fork();
+                encryptions.add(CompletableFuture.supplyAsync(() -> twoPartyProtocol.encrypt(secret, recipientRandom),
+                        encryptionExecutor));
+            }
+            for (int i = 0; i < sortedRecipients.size(); i++) {
+                Pair<TwoPartyProtocol, byte[]> encrypted;
+                try {
+                    encrypted = encryptions.get(i).join();
+                } catch (CompletionException exc) {
+                    if (exc.getCause() instanceof RuntimeException) throw (RuntimeException) exc.getCause();
+                    throw exc;
+                }
+                state = state.putTwoPartyProtocol(sortedRecipients.get(i), encrypted.getLeft());
+                result.add(ByteBuffer.wrap(encrypted.getRight()));
+            }
         }
-        return Pair.of(state.setNextSeed(secret), result);
+        return Triple.of(state.setNextSeed(secret), sortedRecipients, result);
     }
 
-    private Pair<State, byte[]> encryptTo(State state, IdentityKey recipient, byte[] plaintext) {
-        TwoPartyProtocol twoPartyProtocol = state.twoPartyProtocols.get(recipient);
+    /**
+     * Stores the ciphertexts output by {@link #generateSeedSecret} in a create, update or remove message using the
+     * given setters: the ciphertexts themselves, or if {@link #commitCiphertexts}, only their Merkle root.  In the
+     * latter case, returns the {@link CiphertextBundle} to attach to the message, else null.
+     */
+    private byte[] putCiphertexts(Triple<State, List<IdentityKey>, List<ByteBuffer>> generated,
+                                  Consumer<List<ByteBuffer>> setCiphertexts, Consumer<byte[]> setCiphertextsRoot) {
+        if (!commitCiphertexts) {
+            setCiphertexts.accept(generated.getRight());
+            return null;
+        }
+        setCiphertexts.accept(Collections.emptyList());
+        MerkleTree.RootBuilder root = new MerkleTree.RootBuilder();
+        generated.getRight().forEach(root::add);
+        setCiphertextsRoot.accept(root.getRoot());
+        CiphertextBundle bundle = new CiphertextBundle(generated.getRight());
+        bundle.setRecipients(generated.getMiddle().stream().map(recipient -> ByteBuffer.wrap(recipient.serialize()))
+                .collect(Collectors.toList()));
+        return Utils.serialize(bundle);
+    }
+
+    /**
+     * Splits a {@link CiphertextBundle} output by {@link #putCiphertexts} into one for each recipient, holding
+     * only that recipient's ciphertext and its inclusion proof.
+     */
+    @Override
+    public Map<IdentityKey, byte[]> splitAttachment(byte[] attachment) {
+        CiphertextBundle bundle = new CiphertextBundle();
+        try {
+            Utils.deserialize(bundle, attachment);
+        } catch (TException exc) {
+            throw new IllegalArgumentException("Failed to deserialize CiphertextBundle", exc);
+        }
+        if (!bundle.isSetRecipients() || bundle.getRecipientsSize() != bundle.getCiphertextsSize()) {
+            throw new IllegalArgumentException("CiphertextBundle does not list its recipients");
+        }
+        MerkleTree tree = new MerkleTree(bundle.getCiphertexts());
+        HashMap<IdentityKey, byte[]> split = new HashMap<>();
+        for (int i = 0; i < bundle.getCiphertextsSize(); i++) {
+            CiphertextBundle part = new CiphertextBundle(Collections.singletonList(bundle.getCiphertexts().get(i)));
+            part.setProof(tree.getProof(i));
+            split.put(IdentityKey.intern(Utils.asArray(bundle.getRecipients().get(i))), Utils.serialize(part));
+        }
+        return split;
+    }
+
+    /**
+     * Returns the index-th of the count ciphertexts of a create, update or remove message: from the message's
+     * ciphertexts, or if ciphertextsRoot is set, from the attached {@link CiphertextBundle} after checking it
+     * against the root.
+     * <p>
+     * The bundle is read field by field rather than deserialized: each ciphertext is hashed into the root as it is
+     * read and only ours is kept, so checking a full list takes O(log count) memory on top of the attachment.  A
+     * repeated field is rejected, since it would restart the position that ours is picked by.
+     */
+    private static ByteBuffer getCiphertext(List<ByteBuffer> ciphertexts, byte[] ciphertextsRoot, byte[] attachment,
+                                            int index, int count) {
+        if (ciphertextsRoot == null) return ciphertexts.get(index);
+        if (attachment == null) throw new IllegalArgumentException("Missing CiphertextBundle");
+        // Reading from a memory transport returns binary values as views into attachment
+        TCompactProtocol protocol = new TCompactProtocol(new TMemoryInputTransport(attachment));
+        MerkleTree.RootBuilder root = new MerkleTree.RootBuilder();
+        ByteBuffer ciphertext = null;
+        boolean readCiphertexts = false;
+        List<ByteBuffer> proof = null;
+        try {
+            protocol.readStructBegin();
+            while (true) {
+                TField field = protocol.readFieldBegin();
+                if (field.type == TType.STOP) break;
+                if (field.type == TType.LIST && (field.id == CiphertextBundle._Fields.CIPHERTEXTS.getThriftFieldId()
+                        || field.id == CiphertextBundle._Fields.PROOF.getThriftFieldId())) {
+                    TList list = protocol.readListBegin();
+                    if (list.elemType != TType.STRING) throw new TProtocolException("Expected a list of binary");
+                    if (field.id == CiphertextBundle._Fields.CIPHERTEXTS.getThriftFieldId()) {
+                        if (readCiphertexts) throw new TProtocolException("Repeated ciphertexts");
+                        readCiphertexts = true;
+                        for (int i = 0; i < list.size; i++) {
+                            ByteBuffer element = protocol.readBinary();
+                            root.add(element);
+                            // Ours is the only one if the bundle has a proof, else the index-th
+                            if (i == 0 || i == index) ciphertext = element;
+                        }
+                    } else {
+                        if (proof != null) throw new TProtocolException("Repeated proof");
+                        // Not presized: list.size is unchecked until the elements are read
+                        proof = new ArrayList<>();
+                        for (int i = 0; i < list.size; i++) proof.add(protocol.readBinary());
+                    }
+                    protocol.readListEnd();
+                } else TProtocolUtil.skip(protocol, field.type);
+                protocol.readFieldEnd();
+            }
+            protocol.readStructEnd();
+        } catch (TException exc) {
+            throw new IllegalArgumentException("Failed to deserialize CiphertextBundle", exc);
+        }
+        if (proof != null) {
+            // Only our ciphertext
+            if (root.size() != 1 || !MerkleTree.verify(ciphertextsRoot, count, index, ciphertext, proof)) {
+                throw new IllegalArgumentException("Ciphertext does not match ciphertextsRoot");
+            }
+        } else if (root.size() != count || !Arrays.equals(root.getRoot(), ciphertextsRoot)) {
+            throw new IllegalArgumentException("Ciphertexts do not match ciphertextsRoot");
+        }
+        return ciphertext;
+    }
+
+    private TwoPartyProtocol getTwoPartyProtocol(State state, IdentityKey peer) {
+        TwoPartyProtocol twoPartyProtocol = state.getTwoPartyProtocol(peer);
         if (twoPartyProtocol == null) {
-            twoPartyProtocol = new TwoPartyProtocol(state.preKeySecret, state.preKeySource, recipient);
+            twoPartyProtocol = new TwoPartyProtocol(state.preKeySecret, state.preKeySource, state.sessionStore, peer);
         }
-        Pair<TwoPartyProtocol, byte[]> encrypted = twoPartyProtocol.encrypt(plaintext);
+        return twoPartyProtocol;
+    }
+
+    private Pair<State, byte[]> encryptTo(State state, IdentityKey recipient, byte[] plaintext) {
+        return encryptTo(state, recipient, plaintext, random);
+    }
+
+    private Pair<State, byte[]> encryptTo(State state, IdentityKey recipient, byte[] plaintext,
+                                          RandomSource random) {
+        Pair<TwoPartyProtocol, byte[]> encrypted = getTwoPartyProtocol(state, recipient).encrypt(plaintext, random);
         state = state.putTwoPartyProtocol(recipient, encrypted.getLeft());
         return Pair.of(state, encrypted.getRight());
     }
 
+    /**
+     * Returns our ciphertext from a create, update or remove message whose sender generated its seed secret for
+     * sendersView, or null if we are not one of its recipients.  This checks the message's ciphertexts, so callers
+     * use it before changing state.strongRemoveDGM, which stays changed if the message is then dropped.
+     */
+    private ByteBuffer getOwnCiphertext(State state, IdentityKey sender, Set<IdentityKey> sendersView,
+                                        List<ByteBuffer> ciphertexts, byte[] ciphertextsRoot, byte[] attachment) {
+        if (sender.equals(state.id) || !sendersView.contains(state.id)) return null;
+        // Count how many recipients are before me; that's my index
+        int myIndex = 0;
+        int count = 0;
+        for (IdentityKey member : sendersView) {
+            if (member.equals(sender)) continue;
+            count++;
+            if (member.compareTo(state.id) < 0) myIndex++;
+        }
+        return getCiphertext(ciphertexts, ciphertextsRoot, attachment, myIndex, count);
+    }
+
     /**
      * Here sendersView should be the same view of the group members that sender passed
      * to addSecret as recipients.  If sender is us, this will instead use sender.nextMessageSecret.
+     * ciphertext is our ciphertext from the message, as returned by {@link #getOwnCiphertext} for that view.
      */
     private Triple<State, AckMessage, ForwardSecureEncryptionProtocol.Key> processSeedSecret(
-            State state, IdentityKey sender, MessageId messageId, List<ByteBuffer> ciphertexts) {
-        HashSet<IdentityKey> recipients = state.strongRemoveDGM.queryView(sender);
+            State state, IdentityKey sender, MessageId messageId, ByteBuffer ciphertext) {
+        HashSet<IdentityKey> sendersView = state.strongRemoveDGM.queryView(sender);
+        HashSet<IdentityKey> recipients = new HashSet<>(sendersView);
         recipients.remove(sender);
 
         byte[] seed;
@@ -430,12 +702,8 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
             seed = state.nextSeed;
             state = state.setNextSeed(null);
         } else if (recipients.contains(state.id)) {
-            // Count how many members are before me; that's my index
-            int myIndex = 0;
-            for (IdentityKey member : recipients) {
-                if (!member.equals(sender) && member.compareTo(state.id) < 0) myIndex++;
-            }
-            Pair<State, byte[]> decryptResult = decryptFrom(state, sender, Utils.asArray(ciphertexts.get(myIndex)));
+            Preconditions.checkState(ciphertext != null, "No ciphertext for a recipient of the seed secret");
+            Pair<State, byte[]> decryptResult = decryptFrom(state, sender, Utils.asArray(ciphertext));
             state = decryptResult.getLeft();
             seed = decryptResult.getRight();
         } else seed = null;
@@ -444,7 +712,7 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
         if (seed == null) updateSecret = ForwardSecureEncryptionProtocol.Key.of(null);
         else {
             PuncturablePseudorandomFunction pprf = new PuncturablePseudorandomFunction(seed,
-                    state.strongRemoveDGM.queryView(sender).stream().map(IdentityKey::serialize).collect(Collectors.toList()));
+                    sendersView.stream().map(IdentityKey::serialize).collect(Collectors.toList()));
             Pair<PuncturablePseudorandomFunction, byte[]> chainUpdatePair = pprf.popValue(sender.serialize());
             state = state.putPprf(messageId, chainUpdatePair.getLeft());
             Pair<State, ForwardSecureEncryptionProtocol.Key> prngResult = prng(state, sender, chainUpdatePair.getRight());
@@ -465,7 +733,7 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
                 for (IdentityKey toForward : needsForwarding) {
                     // Note the pop doesn't do anything because we ignore the returned pprf
                     Pair<State, byte[]> encryptionResult = encryptTo(state, toForward,
-                            state.pprfs.get(messageId).popValue(state.id.serialize()).getRight());
+                            state.getPprf(messageId).popValue(state.id.serialize()).getRight());
                     state = encryptionResult.getLeft();
                     forwards.put(ByteBuffer.wrap(toForward.serialize()),
                             ByteBuffer.wrap(encryptionResult.getRight()));
@@ -479,11 +747,7 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
     }
 
     private Pair<State, byte[]> decryptFrom(State state, IdentityKey sender, byte[] ciphertext) {
-        TwoPartyProtocol twoPartyProtocol = state.twoPartyProtocols.get(sender);
-        if (twoPartyProtocol == null) {
-            twoPartyProtocol = new TwoPartyProtocol(state.preKeySecret, state.preKeySource, sender);
-        }
-        Pair<TwoPartyProtocol, byte[]> decrypted = twoPartyProtocol.decrypt(ciphertext);
+        Pair<TwoPartyProtocol, byte[]> decrypted = getTwoPartyProtocol(state, sender).decrypt(ciphertext);
         if (decrypted == null) {
             throw new IllegalArgumentException("Failed to decrypt TwoPartyProtocol message from " + sender.hashCode());
         }
@@ -491,9 +755,37 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
         return Pair.of(state, decrypted.getRight());
     }
 
+    /**
+     * Removes the PPRF for messageId from state if it is spent: either all of its values have been popped, or
+     * messageId is a remove message that we and every member in its sender's view have acked.  (Add messages
+     * are excluded from the latter test since StrongRemoveDgm counts the added member's ack in advance.)
+     * Acks from members outside that view which arrive later are handled like acks from other non-recipients.
+     */
+    private State prunePprf(State state, MessageId messageId) {
+        PuncturablePseudorandomFunction pprf = state.getPprf(messageId);
+        if (pprf == null) return state;
+        if (pprf.isEmpty() || (state.strongRemoveDGM.isRemove(messageId) && !pprf.contains(state.id.serialize()) &&
+                state.strongRemoveDGM.isAckedByViewOf(messageId, messageId.author))) {
+            return state.removePprf(messageId);
+        } else return state;
+    }
+
+    /**
+     * Calls {@link #prunePprf} on the PPRFs of the remove messages sent by author, after author's view shrank.
+     */
+    private State pruneRemovePprfs(State state, IdentityKey author) {
+        IntTreePMap<PuncturablePseudorandomFunction> authorsPprfs = state.getPprfs(author);
+        if (authorsPprfs == null) return state;
+        for (int number : authorsPprfs.keySet()) {
+            MessageId messageId = new MessageId(author, number);
+            if (state.strongRemoveDGM.isRemove(messageId)) state = prunePprf(state, messageId);
+        }
+        return state;
+    }
+
     private Pair<State, ForwardSecureEncryptionProtocol.Key> prng(State state, IdentityKey sender, byte[] chainUpdate) {
         // Combine chainUpdate.getRight() with current chain key to get keyUpdate and new chain key
-        byte[] chainKey = state.prfPrngs.get(sender);
+        byte[] chainKey = state.getChainKey(sender);
         byte[] keyUpdate;
         if (chainKey == null) {
             keyUpdate = Utils.hash("update", chainUpdate);
@@ -508,7 +800,7 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
     private ArrayList<IdentityKey> deserializeIdList(List<ByteBuffer> ids) {
         ArrayList<IdentityKey> result = new ArrayList<>();
         for (ByteBuffer id : ids) {
-            result.add(new IdentityKey(Utils.asArray(id)));
+            result.add(IdentityKey.intern(Utils.asArray(id)));
         }
         return result;
     }
@@ -522,6 +814,24 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
         return Pair.of(newState, state.lastAcked);
     }
 
+    /**
+     * Returns the number of spent PPRFs that have been garbage-collected from state so far.
+     */
+    public int getReclaimedPprfCount(State state) {
+        return state.reclaimedPprfCount;
+    }
+
+    /**
+     * Returns the number of PPRFs currently stored in state.
+     */
+    /* package */ int getPprfCount(State state) {
+        int count = 0;
+        for (IntTreePMap<PuncturablePseudorandomFunction> authorsPprfs : state.pprfs.values()) {
+            count += authorsPprfs.size();
+        }
+        return count;
+    }
+
     @Override
     public Collection<IdentityKey> getMembers(State state) {
         return state.strongRemoveDGM.queryWhole();
@@ -533,42 +843,78 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
     }
 
     public static class State implements DcgkaProtocol.State {
+        private static final long serialVersionUID = 1L;
+
         private final IdentityKey id;
         private final PreKeySecret preKeySecret;
         private final PreKeySource preKeySource;
-        private final HashPMap<IdentityKey, TwoPartyProtocol> twoPartyProtocols;
+        private final TwoPartySessionStore sessionStore; // shared with other groups' states; may be null
+        private final MemberRegistry memberRegistry; // shared with the other components' states
+        private final IntTreePMap<TwoPartyProtocol> twoPartyProtocols; // keyed by member index
         private final StrongRemoveDgm strongRemoveDGM; // TODO: make immutable
-        private final HashPMap<MessageId, PuncturablePseudorandomFunction> pprfs;
-        private final HashPMap<IdentityKey, byte[]> prfPrngs;
+        // Keyed by the member index of the message's author, then by message number, so that one author's PPRFs
+        // can be found without looking at everyone's
+        private final IntTreePMap<IntTreePMap<PuncturablePseudorandomFunction>> pprfs;
+        private final IntTreePMap<byte[]> prfPrngs; // keyed by member index
         private final MessageId addMessageId; // MessageId of our add message.  Null if we were added at group creation.
         private final MessageId createMessageId; // MessageId of the group creation message.  Null if we weren't an
         // initial member.
         private final MessageId lastAcked; // last message that was acked
         private final byte[] nextSeed; // the secret in a message we just generated
         // which should be processed next
+        // Keyed by member index: the highest number of that member's messages whose spent PPRF was removed from
+        // pprfs, so that later acks of those messages are recognized without keeping an entry per message
+        private final IntTreePMap<Integer> prunedPprfWatermarks;
+        private final int reclaimedPprfCount; // number of spent PPRFs removed from pprfs so far
 
         public State(IdentityKey id, PreKeySecret preKeySecret, PreKeySource preKeySource) {
+            this(id, preKeySecret, preKeySource, new MemberRegistry());
+        }
+
+        /**
+         * Like {@link #State(IdentityKey, PreKeySecret, PreKeySource)}, but indexes members using the given
+         * registry, which should be shared with the other components of id's state for this group.
+         */
+        public State(IdentityKey id, PreKeySecret preKeySecret, PreKeySource preKeySource,
+                     MemberRegistry memberRegistry) {
+            this(id, preKeySecret, preKeySource, null, memberRegistry);
+        }
+
+        /**
+         * Like {@link #State(IdentityKey, PreKeySecret, PreKeySource, MemberRegistry)}, but new two-party sessions
+         * bootstrap through sessionStore, which may be shared with id's states for other groups.
+         */
+        public State(IdentityKey id, PreKeySecret preKeySecret, PreKeySource preKeySource,
+                     TwoPartySessionStore sessionStore, MemberRegistry memberRegistry) {
             // membershipSet is initialized on welcome
             this.id = id;
             this.preKeySecret = preKeySecret;
             this.preKeySource = preKeySource;
-            this.twoPartyProtocols = HashTreePMap.empty();
-            this.strongRemoveDGM = StrongRemoveDgm.empty(id);
-            this.pprfs = HashTreePMap.empty();
-            this.prfPrngs = HashTreePMap.empty();
+            this.sessionStore = sessionStore;
+            this.memberRegistry = memberRegistry;
+            this.twoPartyProtocols = IntTreePMap.empty();
+            this.strongRemoveDGM = StrongRemoveDgm.empty(id, memberRegistry);
+            this.pprfs = IntTreePMap.empty();
+            this.prfPrngs = IntTreePMap.empty();
             this.addMessageId = null;
             this.createMessageId = null;
             this.lastAcked = null;
             this.nextSeed = null;
+            this.prunedPprfWatermarks = IntTreePMap.empty();
+            this.reclaimedPprfCount = 0;
         }
 
         private State(State old,
-                      HashPMap<IdentityKey, TwoPartyProtocol> twoPartyProtocols, StrongRemoveDgm strongRemoveDGM,
-                      HashPMap<MessageId, PuncturablePseudorandomFunction> pprfs, HashPMap<IdentityKey, byte[]> prfPrngs,
-                      MessageId addMessageId, MessageId createMessageId, MessageId lastAcked, byte[] nextSeed) {
+                      IntTreePMap<TwoPartyProtocol> twoPartyProtocols, StrongRemoveDgm strongRemoveDGM,
+                      IntTreePMap<IntTreePMap<PuncturablePseudorandomFunction>> pprfs,
+                      IntTreePMap<byte[]> prfPrngs, MessageId addMessageId, MessageId createMessageId,
+                      MessageId lastAcked, byte[] nextSeed, IntTreePMap<Integer> prunedPprfWatermarks,
+                      int reclaimedPprfCount) {
             this.id = old.id;
             this.preKeySecret = old.preKeySecret;
             this.preKeySource = old.preKeySource;
+            this.sessionStore = old.sessionStore;
+            this.memberRegistry = old.memberRegistry;
             this.twoPartyProtocols = twoPartyProtocols;
             this.strongRemoveDGM = strongRemoveDGM;
             this.pprfs = pprfs;
@@ -577,49 +923,109 @@ public class FullDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp, Me
             this.createMessageId = createMessageId;
             this.lastAcked = lastAcked;
             this.nextSeed = nextSeed;
+            this.prunedPprfWatermarks = prunedPprfWatermarks;
+            this.reclaimedPprfCount = reclaimedPprfCount;
+        }
+
+        private byte[] getChainKey(IdentityKey member) {
+            return prfPrngs.get(memberRegistry.indexOf(member));
+        }
+
+        private TwoPartyProtocol getTwoPartyProtocol(IdentityKey member) {
+            return twoPartyProtocols.get(memberRegistry.indexOf(member));
+        }
+
+        private IntTreePMap<PuncturablePseudorandomFunction> getPprfs(IdentityKey author) {
+            return pprfs.get(memberRegistry.indexOf(author));
+        }
+
+        private PuncturablePseudorandomFunction getPprf(MessageId messageId) {
+            IntTreePMap<PuncturablePseudorandomFunction> authorsPprfs = getPprfs(messageId.author);
+            return (authorsPprfs == null) ? null : authorsPprfs.get(messageId.number);
+        }
+
+        /**
+         * Returns whether messageId has no PPRF but one of its author's messages with the same or a higher number
+         * had its PPRF pruned.  This holds for every message whose PPRF was pruned, and otherwise only for ones we
+         * never had a PPRF for, since messages from one author are processed in order.
+         */
+        private boolean mayHavePrunedPprf(MessageId messageId) {
+            Integer watermark = prunedPprfWatermarks.get(memberRegistry.indexOf(messageId.author));
+            return watermark != null && messageId.number <= watermark && getPprf(messageId) == null;
         }
 
         private State setStrongRemoveDGM(StrongRemoveDgm newStrongRemoveDgm) {
             return new State(this, this.twoPartyProtocols, newStrongRemoveDgm,
-                    this.pprfs, this.prfPrngs, this.addMessageId, this.createMessageId, this.lastAcked, this.nextSeed);
+                    this.pprfs, this.prfPrngs, this.addMessageId, this.createMessageId,
+                    this.lastAcked, this.nextSeed, this.prunedPprfWatermarks,
+                    this.reclaimedPprfCount);
         }
 
         private State setNextSeed(byte[] newNextMessageSecret) {
             return new State(this, this.twoPartyProtocols, this.strongRemoveDGM,
-                    this.pprfs, this.prfPrngs, this.addMessageId, this.createMessageId, this.lastAcked, newNextMessageSecret);
+                    this.pprfs, this.prfPrngs, this.addMessageId, this.createMessageId,
+                    this.lastAcked, newNextMessageSecret, this.prunedPprfWatermarks,
+                    this.reclaimedPprfCount);
         }
 
         private State setLastAcked(MessageId newLastAcked) {
             return new State(this, this.twoPartyProtocols, this.strongRemoveDGM,
-                    this.pprfs, this.prfPrngs, this.addMessageId, this.createMessageId, newLastAcked, this.nextSeed);
+                    this.pprfs, this.prfPrngs, this.addMessageId, this.createMessageId,
+                    newLastAcked, this.nextSeed, this.prunedPprfWatermarks,
+                    this.reclaimedPprfCount);
         }
 
         private State setAddMessageId(MessageId newAddMessageId) {
             return new State(this, this.twoPartyProtocols, this.strongRemoveDGM,
-                    this.pprfs, this.prfPrngs, newAddMessageId, this.createMessageId, this.lastAcked, this.nextSeed);
+                    this.pprfs, this.prfPrngs, newAddMessageId, this.createMessageId,
+                    this.lastAcked, this.nextSeed, this.prunedPprfWatermarks,
+                    this.reclaimedPprfCount);
         }
 
         private State setCreateMessageId(MessageId newCreateMessageId) {
             return new State(this, this.twoPartyProtocols, this.strongRemoveDGM,
-                    this.pprfs, this.prfPrngs, this.addMessageId, newCreateMessageId, this.lastAcked, this.nextSeed);
+                    this.pprfs, this.prfPrngs, this.addMessageId, newCreateMessageId,
+                    this.lastAcked, this.nextSeed, this.prunedPprfWatermarks,
+                    this.reclaimedPprfCount);
         }
 
         private State putPprf(MessageId messageId, PuncturablePseudorandomFunction newPprf) {
+            int authorIndex = memberRegistry.register(messageId.author);
+            IntTreePMap<PuncturablePseudorandomFunction> authorsPprfs = pprfs.get(authorIndex);
+            if (authorsPprfs == null) authorsPprfs = IntTreePMap.empty();
+            return new State(this, this.twoPartyProtocols, this.strongRemoveDGM,
+                    this.pprfs.plus(authorIndex, authorsPprfs.plus(messageId.number, newPprf)), this.prfPrngs,
+                    this.addMessageId, this.createMessageId, this.lastAcked, this.nextSeed,
+                    this.prunedPprfWatermarks, this.reclaimedPprfCount);
+        }
+
+        /**
+         * Removes messageId's PPRF, which must be present, and records that it was pruned.
+         */
+        private State removePprf(MessageId messageId) {
+            int authorIndex = memberRegistry.indexOf(messageId.author);
+            IntTreePMap<PuncturablePseudorandomFunction> authorsPprfs = pprfs.get(authorIndex)
+                    .minus(messageId.number);
+            Integer watermark = prunedPprfWatermarks.get(authorIndex);
+            if (watermark == null || watermark < messageId.number) watermark = messageId.number;
             return new State(this, this.twoPartyProtocols, this.strongRemoveDGM,
-                    this.pprfs.plus(messageId, newPprf), this.prfPrngs, this.addMessageId, this.createMessageId,
-                    this.lastAcked, this.nextSeed);
+                    authorsPprfs.isEmpty() ? this.pprfs.minus(authorIndex) : this.pprfs.plus(authorIndex, authorsPprfs),
+                    this.prfPrngs, this.addMessageId, this.createMessageId, this.lastAcked, this.nextSeed,
+                    this.prunedPprfWatermarks.plus(authorIndex, watermark), this.reclaimedPprfCount + 1);
         }
 
         private State putChainKey(IdentityKey member, byte[] newChainKey) {
             return new State(this, this.twoPartyProtocols, this.strongRemoveDGM,
-                    this.pprfs, this.prfPrngs.plus(member, newChainKey), this.addMessageId, this.createMessageId,
-                    this.lastAcked, this.nextSeed);
+                    this.pprfs, this.prfPrngs.plus(memberRegistry.register(member), newChainKey), this.addMessageId,
+                    this.createMessageId, this.lastAcked, this.nextSeed, this.prunedPprfWatermarks,
+                    this.reclaimedPprfCount);
         }
 
         private State putTwoPartyProtocol(IdentityKey member, TwoPartyProtocol twoPartyProtocol) {
-            return new State(this, this.twoPartyProtocols.plus(member, twoPartyProtocol),
+            return new State(this, this.twoPartyProtocols.plus(memberRegistry.register(member), twoPartyProtocol),
                     this.strongRemoveDGM, this.pprfs, this.prfPrngs, this.addMessageId, this.createMessageId,
-                    this.lastAcked, this.nextSeed);
+                    this.lastAcked, this.nextSeed, this.prunedPprfWatermarks,
+                    this.reclaimedPprfCount);
         }
     }
 }
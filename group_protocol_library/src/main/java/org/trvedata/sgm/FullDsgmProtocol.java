@@ -4,25 +4,62 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.trvedata.sgm.crypto.IdentityKeyPair;
 import org.trvedata.sgm.crypto.PreKeySecret;
 import org.trvedata.sgm.crypto.PreKeySource;
+import org.trvedata.sgm.crypto.TwoPartySessionStore;
 import org.trvedata.sgm.message.MessageId;
 import org.trvedata.sgm.message.ModularMessage;
 import org.trvedata.sgm.message.SignedMessage;
 
+import java.util.concurrent.Executor;
+
 public class FullDsgmProtocol extends ModularDsgm<AckOrderer.Timestamp, MessageId, FullDcgkaProtocol.State,
         InOrderForwardSecureEncryptionProtocol.State, AckOrderer.State<Pair<ModularMessage, SignedMessage>>,
         RotatingSignatureProtocol.State> {
     public FullDsgmProtocol() {
-        super(new FullDcgkaProtocol(),
+        this(null);
+    }
+
+    /**
+     * {@code executor} is used both for parallel encryption (see {@link FullDcgkaProtocol#FullDcgkaProtocol(Executor)})
+     * and for parallel signature verification in {@link #receiveBatch}.
+     */
+    public FullDsgmProtocol(Executor executor) {
+        this(executor, null);
+    }
+
+    /**
+     * @param backlog If non-null, the orderer spills messages that it cannot deliver yet to this log; it should use
+     *                {@link ModularDsgm#MESSAGE_CODEC}.  See {@link MessageLog}.
+     */
+    public FullDsgmProtocol(Executor executor, MessageLog<Pair<ModularMessage, SignedMessage>> backlog) {
+        super(new FullDcgkaProtocol(executor),
                 new InOrderForwardSecureEncryptionProtocol(),
-                new AckOrderer<>(), new RotatingSignatureProtocol());
+                new AckOrderer<>(backlog), new RotatingSignatureProtocol(), executor);
     }
 
     public static class State extends ModularDsgm.State<FullDcgkaProtocol.State,
             InOrderForwardSecureEncryptionProtocol.State, AckOrderer.State<Pair<ModularMessage, SignedMessage>>,
             RotatingSignatureProtocol.State> {
+        private static final long serialVersionUID = 1L;
+
         public State(IdentityKeyPair idPair, PreKeySecret preKeySecret, PreKeySource preKeySource) {
-            super(idPair.getPublicKey(), new FullDcgkaProtocol.State(idPair.getPublicKey(), preKeySecret, preKeySource),
-                    new AckOrderer.State<>(idPair.getPublicKey()), new RotatingSignatureProtocol.State(idPair));
+            this(idPair, preKeySecret, preKeySource, null);
+        }
+
+        /**
+         * @param sessionStore If non-null, used to bootstrap two-party sessions; see {@link TwoPartySessionStore}.
+         */
+        public State(IdentityKeyPair idPair, PreKeySecret preKeySecret, PreKeySource preKeySource,
+                     TwoPartySessionStore sessionStore) {
+            this(idPair, preKeySecret, preKeySource, sessionStore, new MemberRegistry());
+        }
+
+        private State(IdentityKeyPair idPair, PreKeySecret preKeySecret, PreKeySource preKeySource,
+                      TwoPartySessionStore sessionStore, MemberRegistry memberRegistry) {
+            super(idPair.getPublicKey(),
+                    new FullDcgkaProtocol.State(idPair.getPublicKey(), preKeySecret, preKeySource, sessionStore,
+                            memberRegistry),
+                    new AckOrderer.State<>(idPair.getPublicKey(), memberRegistry),
+                    new RotatingSignatureProtocol.State(idPair, memberRegistry));
         }
     }
 }
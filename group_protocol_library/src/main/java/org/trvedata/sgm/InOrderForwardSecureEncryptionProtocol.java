@@ -27,6 +27,8 @@ public class InOrderForwardSecureEncryptionProtocol implements
     }
 
     public static class State implements ForwardSecureEncryptionProtocol.State {
+        private static final long serialVersionUID = 1L;
+
         final byte[] nextChainKey;
 
         private State(final byte[] nextChainKey) {
@@ -0,0 +1,65 @@
+package org.trvedata.sgm;
+
+import org.trvedata.sgm.crypto.IdentityKey;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns a dense int index to each {@link IdentityKey} that one group member's protocol state refers to, so that
+ * per-member data can be kept in bitsets and int-keyed maps instead of structures keyed by 32-byte keys.
+ * <p>
+ * Indices are assigned in the order keys are first registered, starting at 0, and are never changed or reused.
+ * Hence a registry may be shared by the (persistent) states of all components of one group member, and by old and
+ * new versions of those states: an old state simply never refers to indices registered after it was created.
+ * <p>
+ * Like the rest of a group member's state, a registry must only be modified ({@link #register}) by one thread at a
+ * time.  Lookups are safe concurrently with {@link #register}, so that old states can be read by other threads
+ * (e.g., to verify signatures in {@link ModularDsgm#preVerify}) while the current state is being updated.
+ */
+public class MemberRegistry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private volatile IdentityKey[] idsByIndex = new IdentityKey[16];
+    private volatile int size = 0;
+    private final ConcurrentHashMap<IdentityKey, Integer> indicesById = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the index of {@code id}, assigning it the next unused index if it does not have one yet.
+     */
+    public int register(IdentityKey id) {
+        Integer index = indicesById.get(id);
+        if (index == null) {
+            index = size;
+            IdentityKey[] ids = idsByIndex;
+            if (index == ids.length) ids = Arrays.copyOf(ids, 2 * ids.length);
+            ids[index] = id;
+            // Publish the entry before the index, so readers that see the index also see the entry
+            idsByIndex = ids;
+            size = index + 1;
+            indicesById.put(id, index);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of {@code id}, or -1 if it has not been registered.
+     */
+    public int indexOf(IdentityKey id) {
+        Integer index = indicesById.get(id);
+        return (index == null) ? -1 : index;
+    }
+
+    public IdentityKey get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return idsByIndex[index];
+    }
+
+    /**
+     * Returns the number of registered keys, which is one more than the largest index.
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,229 @@
+package org.trvedata.sgm;
+
+import org.trvedata.sgm.misc.Logger;
+import org.trvedata.sgm.misc.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.UncheckedIOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Off-heap spill area for messages that an {@link AckOrderer} cannot deliver yet, so that a client that was offline
+ * for a long time does not keep its whole backlog on the heap.  Messages are encoded into memory-mapped, append-only
+ * segment files in a local directory, and the orderer's state keeps only a small {@link Entry} (segment and offset)
+ * per message, which decodes the message again when the orderer delivers it.  A segment file is deleted once all of
+ * its entries have been released and it is no longer being appended to.
+ * <p>
+ * This is scratch space for the current process, not durable storage: any segments left in the directory by a
+ * previous process are deleted on opening, and when an orderer state is serialized (e.g., by a
+ * {@link org.trvedata.sgm.storage.StateStore}), its entries are written inline as the messages themselves.
+ * <p>
+ * An entry is released when a state delivers or drops its message, which frees its space in the segment.  Older
+ * states may still refer to it, e.g., when a client keeps its previous state because committing the new one failed,
+ * so a released entry keeps its bytes on the heap and can still be read.  That copy lives only as long as those
+ * older states, which the current state does not refer to.  Likewise, an entry returns the message it was created
+ * from instead of decoding it while that message is still reachable elsewhere.
+ * Thread-safe, so one log may be shared by all groups of a {@link MultiGroupDsgmClient}.
+ *
+ * @param <M> The type of messages.
+ */
+public class MessageLog<M> implements Closeable {
+    public static final int DEFAULT_SEGMENT_BYTES = 4 << 20;
+
+    private static final String TAG = "MessageLog";
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    /**
+     * Converts messages to and from the bytes stored in a {@link MessageLog}.
+     */
+    public interface Codec<M> {
+        byte[] encode(M message);
+
+        M decode(byte[] bytes);
+    }
+
+    private final Path directory;
+    private final Codec<M> codec;
+    private final int segmentBytes;
+    private final ArrayList<Segment> segments = new ArrayList<>(); // live segments, the last one being appended to
+    private long nextSegment = 0;
+    private long liveEntries = 0;
+    private boolean closed = false;
+
+    public MessageLog(Path directory, Codec<M> codec) throws IOException {
+        this(directory, codec, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * @param segmentBytes The size of each segment file; a message longer than that gets a segment of its own.
+     */
+    public MessageLog(Path directory, Codec<M> codec, int segmentBytes) throws IOException {
+        Preconditions.checkArgument(segmentBytes > 0, "segmentBytes must be positive");
+        this.directory = directory;
+        this.codec = codec;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path path : stale) Files.delete(path);
+        }
+    }
+
+    /**
+     * Writes message to the log, returning the entry that reads it back.
+     */
+    synchronized Entry<M> append(M message) {
+        Preconditions.checkState(!closed, "MessageLog is closed");
+        byte[] bytes = codec.encode(message);
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.buffer.capacity() - segment.end < bytes.length) {
+            if (segment != null && segment.live == 0) delete(segment);
+            segment = newSegment(Math.max(segmentBytes, bytes.length));
+        }
+        int offset = segment.end;
+        ByteBuffer target = segment.buffer.duplicate();
+        target.position(offset);
+        target.put(bytes);
+        segment.end += bytes.length;
+        segment.live++;
+        liveEntries++;
+        return new Entry<>(this, segment, offset, bytes.length, message);
+    }
+
+    /**
+     * Returns the number of entries that have not been released.
+     */
+    public synchronized long getLiveEntryCount() {
+        return liveEntries;
+    }
+
+    /**
+     * Returns the number of segment files currently on disk.
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Deletes all segments.  Entries that have not been released can no longer be read.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        for (Segment segment : new ArrayList<>(segments)) delete(segment);
+    }
+
+    private synchronized M read(Entry<M> entry) {
+        if (entry.releasedBytes != null) return codec.decode(entry.releasedBytes);
+        Preconditions.checkState(!closed, "MessageLog is closed");
+        return codec.decode(readBytes(entry));
+    }
+
+    private synchronized void release(Entry<M> entry) {
+        if (entry.released) return;
+        // The segment's space may be reused, so keep the bytes for any older states that still deliver the message
+        if (!closed) entry.releasedBytes = readBytes(entry);
+        entry.released = true;
+        liveEntries--;
+        Segment segment = entry.segment;
+        segment.live--;
+        if (segment.live == 0 && !closed) {
+            if (segment == segments.get(segments.size() - 1)) {
+                // Still being appended to: start over instead of deleting it
+                segment.end = 0;
+            } else delete(segment);
+        }
+    }
+
+    private byte[] readBytes(Entry<M> entry) {
+        byte[] bytes = new byte[entry.length];
+        ByteBuffer source = entry.segment.buffer.duplicate();
+        source.position(entry.offset);
+        source.get(bytes);
+        return bytes;
+    }
+
+    private Segment newSegment(int capacity) {
+        Path path = directory.resolve(String.format("%s%016x", SEGMENT_PREFIX, nextSegment++));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            Segment segment = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+            segments.add(segment);
+            return segment;
+        } catch (IOException exc) {
+            throw new UncheckedIOException("Failed to create " + path, exc);
+        }
+    }
+
+    private void delete(Segment segment) {
+        segments.remove(segment);
+        try {
+            // Java 8 has no way to unmap the buffer; that happens once it is garbage collected
+            Files.deleteIfExists(segment.path);
+        } catch (IOException exc) {
+            // Only wastes disk space until the next process opens the directory
+            Logger.w(TAG, "Failed to delete " + segment.path + ": " + exc.getMessage());
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int end = 0;
+        private int live = 0;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A message written to a {@link MessageLog}.  Serializes as the message itself.
+     */
+    static final class Entry<M> implements AckOrderer.Held<M> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient MessageLog<M> log;
+        private final transient Segment segment;
+        private final int offset;
+        private final int length;
+        private final transient WeakReference<M> message;
+        private transient boolean released = false; // guarded by log
+        private transient byte[] releasedBytes; // guarded by log
+
+        private Entry(MessageLog<M> log, Segment segment, int offset, int length, M message) {
+            this.log = log;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.message = new WeakReference<>(message);
+        }
+
+        @Override
+        public M get() {
+            M cached = message.get();
+            return (cached != null) ? cached : log.read(this);
+        }
+
+        @Override
+        public void release() {
+            log.release(this);
+        }
+
+        private Object writeReplace() throws ObjectStreamException {
+            return AckOrderer.Held.onHeap(get());
+        }
+    }
+}
@@ -14,15 +14,21 @@ import org.trvedata.sgm.misc.Logger;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 /**
  * Assembles a {@link DsgmProtocol} out of modular components.
  * <p>
- * Future TODO: in a real implementation, we would need to add group ids, so that one user can multiplex between
- * different groups, and to prevent cross-group attacks (?).
+ * To multiplex one user between different groups, use {@link MultiGroupDsgmClient}, which routes messages by a group
+ * id in an outer envelope.  Future TODO: that group id is not authenticated; to prevent cross-group attacks (?), it
+ * would need to be covered by the signature.
  *
  * @param <T> The type of timestamps used by the {@link Orderer} and {@link DcgkaProtocol}.
  * @param <I> The type of info used by the {@link Orderer} and {@link DcgkaProtocol}.
@@ -33,19 +39,49 @@ public class ModularDsgm<T, I,
         OrdererState extends Orderer.State,
         SignatureState extends SignatureProtocol.State>
         implements DsgmProtocol<ModularDsgm.State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>> {
+    /**
+     * Encodes queued messages for an {@link AckOrderer} backlog (see {@link MessageLog}) as the bytes they were
+     * received as.
+     */
+    public static final MessageLog.Codec<Pair<ModularMessage, SignedMessage>> MESSAGE_CODEC =
+            new MessageLog.Codec<Pair<ModularMessage, SignedMessage>>() {
+                @Override
+                public byte[] encode(Pair<ModularMessage, SignedMessage> message) {
+                    return message.getRight().serialize();
+                }
+
+                @Override
+                public Pair<ModularMessage, SignedMessage> decode(byte[] bytes) {
+                    SignedMessage signed = new SignedMessage(bytes);
+                    return Pair.of(new ModularMessage(signed.content), signed);
+                }
+            };
+
     private final DcgkaProtocol<T, I, DcgkaState> dcgkaProtocol;
     private final ForwardSecureEncryptionProtocol<ForwardSecureEncryptionState> forwardSecureEncryptionProtocol;
     private final Orderer<Pair<ModularMessage, SignedMessage>, T, I, OrdererState> orderer;
     private final SignatureProtocol<SignatureState> signatureProtocol;
+    /**
+     * Executor used by {@link #receiveBatch} to verify signatures in parallel, or null to verify them sequentially.
+     */
+    private final Executor verificationExecutor;
 
     public ModularDsgm(DcgkaProtocol<T, I, DcgkaState> dcgkaProtocol,
                        ForwardSecureEncryptionProtocol<ForwardSecureEncryptionState> forwardSecureEncryptionProtocol,
                        Orderer<Pair<ModularMessage, SignedMessage>, T, I, OrdererState> orderer,
                        SignatureProtocol<SignatureState> signatureProtocol) {
+        this(dcgkaProtocol, forwardSecureEncryptionProtocol, orderer, signatureProtocol, null);
+    }
+
+    public ModularDsgm(DcgkaProtocol<T, I, DcgkaState> dcgkaProtocol,
+                       ForwardSecureEncryptionProtocol<ForwardSecureEncryptionState> forwardSecureEncryptionProtocol,
+                       Orderer<Pair<ModularMessage, SignedMessage>, T, I, OrdererState> orderer,
+                       SignatureProtocol<SignatureState> signatureProtocol, Executor verificationExecutor) {
         this.dcgkaProtocol = dcgkaProtocol;
         this.forwardSecureEncryptionProtocol = forwardSecureEncryptionProtocol;
         this.orderer = orderer;
         this.signatureProtocol = signatureProtocol;
+        this.verificationExecutor = verificationExecutor;
     }
 
     @Override
@@ -63,7 +99,8 @@ public class ModularDsgm<T, I,
         // Here we don't need to sign with the updated state result.getLeft() because processing our welcome won't
         // change the signatureState, and besides, welcome signatures shouldn't be subject to updates.
         SignedMessage signed = new SignedMessage(welcomeSerialized, state.id,
-                signatureProtocol.getWelcomeSignature(state.signatureState, welcomeSerialized.getBytes()));
+                signatureProtocol.getWelcomeSignature(state.signatureState, welcomeSerialized.getBytes()),
+                dcgkaWelcome.getRight().attachment);
         return Pair.of(state, signed.serialize());
     }
 
@@ -78,7 +115,7 @@ public class ModularDsgm<T, I,
                 dcgkaProtocol.add(state.dcgkaState, added);
         state = state.setDcgkaState(dcgkaMessages.getLeft());
         Pair<State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>, byte[]> add =
-                wrapAndProcess(state, dcgkaMessages.getRight().getBytes(), true, true);
+                wrapAndProcess(state, dcgkaMessages.getRight(), true, true);
         state = add.getLeft();
         ModularMessage welcome = new ModularMessage(true, true, dcgkaMessages.getMiddle().getBytes(),
                 orderer.getWelcomeInfo(state.ordererState));
@@ -101,7 +138,7 @@ public class ModularDsgm<T, I,
         }
         Pair<DcgkaState, DcgkaProtocol.ControlMessage> dcgkaRemove = dcgkaProtocol.remove(state.dcgkaState, removed);
         state = state.setDcgkaState(dcgkaRemove.getLeft());
-        return wrapAndProcess(state, dcgkaRemove.getRight().getBytes(), true, true);
+        return wrapAndProcess(state, dcgkaRemove.getRight(), true, true);
     }
 
     @Override
@@ -109,7 +146,7 @@ public class ModularDsgm<T, I,
             State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state) {
         Pair<DcgkaState, DcgkaProtocol.ControlMessage> dcgkaUpdate = dcgkaProtocol.update(state.dcgkaState);
         state = state.setDcgkaState(dcgkaUpdate.getLeft());
-        return wrapAndProcess(state, dcgkaUpdate.getRight().getBytes(), true, true);
+        return wrapAndProcess(state, dcgkaUpdate.getRight(), true, true);
     }
 
     @Override
@@ -120,21 +157,69 @@ public class ModularDsgm<T, I,
         ForwardSecureEncryptionProtocol.EncryptionResult<ForwardSecureEncryptionState> encrypted = forwardSecureEncryptionProtocol.encrypt(
                 forwardSecureEncryptionState, plaintext);
         state = state.putForwardSecureEncryptionProtocol(state.id, encrypted.state);
-        return wrapAndProcess(state, encrypted.ciphertext, false, false);
+        return wrapAndProcess(state, DcgkaProtocol.ControlMessage.of(encrypted.ciphertext), false, false);
     }
 
     @Override
     public Pair<State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>, List<MessageEffect>> receive(
             State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state,
             byte[] message) {
-        SignedMessage signed;
+        DecodedMessage decoded = decode(state, message);
+        if (decoded == null) return Pair.of(state, new ArrayList<>());
+        return receive(state, decoded, Collections.emptyMap());
+    }
+
+    /**
+     * Like calling {@link #receive} on each message in order, except that the signatures of all messages are first
+     * checked together with {@link #preVerify} (in parallel, if we have a verification executor).
+     */
+    @Override
+    public Pair<State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>, List<MessageEffect>> receiveBatch(
+            State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state,
+            List<byte[]> messages) {
+        ArrayList<DecodedMessage> decodedMessages = new ArrayList<>();
+        for (byte[] message : messages) {
+            DecodedMessage decoded = decode(state, message);
+            if (decoded != null) decodedMessages.add(decoded);
+        }
+        if (verificationExecutor == null) {
+            for (DecodedMessage decoded : decodedMessages) preVerify(state, decoded);
+        } else {
+            final State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> verificationState = state;
+            CompletableFuture.allOf(decodedMessages.stream()
+                    .map(decoded -> CompletableFuture.runAsync(() -> preVerify(verificationState, decoded),
+                            verificationExecutor))
+                    .toArray(CompletableFuture[]::new)).join();
+        }
+
+        IdentityHashMap<SignedMessage, DecodedMessage> decodedBySigned = new IdentityHashMap<>();
         ArrayList<MessageEffect> list = new ArrayList<>();
+        for (DecodedMessage decoded : decodedMessages) {
+            Pair<State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>, List<MessageEffect>> result =
+                    apply(state, decoded, decodedBySigned);
+            state = result.getLeft();
+            list.addAll(result.getRight());
+        }
+        return Pair.of(state, list);
+    }
+
+    /**
+     * First stage of receiving {@code message}: deserializes it.  Returns null (after logging) if {@code message}
+     * cannot be deserialized, in which case it should be dropped.
+     * <p>
+     * {@link #decode}, {@link #preVerify}, and {@link #apply} split {@link #receive} into stages, so that the first
+     * two can run in parallel on many messages (see {@link PipelinedReceiver}).  They only read {@code state}'s
+     * immutable parts, so they may be called with old states concurrently with {@link #apply}.
+     */
+    public DecodedMessage decode(State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state,
+                                 byte[] message) {
+        SignedMessage signed;
         try {
             signed = new SignedMessage(message);
         } catch (IllegalArgumentException exc) {
             Logger.i("ModularDsgm", state.id.hashCode() +
                     ": Failed to deserialize SignedMessage: " + exc.getMessage());
-            return Pair.of(state, list);
+            return null;
         }
         ModularMessage modular;
         try {
@@ -142,12 +227,63 @@ public class ModularDsgm<T, I,
         } catch (IllegalArgumentException exc) {
             Logger.i("ModularDsgm", state.id.hashCode() +
                     ": Failed to deserialize ModularMessage: " + exc.getMessage());
-            return Pair.of(state, list);
+            return null;
+        }
+        return new DecodedMessage(modular, signed);
+    }
+
+    /**
+     * Optional second stage of receiving a message: checks its signature against {@code state}, which may be older
+     * than the state it is eventually applied to.  {@link #apply} uses the result only if the sender's verifier (see
+     * {@link SignatureProtocol#getVerifier}) is the same in the state the message is processed in, e.g., because
+     * the sender did not rotate their signing key in between; otherwise the signature is checked again.  Hence
+     * messages are accepted and rejected exactly as by {@link #receive}.
+     * <p>
+     * If the verifier is unknown or verification throws, nothing is recorded, so that the message is verified (and
+     * throws) during processing as usual.
+     */
+    public void preVerify(State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state,
+                          DecodedMessage message) {
+        if (message.signed.sender.equals(state.id)) return;
+        try {
+            Object verifier = signatureProtocol.getVerifier(state.signatureState, message.modular.isWelcome,
+                    message.signed.sender);
+            if (verifier == null) return;
+            boolean valid = signatureProtocol.verify(state.signatureState, message.modular.isWelcome,
+                    message.signed.content.getView(), message.signed.sender, message.signed.signature);
+            message.preVerification = new PreVerification(verifier, valid);
+        } catch (RuntimeException exc) {
+            // Left for processing
         }
+    }
+
+    /**
+     * Final stage of receiving a message: queues it in the orderer and processes all messages that become ready,
+     * like {@link #receive}.  Messages must be applied sequentially, in the order they were received.
+     *
+     * @param decodedMessages Map from {@link SignedMessage} (which uses identity equality) to the {@link
+     *                        DecodedMessage} containing it.  {@code message} is added to it; pass the same map to
+     *                        subsequent calls, so that if {@code message} only becomes ready later, its {@link
+     *                        #preVerify} result can still be used.  Each entry is removed once its message is
+     *                        processed or dropped, so the map only holds messages still waiting in the orderer.
+     */
+    public Pair<State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>, List<MessageEffect>> apply(
+            State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state,
+            DecodedMessage message, Map<SignedMessage, DecodedMessage> decodedMessages) {
+        if (message.preVerification != null) decodedMessages.put(message.signed, message);
+        return receive(state, message, decodedMessages);
+    }
+
+    private Pair<State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>, List<MessageEffect>> receive(
+            State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state,
+            DecodedMessage decoded, Map<SignedMessage, DecodedMessage> decodedMessages) {
+        ModularMessage modular = decoded.modular;
+        SignedMessage signed = decoded.signed;
+        ArrayList<MessageEffect> list = new ArrayList<>();
         if (modular.isWelcome) {
             // Process immediately (welcome is first message to process)
             Pair<State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>, MessageEffect> result =
-                    process(state, modular, signed, signed.sender, null);
+                    process(state, modular, signed, signed.sender, null, decodedMessages);
             if (result == null) return Pair.of(state, list);
             else {
                 list.add(result.getRight());
@@ -155,7 +291,7 @@ public class ModularDsgm<T, I,
             }
         } else {
             // Queue until the Orderer says it's ready
-            OrdererState newOrderer = orderer.queue(state.ordererState, Pair.of(modular, signed), signed.sender,
+            OrdererState newOrderer = orderer.queue(state.ordererState, decoded.queued, signed.sender,
                     modular.orderInfo);
             state = state.setOrdererState(newOrderer);
         }
@@ -166,7 +302,8 @@ public class ModularDsgm<T, I,
             while ((readyMessage = orderer.getReadyMessage(state.ordererState)) != null) {
                 Pair<State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>, MessageEffect> result =
                         process(state.setOrdererState(readyMessage.nextState), readyMessage.message.getLeft(),
-                                readyMessage.message.getRight(), readyMessage.sender, readyMessage.causalInfo);
+                                readyMessage.message.getRight(), readyMessage.sender, readyMessage.causalInfo,
+                                decodedMessages);
                 if (result == null) {
                     // Message is invalid, skip it.
                     // Here we purposely use the old state, not state.setOrdererState(readyMessage.nextState).
@@ -186,6 +323,26 @@ public class ModularDsgm<T, I,
         return Pair.of(state, list);
     }
 
+    /**
+     * Messages whose DCGKA content has an attachment (see {@link DcgkaProtocol.ControlMessage#attachment}) are split
+     * by attachment: each recipient gets the signed message with its part of the attachment, and everyone else gets
+     * it without an attachment.  The signature covers neither, so all versions verify.  A recipient that also gets
+     * the version without an attachment drops it, since its part is missing.  If the DCGKA does not split the
+     * attachment, everyone gets the message itself.
+     */
+    @Override
+    public Pair<byte[], Map<IdentityKey, byte[]>> split(byte[] message) {
+        SignedMessage signed = new SignedMessage(message);
+        if (signed.attachment == null) return Pair.of(message, Collections.emptyMap());
+        Map<IdentityKey, byte[]> parts = dcgkaProtocol.splitAttachment(signed.attachment);
+        if (parts == null || parts.isEmpty()) return Pair.of(message, Collections.emptyMap());
+        HashMap<IdentityKey, byte[]> tailored = new HashMap<>();
+        for (Map.Entry<IdentityKey, byte[]> part : parts.entrySet()) {
+            tailored.put(part.getKey(), signed.withAttachment(part.getValue()).serialize());
+        }
+        return Pair.of(signed.withAttachment(null).serialize(), tailored);
+    }
+
     @Override
     public Collection<IdentityKey> getMembers(
             State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state) {
@@ -199,18 +356,18 @@ public class ModularDsgm<T, I,
     }
 
     /**
-     * Wraps content in a ModularMessage, which is processed, and then in a SignedMessage, which is serialized and
-     * returned.  Not for Welcomes.
+     * Wraps content in a ModularMessage, which is processed, and then in a SignedMessage (carrying content's
+     * attachment, if any), which is serialized and returned.  Not for Welcomes.
      */
     private Pair<State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>, byte[]> wrapAndProcess(
             State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state,
-            byte[] content, boolean isDcgka, boolean updateSignature) {
+            DcgkaProtocol.ControlMessage content, boolean isDcgka, boolean updateSignature) {
         Pair<DcgkaState, I> ordererInput = dcgkaProtocol.getOrdererInput(state.dcgkaState);
         state = state.setDcgkaState(ordererInput.getLeft());
         Triple<OrdererState, Orderer.OrderInfo, T> orderInfo =
                 orderer.getNextOrderInfo(state.ordererState, ordererInput.getRight());
         state = state.setOrdererState(orderInfo.getLeft());
-        ModularMessage modular = new ModularMessage(isDcgka, false, content,
+        ModularMessage modular = new ModularMessage(isDcgka, false, content.getBytes(),
                 orderInfo.getMiddle());
         if (isDcgka) {
             // Process for myself
@@ -231,7 +388,7 @@ public class ModularDsgm<T, I,
         // Note here we sign with originalSignatureProtocol, excluding any potential
         // signature update.
         SignedMessage signed = new SignedMessage(toSign, state.id,
-                signatureProtocol.getSignature(originalSignatureState, toSign.getBytes()));
+                signatureProtocol.getSignature(originalSignatureState, toSign.getBytes()), content.attachment);
         return Pair.of(state, signed.serialize());
     }
 
@@ -243,6 +400,15 @@ public class ModularDsgm<T, I,
     public Pair<State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>, MessageEffect> process(
             State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state,
             ModularMessage message, SignedMessage signed, IdentityKey sender, T causalInfo) {
+        return process(state, message, signed, sender, causalInfo, Collections.emptyMap());
+    }
+
+    private Pair<State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>, MessageEffect> process(
+            State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state,
+            ModularMessage message, SignedMessage signed, IdentityKey sender, T causalInfo,
+            Map<SignedMessage, DecodedMessage> decodedMessages) {
+        // The message is processed or dropped now, so its entry is no longer needed
+        DecodedMessage decoded = (signed == null) ? null : decodedMessages.remove(signed);
         try {
             // Stuff for the eventual return value
             DgmMessageType type;
@@ -264,8 +430,7 @@ public class ModularDsgm<T, I,
 
             if (signed != null) {
                 // Check signature
-                if (!signatureProtocol.verify(state.signatureState, message.isWelcome, signed.content.getBytes(),
-                        sender, signed.signature)) {
+                if (!verify(state, message, signed, sender, decoded)) {
                     Logger.i("ModularDsgm", state.id.hashCode() +
                             ": Invalid signature on ready message");
                     return null;
@@ -300,7 +465,8 @@ public class ModularDsgm<T, I,
             }
             if (message.isDcgka) {
                 DcgkaProtocol.ProcessReturn<DcgkaState> result = dcgkaProtocol.process(state.dcgkaState,
-                        DcgkaProtocol.ControlMessage.of(message.content), sender, causalInfo);
+                        DcgkaProtocol.ControlMessage.of(message.content, (signed == null) ? null : signed.attachment),
+                        sender, causalInfo);
                 state = state.setDcgkaState(result.state);
                 // Process new randomness
                 if (result.updateSecret != null) {
@@ -317,7 +483,7 @@ public class ModularDsgm<T, I,
                 if (result.responseMessage.getBytes() != null) {
                     assertThat(signed != null).isTrue(); // Processing our own message should not make a response
                     Pair<State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>, byte[]> wrappedResponse =
-                            wrapAndProcess(state, result.responseMessage.getBytes(), true, false);
+                            wrapAndProcess(state, result.responseMessage, true, false);
                     state = wrappedResponse.getLeft();
                     responseMessage = wrappedResponse.getRight();
                 }
@@ -377,12 +543,61 @@ public class ModularDsgm<T, I,
         }
     }
 
+    /**
+     * Verifies {@code signed}'s signature, reusing {@code decoded}'s {@link #preVerify} result if it was computed for
+     * the current verifier.
+     */
+    private boolean verify(State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state,
+                           ModularMessage message, SignedMessage signed, IdentityKey sender, DecodedMessage decoded) {
+        PreVerification preVerification = (decoded == null) ? null : decoded.preVerification;
+        if (preVerification != null && preVerification.verifier.equals(
+                signatureProtocol.getVerifier(state.signatureState, message.isWelcome, sender))) {
+            return preVerification.valid;
+        }
+        return signatureProtocol.verify(state.signatureState, message.isWelcome, signed.content.getView(), sender,
+                signed.signature);
+    }
+
+    /**
+     * A received message that has been deserialized by {@link #decode}.
+     */
+    public static final class DecodedMessage {
+        final ModularMessage modular;
+        final SignedMessage signed;
+        // What is queued in the orderer.  A backlog (see MessageLog) returns this same pair while it is reachable,
+        // e.g., from the batch being received, so that the preVerification of signed can still be looked up.
+        final Pair<ModularMessage, SignedMessage> queued;
+        volatile PreVerification preVerification;
+
+        DecodedMessage(ModularMessage modular, SignedMessage signed) {
+            this.modular = modular;
+            this.signed = signed;
+            this.queued = Pair.of(modular, signed);
+        }
+
+        public IdentityKey getSender() {
+            return signed.sender;
+        }
+    }
+
+    private static final class PreVerification {
+        final Object verifier;
+        final boolean valid;
+
+        PreVerification(Object verifier, boolean valid) {
+            this.verifier = verifier;
+            this.valid = valid;
+        }
+    }
+
     public static class State<
             DcgkaState extends DcgkaProtocol.State,
             ForwardSecureEncryptionState extends ForwardSecureEncryptionProtocol.State,
             OrdererState extends Orderer.State,
             SignatureState extends SignatureProtocol.State>
             implements DsgmProtocol.State {
+        private static final long serialVersionUID = 1L;
+
         private final IdentityKey id;
         private final DcgkaState dcgkaState;
         // Note that we only need one ForwardSecureEncryptionState per group member because we assume that
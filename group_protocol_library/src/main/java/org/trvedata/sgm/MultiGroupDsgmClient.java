@@ -0,0 +1,425 @@
+package org.trvedata.sgm;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.apache.thrift.TException;
+import org.trvedata.sgm.communication.Client;
+import org.trvedata.sgm.communication.Network;
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.crypto.IdentityKeyPair;
+import org.trvedata.sgm.crypto.PreKeySecret;
+import org.trvedata.sgm.crypto.PreKeySource;
+import org.trvedata.sgm.crypto.TwoPartySessionStore;
+import org.trvedata.sgm.message.GroupMessageStruct;
+import org.trvedata.sgm.misc.Logger;
+import org.trvedata.sgm.misc.Utils;
+import org.trvedata.sgm.storage.StateStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Like {@link DsgmClient}, but for a user who is a member of many groups at once.  Each group is identified by a
+ * string id and has its own {@link ModularDsgm.State}; every message is wrapped in a {@link GroupMessageStruct}
+ * carrying its group id, which is used to route incoming messages to the right state.
+ * <p>
+ * State transitions of one group are serialized, in the order the corresponding calls or incoming messages reach
+ * this client, while different groups' transitions run concurrently on {@code workerPool}.  If {@code workerPool} is
+ * null, everything runs on the calling thread instead.  The user's {@link PreKeySecret} is immutable and {@link
+ * PreKeySource} implementations are expected to be thread-safe, so both are shared by all groups.  {@link
+ * org.trvedata.sgm.crypto.TwoPartyProtocol} sessions stay per group: a session's messages must be decrypted in the
+ * order they were encrypted, which the {@link Orderer} only guarantees within a group.  Their X3DH bootstrap can be
+ * shared by passing a {@link TwoPartySessionStore}.
+ * <p>
+ * If a {@link StateStore} is given, each group's new state is committed to it before the messages it produced are
+ * sent and before listeners hear of its effects, and the constructor resumes all groups committed to it.  The
+ * {@link TwoPartySessionStore}'s cache is not persisted; that only means recomputing handshakes after a restart, since
+ * each group's state keeps the prekeys it has not used yet.
+ * <p>
+ * Like {@link DsgmClient}, messages are broadcast to all clients on the network.  A group only becomes ours once we
+ * create it or process a verified welcome for it; until then, a few of its messages are held in memory, so that
+ * messages that arrive before our welcome message can be queued, and are neither committed nor visible through
+ * {@link #getGroupIds()}.  Messages beyond those bounds are dropped.
+ */
+public class MultiGroupDsgmClient extends Client {
+    // Bounds on the state held for group ids we have not been welcomed to, which anyone can send us messages for
+    private static final int MAX_PENDING_GROUPS = 32;
+    private static final int MAX_PENDING_MESSAGES_PER_GROUP = 256;
+
+    private final IdentityKeyPair mIdentityKeyPair;
+    private final PreKeySecret mPreKeySecret;
+    private final PreKeySource mPreKeySource;
+    private final TwoPartySessionStore mSessionStore;
+    private final StateStore mStateStore;
+    private final Executor mWorkerPool;
+    private final DsgmProtocol mDsgmProtocol;
+    private final ConcurrentHashMap<String, Group> mGroups = new ConcurrentHashMap<>();
+    // Groups we received messages for but have not been welcomed to yet, evicting the oldest; guarded by itself,
+    // which is also held while moving a group into mGroups
+    private final LinkedHashMap<String, Group> mPendingGroups = new LinkedHashMap<String, Group>() {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Group> eldest) {
+            return size() > MAX_PENDING_GROUPS;
+        }
+    };
+
+    private final CopyOnWriteArrayList<MultiGroupDsgmListener> mListeners = new CopyOnWriteArrayList<>();
+
+    public MultiGroupDsgmClient(
+            final Network network,
+            final PreKeySecret preKeySecret, final PreKeySource preKeySource, final String name,
+            final IdentityKeyPair identityKeyPair) {
+        this(network, preKeySecret, preKeySource, name, identityKeyPair, null, null);
+    }
+
+    public MultiGroupDsgmClient(
+            final Network network,
+            final PreKeySecret preKeySecret, final PreKeySource preKeySource, final String name,
+            final IdentityKeyPair identityKeyPair, final Executor workerPool,
+            final TwoPartySessionStore sessionStore) {
+        this(network, preKeySecret, preKeySource, name, identityKeyPair, workerPool, sessionStore, null);
+    }
+
+    /**
+     * @param workerPool If non-null, group state transitions run on this executor, and different groups' transitions
+     *                   may run in parallel.  Each transition itself is sequential: a task that waited for
+     *                   encryptions queued behind other groups' tasks on the same (bounded) pool could deadlock it.
+     * @param sessionStore If non-null, all groups' two-party sessions bootstrap through this store, so that each peer
+     *                     is only contacted with a prekey once.
+     * @param stateStore If non-null, group states are committed to this store, and the groups it contains are
+     *                   resumed.  Its serializer must substitute this client's preKeySource and sessionStore.
+     * @throws UncheckedIOException If stateStore cannot be recovered.
+     */
+    public MultiGroupDsgmClient(
+            final Network network,
+            final PreKeySecret preKeySecret, final PreKeySource preKeySource, final String name,
+            final IdentityKeyPair identityKeyPair, final Executor workerPool,
+            final TwoPartySessionStore sessionStore, final StateStore stateStore) {
+        mIdentityKeyPair = identityKeyPair;
+        mPreKeySecret = preKeySecret;
+        mPreKeySource = preKeySource;
+        mSessionStore = sessionStore;
+        mStateStore = stateStore;
+        mWorkerPool = workerPool;
+        mDsgmProtocol = new FullDsgmProtocol();
+
+        if (stateStore != null) {
+            try {
+                for (Map.Entry<String, DsgmProtocol.State> entry : stateStore.recover().entrySet()) {
+                    mGroups.put(entry.getKey(), new Group(entry.getKey(), entry.getValue(), true));
+                }
+            } catch (IOException exc) {
+                throw new UncheckedIOException("Failed to recover group states", exc);
+            }
+        }
+
+        init(network, name);
+    }
+
+    @Override
+    public IdentityKey getIdentifier() {
+        return mIdentityKeyPair.getPublicKey();
+    }
+
+    /**
+     * Returns the ids of all groups we created or were welcomed to.
+     */
+    public Set<String> getGroupIds() {
+        return mGroups.keySet();
+    }
+
+    /**
+     * Returns the members of the given group as of its most recent state transition, or an empty collection if it is
+     * not one of {@link #getGroupIds()}.
+     */
+    public Collection<IdentityKey> getMembers(final String groupId) {
+        final Group group = mGroups.get(groupId);
+        if (group == null) return new ArrayList<>();
+        return mDsgmProtocol.getMembers(group.state);
+    }
+
+    /**
+     * The methods below enqueue the operation on the group's worker and return a future that completes once it has
+     * been applied and its messages have been sent, or completes exceptionally if it threw.  Except for create, they
+     * fail with an {@link IllegalArgumentException} if groupId is not one of {@link #getGroupIds()}.
+     *
+     * @param members The other group members in the group being created; must NOT include us.
+     */
+    public CompletableFuture<Void> create(final String groupId, final Collection<IdentityKey> members) {
+        final Group group = newGroup(groupId, true);
+        synchronized (mPendingGroups) {
+            if (mGroups.putIfAbsent(groupId, group) != null) {
+                return failed(new IllegalArgumentException("Group already exists: " + groupId));
+            }
+            mPendingGroups.remove(groupId);
+        }
+        return runInGroup(group, g -> applySend(g, mDsgmProtocol.create(g.state, members)));
+    }
+
+    public CompletableFuture<Void> add(final String groupId, final IdentityKey added) {
+        return runInGroup(groupId, group -> {
+            Triple<? extends DsgmProtocol.State, byte[], byte[]> result = mDsgmProtocol.add(group.state, added);
+            setState(group, result.getLeft());
+            broadcast(group, result.getMiddle());
+            send(added, wrap(group.id, result.getRight()));
+        });
+    }
+
+    public CompletableFuture<Void> remove(final String groupId, final IdentityKey removed) {
+        return runInGroup(groupId, group -> applySend(group, mDsgmProtocol.remove(group.state, removed)));
+    }
+
+    public CompletableFuture<Void> update(final String groupId) {
+        return runInGroup(groupId, group -> applySend(group, mDsgmProtocol.update(group.state)));
+    }
+
+    public CompletableFuture<Void> send(final String groupId, final byte[] plaintext) {
+        return runInGroup(groupId, group -> applySend(group, mDsgmProtocol.send(group.state, plaintext)));
+    }
+
+    @Override
+    public void handleMessageFromNetwork(final Object senderIdentifier, final byte[] bytes) {
+        final GroupMessageStruct envelope = new GroupMessageStruct();
+        try {
+            Utils.deserialize(envelope, bytes);
+        } catch (TException exc) {
+            Logger.w("MultiGroupDsgmClient", name + ": Dropping message without a valid group envelope: " + exc);
+            return;
+        }
+        final byte[] content = envelope.getContent();
+        Group target = mGroups.get(envelope.getGroupId());
+        if (target == null) target = getPendingGroup(envelope.getGroupId());
+        if (target == null) {
+            Logger.w("MultiGroupDsgmClient", name + ": Dropping message for group " + envelope.getGroupId() +
+                    ": too many messages before our welcome");
+            return;
+        }
+        runInGroup(target, group -> {
+            Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> result =
+                    mDsgmProtocol.receive(group.state, content);
+            if (!group.joined) {
+                if (!isWelcome(result.getRight())) {
+                    // Held until our welcome arrives, but not committed
+                    group.state = result.getLeft();
+                    return;
+                }
+                join(group);
+            }
+            setState(group, result.getLeft());
+            for (DsgmProtocol.MessageEffect messageEffect : result.getRight()) {
+                processMessageEffectToListenerCalls(group.id, messageEffect);
+                if (messageEffect.responseMessage != null) broadcast(group, messageEffect.responseMessage);
+            }
+        }).exceptionally(exc -> {
+            Logger.w("MultiGroupDsgmClient", name + ": Failed to process incoming message for group " +
+                    envelope.getGroupId() + " due to " + exc);
+            return null;
+        });
+    }
+
+    private void applySend(final Group group, final Pair<? extends DsgmProtocol.State, byte[]> result) {
+        setState(group, result.getLeft());
+        broadcast(group, result.getRight());
+    }
+
+    /**
+     * Commits the group's new state to {@link #mStateStore}, if any, and then makes it current.  If committing fails,
+     * the task fails and the group keeps its old state.
+     */
+    private void setState(final Group group, final DsgmProtocol.State state) {
+        if (mStateStore != null) {
+            try {
+                mStateStore.commit(group.id, state);
+            } catch (IOException exc) {
+                throw new UncheckedIOException("Failed to commit state of group " + group.id, exc);
+            }
+        }
+        group.state = state;
+    }
+
+    private void broadcast(final Group group, final byte[] message) {
+        broadcast(wrap(group.id, message));
+    }
+
+    private static byte[] wrap(final String groupId, final byte[] message) {
+        return Utils.serialize(new GroupMessageStruct(groupId, ByteBuffer.wrap(message)));
+    }
+
+    private Group newGroup(final String groupId, final boolean joined) {
+        return new Group(groupId, new FullDsgmProtocol.State(mIdentityKeyPair, mPreKeySecret, mPreKeySource,
+                mSessionStore), joined);
+    }
+
+    /**
+     * Returns the pending group for groupId, creating it if necessary, after counting one more message for it, or
+     * null if it already holds {@link #MAX_PENDING_MESSAGES_PER_GROUP} messages.
+     */
+    private Group getPendingGroup(final String groupId) {
+        synchronized (mPendingGroups) {
+            // We may have joined the group since our caller checked
+            Group group = mGroups.get(groupId);
+            if (group != null) return group;
+            group = mPendingGroups.get(groupId);
+            if (group == null) {
+                group = newGroup(groupId, false);
+                mPendingGroups.put(groupId, group);
+            } else if (group.pendingMessages >= MAX_PENDING_MESSAGES_PER_GROUP) {
+                return null;
+            }
+            group.pendingMessages++;
+            return group;
+        }
+    }
+
+    /**
+     * Makes a pending group, whose state just processed our welcome, one of ours.  This also works if the group was
+     * evicted from {@link #mPendingGroups} meanwhile.
+     *
+     * @throws IllegalStateException If we already have a group with the same id, e.g. because we created one.
+     */
+    private void join(final Group group) {
+        synchronized (mPendingGroups) {
+            mPendingGroups.remove(group.id, group);
+            if (mGroups.putIfAbsent(group.id, group) != null) {
+                throw new IllegalStateException("Welcomed to group " + group.id + ", which we already have");
+            }
+            group.joined = true;
+        }
+    }
+
+    private static boolean isWelcome(final List<DsgmProtocol.MessageEffect> effects) {
+        for (DsgmProtocol.MessageEffect effect : effects) {
+            if (effect.type == DsgmProtocol.DgmMessageType.WELCOME) return true;
+        }
+        return false;
+    }
+
+    private static CompletableFuture<Void> failed(final RuntimeException exc) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        result.completeExceptionally(exc);
+        return result;
+    }
+
+    private CompletableFuture<Void> runInGroup(final String groupId, final GroupTask task) {
+        final Group group = mGroups.get(groupId);
+        if (group == null) return failed(new IllegalArgumentException("Unknown group: " + groupId));
+        return runInGroup(group, task);
+    }
+
+    /**
+     * Runs {@code task} on the given group after all tasks previously submitted for it.  Without a worker pool, the
+     * task runs immediately; the group's lock is reentrant, so a task may (through a synchronous network) cause a
+     * message for the same group to be received on the same thread, as in {@link DsgmClient}.
+     */
+    private CompletableFuture<Void> runInGroup(final Group group, final GroupTask task) {
+        if (mWorkerPool == null) {
+            final CompletableFuture<Void> result = new CompletableFuture<>();
+            try {
+                synchronized (group) {
+                    task.run(group);
+                }
+                result.complete(null);
+            } catch (RuntimeException exc) {
+                result.completeExceptionally(exc);
+            }
+            return result;
+        }
+        synchronized (group) {
+            final CompletableFuture<Void> result = group.tail.thenRunAsync(() -> task.run(group), mWorkerPool);
+            // Later tasks must run even if this one fails
+            group.tail = result.exceptionally(exc -> null);
+            return result;
+        }
+    }
+
+    /**
+     * Takes a {@link DsgmProtocol.MessageEffect} and calls the respective methods of the currently registered
+     * {@link #mListeners}.
+     */
+    private void processMessageEffectToListenerCalls(final String groupId,
+                                                     final DsgmProtocol.MessageEffect messageEffect) {
+        for (MultiGroupDsgmListener listener : mListeners) {
+            if (messageEffect.type == DsgmProtocol.DgmMessageType.APPLICATION) {
+                listener.onIncomingMessage(groupId, messageEffect.sender, messageEffect.plaintext);
+            }
+
+            if (messageEffect.type == DsgmProtocol.DgmMessageType.UPDATE) {
+                listener.onUpdate(groupId, messageEffect.sender, messageEffect.messageId);
+            }
+
+            for (final IdentityKey added : messageEffect.added) {
+                listener.onAdd(groupId, messageEffect.sender, added, messageEffect.messageId);
+            }
+
+            if (!messageEffect.removed.isEmpty()) {
+                final ArrayList<IdentityKey> removed = new ArrayList<>(messageEffect.removed);
+                listener.onRemove(groupId, messageEffect.sender, removed, messageEffect.messageId);
+            }
+
+            for (final Object ackedMessage : messageEffect.ackedMessageIds) {
+                listener.onAck(groupId, messageEffect.sender, ackedMessage);
+            }
+        }
+    }
+
+    /**
+     * Adds the given listener.  With a worker pool, listeners are called on the pool's threads, concurrently for
+     * different groups but in order within a group.
+     */
+    public void addListener(final MultiGroupDsgmListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Like {@link DsgmClient.DsgmListener}, but with the group id of each event.
+     */
+    public interface MultiGroupDsgmListener {
+        void onIncomingMessage(String groupId, IdentityKey sender, byte[] plaintext);
+
+        void onUpdate(String groupId, IdentityKey updater, Object messageId);
+
+        void onAdd(String groupId, IdentityKey adder, IdentityKey added, Object messageId);
+
+        void onRemove(String groupId, IdentityKey remover, ArrayList<IdentityKey> removed, Object messageId);
+
+        void onAck(String groupId, IdentityKey acker, Object acked);
+    }
+
+    @Override
+    public String toString() {
+        return "MultiGroupDsgmClient{" + getName(getIdentifier()) + "}";
+    }
+
+    private interface GroupTask {
+        void run(Group group);
+    }
+
+    private static final class Group {
+        final String id;
+        // Only accessed by the group's current task; tasks are ordered by tail, which also publishes state between
+        // them, but getMembers may read it from any thread
+        volatile DsgmProtocol.State state;
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null); // guarded by this
+        // Whether this is one of mGroups, rather than a group we have not been welcomed to yet; only changes in the
+        // group's current task
+        volatile boolean joined;
+        int pendingMessages; // guarded by mPendingGroups
+
+        Group(final String id, final DsgmProtocol.State state, final boolean joined) {
+            this.id = id;
+            this.state = state;
+            this.joined = joined;
+        }
+    }
+}
@@ -5,6 +5,8 @@ import org.apache.commons.lang3.tuple.Triple;
 import org.trvedata.sgm.crypto.IdentityKey;
 import org.trvedata.sgm.misc.ByteHolder;
 
+import java.io.Serializable;
+
 /**
  * A {@link Orderer} is the interface used by
  * {@link ModularDsgm} to attach timestamps to sent messages, buffer received messages and
@@ -133,6 +135,8 @@ public interface Orderer<M, T, I, S extends Orderer.State> {
     }
 
     class OrderInfo extends ByteHolder {
+        private static final long serialVersionUID = 1L;
+
         public OrderInfo(byte[] bytes) {
             super(bytes);
         }
@@ -142,6 +146,6 @@ public interface Orderer<M, T, I, S extends Orderer.State> {
         }
     }
 
-    interface State {
+    interface State extends Serializable {
     }
 }
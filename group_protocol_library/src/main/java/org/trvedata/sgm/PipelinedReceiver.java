@@ -0,0 +1,190 @@
+package org.trvedata.sgm;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.trvedata.sgm.message.SignedMessage;
+import org.trvedata.sgm.misc.Logger;
+import org.trvedata.sgm.misc.Preconditions;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Receives messages for one group member in three stages: decoding ({@link ModularDsgm#decode}) and signature
+ * verification ({@link ModularDsgm#preVerify}) run in parallel on an executor, while the orderer and DCGKA state
+ * transitions ({@link ModularDsgm#apply}) run sequentially on a dedicated thread, in the order messages were
+ * submitted.  Hence the resulting states and {@link DsgmProtocol.MessageEffect}s are the same as if each message
+ * were passed to {@link ModularDsgm#receive} in turn.
+ * <p>
+ * Signatures are verified against the most recently applied state, and re-checked during the apply stage if the
+ * sender's signing key changed in between.  At most {@code capacity} messages are in flight (submitted but not yet
+ * applied) at a time; {@link #submit} blocks when this limit is reached.  Decoding and verification share one executor
+ * task and this one bound rather than having a queue each: both are per-message and independent of other messages,
+ * so a separate verify queue would only add a hand-off, while the apply stage, the only sequential one, is bounded
+ * by the in-flight limit either way.
+ * <p>
+ * Messages whose decoding, verification, or application throws are logged and skipped, leaving the state as it was
+ * before them, so that one bad message does not stop the receiver.  Only an exception thrown by the effect consumer
+ * does.
+ * <p>
+ * While a receiver is open, its group member's state must not be used elsewhere, e.g., to send messages.  Call
+ * {@link #close} to wait until all submitted messages are applied, then continue from {@link #getState}.
+ */
+public class PipelinedReceiver<DcgkaState extends DcgkaProtocol.State,
+        ForwardSecureEncryptionState extends ForwardSecureEncryptionProtocol.State,
+        OrdererState extends Orderer.State,
+        SignatureState extends SignatureProtocol.State> implements AutoCloseable {
+    private final ModularDsgm<?, ?, DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> protocol;
+    private final Executor executor;
+    private static final String TAG = "PipelinedReceiver";
+
+    private final Consumer<List<DsgmProtocol.MessageEffect>> effectConsumer;
+    // Decoded messages in submission order; a future completed with null is a message that failed to decode
+    private final ArrayBlockingQueue<CompletableFuture<ModularDsgm.DecodedMessage>> inFlight;
+    private final CompletableFuture<ModularDsgm.DecodedMessage> endOfInput = new CompletableFuture<>();
+    private final Thread applyThread;
+
+    private volatile ModularDsgm.State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state;
+    private volatile RuntimeException failure = null;
+    private boolean closed = false;
+
+    /**
+     * @param effectConsumer Called (on the apply thread) with the effects of each applied message, which may be
+     *                       empty.
+     */
+    public PipelinedReceiver(
+            ModularDsgm<?, ?, DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> protocol,
+            ModularDsgm.State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> state,
+            Executor executor, int capacity, Consumer<List<DsgmProtocol.MessageEffect>> effectConsumer) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        this.protocol = protocol;
+        this.state = state;
+        this.executor = executor;
+        this.effectConsumer = effectConsumer;
+        this.inFlight = new ArrayBlockingQueue<>(capacity);
+        this.applyThread = new Thread(this::applyLoop, "PipelinedReceiver-apply");
+        this.applyThread.setDaemon(true);
+        this.applyThread.start();
+    }
+
+    /**
+     * Submits a received message, blocking while {@code capacity} messages are in flight.  Messages are applied in
+     * the order their submit calls return, so for deterministic results, submit from a single thread.
+     *
+     * @throws IllegalStateException If the receiver is closed, or the effect consumer threw, in which case that
+     *                               exception is the cause.
+     */
+    public void submit(byte[] message) throws InterruptedException {
+        CompletableFuture<ModularDsgm.DecodedMessage> decoded = new CompletableFuture<>();
+        // Reserve the message's place in line before starting work on it, so that the queue bounds the work too.
+        // This is done under the lock, rechecking after each wait for space, so that no message is queued behind
+        // endOfInput or after the apply thread has stopped.
+        synchronized (this) {
+            while (true) {
+                if (closed) throw new IllegalStateException("PipelinedReceiver is closed");
+                checkFailure();
+                if (inFlight.offer(decoded)) break;
+                wait();
+            }
+        }
+        executor.execute(() -> {
+            try {
+                ModularDsgm.State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> current =
+                        state;
+                ModularDsgm.DecodedMessage result = protocol.decode(current, message);
+                if (result != null) protocol.preVerify(current, result);
+                decoded.complete(result);
+            } catch (RuntimeException exc) {
+                decoded.completeExceptionally(exc);
+            }
+        });
+    }
+
+    /**
+     * Returns the state after the most recently applied message.
+     */
+    public ModularDsgm.State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState> getState() {
+        return state;
+    }
+
+    /**
+     * Waits until all submitted messages have been applied, then stops the apply thread.  If the calling thread is
+     * interrupted, returns early with its interrupt status set; the remaining messages are still applied.
+     *
+     * @throws IllegalStateException If the effect consumer threw, in which case that exception is the cause.
+     */
+    @Override
+    public void close() {
+        try {
+            boolean closing;
+            synchronized (this) {
+                closing = !closed;
+                closed = true;
+                // Waiting submitters now fail
+                notifyAll();
+            }
+            if (closing) {
+                // If the apply thread has failed, nobody will take from the queue, so do not wait for space
+                while (!inFlight.offer(endOfInput, 10, TimeUnit.MILLISECONDS)) {
+                    if (!applyThread.isAlive()) break;
+                }
+            }
+            applyThread.join();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() {
+        if (failure != null) throw new IllegalStateException("Failed to consume a received message's effects", failure);
+    }
+
+    private void applyLoop() {
+        // Lets messages that are queued in the orderer use their preVerify result once they become ready.  Entries
+        // are removed when their message is processed or dropped.
+        IdentityHashMap<SignedMessage, ModularDsgm.DecodedMessage> decodedMessages = new IdentityHashMap<>();
+        try {
+            while (true) {
+                CompletableFuture<ModularDsgm.DecodedMessage> next = inFlight.take();
+                synchronized (this) {
+                    notifyAll();
+                }
+                if (next == endOfInput) return;
+                Pair<ModularDsgm.State<DcgkaState, ForwardSecureEncryptionState, OrdererState, SignatureState>,
+                        List<DsgmProtocol.MessageEffect>> result;
+                try {
+                    ModularDsgm.DecodedMessage decoded = next.join();
+                    if (decoded == null) continue;
+                    result = protocol.apply(state, decoded, decodedMessages);
+                } catch (RuntimeException exc) {
+                    Throwable cause = (exc instanceof CompletionException && exc.getCause() != null) ?
+                            exc.getCause() : exc;
+                    Logger.w(TAG, "Failed to process incoming message due to " + cause);
+                    continue;
+                }
+                state = result.getLeft();
+                effectConsumer.accept(result.getRight());
+            }
+        } catch (InterruptedException exc) {
+            fail(new IllegalStateException("Apply thread interrupted", exc));
+        } catch (RuntimeException exc) {
+            fail(exc);
+        }
+    }
+
+    /**
+     * Records the apply thread's failure and wakes waiting submitters, which then fail on checkFailure.
+     */
+    private synchronized void fail(RuntimeException exc) {
+        failure = exc;
+        inFlight.clear();
+        notifyAll();
+    }
+}
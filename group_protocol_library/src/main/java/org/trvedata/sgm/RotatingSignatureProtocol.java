@@ -2,11 +2,12 @@ package org.trvedata.sgm;
 
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.thrift.TException;
-import org.pcollections.HashPMap;
-import org.pcollections.HashTreePMap;
+import org.pcollections.IntTreePMap;
 import org.trvedata.sgm.crypto.IdentityKey;
 import org.trvedata.sgm.crypto.IdentityKeyPair;
 import org.trvedata.sgm.message.SignatureWelcomeMessage;
+import org.trvedata.sgm.misc.Preconditions;
+import org.trvedata.sgm.misc.RandomSource;
 import org.trvedata.sgm.misc.Utils;
 
 import java.nio.ByteBuffer;
@@ -17,10 +18,24 @@ import java.util.Map;
  * Post-compromise-secure implementation of SignatureProtocol.
  */
 public class RotatingSignatureProtocol implements SignatureProtocol<RotatingSignatureProtocol.State> {
+    /**
+     * Source of signing keys and signature nonces.
+     */
+    private final RandomSource random;
+
+    public RotatingSignatureProtocol() {
+        this(Utils.getRandomSource());
+    }
+
+    public RotatingSignatureProtocol(RandomSource random) {
+        Preconditions.checkArgument(random != null, "random must not be null");
+        this.random = random;
+    }
+
     @Override
     public Signature getSignature(State state, byte[] message) {
         try {
-            return Signature.of(state.currentPrivateKey.sign(message));
+            return Signature.of(state.currentPrivateKey.sign(message, random));
         } catch (IllegalArgumentException exc) {
             throw new IllegalStateException("InvalidKeyException in getSignature", exc);
         }
@@ -28,26 +43,33 @@ public class RotatingSignatureProtocol implements SignatureProtocol<RotatingSign
 
     @Override
     public boolean verify(State state, boolean isWelcome, byte[] message, IdentityKey sender, Signature signature) {
+        return verify(state, isWelcome, ByteBuffer.wrap(message), sender, signature);
+    }
+
+    @Override
+    public boolean verify(State state, boolean isWelcome, ByteBuffer message, IdentityKey sender, Signature signature) {
         try {
-            if (isWelcome) {
-                return sender.verify(message, signature.getBytes());
-            } else {
-                IdentityKey signingKey = state.currentSigningKeys.get(sender);
-                if (signingKey == null) {
-                    // sender has never updated their signature
-                    signingKey = sender;
-                }
-                return signingKey.verify(message, signature.getBytes());
-            }
+            return getVerifier(state, isWelcome, sender).verify(message, signature.getBytes());
         } catch (IllegalArgumentException exc) {
             throw new IllegalStateException("InvalidKeyException in verify for sender " + sender.hashCode(), exc);
         }
     }
 
+    /**
+     * Returns the key that {@code sender}'s signatures are currently verified under.
+     */
+    @Override
+    public IdentityKey getVerifier(State state, boolean isWelcome, IdentityKey sender) {
+        if (isWelcome) return sender;
+        IdentityKey signingKey = state.currentSigningKeys.get(state.memberRegistry.indexOf(sender));
+        // If null, sender has never updated their signature
+        return (signingKey == null) ? sender : signingKey;
+    }
+
     @Override
     public Pair<State, Update> update(State state) {
         // Make a random new signing key
-        IdentityKeyPair newSigningPair = IdentityKey.generateKeyPair();
+        IdentityKeyPair newSigningPair = IdentityKey.generateKeyPair(random);
         return Pair.of(update(state, newSigningPair, null),
                 Update.of(newSigningPair.getPublicKey().serialize()));
     }
@@ -67,8 +89,8 @@ public class RotatingSignatureProtocol implements SignatureProtocol<RotatingSign
     @Override
     public Update getWelcomeInfo(State state) {
         HashMap<ByteBuffer, ByteBuffer> currentPublicKeys = new HashMap<>();
-        for (Map.Entry<IdentityKey, IdentityKey> entry : state.currentSigningKeys.entrySet()) {
-            currentPublicKeys.put(ByteBuffer.wrap(entry.getKey().serialize()),
+        for (Map.Entry<Integer, IdentityKey> entry : state.currentSigningKeys.entrySet()) {
+            currentPublicKeys.put(ByteBuffer.wrap(state.memberRegistry.get(entry.getKey()).serialize()),
                     ByteBuffer.wrap(entry.getValue().serialize()));
         }
         return Update.of(Utils.serialize(new SignatureWelcomeMessage(currentPublicKeys)));
@@ -82,7 +104,7 @@ public class RotatingSignatureProtocol implements SignatureProtocol<RotatingSign
             Utils.deserialize(deserialized, welcomeInfo.getBytes());
             HashMap<IdentityKey, IdentityKey> newPublicKeys = new HashMap<>();
             for (Map.Entry<ByteBuffer, ByteBuffer> entry : deserialized.getCurrentPublicKeys().entrySet()) {
-                IdentityKey id = new IdentityKey(Utils.asArray(entry.getKey()));
+                IdentityKey id = IdentityKey.intern(Utils.asArray(entry.getKey()));
                 if (id.equals(state.idPair.getPublicKey())) {
                     throw new IllegalArgumentException("Welcome attempts to set our own signing key");
                 }
@@ -97,7 +119,7 @@ public class RotatingSignatureProtocol implements SignatureProtocol<RotatingSign
     @Override
     public Signature getWelcomeSignature(State state, byte[] message) {
         try {
-            return Signature.of(state.idPair.sign(message));
+            return Signature.of(state.idPair.sign(message, random));
         } catch (IllegalArgumentException exc) {
             throw new IllegalStateException("InvalidKeyException in getWelcomeSignature", exc);
         }
@@ -106,34 +128,47 @@ public class RotatingSignatureProtocol implements SignatureProtocol<RotatingSign
     private State update(State state, IdentityKeyPair newSigningPair,
                          HashMap<IdentityKey, IdentityKey> extraSigningKeys) {
         IdentityKeyPair newPrivateKey = state.currentPrivateKey;
-        HashPMap<IdentityKey, IdentityKey> newSigningKeys = state.currentSigningKeys;
+        IntTreePMap<IdentityKey> newSigningKeys = state.currentSigningKeys;
         if (newSigningPair != null) {
             newPrivateKey = newSigningPair;
-            newSigningKeys = newSigningKeys.plus(state.idPair.getPublicKey(), newSigningPair.getPublicKey());
+            newSigningKeys = newSigningKeys.plus(state.memberRegistry.register(state.idPair.getPublicKey()),
+                    newSigningPair.getPublicKey());
         }
         if (extraSigningKeys != null) {
-            newSigningKeys = newSigningKeys.plusAll(extraSigningKeys);
+            for (Map.Entry<IdentityKey, IdentityKey> entry : extraSigningKeys.entrySet()) {
+                newSigningKeys = newSigningKeys.plus(state.memberRegistry.register(entry.getKey()), entry.getValue());
+            }
         }
-        return new State(state.idPair, newPrivateKey, newSigningKeys);
+        return new State(state.idPair, state.memberRegistry, newPrivateKey, newSigningKeys);
     }
 
     public static class State implements SignatureProtocol.State {
+        private static final long serialVersionUID = 1L;
+
         private final IdentityKeyPair idPair;
+        private final MemberRegistry memberRegistry; // shared with the other components' states
         private final IdentityKeyPair currentPrivateKey;
-        private final HashPMap<IdentityKey, IdentityKey> currentSigningKeys;
+        private final IntTreePMap<IdentityKey> currentSigningKeys; // keyed by member index
 
-        private State(final IdentityKeyPair idPair, final IdentityKeyPair currentPrivateKey,
-                      final HashPMap<IdentityKey, IdentityKey> currentSigningKeys) {
+        private State(final IdentityKeyPair idPair, final MemberRegistry memberRegistry,
+                      final IdentityKeyPair currentPrivateKey, final IntTreePMap<IdentityKey> currentSigningKeys) {
             this.idPair = idPair;
+            this.memberRegistry = memberRegistry;
             this.currentPrivateKey = currentPrivateKey;
             this.currentSigningKeys = currentSigningKeys;
         }
 
         public State(final IdentityKeyPair idPair) {
-            this.idPair = idPair;
-            this.currentPrivateKey = idPair;
-            HashPMap<IdentityKey, IdentityKey> signingKeys = HashTreePMap.empty();
-            this.currentSigningKeys = signingKeys.plus(idPair.getPublicKey(), idPair.getPublicKey());
+            this(idPair, new MemberRegistry());
+        }
+
+        /**
+         * Like {@link #State(IdentityKeyPair)}, but stores signing keys by their owners' indices in the given
+         * registry, which should be shared with the other components of idPair's state for this group.
+         */
+        public State(final IdentityKeyPair idPair, final MemberRegistry memberRegistry) {
+            this(idPair, memberRegistry, idPair, IntTreePMap.<IdentityKey>empty()
+                    .plus(memberRegistry.register(idPair.getPublicKey()), idPair.getPublicKey()));
         }
     }
 }
@@ -3,6 +3,10 @@ package org.trvedata.sgm;
 import org.apache.commons.lang3.tuple.Pair;
 import org.trvedata.sgm.crypto.IdentityKey;
 import org.trvedata.sgm.misc.ByteHolder;
+import org.trvedata.sgm.misc.Utils;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * A {@link SignatureProtocol} is the interface used by {@link ModularDsgm} to handle authentication in the form of
@@ -49,6 +53,29 @@ public interface SignatureProtocol<S extends SignatureProtocol.State> {
      */
     boolean verify(S state, boolean isWelcome, byte[] message, IdentityKey sender, Signature signature);
 
+    /**
+     * Like {@link SignatureProtocol#verify(State, boolean, byte[], IdentityKey, Signature)}, but takes the message as
+     * the remaining bytes of {@code message}, e.g., a view into the received bytes.  Implementations should override
+     * this to verify without copying; the default implementation copies {@code message}.  {@code message}'s position
+     * must be left unchanged.
+     */
+    default boolean verify(S state, boolean isWelcome, ByteBuffer message, IdentityKey sender, Signature signature) {
+        return verify(state, isWelcome, Utils.asArray(message), sender, signature);
+    }
+
+    /**
+     * Returns an object identifying the check that {@link SignatureProtocol#verify} would currently perform for
+     * messages from {@code sender}, e.g., the public key it would verify under.  If this returns equal non-null
+     * objects for two states, then {@code verify} must give the same result on any message and signature in both
+     * states.  This lets callers verify a batch of messages in parallel against one state, and then reuse those
+     * results while processing the messages sequentially, provided the verifier has not changed in between.
+     * <p>
+     * The default implementation returns null, which means results are never reused.
+     */
+    default Object getVerifier(S state, boolean isWelcome, IdentityKey sender) {
+        return null;
+    }
+
     /**
      * Tells the {@code SignatureProtocol} to perform an update on its signing key, in a post-compromise secure
      * fashion.
@@ -122,6 +149,8 @@ public interface SignatureProtocol<S extends SignatureProtocol.State> {
     Signature getWelcomeSignature(S state, byte[] message);
 
     class Signature extends ByteHolder {
+        private static final long serialVersionUID = 1L;
+
         public Signature(byte[] bytes) {
             super(bytes);
         }
@@ -132,6 +161,8 @@ public interface SignatureProtocol<S extends SignatureProtocol.State> {
     }
 
     class Update extends ByteHolder {
+        private static final long serialVersionUID = 1L;
+
         public Update(byte[] bytes) {
             super(bytes);
         }
@@ -141,6 +172,6 @@ public interface SignatureProtocol<S extends SignatureProtocol.State> {
         }
     }
 
-    interface State {
+    interface State extends Serializable {
     }
 }
@@ -1,7 +1,6 @@
 package org.trvedata.sgm;
 
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.collections4.IteratorUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.thrift.TException;
 import org.trvedata.sgm.crypto.IdentityKey;
@@ -11,30 +10,92 @@ import org.trvedata.sgm.message.MessageId;
 import org.trvedata.sgm.message.RemoveInfoStruct;
 import org.trvedata.sgm.misc.Utils;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.*;
 
-public class StrongRemoveDgm {
+public class StrongRemoveDgm implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     private HashMap<IdentityKey, MemberInfo> members;
     private HashMap<IdentityKey, MemberInfo> removedMembers; // tombstone map
     private IdentityKey myId;
     private HashMap<MessageId, MemberInfo> addsById;
     private HashMap<MessageId, RemoveInfo> removesById;
+    // Dense member indices.  The registry may be shared with the other protocol components, so it can also
+    // contain users that are not (yet) known to us as members; known holds the indices of members and
+    // removedMembers.  The lists below are indexed by registry index and padded as needed.
+    private MemberRegistry registry;
+    private BitSet known;
+    // For each adder, the members they added, in the order those adds were applied (a causal order).
+    private ArrayList<ArrayList<MemberInfo>> addedByAdder;
+    // views.get(i) is queryView(registry.get(i)) as a bitset over member indices.  Kept up to date
+    // incrementally by add, remove, and ack, so that views don't have to be recomputed from the acks.
+    private ArrayList<BitSet> views;
+    // Inverted ack index: ackedAdds.get(i) has bit j set iff registry.get(i) has ack'd the add of
+    // registry.get(j) (initial members count as ack'd by all initial members), and ackedRemoves.get(i)
+    // likewise over RemoveInfo indices.  An added user inherits their adder's acks by sharing the adder's
+    // bitsets; users in sharedAcks may share theirs, so they are copied before being modified.  The same acks
+    // are also kept per message, in MemberInfo.ackers and RemoveInfo.ackers, except that the acks an added user
+    // inherited are only recorded there once the user acks something themselves (and so stops sharing); until
+    // then the user is in pendingInheritors, and getAckers adds them.
+    private ArrayList<BitSet> ackedAdds;
+    private ArrayList<BitSet> ackedRemoves;
+    private BitSet sharedAcks;
+    private BitSet pendingInheritors;
+    private ArrayList<RemoveInfo> removesByIndex;
+    // Incremented by add, remove, and ack, so that serializers can tell whether this changed since they wrote it
+    private long modificationCount = 0;
 
     public StrongRemoveDgm(Collection<IdentityKey> initialMembers, IdentityKey myId) {
+        this(initialMembers, myId, new MemberRegistry());
+    }
+
+    /**
+     * Like {@link #StrongRemoveDgm(Collection, IdentityKey)}, but assigns member indices using the given
+     * registry, which may be shared with the rest of myId's state for this group.
+     */
+    public StrongRemoveDgm(Collection<IdentityKey> initialMembers, IdentityKey myId, MemberRegistry registry) {
         this.myId = myId;
+        this.registry = registry;
         members = new HashMap<>();
         removedMembers = new HashMap<>();
         addsById = new HashMap<>();
         removesById = new HashMap<>();
+        known = new BitSet();
+        addedByAdder = new ArrayList<>();
+        views = new ArrayList<>();
+        ackedAdds = new ArrayList<>();
+        ackedRemoves = new ArrayList<>();
+        sharedAcks = new BitSet();
+        pendingInheritors = new BitSet();
+        removesByIndex = new ArrayList<>();
         for (IdentityKey member : initialMembers) {
-            members.put(member, new MemberInfo(member, null, initialMembers));
+            members.put(member, new MemberInfo(member, null, registerMember(member)));
+        }
+        // Initial members have all ack'd each other
+        for (int i = known.nextSetBit(0); i >= 0; i = known.nextSetBit(i + 1)) {
+            views.get(i).or(known);
+            ackedAdds.get(i).or(known);
         }
+        for (MemberInfo memberInfo : members.values()) memberInfo.ackers.or(known);
     }
 
     public static StrongRemoveDgm empty(IdentityKey myId) {
-        return new StrongRemoveDgm(Collections.emptyList(), myId);
+        return empty(myId, new MemberRegistry());
+    }
+
+    public static StrongRemoveDgm empty(IdentityKey myId, MemberRegistry registry) {
+        return new StrongRemoveDgm(Collections.emptyList(), myId, registry);
+    }
+
+    /**
+     * Returns a count that changes whenever this is modified.
+     */
+    public long getModificationCount() {
+        return modificationCount;
     }
 
     public IdentityKey getMyId() {
@@ -47,11 +108,15 @@ public class StrongRemoveDgm {
      * that we have already processed.
      */
     public boolean add(IdentityKey adder, IdentityKey added, MessageId messageId) {
+        modificationCount++;
         boolean removedByConcurrency;
-        MemberInfo addedInfo = new MemberInfo(added, adder);
-        addedInfo.acks.add(adder);
-        addedInfo.acks.add(added);
-        addedInfo.acks.add(myId);// might equal added or adder; OK b/c acks is a HashSet
+        int adderIndex = indexOf(adder);
+        if (adderIndex < 0) throw new IllegalArgumentException("Unrecognized adder");
+        MemberInfo addedInfo = new MemberInfo(added, adder, registerMember(added));
+        int addedIndex = addedInfo.index;
+        int myIndex = indexOf(myId); // might equal addedIndex or adderIndex
+        setAckedAdd(adderIndex, addedInfo);
+        setAckedAdd(myIndex, addedInfo);
         if (members.get(adder) != null) {
             // adder is still a group member, so this add sticks
             removedByConcurrency = false;
@@ -64,23 +129,40 @@ public class StrongRemoveDgm {
             MemberInfo adderInfo = removedMembers.get(adder);
             if (adderInfo == null) throw new IllegalArgumentException("Unrecognized adder");
             for (RemoveInfo removeInfo : adderInfo.removeMessages) {
-                removeInfo.removedUsers.add(added);
+                removeInfo.removedUsers.set(addedIndex);
                 addedInfo.removeMessages.add(removeInfo);
             }
             removedMembers.put(added, addedInfo);
         }
-        // added has the same acks as adder
-        for (MemberInfo memberInfo : members.values()) {
-            if (memberInfo.acks.contains(adder)) memberInfo.acks.add(added);
-        }
-        for (MemberInfo memberInfo : removedMembers.values()) {
-            if (memberInfo.acks.contains(adder)) memberInfo.acks.add(added);
-        }
-        for (RemoveInfo removeInfo : removesById.values()) {
-            if (removeInfo.acks.contains(adder)) removeInfo.acks.add(added);
+        // added has the same acks as adder (including the ack of this add), so shares adder's ack bitsets
+        // until one of them acks something else.
+        ackedAdds.set(addedIndex, ackedAdds.get(adderIndex));
+        ackedRemoves.set(addedIndex, ackedRemoves.get(adderIndex));
+        sharedAcks.set(adderIndex);
+        sharedAcks.set(addedIndex);
+        pendingInheritors.set(addedIndex);
+
+        // Update views.  Since added has the same acks as adder, added's view starts as a copy of adder's.
+        views.set(addedIndex, (BitSet) views.get(adderIndex).clone());
+        if (removedByConcurrency) {
+            // added has the same remove messages as adder, so it is in exactly the same views.
+            for (int i = known.nextSetBit(0); i >= 0; i = known.nextSetBit(i + 1)) {
+                views.get(i).set(addedIndex, views.get(i).get(adderIndex));
+            }
+        } else {
+            // The add's ackers so far are adder, added, and myId.
+            views.get(adderIndex).set(addedIndex);
+            views.get(addedIndex).set(addedIndex);
+            if (myIndex >= 0) views.get(myIndex).set(addedIndex);
         }
 
         addsById.put(messageId, addedInfo);
+        ArrayList<MemberInfo> adderAdds = addedByAdder.get(adderIndex);
+        if (adderAdds == null) {
+            adderAdds = new ArrayList<>();
+            addedByAdder.set(adderIndex, adderAdds);
+        }
+        adderAdds.add(addedInfo);
         return removedByConcurrency;
     }
 
@@ -92,14 +174,18 @@ public class StrongRemoveDgm {
      */
     public ArrayList<IdentityKey> remove(IdentityKey remover, Collection<IdentityKey> removed,
                                          MessageId messageId) {
+        modificationCount++;
         ArrayList<IdentityKey> returnValue = new ArrayList<>();
-        RemoveInfo removeInfo = new RemoveInfo(removed);
-        removeInfo.acks.add(remover);
-        removeInfo.acks.add(myId);// might equal remover; OK b/c acks is a HashSet
+        RemoveInfo removeInfo = new RemoveInfo(removesByIndex.size());
+        removesByIndex.add(removeInfo);
+        int removerIndex = indexOf(remover);
+        setAckedRemove(removerIndex, removeInfo);
+        setAckedRemove(indexOf(myId), removeInfo);// might equal remover
         // Remove the users in removed (if needed) and mark them as removed by this message
         for (IdentityKey oneRemoved : removed) {
             MemberInfo memberInfo = members.remove(oneRemoved);
-            if (memberInfo != null) {
+            boolean newlyRemoved = (memberInfo != null);
+            if (newlyRemoved) {
                 removedMembers.put(oneRemoved, memberInfo);
                 returnValue.add(oneRemoved);
             } else {
@@ -109,76 +195,85 @@ public class StrongRemoveDgm {
                     throw new IllegalArgumentException("Unrecognized target of removal: " + oneRemoved.hashCode());
                 }
             }
+            removeInfo.removedUsers.set(memberInfo.index);
             memberInfo.removeMessages.add(removeInfo);
+            updateViewsForRemove(memberInfo, removeInfo, newlyRemoved);
         }
 
         // If a removed user performed an add concurrent to this message (i.e., not yet ack'd by
         // remover), then the user added by that message is also considered removed by this
-        // message.  This loop searches for such adds and removes their target.  Since
-        // users removed in this fashion may themselves have added users, we have to apply this
-        // rule repeatedly until it stops making progress.
-        // TODO: can replace with a single pass in causal order
-        boolean madeProgress;
-        do {
-            madeProgress = false;
-            // Loop through current members, removing them like above if needed.
-            Iterator<Map.Entry<IdentityKey, MemberInfo>> iterator = members.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<IdentityKey, MemberInfo> entry = iterator.next();
-                if (removeInfo.removedUsers.contains(entry.getValue().adder) &&
-                        !entry.getValue().acks.contains(remover)) {
-                    // entry.getKey() is removed by this remove message
-                    returnValue.add(entry.getKey());
-                    iterator.remove(); // remove from members
-                    removedMembers.put(entry.getKey(), entry.getValue());
-                    entry.getValue().removeMessages.add(removeInfo);
-                    removeInfo.removedUsers.add(entry.getKey());
-                    madeProgress = true;
-                }
-            }
-            // Loop through already removed users, adding this message to their list of
-            // remove messages if it applies.
-            for (Map.Entry<IdentityKey, MemberInfo> entry : removedMembers.entrySet()) {
-                if (removeInfo.removedUsers.contains(entry.getValue().adder) &&
-                        !entry.getValue().acks.contains(remover) &&
-                        !entry.getValue().removeMessages.contains(removeInfo)) {
-                    // entry.getKey() is re-removed by this remove message
-                    entry.getValue().removeMessages.add(removeInfo);
-                    removeInfo.removedUsers.add(entry.getKey());
-                    madeProgress = true;
+        // message.  Since users removed in this fashion may themselves have added users, we
+        // follow addedByAdder transitively, visiting each newly removed user once.
+        ArrayDeque<Integer> toVisit = new ArrayDeque<>();
+        for (int i = removeInfo.removedUsers.nextSetBit(0); i >= 0; i = removeInfo.removedUsers.nextSetBit(i + 1)) {
+            toVisit.add(i);
+        }
+        while (!toVisit.isEmpty()) {
+            ArrayList<MemberInfo> addedInfos = addedByAdder.get(toVisit.poll());
+            if (addedInfos == null) continue;
+            for (MemberInfo addedInfo : addedInfos) {
+                if (hasAckedAdd(removerIndex, addedInfo) || addedInfo.removeMessages.contains(removeInfo)) continue;
+                // addedInfo.id is removed (or re-removed, if already removed) by this remove message
+                boolean newlyRemoved = (members.remove(addedInfo.id) != null);
+                if (newlyRemoved) {
+                    returnValue.add(addedInfo.id);
+                    removedMembers.put(addedInfo.id, addedInfo);
                 }
+                addedInfo.removeMessages.add(removeInfo);
+                removeInfo.removedUsers.set(addedInfo.index);
+                updateViewsForRemove(addedInfo, removeInfo, newlyRemoved);
+                toVisit.add(addedInfo.index);
             }
-
-        } while (madeProgress);
+        }
 
         removesById.put(messageId, removeInfo);
         return returnValue;
     }
 
+    /**
+     * Updates views after memberInfo was removed by removeInfo, which has not yet been ack'd by anyone besides
+     * its initial ackers.  A removed member stays in the view of everyone who has not ack'd one of its removes.
+     */
+    private void updateViewsForRemove(MemberInfo memberInfo, RemoveInfo removeInfo, boolean newlyRemoved) {
+        for (int i = known.nextSetBit(0); i >= 0; i = known.nextSetBit(i + 1)) {
+            if (ackedRemoves.get(i).get(removeInfo.index)) views.get(i).clear(memberInfo.index);
+            // Previously a newly removed member had no remove messages, so removeInfo is the only one that matters.
+            else if (newlyRemoved) views.get(i).set(memberInfo.index);
+        }
+    }
+
     /**
      * Note added users do not ack their own add.
      * This will throw an IllegalArgumentException if a user acks a message that removed them.
      */
     public void ack(IdentityKey acker, MessageId messageId) {
+        modificationCount++;
+        int ackerIndex = indexOf(acker);
+        if (ackerIndex < 0) {
+            throw new IllegalArgumentException("Unrecognized acker: " + acker.hashCode());
+        }
         MemberInfo add = addsById.get(messageId);
         if (add != null) {
-            if (!add.acks.add(acker)) {
+            if (!setAckedAdd(ackerIndex, add)) {
                 // Don't complain if its the added user acking themselves (for real this time, as opposed to
                 // the implicit ack that they give just from being added).
                 if (!add.id.equals(acker)) {
                     throw new IllegalArgumentException("Already ack'd: " + messageId);
                 }
             }
+            if (members.containsKey(add.id)) views.get(ackerIndex).set(add.index);
         } else {
             RemoveInfo remove = removesById.get(messageId);
             if (remove != null) {
-                if (!remove.acks.add(acker)) {
-                    throw new IllegalArgumentException("Already ack'd: " + messageId);
-                }
-                if (remove.removedUsers.contains(acker)) {
+                // Check this before recording the ack, so that a rejected ack leaves no trace.
+                if (remove.removedUsers.get(ackerIndex)) {
                     throw new IllegalArgumentException("Acking their own removal: " + acker.hashCode() + ", " +
                             messageId);
                 }
+                if (!setAckedRemove(ackerIndex, remove)) {
+                    throw new IllegalArgumentException("Already ack'd: " + messageId);
+                }
+                views.get(ackerIndex).andNot(remove.removedUsers);
             } else {
                 throw new IllegalArgumentException("Ack'd message not recognized: " + messageId);
             }
@@ -195,28 +290,192 @@ public class StrongRemoveDgm {
         return set;
     }
 
+    /**
+     * Returns the set of members that viewer considers to be in the group, according to the add and remove
+     * messages that viewer has ack'd.  The result is a fresh copy which the caller may modify.
+     */
     public HashSet<IdentityKey> queryView(IdentityKey viewer) {
         if (viewer.equals(myId)) return queryWhole();
+        int viewerIndex = indexOf(viewer);
+        return toIds((viewerIndex < 0) ? computeView(viewerIndex) : views.get(viewerIndex));
+    }
 
-        HashSet<IdentityKey> view = new HashSet<>();
+    /**
+     * Equivalent to {@code queryView(viewer).contains(member)}, but without copying the view.
+     */
+    public boolean isInView(IdentityKey viewer, IdentityKey member) {
+        if (viewer.equals(myId)) return members.containsKey(member);
+        int viewerIndex = indexOf(viewer);
+        int memberIndex = indexOf(member);
+        if (memberIndex < 0) return false;
+        return ((viewerIndex < 0) ? computeView(viewerIndex) : views.get(viewerIndex)).get(memberIndex);
+    }
+
+    /**
+     * Returns what {@code queryView(remover)} will be after {@code remove(remover, removed, messageId)}, without
+     * changing this.  The remover acks their own remove, so this is their current view minus everyone the remove
+     * removes, including members added concurrently by a removed member.
+     */
+    public HashSet<IdentityKey> queryViewAfterRemove(IdentityKey remover, Collection<IdentityKey> removed) {
+        int removerIndex = indexOf(remover);
+        BitSet removedUsers = new BitSet();
+        ArrayDeque<Integer> toVisit = new ArrayDeque<>();
+        for (IdentityKey oneRemoved : removed) {
+            int index = indexOf(oneRemoved);
+            if (index >= 0 && !removedUsers.get(index)) {
+                removedUsers.set(index);
+                toVisit.add(index);
+            }
+        }
+        // Same traversal as in remove
+        while (!toVisit.isEmpty()) {
+            ArrayList<MemberInfo> addedInfos = addedByAdder.get(toVisit.poll());
+            if (addedInfos == null) continue;
+            for (MemberInfo addedInfo : addedInfos) {
+                if (hasAckedAdd(removerIndex, addedInfo) || removedUsers.get(addedInfo.index)) continue;
+                removedUsers.set(addedInfo.index);
+                toVisit.add(addedInfo.index);
+            }
+        }
+        HashSet<IdentityKey> view = queryView(remover);
+        view.removeAll(toIds(removedUsers));
+        return view;
+    }
+
+    /**
+     * Returns what {@code queryView(acker)} will be after {@code ack(acker, messageId)}, without changing this.
+     * If messageId is not an add or remove message, this is acker's current view.
+     */
+    public HashSet<IdentityKey> queryViewAfterAck(IdentityKey acker, MessageId messageId) {
+        HashSet<IdentityKey> view = queryView(acker);
+        if (acker.equals(myId)) return view;
+        MemberInfo add = addsById.get(messageId);
+        if (add != null) {
+            if (members.containsKey(add.id)) view.add(add.id);
+        } else {
+            RemoveInfo remove = removesById.get(messageId);
+            if (remove != null) view.removeAll(toIds(remove.removedUsers));
+        }
+        return view;
+    }
+
+    /**
+     * Computes viewer's view directly from the acks, without using views.
+     */
+    /* package */ HashSet<IdentityKey> computeView(IdentityKey viewer) {
+        return toIds(computeView(indexOf(viewer)));
+    }
+
+    /**
+     * Like {@link #computeView(IdentityKey)}, but over member indices.  viewerIndex may be -1 for a viewer we
+     * don't know of, who has not ack'd anything.
+     */
+    private BitSet computeView(int viewerIndex) {
+        BitSet view = new BitSet();
         // Include current members whose add was acked by viewer
-        for (Map.Entry<IdentityKey, MemberInfo> entry : members.entrySet()) {
-            if (entry.getValue().acks.contains(viewer)) view.add(entry.getKey());
+        for (MemberInfo memberInfo : members.values()) {
+            if (hasAckedAdd(viewerIndex, memberInfo)) view.set(memberInfo.index);
         }
         // Also include removed members, none of whose removes have been acked by viewer
-        for (Map.Entry<IdentityKey, MemberInfo> entry : removedMembers.entrySet()) {
+        for (MemberInfo memberInfo : removedMembers.values()) {
             boolean anyAcked = false;
-            for (RemoveInfo removeInfo : entry.getValue().removeMessages) {
-                if (removeInfo.acks.contains(viewer)) {
+            for (RemoveInfo removeInfo : memberInfo.removeMessages) {
+                if (hasAckedRemove(viewerIndex, removeInfo)) {
                     anyAcked = true;
                     break;
                 }
             }
-            if (!anyAcked) view.add(entry.getKey());
+            if (!anyAcked) view.set(memberInfo.index);
         }
         return view;
     }
 
+    private HashSet<IdentityKey> toIds(BitSet indices) {
+        HashSet<IdentityKey> ids = new HashSet<>();
+        for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) ids.add(registry.get(i));
+        return ids;
+    }
+
+    /**
+     * Returns member's index if they are a current or removed member, else -1.
+     */
+    private int indexOf(IdentityKey member) {
+        int index = registry.indexOf(member);
+        return (index >= 0 && known.get(index)) ? index : -1;
+    }
+
+    private MemberInfo memberInfoAt(int index) {
+        IdentityKey member = registry.get(index);
+        MemberInfo memberInfo = members.get(member);
+        return (memberInfo != null) ? memberInfo : removedMembers.get(member);
+    }
+
+    private int registerMember(IdentityKey member) {
+        int index = registry.register(member);
+        if (!known.get(index)) {
+            known.set(index);
+            while (views.size() <= index) {
+                addedByAdder.add(null);
+                views.add(new BitSet());
+                ackedAdds.add(new BitSet());
+                ackedRemoves.add(new BitSet());
+            }
+        }
+        return index;
+    }
+
+    private boolean hasAckedAdd(int ackerIndex, MemberInfo add) {
+        return ackerIndex >= 0 && ackedAdds.get(ackerIndex).get(add.index);
+    }
+
+    private boolean hasAckedRemove(int ackerIndex, RemoveInfo remove) {
+        return ackerIndex >= 0 && ackedRemoves.get(ackerIndex).get(remove.index);
+    }
+
+    /**
+     * Records that the acker with the given index has ack'd add, returning false if they had already.
+     * Acks by users we don't know of yet (index -1, e.g. myId before we are added) are not recorded; such
+     * users inherit their adder's acks.
+     */
+    private boolean setAckedAdd(int ackerIndex, MemberInfo add) {
+        if (ackerIndex < 0 || ackedAdds.get(ackerIndex).get(add.index)) return false;
+        unshareAcks(ackerIndex);
+        ackedAdds.get(ackerIndex).set(add.index);
+        add.ackers.set(ackerIndex);
+        return true;
+    }
+
+    /**
+     * Like setAckedAdd, but for remove messages.
+     */
+    private boolean setAckedRemove(int ackerIndex, RemoveInfo remove) {
+        if (ackerIndex < 0 || ackedRemoves.get(ackerIndex).get(remove.index)) return false;
+        unshareAcks(ackerIndex);
+        ackedRemoves.get(ackerIndex).set(remove.index);
+        remove.ackers.set(ackerIndex);
+        return true;
+    }
+
+    private void unshareAcks(int ackerIndex) {
+        if (sharedAcks.get(ackerIndex)) {
+            ackedAdds.set(ackerIndex, (BitSet) ackedAdds.get(ackerIndex).clone());
+            ackedRemoves.set(ackerIndex, (BitSet) ackedRemoves.get(ackerIndex).clone());
+            sharedAcks.clear(ackerIndex);
+        }
+        if (pendingInheritors.get(ackerIndex)) {
+            // ackerIndex's acks are about to differ from the ones they inherited, so record the latter per message
+            BitSet inheritedAdds = ackedAdds.get(ackerIndex);
+            for (int i = inheritedAdds.nextSetBit(0); i >= 0; i = inheritedAdds.nextSetBit(i + 1)) {
+                memberInfoAt(i).ackers.set(ackerIndex);
+            }
+            BitSet inheritedRemoves = ackedRemoves.get(ackerIndex);
+            for (int i = inheritedRemoves.nextSetBit(0); i >= 0; i = inheritedRemoves.nextSetBit(i + 1)) {
+                removesByIndex.get(i).ackers.set(ackerIndex);
+            }
+            pendingInheritors.clear(ackerIndex);
+        }
+    }
+
     public boolean isAdd(MessageId messageId) {
         return addsById.containsKey(messageId);
     }
@@ -233,17 +492,69 @@ public class StrongRemoveDgm {
      *                                  of a known Add or Remove Message.
      */
     public Set<IdentityKey> getAcks(MessageId messageId) {
+        return Collections.unmodifiableSet(toIds(getAckers(messageId)));
+    }
+
+    /**
+     * Equivalent to {@code getAcks(messageId).containsAll(queryView(viewer))}, but without building either set.
+     *
+     * @throws IllegalArgumentException - if messageId is not the MessageId
+     *                                  of a known Add or Remove Message.
+     */
+    public boolean isAckedByViewOf(MessageId messageId, IdentityKey viewer) {
+        BitSet ackers = getAckers(messageId);
+        if (viewer.equals(myId)) {
+            for (MemberInfo member : members.values()) if (!ackers.get(member.index)) return false;
+            return true;
+        }
+        int viewerIndex = indexOf(viewer);
+        BitSet missing = (BitSet) ((viewerIndex < 0) ? computeView(viewerIndex) : views.get(viewerIndex)).clone();
+        missing.andNot(ackers);
+        return missing.isEmpty();
+    }
+
+    private BitSet getAckers(MessageId messageId) {
         MemberInfo addInfo = addsById.get(messageId);
-        if (addInfo != null) {
-            return Collections.unmodifiableSet(addInfo.acks);
-        } else {
-            RemoveInfo removeInfo = removesById.get(messageId);
-            if (removeInfo != null) {
-                return Collections.unmodifiableSet(removeInfo.acks);
-            } else {
-                throw new IllegalArgumentException("Unrecognized MessageId: " + messageId);
+        if (addInfo != null) return addInfo.getAckers();
+        RemoveInfo removeInfo = removesById.get(messageId);
+        if (removeInfo != null) return removeInfo.getAckers();
+        throw new IllegalArgumentException("Unrecognized MessageId: " + messageId);
+    }
+
+    /**
+     * Returns recorded plus the users in pendingInheritors whose entry of acked has the given bit, i.e., all ackers
+     * of the message with that index.  The result must not be modified; it is recorded itself if there are none.
+     */
+    private BitSet withPendingInheritors(BitSet recorded, ArrayList<BitSet> acked, int index) {
+        BitSet ackers = recorded;
+        for (int i = pendingInheritors.nextSetBit(0); i >= 0; i = pendingInheritors.nextSetBit(i + 1)) {
+            if (acked.get(i).get(index) && !ackers.get(i)) {
+                if (ackers == recorded) ackers = (BitSet) recorded.clone();
+                ackers.set(i);
             }
         }
+        return ackers;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // States written before inherited acks were recorded lazily have them all recorded
+        if (pendingInheritors == null) pendingInheritors = new BitSet();
+    }
+
+    /**
+     * Computes {@link #getAcks} directly from the per-acker index, without using the per-message ackers.
+     */
+    /* package */ HashSet<IdentityKey> computeAcks(MessageId messageId) {
+        HashSet<IdentityKey> acks = new HashSet<>();
+        MemberInfo addInfo = addsById.get(messageId);
+        RemoveInfo removeInfo = removesById.get(messageId);
+        for (int i = known.nextSetBit(0); i >= 0; i = known.nextSetBit(i + 1)) {
+            if ((addInfo != null) ? hasAckedAdd(i, addInfo) : hasAckedRemove(i, removeInfo)) {
+                acks.add(registry.get(i));
+            }
+        }
+        return acks;
     }
 
     // Return a collection containing all current members and removed (tombstoned) members.
@@ -258,71 +569,62 @@ public class StrongRemoveDgm {
      * used to store extra information for each member, such as the entries of
      * a version vector, as a list instead of a map from IdentityKey's, with a list
      * entry corresponding to the IdentityKey with the same index.
-     * TODO: just use the canonical order?
+     * <p>
+     * Members are ordered by their {@link MemberRegistry} index, so the serialized member indices agree with
+     * the registry indices whenever the registry contains only group members (e.g., when it is not shared).
      */
     public Pair<byte[], ArrayList<IdentityKey>> serialize() {
         // Assign indices to members and removedMembers
-        HashMap<IdentityKey, Integer> memberIndices = new HashMap<>();
+        int[] memberIndices = new int[registry.size()];
         ArrayList<IdentityKey> membersByIndex = new ArrayList<>();
-        int i = 0;
-        Iterator<IdentityKey> allMembersIterator =
-                IteratorUtils.chainedIterator(members.keySet().iterator(), removedMembers.keySet().iterator());
-        while (allMembersIterator.hasNext()) {
-            IdentityKey member = allMembersIterator.next();
-            memberIndices.put(member, i);
-            membersByIndex.add(member);
-            i++;
+        for (int i = known.nextSetBit(0); i >= 0; i = known.nextSetBit(i + 1)) {
+            memberIndices[i] = membersByIndex.size();
+            membersByIndex.add(registry.get(i));
         }
 
         // Serialize RemoveInfo's and assign them indices
         ArrayList<RemoveInfoStruct> removeInfoStructs = new ArrayList<>();
-        IdentityHashMap<RemoveInfo, Integer> removeInfoIndices = new IdentityHashMap<>();
-        i = 0;
+        int[] removeInfoIndices = new int[removesByIndex.size()];
         for (Map.Entry<MessageId, RemoveInfo> removeEntry : removesById.entrySet()) {
+            RemoveInfo removeInfo = removeEntry.getValue();
             HashSet<Integer> removedUsers = new HashSet<>();
-            for (IdentityKey removedUser : removeEntry.getValue().removedUsers) {
-                removedUsers.add(memberIndices.get(removedUser));
+            BitSet removedBits = removeInfo.removedUsers;
+            for (int i = removedBits.nextSetBit(0); i >= 0; i = removedBits.nextSetBit(i + 1)) {
+                removedUsers.add(memberIndices[i]);
             }
             HashSet<Integer> acks = new HashSet<>();
-            for (IdentityKey ack : removeEntry.getValue().acks) {
-                acks.add(memberIndices.get(ack));
+            for (int i = known.nextSetBit(0); i >= 0; i = known.nextSetBit(i + 1)) {
+                if (ackedRemoves.get(i).get(removeInfo.index)) acks.add(memberIndices[i]);
             }
-            removeInfoStructs.add(new RemoveInfoStruct(memberIndices.get(removeEntry.getKey().author),
+            removeInfoStructs.add(new RemoveInfoStruct(memberIndices[registry.indexOf(removeEntry.getKey().author)],
                     removeEntry.getKey().number, removedUsers, acks));
-            removeInfoIndices.put(removeEntry.getValue(), i);
-            i++;
+            removeInfoIndices[removeInfo.index] = removeInfoStructs.size() - 1;
         }
 
         // Serialize MemberInfo's
-        MemberInfoStruct[] memberInfoStructs = new MemberInfoStruct[members.size() + removedMembers.size()];
-        IdentityHashMap<MemberInfo, MemberInfoStruct> structsByMemberInfo = new IdentityHashMap<>();
-        Iterator<Map.Entry<IdentityKey, MemberInfo>> iterator =
-                IteratorUtils.chainedIterator(members.entrySet().iterator(), removedMembers.entrySet().iterator());
-        while (iterator.hasNext()) {
-            Map.Entry<IdentityKey, MemberInfo> memberEntry = iterator.next();
+        ArrayList<MemberInfoStruct> memberInfoStructs = new ArrayList<>();
+        for (IdentityKey member : membersByIndex) {
+            MemberInfo memberInfo = members.get(member);
+            if (memberInfo == null) memberInfo = removedMembers.get(member);
             ArrayList<Integer> removeMessages = new ArrayList<>();
-            for (RemoveInfo removeInfo : memberEntry.getValue().removeMessages) {
-                removeMessages.add(removeInfoIndices.get(removeInfo));
+            for (RemoveInfo removeInfo : memberInfo.removeMessages) {
+                removeMessages.add(removeInfoIndices[removeInfo.index]);
             }
             HashSet<Integer> acks = new HashSet<>();
-            for (IdentityKey ack : memberEntry.getValue().acks) {
-                acks.add(memberIndices.get(ack));
+            for (int i = known.nextSetBit(0); i >= 0; i = known.nextSetBit(i + 1)) {
+                if (ackedAdds.get(i).get(memberInfo.index)) acks.add(memberIndices[i]);
             }
-            MemberInfoStruct struct = new MemberInfoStruct(ByteBuffer.wrap(memberEntry.getKey().serialize()),
-                    removeMessages, acks);
-            memberInfoStructs[memberIndices.get(memberEntry.getKey())] = struct;
-            structsByMemberInfo.put(memberEntry.getValue(), struct);
+            memberInfoStructs.add(new MemberInfoStruct(ByteBuffer.wrap(member.serialize()), removeMessages, acks));
         }
         // Also add MessageId's to the MemberInfoStruct's for non-initial members
         for (Map.Entry<MessageId, MemberInfo> addEntry : addsById.entrySet()) {
-            MemberInfoStruct struct = structsByMemberInfo.get(addEntry.getValue());
-            struct.setAdder(memberIndices.get(addEntry.getKey().author));
+            MemberInfoStruct struct = memberInfoStructs.get(memberIndices[addEntry.getValue().index]);
+            struct.setAdder(memberIndices[registry.indexOf(addEntry.getKey().author)]);
             struct.setMessageNumber(addEntry.getKey().number);
         }
 
         // Final result
-        return Pair.of(Utils.serialize(
-                new MembershipSetStruct(Arrays.asList(memberInfoStructs), removeInfoStructs)),
+        return Pair.of(Utils.serialize(new MembershipSetStruct(memberInfoStructs, removeInfoStructs)),
                 membersByIndex);
     }
 
@@ -334,7 +636,16 @@ public class StrongRemoveDgm {
      */
     public static Pair<StrongRemoveDgm, ArrayList<IdentityKey>> deserialize(
             byte[] serialized, IdentityKey myId) {
-        StrongRemoveDgm set = new StrongRemoveDgm(Collections.emptyList(), myId);
+        return deserialize(serialized, myId, new MemberRegistry());
+    }
+
+    /**
+     * Like {@link #deserialize(byte[], IdentityKey)}, but registers the members with the given registry, in the
+     * serialized order.  Hence if the registry is empty, its indices will agree with the serialized indices.
+     */
+    public static Pair<StrongRemoveDgm, ArrayList<IdentityKey>> deserialize(
+            byte[] serialized, IdentityKey myId, MemberRegistry registry) {
+        StrongRemoveDgm set = new StrongRemoveDgm(Collections.emptyList(), myId, registry);
 
         MembershipSetStruct setStruct = new MembershipSetStruct();
         try {
@@ -347,46 +658,59 @@ public class StrongRemoveDgm {
         ArrayList<IdentityKey> idsByIndex = new ArrayList<>();
         for (MemberInfoStruct memberStruct : setStruct.getMembersAndRemovedMembers()) {
             try {
-                idsByIndex.add(new IdentityKey(memberStruct.getId()));
+                idsByIndex.add(IdentityKey.intern(memberStruct.getId()));
             } catch (IllegalArgumentException exc) {
                 throw new IllegalArgumentException("IdentityKey deserialization error: " + exc);
             }
         }
+        // Map serialized member indices to registry indices
+        int[] registryIndices = new int[idsByIndex.size()];
+        for (int i = 0; i < idsByIndex.size(); i++) registryIndices[i] = set.registerMember(idsByIndex.get(i));
 
-        // Deserialize RemoveInfoStruct's and get their index mapping.
-        ArrayList<RemoveInfo> removesByIndex = new ArrayList<>();
+        // Deserialize RemoveInfoStruct's; they get the same indices as in the serialized form.
         for (RemoveInfoStruct removeStruct : setStruct.getRemoveInfos()) {
-            RemoveInfo removeInfo = new RemoveInfo(Collections.emptyList());
+            RemoveInfo removeInfo = set.new RemoveInfo(set.removesByIndex.size());
+            set.removesByIndex.add(removeInfo);
             for (int removedIndex : removeStruct.getRemovedUsers()) {
-                removeInfo.removedUsers.add(idsByIndex.get(removedIndex));
+                removeInfo.removedUsers.set(registryIndices[removedIndex]);
             }
             for (int ackIndex : removeStruct.getAcks()) {
-                removeInfo.acks.add(idsByIndex.get(ackIndex));
+                set.ackedRemoves.get(registryIndices[ackIndex]).set(removeInfo.index);
+                removeInfo.ackers.set(registryIndices[ackIndex]);
             }
             set.removesById.put(new MessageId(idsByIndex.get(removeStruct.getRemover()),
                     removeStruct.getMessageNumber()), removeInfo);
-            removesByIndex.add(removeInfo);
         }
 
         // Deserialize MemberInfoStruct's
         int i = 0;
         for (MemberInfoStruct memberStruct : setStruct.getMembersAndRemovedMembers()) {
-            MemberInfo memberInfo = new MemberInfo(idsByIndex.get(i), null);
+            MemberInfo memberInfo = set.new MemberInfo(idsByIndex.get(i), null, registryIndices[i]);
             if (memberStruct.isSetAdder()) {
                 memberInfo.adder = idsByIndex.get(memberStruct.getAdder());
                 set.addsById.put(new MessageId(memberInfo.adder, memberStruct.getMessageNumber()),
                         memberInfo);
             }
             for (int removeIndex : memberStruct.getRemoveMessages()) {
-                memberInfo.removeMessages.add(removesByIndex.get(removeIndex));
+                memberInfo.removeMessages.add(set.removesByIndex.get(removeIndex));
             }
             for (int ackIndex : memberStruct.getAcks()) {
-                memberInfo.acks.add(idsByIndex.get(ackIndex));
+                set.ackedAdds.get(registryIndices[ackIndex]).set(memberInfo.index);
+                memberInfo.ackers.set(registryIndices[ackIndex]);
             }
             if (memberInfo.removeMessages.isEmpty()) set.members.put(idsByIndex.get(i), memberInfo);
             else set.removedMembers.put(idsByIndex.get(i), memberInfo);
             i++;
         }
+        // Rebuild addedByAdder.  Each adder's adds are causally ordered by their message numbers.
+        ArrayList<Map.Entry<MessageId, MemberInfo>> adds = new ArrayList<>(set.addsById.entrySet());
+        adds.sort(Comparator.comparingInt(entry -> entry.getKey().number));
+        for (Map.Entry<MessageId, MemberInfo> add : adds) {
+            int adderIndex = registry.indexOf(add.getKey().author);
+            if (set.addedByAdder.get(adderIndex) == null) set.addedByAdder.set(adderIndex, new ArrayList<>());
+            set.addedByAdder.get(adderIndex).add(add.getValue());
+        }
+        for (int viewerIndex : registryIndices) set.views.set(viewerIndex, set.computeView(viewerIndex));
 
         return Pair.of(set, idsByIndex);
     }
@@ -434,75 +758,81 @@ public class StrongRemoveDgm {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         StrongRemoveDgm that = (StrongRemoveDgm) o;
-        return members.equals(that.members) &&
-                removedMembers.equals(that.removedMembers) &&
-                myId.equals(that.myId) &&
-                addsById.equals(that.addsById) &&
-                removesById.equals(that.removesById);
+        return myId.equals(that.myId) && describe().equals(that.describe());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(members, removedMembers, myId, addsById, removesById);
+        return Objects.hash(myId, describe());
+    }
+
+    /**
+     * Returns a description of this object's contents in terms of IdentityKey's and MessageId's, independent of
+     * the member and RemoveInfo indices, for use in equals and hashCode.
+     */
+    private List<Object> describe() {
+        HashMap<IdentityKey, Object> memberDescriptions = new HashMap<>();
+        for (MemberInfo memberInfo : CollectionUtils.union(members.values(), removedMembers.values())) {
+            memberDescriptions.put(memberInfo.id, memberInfo.describe());
+        }
+        HashMap<MessageId, IdentityKey> addDescriptions = new HashMap<>();
+        for (Map.Entry<MessageId, MemberInfo> entry : addsById.entrySet()) {
+            addDescriptions.put(entry.getKey(), entry.getValue().id);
+        }
+        HashMap<MessageId, Object> removeDescriptions = new HashMap<>();
+        for (Map.Entry<MessageId, RemoveInfo> entry : removesById.entrySet()) {
+            removeDescriptions.put(entry.getKey(), entry.getValue().describe());
+        }
+        return Arrays.asList(members.keySet(), memberDescriptions, addDescriptions, removeDescriptions);
     }
 
 
-    private static class MemberInfo {
+    private class MemberInfo implements Serializable {
+        private static final long serialVersionUID = 1L;
+
         IdentityKey id;
         IdentityKey adder; // who added this member
         ArrayList<RemoveInfo> removeMessages = new ArrayList<>(); // remove messages that removed this member
-        HashSet<IdentityKey> acks; // users who have ack'd the message
+        final int index; // member index of id; acks are stored in ackedAdds
+        // Member indices of the users who have ack'd the message that added id, except those in pendingInheritors
+        BitSet ackers = new BitSet();
 
-        MemberInfo(IdentityKey id, IdentityKey adder) {
+        MemberInfo(IdentityKey id, IdentityKey adder, int index) {
             this.id = id;
             this.adder = adder;
-            acks = new HashSet<>();
+            this.index = index;
         }
 
-        MemberInfo(IdentityKey id, IdentityKey adder, Collection<IdentityKey> initialAcks) {
-            this.id = id;
-            this.adder = adder;
-            acks = new HashSet<>(initialAcks);
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            MemberInfo that = (MemberInfo) o;
-            return id.equals(that.id) &&
-                    Objects.equals(adder, that.adder) &&
-                    removeMessages.equals(that.removeMessages) &&
-                    acks.equals(that.acks);
+        BitSet getAckers() {
+            return withPendingInheritors(ackers, ackedAdds, index);
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(id, adder, removeMessages, acks);
+        List<Object> describe() {
+            ArrayList<Object> removeDescriptions = new ArrayList<>();
+            for (RemoveInfo removeInfo : removeMessages) removeDescriptions.add(removeInfo.describe());
+            return Arrays.asList(adder, removeDescriptions, toIds(getAckers()));
         }
     }
 
-    private static class RemoveInfo {
-        HashSet<IdentityKey> removedUsers; // users removed by this message, including users who would have been
-        // removed except they were removed previously.
-        HashSet<IdentityKey> acks = new HashSet<>(); // users who have ack'd the member
+    private class RemoveInfo implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        BitSet removedUsers = new BitSet(); // member indices of users removed by this message, including users who
+        // would have been removed except they were removed previously.
+        final int index; // index in removesByIndex; acks are stored in ackedRemoves
+        // Member indices of the users who have ack'd this remove message, except those in pendingInheritors
+        BitSet ackers = new BitSet();
 
-        RemoveInfo(Collection<IdentityKey> removed) {
-            removedUsers = new HashSet<>(removed);
+        RemoveInfo(int index) {
+            this.index = index;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            RemoveInfo that = (RemoveInfo) o;
-            return removedUsers.equals(that.removedUsers) &&
-                    acks.equals(that.acks);
+        BitSet getAckers() {
+            return withPendingInheritors(ackers, ackedRemoves, index);
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(removedUsers, acks);
+        List<Object> describe() {
+            return Arrays.asList(toIds(removedUsers), toIds(getAckers()));
         }
     }
 }
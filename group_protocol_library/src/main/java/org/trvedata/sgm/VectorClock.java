@@ -1,33 +1,46 @@
 package org.trvedata.sgm;
 
 import org.apache.thrift.TException;
-import org.pcollections.HashPMap;
-import org.pcollections.HashTreePMap;
+import org.pcollections.IntTreePMap;
 import org.trvedata.sgm.crypto.IdentityKey;
 import org.trvedata.sgm.message.VectorClockMessage;
 import org.trvedata.sgm.misc.Utils;
 
+import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
-public class VectorClock {
+public class VectorClock implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final MemberRegistry memberRegistry;
     private final IdentityKey sender;
-    private final HashPMap<IdentityKey, Integer> clock;
+    private final IntTreePMap<Integer> clock; // keyed by member index in memberRegistry
+
+    /**
+     * Returns the vector clock with all entries 0, whose sender is {@code sender}.
+     */
+    public VectorClock(MemberRegistry memberRegistry, IdentityKey sender) {
+        this(memberRegistry, sender, IntTreePMap.empty());
+    }
 
-    public VectorClock(IdentityKey sender, HashPMap<IdentityKey, Integer> clock) {
+    private VectorClock(MemberRegistry memberRegistry, IdentityKey sender, IntTreePMap<Integer> clock) {
+        this.memberRegistry = memberRegistry;
         this.sender = sender;
         this.clock = clock;
     }
 
-    public VectorClock(byte[] serialized) {
+    public VectorClock(MemberRegistry memberRegistry, byte[] serialized) {
         try {
             VectorClockMessage deserialized = new VectorClockMessage();
             Utils.deserialize(deserialized, serialized);
-            sender = new IdentityKey(deserialized.getSender());
-            HashPMap<IdentityKey, Integer> clockConstructor = HashTreePMap.empty();
+            this.memberRegistry = memberRegistry;
+            sender = IdentityKey.intern(deserialized.getSender());
+            IntTreePMap<Integer> clockConstructor = IntTreePMap.empty();
             for (Map.Entry<ByteBuffer, Integer> entry : deserialized.getClock().entrySet()) {
-                clockConstructor = clockConstructor.plus(new IdentityKey(Utils.asArray(entry.getKey())), entry.getValue());
+                clockConstructor = clockConstructor.plus(
+                        memberRegistry.register(IdentityKey.intern(Utils.asArray(entry.getKey()))), entry.getValue());
             }
             this.clock = clockConstructor;
         } catch (TException | IllegalArgumentException exc) {
@@ -36,14 +49,16 @@ public class VectorClock {
     }
 
     public VectorClock increment(IdentityKey member) {
-        return new VectorClock(member, clock.plus(member, 1 + get(member)));
+        int index = memberRegistry.register(member);
+        return new VectorClock(memberRegistry, member, clock.plus(index, 1 + clock.getOrDefault(index, 0)));
     }
 
     /**
      * Returns the number of messages processed from {@code member} so far.
      */
     public int get(IdentityKey member) {
-        return clock.getOrDefault(member, 0);
+        int index = memberRegistry.indexOf(member);
+        return (index < 0) ? 0 : clock.getOrDefault(index, 0);
     }
 
     public IdentityKey getSender() {
@@ -60,16 +75,16 @@ public class VectorClock {
 
     public byte[] serialize() {
         HashMap<ByteBuffer, Integer> buffered = new HashMap<>();
-        for (Map.Entry<IdentityKey, Integer> entry : clock.entrySet()) {
-            buffered.put(ByteBuffer.wrap(entry.getKey().serialize()), entry.getValue());
+        for (Map.Entry<Integer, Integer> entry : clock.entrySet()) {
+            buffered.put(ByteBuffer.wrap(memberRegistry.get(entry.getKey()).serialize()), entry.getValue());
         }
         return Utils.serialize(new VectorClockMessage(ByteBuffer.wrap(sender.serialize()), buffered));
     }
 
     public String toString() {
         StringBuilder ret = new StringBuilder("(" + sender.hashCode() + ", {");
-        for (Map.Entry<IdentityKey, Integer> entry : clock.entrySet()) {
-            ret.append(entry.getKey().hashCode() + ": " + entry.getValue() + ",");
+        for (Map.Entry<Integer, Integer> entry : clock.entrySet()) {
+            ret.append(memberRegistry.get(entry.getKey()).hashCode() + ": " + entry.getValue() + ",");
         }
         ret.append("})");
         return ret.toString();
@@ -1,5 +1,7 @@
 package org.trvedata.sgm.communication;
 
+import java.util.Map;
+
 public abstract class Client {
 
     private Network mNetwork;
@@ -19,6 +21,10 @@ public abstract class Client {
         mNetwork.broadcast(this, message);
     }
 
+    protected void broadcast(final byte[] message, final Map<?, byte[]> tailored) {
+        mNetwork.broadcast(this, message, tailored);
+    }
+
     public String getName(final Object identifier) {
         if (mNetwork == null || identifier == null) return "<unknown>";
         return mNetwork.idToName(identifier);
@@ -1,5 +1,7 @@
 package org.trvedata.sgm.communication;
 
+import java.util.Map;
+
 public interface Network {
     void connect(final Client client, final String name);
 
@@ -7,6 +9,19 @@ public interface Network {
 
     void broadcast(final Client sender, final byte[] message);
 
+    /**
+     * Like {@link #broadcast(Client, byte[])}, except that each client whose identifier is a key of {@code tailored}
+     * gets the corresponding message, possibly in addition to {@code message}.  By default, {@code message} is
+     * broadcast once and the tailored messages are sent individually, so that the network need not exclude their
+     * recipients from the broadcast.
+     */
+    default void broadcast(final Client sender, final byte[] message, final Map<?, byte[]> tailored) {
+        broadcast(sender, message);
+        for (final Map.Entry<?, byte[]> version : tailored.entrySet()) {
+            send(sender, version.getKey(), version.getValue());
+        }
+    }
+
     String idToName(final Object identifier);
 
     int numClients();
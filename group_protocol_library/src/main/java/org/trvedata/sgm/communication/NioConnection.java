@@ -0,0 +1,170 @@
+package org.trvedata.sgm.communication;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One non-blocking socket of a {@link NioNetwork} or {@link NioRelay}, with the length-prefixed framing both ends
+ * speak.  A frame is an int length (of the rest of the frame), a type byte, and a body; bodies that name a client
+ * start with its int-length-prefixed identifier.
+ * <p>
+ * Frames may be queued from any thread, but only the selector thread that owns the connection reads and flushes.
+ * Queued frames are kept as their separate header and payload buffers and written with gathering writes, so large
+ * payloads are never copied into a contiguous send buffer.
+ */
+final class NioConnection {
+    static final byte HELLO = 1; // identifier, name: registers the sender
+    static final byte JOINED = 2; // identifier, name: a client registered with the relay
+    static final byte SEND = 3; // recipient identifier, payload
+    static final byte BROADCAST = 4; // payload
+    static final byte DELIVER = 5; // sender identifier, payload
+
+    static final int MAX_FRAME_BYTES = 256 << 20;
+
+    private static final int INITIAL_READ_BYTES = 64 << 10;
+    private static final int MAX_GATHER = 64;
+
+    final SocketChannel channel;
+    SelectionKey key;
+    Object attachment;
+
+    private final ConcurrentLinkedQueue<ByteBuffer[]> outbound = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BYTES);
+
+    NioConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Returns the header of a frame of the given type whose body is identifier followed by payloadBytes more bytes.
+     */
+    static ByteBuffer header(byte type, byte[] identifier, int payloadBytes) {
+        ByteBuffer header = ByteBuffer.allocate(4 + 1 + 4 + identifier.length);
+        header.putInt(1 + 4 + identifier.length + payloadBytes).put(type).putInt(identifier.length).put(identifier);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Returns the header of a frame of the given type whose body is payloadBytes bytes.
+     */
+    static ByteBuffer header(byte type, int payloadBytes) {
+        ByteBuffer header = ByteBuffer.allocate(4 + 1);
+        header.putInt(1 + payloadBytes).put(type);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Reads an int-length-prefixed identifier from frame.
+     */
+    static byte[] getIdentifier(ByteBuffer frame) throws IOException {
+        int length = frame.getInt();
+        if (length < 0 || length > frame.remaining()) throw new IOException("Malformed identifier");
+        byte[] identifier = new byte[length];
+        frame.get(identifier);
+        return identifier;
+    }
+
+    /**
+     * Queues a frame made of the given buffers, which must not be modified until written.
+     */
+    void enqueue(ByteBuffer... buffers) {
+        int nonEmpty = 0;
+        for (ByteBuffer buffer : buffers) if (buffer.hasRemaining()) nonEmpty++;
+        if (nonEmpty != buffers.length) {
+            // Empty buffers would confuse flush's check of whether a frame was fully written
+            ByteBuffer[] trimmed = new ByteBuffer[nonEmpty];
+            int i = 0;
+            for (ByteBuffer buffer : buffers) if (buffer.hasRemaining()) trimmed[i++] = buffer;
+            buffers = trimmed;
+        }
+        outbound.add(buffers);
+    }
+
+    boolean hasOutbound() {
+        return !outbound.isEmpty();
+    }
+
+    /**
+     * Writes as much queued output as the socket accepts, returning whether everything was written.
+     */
+    boolean flush() throws IOException {
+        while (true) {
+            int count = 0;
+            int frames = 0;
+            for (ByteBuffer[] frame : outbound) {
+                if (count + frame.length > MAX_GATHER) break;
+                System.arraycopy(frame, 0, gather, count, frame.length);
+                count += frame.length;
+                frames++;
+            }
+            if (count == 0) return true;
+            channel.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+            for (; frames > 0; frames--) {
+                ByteBuffer[] frame = outbound.peek();
+                if (frame.length > 0 && frame[frame.length - 1].hasRemaining()) return false;
+                outbound.poll();
+            }
+        }
+    }
+
+    /**
+     * Reads what the socket has available and returns copies of the complete frames received, without their length
+     * prefix.
+     *
+     * @throws EOFException If the peer closed the connection.
+     */
+    ArrayList<ByteBuffer> read() throws IOException {
+        ArrayList<ByteBuffer> frames = new ArrayList<>();
+        int read;
+        do {
+            read = channel.read(readBuffer);
+            if (read < 0) throw new EOFException("Connection closed by peer");
+            readBuffer.flip();
+            // Copy out complete frames, since the buffer is compacted below
+            while (readBuffer.remaining() >= 4) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length <= 0 || length > MAX_FRAME_BYTES) throw new IOException("Invalid frame length " + length);
+                if (readBuffer.remaining() - 4 < length) {
+                    if (readBuffer.capacity() - 4 < length) {
+                        ByteBuffer larger = ByteBuffer.allocate(Math.max(4 + length, 2 * readBuffer.capacity()));
+                        larger.put(readBuffer);
+                        larger.flip();
+                        readBuffer = larger;
+                    }
+                    break;
+                }
+                readBuffer.position(readBuffer.position() + 4);
+                ByteBuffer frame = readBuffer.slice();
+                frame.limit(length);
+                frames.add(ByteBuffer.wrap(toArray(frame)));
+                readBuffer.position(readBuffer.position() + length);
+            }
+            readBuffer.compact();
+        } while (read > 0 && !readBuffer.hasRemaining());
+        return frames;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    void close() {
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package org.trvedata.sgm.communication;
+
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.misc.Logger;
+import org.trvedata.sgm.misc.Preconditions;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Network} whose clients talk over TCP through a {@link NioRelay}, so that the clients of one group can live
+ * in different processes (or on different machines).  Each connected {@link Client} gets its own socket to the relay;
+ * all sockets of one network are served by a single selector thread, which is also the thread that calls
+ * {@link Client#handleMessageFromNetwork(Object, byte[])}.  Clients that need to process messages elsewhere should
+ * hand them off, as {@code ThreadedClient} does.
+ * <p>
+ * Sending never blocks: messages are queued and written by the selector thread, header and payload with one gathering
+ * write, without copying the payload.  Messages between two clients arrive in the order they were sent.  Since client
+ * identifiers cross process boundaries, they are converted to bytes with an {@link IdentifierCodec}, by default
+ * {@link #IDENTITY_KEYS}.
+ */
+public class NioNetwork implements Network, Closeable {
+    private static final String TAG = "NioNetwork";
+    private static final long CONNECT_TIMEOUT_MS = 10000;
+
+    /**
+     * Converts client identifiers to and from bytes.  Equal identifiers must have equal encodings.
+     */
+    public interface IdentifierCodec {
+        byte[] encode(Object identifier);
+
+        Object decode(byte[] bytes);
+    }
+
+    public static final IdentifierCodec IDENTITY_KEYS = new IdentifierCodec() {
+        @Override
+        public byte[] encode(final Object identifier) {
+            return ((IdentityKey) identifier).serialize();
+        }
+
+        @Override
+        public Object decode(final byte[] bytes) {
+            return IdentityKey.intern(bytes);
+        }
+    };
+
+    public static final IdentifierCodec STRINGS = new IdentifierCodec() {
+        @Override
+        public byte[] encode(final Object identifier) {
+            return ((String) identifier).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Object decode(final byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    private final InetSocketAddress mRelayAddress;
+    private final IdentifierCodec mCodec;
+    private final Selector mSelector;
+    private final ConcurrentHashMap<Object, Endpoint> mIdentifierToEndpoint = new ConcurrentHashMap<>(); // local
+    private final ConcurrentHashMap<Object, String> mIdentifierToName = new ConcurrentHashMap<>(); // joined anywhere
+    private final ConcurrentHashMap<ByteBuffer, Object> mEncodedToIdentifier = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Endpoint> mPendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Endpoint> mPendingWrites = new ConcurrentLinkedQueue<>();
+    private final Thread mThread;
+    private volatile boolean mClosed = false;
+
+    public NioNetwork(final InetSocketAddress relayAddress) throws IOException {
+        this(relayAddress, IDENTITY_KEYS);
+    }
+
+    public NioNetwork(final InetSocketAddress relayAddress, final IdentifierCodec codec) throws IOException {
+        mRelayAddress = relayAddress;
+        mCodec = codec;
+        mSelector = Selector.open();
+        mThread = new Thread(this::run, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Opens a socket to the relay for the client and returns once the relay has registered it.  Connecting another
+     * client with the same identifier reuses the socket and delivers that identifier's messages to the new client.
+     */
+    @Override
+    public void connect(final Client client, final String name) {
+        final Object identifier = client.getIdentifier();
+        final Endpoint existing = mIdentifierToEndpoint.get(identifier);
+        if (existing != null) {
+            existing.mClient = client;
+            return;
+        }
+        Preconditions.checkState(!mClosed, "NioNetwork is closed");
+
+        final byte[] encoded = mCodec.encode(identifier);
+        final Endpoint endpoint;
+        try {
+            final SocketChannel channel = SocketChannel.open(mRelayAddress);
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            endpoint = new Endpoint(new NioConnection(channel), client, ByteBuffer.wrap(encoded));
+        } catch (final IOException exc) {
+            throw new UncheckedIOException("Failed to connect to relay at " + mRelayAddress, exc);
+        }
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        endpoint.mConnection.enqueue(NioConnection.header(NioConnection.HELLO, encoded, nameBytes.length),
+                ByteBuffer.wrap(nameBytes));
+        mIdentifierToEndpoint.put(identifier, endpoint);
+        mPendingRegistrations.add(endpoint);
+        mSelector.wakeup();
+
+        try {
+            if (!endpoint.mJoined.await(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new UncheckedIOException(new IOException("Relay did not register " + name));
+            }
+        } catch (final InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while connecting " + name, exc);
+        }
+    }
+
+    /**
+     * Queues a message from the given sender to the client that matches the `recipientIdentifier`, which must have
+     * joined the relay already.
+     */
+    @Override
+    public void send(final Client sender, final Object recipientIdentifier, final byte[] message) {
+        Preconditions.checkArgument(
+                mIdentifierToName.containsKey(recipientIdentifier),
+                "The client with identifier " + recipientIdentifier + " is not connected to the network.");
+        final byte[] recipient = mCodec.encode(recipientIdentifier);
+        queue(endpointOf(sender), NioConnection.header(NioConnection.SEND, recipient, message.length),
+                ByteBuffer.wrap(message));
+    }
+
+    /**
+     * Queues a message that the relay delivers to every other client it knows, in this or any other process.
+     */
+    @Override
+    public void broadcast(final Client sender, final byte[] message) {
+        queue(endpointOf(sender), NioConnection.header(NioConnection.BROADCAST, message.length),
+                ByteBuffer.wrap(message));
+    }
+
+    @Override
+    public String idToName(final Object identifier) {
+        return mIdentifierToName.getOrDefault(identifier, "<unknown client>");
+    }
+
+    /**
+     * Returns the number of clients that have joined the relay, in this or any other process.
+     */
+    @Override
+    public int numClients() {
+        return mIdentifierToName.size();
+    }
+
+    /**
+     * Closes all sockets of this network and stops its selector thread.  Messages that were not written yet are lost.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mSelector.wakeup();
+        if (Thread.currentThread() != mThread) {
+            try {
+                mThread.join();
+            } catch (final InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Endpoint endpointOf(final Client sender) {
+        final Endpoint endpoint = mIdentifierToEndpoint.get(sender.getIdentifier());
+        Preconditions.checkArgument(endpoint != null,
+                "The client with identifier " + sender.getIdentifier() + " is not connected to the network.");
+        return endpoint;
+    }
+
+    private void queue(final Endpoint endpoint, final ByteBuffer header, final ByteBuffer payload) {
+        Preconditions.checkState(!mClosed, "NioNetwork is closed");
+        endpoint.mConnection.enqueue(header, payload);
+        mPendingWrites.add(endpoint);
+        // When called from a handler, the selector thread flushes before selecting again anyway
+        if (Thread.currentThread() != mThread) mSelector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (!mClosed) {
+                registerPending();
+                flushPending();
+                mSelector.select();
+                for (final SelectionKey key : mSelector.selectedKeys()) {
+                    final Endpoint endpoint = (Endpoint) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            for (final ByteBuffer frame : endpoint.mConnection.read()) handleFrame(endpoint, frame);
+                        }
+                        if (key.isValid() && key.isWritable()) mPendingWrites.add(endpoint);
+                    } catch (final IOException exc) {
+                        if (!(exc instanceof EOFException) || !mClosed) {
+                            Logger.w(TAG, "Lost connection of " + endpoint.mClient.name + ": " + exc);
+                        }
+                        endpoint.mConnection.close();
+                    }
+                }
+                mSelector.selectedKeys().clear();
+            }
+        } catch (final ClosedSelectorException exc) {
+            // Closed concurrently
+        } catch (final IOException exc) {
+            if (!mClosed) Logger.w(TAG, "Selector failed: " + exc);
+        } finally {
+            for (final Endpoint endpoint : mIdentifierToEndpoint.values()) endpoint.mConnection.close();
+            try {
+                mSelector.close();
+            } catch (final IOException exc) {
+                Logger.w(TAG, "Failed to close selector: " + exc);
+            }
+        }
+    }
+
+    private void registerPending() throws IOException {
+        Endpoint endpoint;
+        while ((endpoint = mPendingRegistrations.poll()) != null) {
+            final NioConnection connection = endpoint.mConnection;
+            connection.key = connection.channel.register(mSelector, SelectionKey.OP_READ, endpoint);
+            mPendingWrites.add(endpoint);
+        }
+    }
+
+    private void flushPending() {
+        Endpoint endpoint;
+        while ((endpoint = mPendingWrites.poll()) != null) {
+            final NioConnection connection = endpoint.mConnection;
+            // Not registered yet: flushed right after registration
+            if (connection.key == null || !connection.key.isValid()) continue;
+            try {
+                final boolean flushed = connection.flush();
+                connection.key.interestOps(flushed ? SelectionKey.OP_READ
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (final IOException exc) {
+                Logger.w(TAG, "Lost connection of " + endpoint.mClient.name + ": " + exc);
+                connection.close();
+            }
+        }
+    }
+
+    private void handleFrame(final Endpoint endpoint, final ByteBuffer frame) throws IOException {
+        final byte type = frame.get();
+        final byte[] encoded = NioConnection.getIdentifier(frame);
+        if (type == NioConnection.JOINED) {
+            final Object identifier = mCodec.decode(encoded);
+            final byte[] name = new byte[frame.remaining()];
+            frame.get(name);
+            mEncodedToIdentifier.put(ByteBuffer.wrap(encoded), identifier);
+            mIdentifierToName.put(identifier, new String(name, StandardCharsets.UTF_8));
+            if (endpoint.mEncodedIdentifier.equals(ByteBuffer.wrap(encoded))) endpoint.mJoined.countDown();
+        } else if (type == NioConnection.DELIVER) {
+            Object sender = mEncodedToIdentifier.get(ByteBuffer.wrap(encoded));
+            if (sender == null) sender = mCodec.decode(encoded);
+            final byte[] message = Arrays.copyOfRange(frame.array(), frame.position(), frame.limit());
+            try {
+                endpoint.mClient.handleMessageFromNetwork(sender, message);
+            } catch (final RuntimeException exc) {
+                // Keep serving the other clients of this network
+                Logger.w(TAG, "Client " + endpoint.mClient.name + " failed to handle a message: " + exc);
+            }
+        } else {
+            throw new IOException("Unexpected frame type " + type);
+        }
+    }
+
+    private static class Endpoint {
+        private final NioConnection mConnection;
+        private final ByteBuffer mEncodedIdentifier;
+        private final CountDownLatch mJoined = new CountDownLatch(1);
+        private volatile Client mClient;
+
+        private Endpoint(final NioConnection connection, final Client client, final ByteBuffer encodedIdentifier) {
+            mConnection = connection;
+            mClient = client;
+            mEncodedIdentifier = encodedIdentifier;
+        }
+    }
+}
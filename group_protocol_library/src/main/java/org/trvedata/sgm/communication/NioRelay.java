@@ -0,0 +1,214 @@
+package org.trvedata.sgm.communication;
+
+import org.trvedata.sgm.misc.Logger;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * The server that {@link NioNetwork}s connect to: it forwards each unicast message to its recipient's socket and fans
+ * out each broadcast to every other socket, so that a sender uploads a broadcast once regardless of the group size.
+ * Run it in its own process with {@link #main(String[])}, or on a background thread with {@link #start()}.
+ * <p>
+ * The relay is a single selector thread.  A broadcast payload is read once and shared by the queued frames of all
+ * recipients, and messages to clients that are not connected (any more) are dropped.
+ */
+public class NioRelay implements Closeable, Runnable {
+    private static final String TAG = "NioRelay";
+
+    private final Selector mSelector;
+    private final ServerSocketChannel mServer;
+    private final HashMap<ByteBuffer, NioConnection> mIdentifierToConnection = new HashMap<>();
+    private final LinkedHashMap<ByteBuffer, byte[]> mIdentifierToJoined = new LinkedHashMap<>(); // JOINED bodies
+    private final LinkedHashSet<NioConnection> mConnections = new LinkedHashSet<>();
+    private final LinkedHashSet<NioConnection> mDirty = new LinkedHashSet<>(); // with output queued this round
+    private volatile boolean mClosed = false;
+
+    /**
+     * Binds the relay to the given address; port 0 picks a free port, see {@link #getPort()}.
+     */
+    public NioRelay(final InetSocketAddress address) throws IOException {
+        mSelector = Selector.open();
+        mServer = ServerSocketChannel.open();
+        mServer.bind(address);
+        mServer.configureBlocking(false);
+        mServer.register(mSelector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPort() {
+        return mServer.socket().getLocalPort();
+    }
+
+    /**
+     * Runs the relay on a new daemon thread.
+     */
+    public NioRelay start() {
+        final Thread thread = new Thread(this, TAG + "-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Runs the selector loop until the relay is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!mClosed) {
+                mSelector.select();
+                for (final SelectionKey key : mSelector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept();
+                    else {
+                        final NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                for (final ByteBuffer frame : connection.read()) handleFrame(connection, frame);
+                            }
+                            if (key.isValid() && key.isWritable()) mDirty.add(connection);
+                        } catch (final IOException exc) {
+                            if (!(exc instanceof EOFException)) Logger.w(TAG, "Dropping connection: " + exc);
+                            disconnect(connection);
+                        }
+                    }
+                }
+                mSelector.selectedKeys().clear();
+                flushDirty();
+            }
+        } catch (final ClosedSelectorException exc) {
+            // Closed concurrently
+        } catch (final IOException exc) {
+            if (!mClosed) Logger.w(TAG, "Selector failed: " + exc);
+        } finally {
+            closeAll();
+        }
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        mSelector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = mServer.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final NioConnection connection = new NioConnection(channel);
+        connection.key = channel.register(mSelector, SelectionKey.OP_READ, connection);
+        mConnections.add(connection);
+    }
+
+    private void handleFrame(final NioConnection connection, final ByteBuffer frame) throws IOException {
+        final byte type = frame.get();
+        if (type == NioConnection.HELLO) {
+            final ByteBuffer body = frame.duplicate();
+            final ByteBuffer identifier = ByteBuffer.wrap(NioConnection.getIdentifier(frame));
+            final byte[] joined = new byte[body.remaining()];
+            body.get(joined);
+            final NioConnection previous = mIdentifierToConnection.put(identifier, connection);
+            if (previous != null && previous != connection) disconnect(previous);
+            connection.attachment = identifier;
+            // Tell the newcomer about everyone else, then everyone (including the newcomer) about the newcomer
+            mIdentifierToJoined.remove(identifier);
+            for (final byte[] other : mIdentifierToJoined.values()) {
+                queue(connection, NioConnection.header(NioConnection.JOINED, other.length), ByteBuffer.wrap(other));
+            }
+            mIdentifierToJoined.put(identifier, joined);
+            final byte[] header = NioConnection.header(NioConnection.JOINED, joined.length).array();
+            for (final NioConnection other : mConnections) {
+                if (other.attachment != null) queue(other, ByteBuffer.wrap(header), ByteBuffer.wrap(joined));
+            }
+            return;
+        }
+
+        final ByteBuffer sender = (ByteBuffer) connection.attachment;
+        if (sender == null) throw new IOException("Message before HELLO");
+        final byte[] senderBytes = sender.array();
+        if (type == NioConnection.SEND) {
+            final NioConnection recipient = mIdentifierToConnection.get(
+                    ByteBuffer.wrap(NioConnection.getIdentifier(frame)));
+            if (recipient == null) {
+                Logger.w(TAG, "Dropping message to a client that is not connected");
+                return;
+            }
+            queue(recipient, NioConnection.header(NioConnection.DELIVER, senderBytes, frame.remaining()), frame);
+        } else if (type == NioConnection.BROADCAST) {
+            final byte[] header = NioConnection.header(NioConnection.DELIVER, senderBytes, frame.remaining()).array();
+            for (final NioConnection recipient : mIdentifierToConnection.values()) {
+                if (recipient != connection) queue(recipient, ByteBuffer.wrap(header), frame.duplicate());
+            }
+        } else {
+            throw new IOException("Unexpected frame type " + type);
+        }
+    }
+
+    private void queue(final NioConnection connection, final ByteBuffer header, final ByteBuffer payload) {
+        connection.enqueue(header, payload);
+        mDirty.add(connection);
+    }
+
+    private void flushDirty() {
+        for (final NioConnection connection : new ArrayList<>(mDirty)) {
+            if (!connection.key.isValid()) continue;
+            try {
+                final boolean flushed = connection.flush();
+                connection.key.interestOps(flushed ? SelectionKey.OP_READ
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (final IOException exc) {
+                Logger.w(TAG, "Dropping connection: " + exc);
+                disconnect(connection);
+            }
+        }
+        mDirty.clear();
+    }
+
+    private void disconnect(final NioConnection connection) {
+        connection.close();
+        mConnections.remove(connection);
+        mDirty.remove(connection);
+        final Object identifier = connection.attachment;
+        if (identifier != null && mIdentifierToConnection.get(identifier) == connection) {
+            mIdentifierToConnection.remove(identifier);
+        }
+    }
+
+    private void closeAll() {
+        for (final NioConnection connection : mConnections) connection.close();
+        mConnections.clear();
+        try {
+            mServer.close();
+            mSelector.close();
+        } catch (final IOException exc) {
+            Logger.w(TAG, "Failed to close: " + exc);
+        }
+    }
+
+    /**
+     * Runs a relay in the foreground, listening on the port given as the only argument.
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: NioRelay <port>");
+            System.exit(1);
+        }
+        try (NioRelay relay = new NioRelay(new InetSocketAddress(Integer.parseInt(args[0])))) {
+            Logger.i(TAG, "Listening on port " + relay.getPort());
+            relay.run();
+        }
+    }
+}
@@ -3,6 +3,8 @@ package org.trvedata.sgm.communication;
 import org.apache.commons.lang3.tuple.Triple;
 
 import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
 
 public class TotalOrderSimpleNetwork extends SimpleNetwork {
     private boolean isActive = false;
@@ -14,8 +16,15 @@ public class TotalOrderSimpleNetwork extends SimpleNetwork {
      */
     @Override
     public void broadcast(final Client sender, final byte[] message) {
+        broadcast(sender, message, Collections.emptyMap());
+    }
+
+    @Override
+    public void broadcast(final Client sender, final byte[] message, final Map<?, byte[]> tailored) {
         for (Client client : mIdentifierToClient.values()) {
-            if (client != sender) queuedMessages.add(Triple.of(sender, client, message));
+            if (client != sender) {
+                queuedMessages.add(Triple.of(sender, client, tailored.getOrDefault(client.getIdentifier(), message)));
+            }
         }
         if (!isActive) {
             // Prevent recursive calls from reaching this block
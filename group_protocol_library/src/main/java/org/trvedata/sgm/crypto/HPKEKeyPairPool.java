@@ -0,0 +1,161 @@
+package org.trvedata.sgm.crypto;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.trvedata.sgm.misc.Logger;
+import org.trvedata.sgm.misc.Preconditions;
+import org.trvedata.sgm.misc.RandomSource;
+import org.trvedata.sgm.misc.Utils;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of pre-generated HPKE key pairs, which a low-priority background thread tops up whenever the pool
+ * drops below half full.  The pool is a {@link RandomSource} that wraps another one: passed to a protocol in place of
+ * that source, {@link HPKEPublicKey#generateKeyPair(RandomSource)} takes key pairs from the pool, so the fresh key
+ * pairs in each {@link TwoPartyProtocol} message are mostly generated off the sending thread, while all other
+ * randomness comes from the wrapped source.  If the pool is empty, key pairs are generated synchronously as before.
+ * <p>
+ * If the wrapped source is {@link RandomSource#isDeterministic deterministic}, there is no background thread and every
+ * key pair is generated on demand, so that the order of key pairs does not depend on thread scheduling.
+ * <p>
+ * Each key pair is handed out at most once.  Call {@link #close} to stop the background thread.
+ */
+public class HPKEKeyPairPool implements RandomSource, AutoCloseable {
+    private static final int REFILL_BATCH_SIZE = 32;
+
+    private final RandomSource source;
+    private final int refillThreshold;
+    private final ArrayBlockingQueue<Pair<HPKEPublicKey, HPKESecretKey>> keyPairs;
+    private final Thread refillThread;
+    private final Object refillLock = new Object();
+    private volatile boolean closed = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refilledKeyPairs = new AtomicLong();
+    private final AtomicLong refillNanos = new AtomicLong();
+
+    public HPKEKeyPairPool(int capacity) {
+        this(capacity, Utils.getRandomSource());
+    }
+
+    /**
+     * @param capacity The maximum number of pre-generated key pairs.
+     * @param source   The source of the key pairs' randomness and of all other randomness requested from the pool.
+     */
+    public HPKEKeyPairPool(int capacity, RandomSource source) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        Preconditions.checkArgument(source != null, "source must not be null");
+        this.source = source;
+        this.refillThreshold = (capacity + 1) / 2;
+        this.keyPairs = new ArrayBlockingQueue<>(capacity);
+        if (source.isDeterministic()) {
+            this.refillThread = null;
+        } else {
+            this.refillThread = new Thread(this::refillLoop, "HPKEKeyPairPool-refill");
+            this.refillThread.setDaemon(true);
+            this.refillThread.setPriority(Thread.MIN_PRIORITY);
+            this.refillThread.start();
+        }
+    }
+
+    @Override
+    public void nextBytes(byte[] bytes) {
+        source.nextBytes(bytes);
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return source.isDeterministic();
+    }
+
+    /**
+     * Returns a key pair that has not been returned before, from the pool if possible.
+     */
+    public Pair<HPKEPublicKey, HPKESecretKey> take() {
+        Pair<HPKEPublicKey, HPKESecretKey> keyPair = keyPairs.poll();
+        if (keyPair != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            keyPair = HPKEPublicKey.generateKeyPairs(1, source).get(0);
+        }
+        if (refillThread != null && keyPairs.size() < refillThreshold) {
+            synchronized (refillLock) {
+                refillLock.notify();
+            }
+        }
+        return keyPair;
+    }
+
+    public int size() {
+        return keyPairs.size();
+    }
+
+    public Metrics getMetrics() {
+        return new Metrics(hits.get(), misses.get(), refilledKeyPairs.get(), refillNanos.get(), keyPairs.size());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (refillThread != null) refillThread.interrupt();
+        keyPairs.clear();
+    }
+
+    private void refillLoop() {
+        try {
+            while (!closed) {
+                while (!closed && keyPairs.remainingCapacity() > 0) {
+                    long start = System.nanoTime();
+                    int batchSize = Math.min(REFILL_BATCH_SIZE, keyPairs.remainingCapacity());
+                    List<Pair<HPKEPublicKey, HPKESecretKey>> batch = HPKEPublicKey.generateKeyPairs(batchSize, source);
+                    int added = 0;
+                    for (Pair<HPKEPublicKey, HPKESecretKey> keyPair : batch) {
+                        if (keyPairs.offer(keyPair)) added++;
+                    }
+                    refillNanos.addAndGet(System.nanoTime() - start);
+                    refilledKeyPairs.addAndGet(added);
+                }
+                synchronized (refillLock) {
+                    // Re-check under the lock, so that a take() between our last check and wait() is not missed
+                    if (!closed && keyPairs.size() >= refillThreshold) refillLock.wait();
+                }
+            }
+        } catch (InterruptedException exc) {
+            // close() was called
+        } catch (RuntimeException exc) {
+            Logger.w("HPKEKeyPairPool", "Refill thread failed: " + exc);
+        } finally {
+            if (closed) keyPairs.clear();
+        }
+    }
+
+    /**
+     * Counters since the pool was created.  {@code refillNanos} is the time the background thread spent generating
+     * key pairs, so {@code refilledKeyPairs / refillNanos} is its refill rate.
+     */
+    public static class Metrics {
+        public final long hits;
+        public final long misses;
+        public final long refilledKeyPairs;
+        public final long refillNanos;
+        public final int size;
+
+        public Metrics(long hits, long misses, long refilledKeyPairs, long refillNanos, int size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.refilledKeyPairs = refilledKeyPairs;
+            this.refillNanos = refillNanos;
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses + " refilled=" + refilledKeyPairs + " refillMs=" +
+                    (refillNanos / 1_000_000) + " size=" + size;
+        }
+    }
+}
@@ -3,16 +3,23 @@ package org.trvedata.sgm.crypto;
 import djb.Curve25519;
 import org.apache.commons.lang3.tuple.Pair;
 import org.trvedata.sgm.message.HPKEMessage;
+import org.trvedata.sgm.misc.RandomSource;
 import org.trvedata.sgm.misc.Utils;
 
+import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Public key for a hybrid public key encryption scheme, using Diffie-Hellman
  * with Curve 25519 to generate a one-time symmetric key and AES for
  * symmetric encryption.
  */
-public class HPKEPublicKey {
+public class HPKEPublicKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     final byte[] curve25519PublicKey;
 
     public HPKEPublicKey(byte[] serialized) {
@@ -29,7 +36,14 @@ public class HPKEPublicKey {
     }
 
     public byte[] encrypt(byte[] plaintext) {
-        Pair<HPKEPublicKey, HPKESecretKey> ephemeralKeyPair = generateKeyPair();
+        return encrypt(plaintext, Utils.getRandomSource());
+    }
+
+    /**
+     * Like {@link #encrypt(byte[])}, but generates the ephemeral key pair with {@code random}.
+     */
+    public byte[] encrypt(byte[] plaintext, RandomSource random) {
+        Pair<HPKEPublicKey, HPKESecretKey> ephemeralKeyPair = generateKeyPair(random);
         byte[] symmetricKey = dhExchange(ephemeralKeyPair.getRight());
         byte[] symmetricCiphertext = Utils.aeadEncrypt(plaintext, new byte[0], symmetricKey, true);
         return Utils.serialize(new HPKEMessage(ByteBuffer.wrap(ephemeralKeyPair.getLeft().serialize()),
@@ -40,8 +54,41 @@ public class HPKEPublicKey {
         return curve25519PublicKey;
     }
 
+    /**
+     * Returns a fresh key pair.
+     */
     public static Pair<HPKEPublicKey, HPKESecretKey> generateKeyPair() {
-        byte[] secretKey = Utils.getSecureRandomBytes(Curve25519.KEY_SIZE);
+        return generateKeyPair(Utils.getRandomSource());
+    }
+
+    /**
+     * Like {@link #generateKeyPair()}, but generates the key pair with {@code random}, or takes it from {@code random}
+     * if that is an {@link HPKEKeyPairPool}.
+     */
+    public static Pair<HPKEPublicKey, HPKESecretKey> generateKeyPair(RandomSource random) {
+        if (random instanceof HPKEKeyPairPool) return ((HPKEKeyPairPool) random).take();
+        return generateKeyPair(random.nextBytes(Curve25519.KEY_SIZE));
+    }
+
+    public static List<Pair<HPKEPublicKey, HPKESecretKey>> generateKeyPairs(int count) {
+        return generateKeyPairs(count, Utils.getRandomSource());
+    }
+
+    /**
+     * Generates {@code count} key pairs, drawing the randomness for all of them at once.
+     */
+    public static List<Pair<HPKEPublicKey, HPKESecretKey>> generateKeyPairs(int count, RandomSource random) {
+        byte[] randomness = random.nextBytes(count * Curve25519.KEY_SIZE);
+        List<Pair<HPKEPublicKey, HPKESecretKey>> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(generateKeyPair(Arrays.copyOfRange(randomness, i * Curve25519.KEY_SIZE,
+                    (i + 1) * Curve25519.KEY_SIZE)));
+        }
+        Arrays.fill(randomness, (byte) 0);
+        return result;
+    }
+
+    private static Pair<HPKEPublicKey, HPKESecretKey> generateKeyPair(byte[] secretKey) {
         byte[] publicKey = new byte[Curve25519.KEY_SIZE];
         Curve25519.keygen(publicKey, null, secretKey);
         return Pair.of(new HPKEPublicKey(publicKey), new HPKESecretKey(secretKey));
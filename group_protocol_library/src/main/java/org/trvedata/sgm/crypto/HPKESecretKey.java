@@ -5,7 +5,11 @@ import org.apache.thrift.TException;
 import org.trvedata.sgm.message.HPKEMessage;
 import org.trvedata.sgm.misc.Utils;
 
-public class HPKESecretKey {
+import java.io.Serializable;
+
+public class HPKESecretKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     final byte[] curve25519SecretKey;
 
     public HPKESecretKey(byte[] serialized) {
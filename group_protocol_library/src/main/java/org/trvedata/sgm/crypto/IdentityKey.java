@@ -3,22 +3,117 @@ package org.trvedata.sgm.crypto;
 import djb.Curve25519;
 import org.apache.thrift.TException;
 import org.trvedata.sgm.message.SignatureStruct;
+import org.trvedata.sgm.misc.RandomSource;
 import org.trvedata.sgm.misc.Utils;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class IdentityKey implements Comparable<IdentityKey> {
+    // Canonical instances returned by intern, keyed by their bytes.  Entries whose instance has been collected are
+    // expunged by later calls to intern.
+    private static final ConcurrentHashMap<InternKey, InternedReference> INTERNED = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<IdentityKey> COLLECTED = new ReferenceQueue<>();
+    // XOR-ing a big-endian lane with this maps signed byte order to unsigned long order, matching the
+    // (signed) lexicographic order of ByteBuffer.compareTo.
+    private static final long SIGN_BITS = 0x8080808080808080L;
+
     final byte[] curve25519PublicKey;
+    // The key as four big-endian longs, for comparisons, and its (cached) hash code.
+    private final long lane0, lane1, lane2, lane3;
+    private final int hashCode;
 
     public IdentityKey(byte[] serialized) {
         if (serialized.length != Curve25519.KEY_SIZE) {
             throw new IllegalArgumentException("Wrong key length: " + serialized.length);
         }
         this.curve25519PublicKey = serialized;
+        ByteBuffer lanes = ByteBuffer.wrap(serialized);
+        this.lane0 = lanes.getLong(0);
+        this.lane1 = lanes.getLong(8);
+        this.lane2 = lanes.getLong(16);
+        this.lane3 = lanes.getLong(24);
+        this.hashCode = Arrays.hashCode(serialized);
+    }
+
+    /**
+     * Returns the canonical IdentityKey for {@code serialized}, creating it (from a copy of {@code serialized})
+     * if needed.  Keys that are deserialized often, such as message senders, should be obtained this way, so
+     * that map lookups usually succeed on the reference comparison in {@link #equals}.  Interning an already
+     * interned key takes no lock and does not construct a new IdentityKey.
+     */
+    public static IdentityKey intern(byte[] serialized) {
+        expungeCollected();
+        InternedReference existing = INTERNED.get(new InternKey(serialized));
+        IdentityKey canonical = (existing == null) ? null : existing.get();
+        if (canonical != null) return canonical;
+
+        IdentityKey created = new IdentityKey(serialized.clone());
+        InternKey key = new InternKey(created.curve25519PublicKey);
+        InternedReference reference = new InternedReference(created, key);
+        while (true) {
+            existing = INTERNED.putIfAbsent(key, reference);
+            if (existing == null) return created;
+            canonical = existing.get();
+            if (canonical != null) return canonical;
+            // existing's instance was collected but has not been expunged yet
+            if (INTERNED.replace(key, existing, reference)) return created;
+        }
+    }
+
+    private static void expungeCollected() {
+        InternedReference collected;
+        while ((collected = (InternedReference) COLLECTED.poll()) != null) {
+            INTERNED.remove(collected.key, collected);
+        }
+    }
+
+    /**
+     * Wraps serialized key bytes for lookups in {@link #INTERNED}, so that a lookup does not construct an
+     * IdentityKey.
+     */
+    private static final class InternKey {
+        private final byte[] bytes;
+        private final int hashCode;
+
+        InternKey(byte[] bytes) {
+            this.bytes = bytes;
+            this.hashCode = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof InternKey) && Arrays.equals(bytes, ((InternKey) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class InternedReference extends WeakReference<IdentityKey> {
+        private final InternKey key;
+
+        InternedReference(IdentityKey referent, InternKey key) {
+            super(referent, COLLECTED);
+            this.key = key;
+        }
     }
 
     public boolean verify(byte[] plaintext, byte[] signature) {
+        return verify(ByteBuffer.wrap(plaintext), signature);
+    }
+
+    /**
+     * Like {@link #verify(byte[], byte[])}, but verifies the remaining bytes of {@code plaintext} in place.
+     */
+    public boolean verify(ByteBuffer plaintext, byte[] signature) {
         // Curve25519 is undocumented; this usage is based on
         // https://github.com/facebookresearch/asynchronousratchetingtree/blob/master/AsynchronousRatchetingTree/src/main/java/com/facebook/research/asynchronousratchetingtree/crypto/DHPubKey.java
         SignatureStruct deserialized = new SignatureStruct();
@@ -35,19 +130,29 @@ public class IdentityKey implements Comparable<IdentityKey> {
 
     @Override
     public int compareTo(IdentityKey identityKey) {
-        return ByteBuffer.wrap(this.curve25519PublicKey).compareTo(ByteBuffer.wrap(identityKey.curve25519PublicKey));
+        if (lane0 != identityKey.lane0) return Long.compareUnsigned(lane0 ^ SIGN_BITS, identityKey.lane0 ^ SIGN_BITS);
+        if (lane1 != identityKey.lane1) return Long.compareUnsigned(lane1 ^ SIGN_BITS, identityKey.lane1 ^ SIGN_BITS);
+        if (lane2 != identityKey.lane2) return Long.compareUnsigned(lane2 ^ SIGN_BITS, identityKey.lane2 ^ SIGN_BITS);
+        return Long.compareUnsigned(lane3 ^ SIGN_BITS, identityKey.lane3 ^ SIGN_BITS);
     }
 
+    /**
+     * Compares all four lanes without branching on their contents, so the time taken does not depend on
+     * where two keys first differ.
+     */
     @Override
     public boolean equals(Object o) {
-        if (o instanceof IdentityKey)
-            return Arrays.equals(this.curve25519PublicKey, ((IdentityKey) o).curve25519PublicKey);
-        else return false;
+        if (this == o) return true;
+        if (!(o instanceof IdentityKey)) return false;
+        IdentityKey other = (IdentityKey) o;
+        long difference = (lane0 ^ other.lane0) | (lane1 ^ other.lane1) | (lane2 ^ other.lane2) |
+                (lane3 ^ other.lane3);
+        return difference == 0;
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(this.curve25519PublicKey);
+        return hashCode;
     }
 
     public byte[] serialize() {
@@ -59,7 +164,32 @@ public class IdentityKey implements Comparable<IdentityKey> {
     }
 
     public static IdentityKeyPair generateKeyPair() {
-        byte[] secretKey = Utils.getSecureRandomBytes(Curve25519.KEY_SIZE);
+        return generateKeyPair(Utils.getRandomSource());
+    }
+
+    public static IdentityKeyPair generateKeyPair(RandomSource random) {
+        return generateKeyPair(random.nextBytes(Curve25519.KEY_SIZE));
+    }
+
+    public static List<IdentityKeyPair> generateKeyPairs(int count) {
+        return generateKeyPairs(count, Utils.getRandomSource());
+    }
+
+    /**
+     * Generates {@code count} key pairs, drawing the randomness for all of them at once.
+     */
+    public static List<IdentityKeyPair> generateKeyPairs(int count, RandomSource random) {
+        byte[] randomness = random.nextBytes(count * Curve25519.KEY_SIZE);
+        List<IdentityKeyPair> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(generateKeyPair(Arrays.copyOfRange(randomness, i * Curve25519.KEY_SIZE,
+                    (i + 1) * Curve25519.KEY_SIZE)));
+        }
+        Arrays.fill(randomness, (byte) 0);
+        return result;
+    }
+
+    private static IdentityKeyPair generateKeyPair(byte[] secretKey) {
         byte[] signingKey = new byte[Curve25519.KEY_SIZE];
         byte[] publicKey = new byte[Curve25519.KEY_SIZE];
         Curve25519.keygen(publicKey, signingKey, secretKey);
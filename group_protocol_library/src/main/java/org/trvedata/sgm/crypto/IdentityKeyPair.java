@@ -2,11 +2,15 @@ package org.trvedata.sgm.crypto;
 
 import djb.Curve25519;
 import org.trvedata.sgm.message.SignatureStruct;
+import org.trvedata.sgm.misc.RandomSource;
 import org.trvedata.sgm.misc.Utils;
 
+import java.io.Serializable;
 import java.nio.ByteBuffer;
 
-public class IdentityKeyPair {
+public class IdentityKeyPair implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     final byte[] curve25519SecretKey, curve25519SigningKey;
     final IdentityKey publicKey;
 
@@ -17,13 +21,20 @@ public class IdentityKeyPair {
     }
 
     public byte[] sign(byte[] plaintext) {
+        return sign(plaintext, Utils.getRandomSource());
+    }
+
+    /**
+     * Like {@link #sign(byte[])}, but draws the signing nonce from {@code random}.
+     */
+    public byte[] sign(byte[] plaintext, RandomSource random) {
         // Curve25519 is undocumented; this usage is based on
         // https://github.com/facebookresearch/asynchronousratchetingtree/blob/master/AsynchronousRatchetingTree/src/main/java/com/facebook/research/asynchronousratchetingtree/crypto/DHKeyPair.java
         byte[] algOutput = null;
         boolean success = false;
         IdentityKeyPair ephemeralKeyPair = null;
         while (!success) {
-            ephemeralKeyPair = IdentityKey.generateKeyPair();
+            ephemeralKeyPair = IdentityKey.generateKeyPair(random);
             algOutput = new byte[Curve25519.KEY_SIZE];
             success = Curve25519.sign(algOutput, Utils.hash(plaintext, this.publicKey.curve25519PublicKey),
                     ephemeralKeyPair.curve25519SecretKey, this.curve25519SigningKey);
@@ -2,16 +2,23 @@ package org.trvedata.sgm.crypto;
 
 import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
 import org.apache.commons.lang3.tuple.Pair;
+import org.trvedata.sgm.misc.RandomSource;
+import org.trvedata.sgm.misc.Utils;
 
 import java.util.List;
 
 public class InMemoryPreKeySource implements PreKeySource {
     private final ArrayListValuedHashMap<IdentityKey, PreKey> generatedPreKeys = new ArrayListValuedHashMap<>();
 
-    public synchronized PreKeySecret registerUser(IdentityKeyPair identityKeyPair, int numOneTimeKeys) {
-        PreKeySecret preKeySecret = new PreKeySecret(identityKeyPair);
+    public PreKeySecret registerUser(IdentityKeyPair identityKeyPair, int numOneTimeKeys) {
+        return registerUser(identityKeyPair, numOneTimeKeys, Utils.getRandomSource());
+    }
+
+    public synchronized PreKeySecret registerUser(IdentityKeyPair identityKeyPair, int numOneTimeKeys,
+                                                  RandomSource random) {
+        PreKeySecret preKeySecret = new PreKeySecret(identityKeyPair, random);
         for (int i = 0; i < numOneTimeKeys; i++) {
-            Pair<PreKeySecret, PreKey> preKeyPair = preKeySecret.generatePreKey();
+            Pair<PreKeySecret, PreKey> preKeyPair = preKeySecret.generatePreKey(random);
             preKeySecret = preKeyPair.getLeft();
             generatedPreKeys.put(identityKeyPair.publicKey, preKeyPair.getRight());
         }
@@ -0,0 +1,124 @@
+package org.trvedata.sgm.crypto;
+
+import org.trvedata.sgm.misc.Utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merkle hash tree over a list of byte strings, used to sign a commitment to many per-recipient ciphertexts once
+ * while sending each recipient only its own ciphertext and a logarithmic-size inclusion proof.
+ * <p>
+ * Each level pairs up adjacent nodes and promotes an unpaired last node unchanged, which gives the same tree shape as
+ * RFC 6962.  Leaves are hashed as H(leaf || 0) and inner nodes as H(left || right || 1), so that a leaf can never be
+ * passed off as an inner node.  The root of the empty list is H(2).
+ */
+public final class MerkleTree {
+    private static final byte[] LEAF = {0};
+    private static final byte[] NODE = {1};
+    private static final byte[] EMPTY = {2};
+
+    private final ArrayList<byte[][]> levels = new ArrayList<>(); // leaf hashes first, root last
+
+    public MerkleTree(final List<ByteBuffer> leaves) {
+        byte[][] level = new byte[leaves.size()][];
+        for (int i = 0; i < level.length; i++) level[i] = hashLeaf(leaves.get(i));
+        levels.add(level);
+        while (level.length > 1) {
+            final byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = (2 * i + 1 < level.length) ? hashNode(level[2 * i], level[2 * i + 1]) : level[2 * i];
+            }
+            levels.add(parents);
+            level = parents;
+        }
+    }
+
+    public int size() {
+        return levels.get(0).length;
+    }
+
+    public byte[] getRoot() {
+        final byte[][] top = levels.get(levels.size() - 1);
+        return (top.length == 0) ? Utils.hash(EMPTY) : top[0];
+    }
+
+    /**
+     * Returns the siblings of the path from the index-th leaf to the root, bottom up.
+     */
+    public List<ByteBuffer> getProof(int index) {
+        if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("No leaf " + index);
+        final ArrayList<ByteBuffer> proof = new ArrayList<>();
+        for (int depth = 0; depth < levels.size() - 1; depth++) {
+            final byte[][] level = levels.get(depth);
+            final int sibling = index ^ 1;
+            if (sibling < level.length) proof.add(ByteBuffer.wrap(level[sibling]));
+            index /= 2;
+        }
+        return proof;
+    }
+
+    /**
+     * Returns whether proof (from {@link #getProof}) shows that leaf is the index-th of size leaves with the given
+     * root.
+     */
+    public static boolean verify(final byte[] root, final int size, int index, final ByteBuffer leaf,
+                                 final List<ByteBuffer> proof) {
+        if (index < 0 || index >= size) return false;
+        byte[] node = hashLeaf(leaf);
+        int next = 0;
+        for (int width = size; width > 1; width = (width + 1) / 2) {
+            if ((index & 1) == 1) {
+                if (next == proof.size()) return false;
+                node = hashNode(Utils.asArray(proof.get(next++)), node);
+            } else if (index + 1 < width) {
+                if (next == proof.size()) return false;
+                node = hashNode(node, Utils.asArray(proof.get(next++)));
+            }
+            index /= 2;
+        }
+        return next == proof.size() && MessageDigest.isEqual(node, root);
+    }
+
+    /**
+     * Computes the same root as {@link MerkleTree} for leaves added one at a time, keeping only one hash per level
+     * rather than the leaves or the whole tree, so a long list can be checked while it is being read.
+     */
+    public static final class RootBuilder {
+        private final ArrayList<byte[]> subtrees = new ArrayList<>(); // roots of perfect subtrees, largest first
+        private int size = 0;
+
+        public RootBuilder add(final ByteBuffer leaf) {
+            byte[] node = hashLeaf(leaf);
+            // Merge equal-size subtrees, like the carries when incrementing size in binary
+            for (int carry = size; (carry & 1) == 1; carry >>>= 1) {
+                node = hashNode(subtrees.remove(subtrees.size() - 1), node);
+            }
+            subtrees.add(node);
+            size++;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public byte[] getRoot() {
+            if (size == 0) return Utils.hash(EMPTY);
+            // Promoting unpaired nodes makes each smaller subtree the right child of the larger ones to its left
+            byte[] node = subtrees.get(subtrees.size() - 1);
+            for (int i = subtrees.size() - 2; i >= 0; i--) node = hashNode(subtrees.get(i), node);
+            return node;
+        }
+    }
+
+    static byte[] hashLeaf(final ByteBuffer leaf) {
+        return Utils.hash(leaf, LEAF);
+    }
+
+    static byte[] hashNode(final byte[] left, final byte[] right) {
+        return Utils.hash(left, right, NODE);
+    }
+}
@@ -5,11 +5,16 @@ import org.apache.thrift.TException;
 import org.pcollections.HashPMap;
 import org.pcollections.HashTreePMap;
 import org.trvedata.sgm.message.PreKeyCiphertext;
+import org.trvedata.sgm.misc.RandomSource;
 import org.trvedata.sgm.misc.Utils;
 
+import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class PreKeySecret implements Serializable {
+    private static final long serialVersionUID = 1L;
 
-public class PreKeySecret {
     private final IdentityKeyPair identityKeyPair;
     private final HPKEPublicKey signedPreKey;
     private final HPKESecretKey signedPreKeySecret;
@@ -18,11 +23,15 @@ public class PreKeySecret {
     private final int nextId;
 
     public PreKeySecret(IdentityKeyPair identityKeyPair) {
+        this(identityKeyPair, Utils.getRandomSource());
+    }
+
+    public PreKeySecret(IdentityKeyPair identityKeyPair, RandomSource random) {
         this.identityKeyPair = identityKeyPair;
-        Pair<HPKEPublicKey, HPKESecretKey> signedPair = HPKEPublicKey.generateKeyPair();
+        Pair<HPKEPublicKey, HPKESecretKey> signedPair = HPKEPublicKey.generateKeyPair(random);
         this.signedPreKey = signedPair.getLeft();
         this.signedPreKeySecret = signedPair.getRight();
-        this.signedPreKeySig = this.identityKeyPair.sign(this.signedPreKey.serialize());
+        this.signedPreKeySig = this.identityKeyPair.sign(this.signedPreKey.serialize(), random);
         this.oneTimeKeySecrets = HashTreePMap.empty();
         this.nextId = 0;
     }
@@ -37,7 +46,11 @@ public class PreKeySecret {
     }
 
     public Pair<PreKeySecret, PreKey> generatePreKey() {
-        Pair<HPKEPublicKey, HPKESecretKey> oneTimePair = HPKEPublicKey.generateKeyPair();
+        return generatePreKey(Utils.getRandomSource());
+    }
+
+    public Pair<PreKeySecret, PreKey> generatePreKey(RandomSource random) {
+        Pair<HPKEPublicKey, HPKESecretKey> oneTimePair = HPKEPublicKey.generateKeyPair(random);
         return Pair.of(
                 new PreKeySecret(this, this.oneTimeKeySecrets.plus(this.nextId, oneTimePair.getRight()), this.nextId + 1),
                 new PreKey(this.identityKeyPair.publicKey, this.signedPreKey, this.signedPreKeySig,
@@ -46,41 +59,70 @@ public class PreKeySecret {
     }
 
     public byte[] encrypt(byte[] plaintext, PreKey recipientPreKey) {
+        return encrypt(plaintext, recipientPreKey, Utils.getRandomSource());
+    }
+
+    public byte[] encrypt(byte[] plaintext, PreKey recipientPreKey, RandomSource random) {
+        return initiateHandshake(recipientPreKey, random).encrypt(plaintext, null);
+    }
+
+    /**
+     * Performs the sender's side of X3DH with recipientPreKey, returning a {@link Handshake} that can encrypt one
+     * message for the recipient, or several if they are salted.
+     */
+    /* package */ Handshake initiateHandshake(PreKey recipientPreKey, RandomSource random) {
         // Uses X3DH as specified in
         // https://www.signal.org/docs/specifications/x3dh/#the-x3dh-protocol
         if (!recipientPreKey.identityKey.verify(recipientPreKey.signedPreKey.serialize(), recipientPreKey.signedPreKeySig)) {
             throw new IllegalArgumentException("Signed prekey verification failed");
         }
-        Pair<HPKEPublicKey, HPKESecretKey> ephemeralKeyPair = HPKEPublicKey.generateKeyPair();
+        Pair<HPKEPublicKey, HPKESecretKey> ephemeralKeyPair = HPKEPublicKey.generateKeyPair(random);
         byte[] dh1 = recipientPreKey.signedPreKey.dhExchange(this.identityKeyPair.asHpkeSecretKey());
         byte[] dh2 = recipientPreKey.identityKey.asHpkeKey().dhExchange(ephemeralKeyPair.getRight());
         byte[] dh3 = recipientPreKey.signedPreKey.dhExchange(ephemeralKeyPair.getRight());
         byte[] dh4 = recipientPreKey.oneTimeKey.dhExchange(ephemeralKeyPair.getRight());
         byte[] sk = Utils.hash(dh1, dh2, dh3, dh4);
         byte[] ad = Utils.concat(this.identityKeyPair.publicKey.serialize(), recipientPreKey.identityKey.serialize());
-        return Utils.serialize(new PreKeyCiphertext(
-                ByteBuffer.wrap(ephemeralKeyPair.getLeft().serialize()),
-                recipientPreKey.id,
-                ByteBuffer.wrap(Utils.aeadEncrypt(plaintext, ad, sk, false))
-        ));
+        return new Handshake(ephemeralKeyPair.getLeft().serialize(), recipientPreKey.id, sk, ad);
     }
 
     public Pair<PreKeySecret, byte[]> decrypt(byte[] ciphertext, IdentityKey sender) {
+        return decrypt(ciphertext, sender, null);
+    }
+
+    /**
+     * Like {@link #decrypt(byte[], IdentityKey)}, but if sessionStore is non-null, looks up the X3DH secret there
+     * before computing it, and caches it there afterwards.
+     */
+    /* package */ Pair<PreKeySecret, byte[]> decrypt(byte[] ciphertext, IdentityKey sender,
+                                                     TwoPartySessionStore sessionStore) {
         // Uses X3DH as specified in
         // https://www.signal.org/docs/specifications/x3dh/#the-x3dh-protocol
         try {
             PreKeyCiphertext deserialized = new PreKeyCiphertext();
             Utils.deserialize(deserialized, ciphertext);
-            HPKEPublicKey ephemeralPublicKey = new HPKEPublicKey(deserialized.getEphemeralKey());
-            HPKESecretKey oneTimeKey = this.oneTimeKeySecrets.get(deserialized.getPreKeyId());
-            if (oneTimeKey == null) return null;
-            byte[] dh1 = sender.asHpkeKey().dhExchange(this.signedPreKeySecret);
-            byte[] dh2 = ephemeralPublicKey.dhExchange(this.identityKeyPair.asHpkeSecretKey());
-            byte[] dh3 = ephemeralPublicKey.dhExchange(this.signedPreKeySecret);
-            byte[] dh4 = ephemeralPublicKey.dhExchange(oneTimeKey);
-            byte[] sk = Utils.hash(dh1, dh2, dh3, dh4);
+            byte[] ephemeralKey = deserialized.getEphemeralKey();
+            byte[] sk = (sessionStore == null) ? null :
+                    sessionStore.getIncomingSecret(sender, ephemeralKey, deserialized.getPreKeyId());
+            if (sk == null) {
+                HPKEPublicKey ephemeralPublicKey = new HPKEPublicKey(ephemeralKey);
+                HPKESecretKey oneTimeKey = this.oneTimeKeySecrets.get(deserialized.getPreKeyId());
+                if (oneTimeKey == null) return null;
+                byte[] dh1 = sender.asHpkeKey().dhExchange(this.signedPreKeySecret);
+                byte[] dh2 = ephemeralPublicKey.dhExchange(this.identityKeyPair.asHpkeSecretKey());
+                byte[] dh3 = ephemeralPublicKey.dhExchange(this.signedPreKeySecret);
+                byte[] dh4 = ephemeralPublicKey.dhExchange(oneTimeKey);
+                sk = Utils.hash(dh1, dh2, dh3, dh4);
+            }
             byte[] ad = Utils.concat(sender.serialize(), this.identityKeyPair.publicKey.serialize());
-            byte[] plaintext = Utils.aeadDecrypt(deserialized.getCiphertext(), sk, ad);
+            byte[] key = deserialized.isSetSalt() ? Utils.hash(sk, deserialized.getSalt()) : sk;
+            byte[] plaintext = Utils.aeadDecrypt(deserialized.getCiphertext(), key, ad);
+            // Only cache secrets that decrypted something, so forged ciphertexts cannot fill the cache
+            if (plaintext != null && sessionStore != null) {
+                sessionStore.putIncomingSecret(sender, ephemeralKey, deserialized.getPreKeyId(), sk);
+            }
+            // The store keeps its own copy
+            Arrays.fill(sk, (byte) 0);
             if (plaintext != null) {
                 return Pair.of(
                         new PreKeySecret(this, this.oneTimeKeySecrets.minus(deserialized.getPreKeyId()), this.nextId),
@@ -91,4 +133,57 @@ public class PreKeySecret {
             return null;
         }
     }
+
+    /**
+     * The sender's result of an X3DH handshake: the shared secret and what the recipient needs to derive it.
+     */
+    /* package */ static final class Handshake {
+        private final byte[] ephemeralPublicKey;
+        private final int preKeyId;
+        private final byte[] sk;
+        private final byte[] ad;
+
+        private Handshake(byte[] ephemeralPublicKey, int preKeyId, byte[] sk, byte[] ad) {
+            this.ephemeralPublicKey = ephemeralPublicKey;
+            this.preKeyId = preKeyId;
+            this.sk = sk;
+            this.ad = ad;
+        }
+
+        /**
+         * If salt is null, the message is encrypted under the X3DH secret itself, so the handshake must not be
+         * used again.  Otherwise it is encrypted under the hash of the secret and salt, which must be fresh.
+         */
+        /* package */ byte[] encrypt(byte[] plaintext, byte[] salt) {
+            return encrypt(plaintext, salt, (salt == null) ? sk : messageKey(salt));
+        }
+
+        /**
+         * Returns the key that {@link #encrypt(byte[], byte[])} uses with a non-null salt.
+         */
+        /* package */ byte[] messageKey(byte[] salt) {
+            return Utils.hash(sk, salt);
+        }
+
+        /**
+         * Like {@link #encrypt(byte[], byte[])}, but with the key from {@link #messageKey}, so that the secret need
+         * not be readable any more.
+         */
+        /* package */ byte[] encrypt(byte[] plaintext, byte[] salt, byte[] key) {
+            PreKeyCiphertext ciphertext = new PreKeyCiphertext(
+                    ByteBuffer.wrap(ephemeralPublicKey),
+                    preKeyId,
+                    ByteBuffer.wrap(Utils.aeadEncrypt(plaintext, ad, key, false))
+            );
+            if (salt != null) ciphertext.setSalt(salt);
+            return Utils.serialize(ciphertext);
+        }
+
+        /**
+         * Overwrites the secret, after which the handshake cannot encrypt any more.
+         */
+        /* package */ void erase() {
+            Arrays.fill(sk, (byte) 0);
+        }
+    }
 }
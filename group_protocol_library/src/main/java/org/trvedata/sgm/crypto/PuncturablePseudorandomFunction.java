@@ -5,6 +5,7 @@ import org.pcollections.HashPMap;
 import org.pcollections.HashTreePMap;
 import org.trvedata.sgm.misc.Utils;
 
+import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 
@@ -15,7 +16,8 @@ import java.util.HashMap;
  * by Nimrod Aviram, Kai Gellert, and Tibor Jager.
  * Immutable implementation.
  */
-public class PuncturablePseudorandomFunction {
+public class PuncturablePseudorandomFunction implements Serializable {
+    private static final long serialVersionUID = 1L;
 
     private final HashPMap<ByteBuffer, byte[]> values;
 
@@ -44,6 +46,13 @@ public class PuncturablePseudorandomFunction {
         return Pair.of(new PuncturablePseudorandomFunction(values.minus(ByteBuffer.wrap(input))), output);
     }
 
+    /**
+     * Returns true if input has a value that has not yet been deleted.
+     */
+    public boolean contains(final byte[] input) {
+        return values.containsKey(ByteBuffer.wrap(input));
+    }
+
     /**
      * Returns true if there are no undeleted values left.
      */
@@ -6,17 +6,22 @@ import org.pcollections.HashPMap;
 import org.pcollections.HashTreePMap;
 import org.trvedata.sgm.message.TwoPartyMessage;
 import org.trvedata.sgm.message.TwoPartyPlaintext;
+import org.trvedata.sgm.misc.RandomSource;
 import org.trvedata.sgm.misc.Utils;
 
+import java.io.Serializable;
 import java.nio.ByteBuffer;
 
 
 /**
  * Persistent implementation of the 2SM scheme from our paper.
  */
-public class TwoPartyProtocol {
+public class TwoPartyProtocol implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private final PreKeySecret preKeySecret;
     private final PreKeySource preKeySource;
+    private final TwoPartySessionStore sessionStore; // may be null
     private final IdentityKey peer;
     private final HashPMap<Integer, HPKESecretKey> mySks;
     // minIndex is the minimum index present in mySks, or nextIndex if there are no keys present
@@ -31,15 +36,26 @@ public class TwoPartyProtocol {
      * the initial message(s) involving prekeys.
      */
     public TwoPartyProtocol(PreKeySecret preKeySecret, PreKeySource preKeySource, IdentityKey peer) {
-        this(preKeySecret, preKeySource, peer, HashTreePMap.empty(), 1, 1, null, false, 0, null);
+        this(preKeySecret, preKeySource, null, peer);
+    }
+
+    /**
+     * Like {@link #TwoPartyProtocol(PreKeySecret, PreKeySource, IdentityKey)}, but if sessionStore is non-null, the
+     * initial message(s) involving prekeys reuse the X3DH handshakes cached there.
+     */
+    public TwoPartyProtocol(PreKeySecret preKeySecret, PreKeySource preKeySource, TwoPartySessionStore sessionStore,
+                            IdentityKey peer) {
+        this(preKeySecret, preKeySource, sessionStore, peer, HashTreePMap.empty(), 1, 1, null, false, 0, null);
     }
 
-    private TwoPartyProtocol(PreKeySecret preKeySecret, PreKeySource preKeySource, IdentityKey peer,
+    private TwoPartyProtocol(PreKeySecret preKeySecret, PreKeySource preKeySource, TwoPartySessionStore sessionStore,
+                             IdentityKey peer,
                              HashPMap<Integer, HPKESecretKey> mySks,
                              int minIndex, int nextIndex, HPKEPublicKey otherPk, boolean amIOtherPkSender,
                              int otherPkIndex, HPKESecretKey receivedSk) {
         this.preKeySecret = preKeySecret;
         this.preKeySource = preKeySource;
+        this.sessionStore = sessionStore;
         this.peer = peer;
         this.mySks = mySks;
         this.minIndex = minIndex;
@@ -54,19 +70,32 @@ public class TwoPartyProtocol {
      * Returns the encryption of plaintext.
      */
     public Pair<TwoPartyProtocol, byte[]> encrypt(byte[] plaintext) {
-        Pair<HPKEPublicKey, HPKESecretKey> myNewKeyPair = HPKEPublicKey.generateKeyPair();
-        Pair<HPKEPublicKey, HPKESecretKey> otherNewKeyPair = HPKEPublicKey.generateKeyPair();
+        return encrypt(plaintext, Utils.getRandomSource());
+    }
+
+    /**
+     * Like {@link #encrypt(byte[])}, but generates the new keys with {@code random}.
+     */
+    public Pair<TwoPartyProtocol, byte[]> encrypt(byte[] plaintext, RandomSource random) {
+        Pair<HPKEPublicKey, HPKESecretKey> myNewKeyPair = HPKEPublicKey.generateKeyPair(random);
+        Pair<HPKEPublicKey, HPKESecretKey> otherNewKeyPair = HPKEPublicKey.generateKeyPair(random);
         byte[] twoPartyPlaintext = Utils.serialize(new TwoPartyPlaintext(
                 ByteBuffer.wrap(plaintext), ByteBuffer.wrap(otherNewKeyPair.getRight().serialize()),
                 this.nextIndex, ByteBuffer.wrap(myNewKeyPair.getLeft().serialize())));
         byte[] ciphertext;
         if (this.otherPk == null) {
             // We don't yet have an HPKE public key for other; use prekeys.
-            ciphertext = this.preKeySecret.encrypt(twoPartyPlaintext, this.preKeySource.getPreKey(this.peer));
-        } else ciphertext = this.otherPk.encrypt(twoPartyPlaintext);
+            if (this.sessionStore != null) {
+                ciphertext = this.sessionStore.encrypt(this.preKeySecret, this.preKeySource, this.peer,
+                        twoPartyPlaintext, random);
+            } else {
+                ciphertext = this.preKeySecret.encrypt(twoPartyPlaintext, this.preKeySource.getPreKey(this.peer),
+                        random);
+            }
+        } else ciphertext = this.otherPk.encrypt(twoPartyPlaintext, random);
         TwoPartyMessage message = new TwoPartyMessage(ByteBuffer.wrap(ciphertext),
                 this.amIOtherPkSender, this.otherPkIndex);
-        return Pair.of(new TwoPartyProtocol(this.preKeySecret, this.preKeySource, this.peer,
+        return Pair.of(new TwoPartyProtocol(this.preKeySecret, this.preKeySource, this.sessionStore, this.peer,
                         this.mySks.plus(this.nextIndex, myNewKeyPair.getRight()), this.minIndex,
                         this.nextIndex + 1, otherNewKeyPair.getLeft(), true,
                         -1, this.receivedSk),
@@ -95,7 +124,8 @@ public class TwoPartyProtocol {
         } else {
             if (message.getReceiverPkIndex() == 0) {
                 // Our public key with index 0 is our prekey.
-                Pair<PreKeySecret, byte[]> result = this.preKeySecret.decrypt(message.getCiphertext(), this.peer);
+                Pair<PreKeySecret, byte[]> result = this.preKeySecret.decrypt(message.getCiphertext(), this.peer,
+                        this.sessionStore);
                 if (result == null) return null;
                 plaintext = result.getRight();
                 if (plaintext == null) return null;
@@ -118,7 +148,7 @@ public class TwoPartyProtocol {
         } catch (TException exc) {
             return null;
         }
-        return Pair.of(new TwoPartyProtocol(null, null, null, newMySks, newMinIndex, this.nextIndex,
+        return Pair.of(new TwoPartyProtocol(null, null, null, null, newMySks, newMinIndex, this.nextIndex,
                         new HPKEPublicKey(twoPartyPlaintext.getSenderNewPk()), false,
                         twoPartyPlaintext.getSenderNewPkIndex(),
                         new HPKESecretKey(twoPartyPlaintext.getReceiverNewSk())),
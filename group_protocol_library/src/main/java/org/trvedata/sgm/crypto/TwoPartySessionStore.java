@@ -0,0 +1,210 @@
+package org.trvedata.sgm.crypto;
+
+import org.trvedata.sgm.misc.Constants;
+import org.trvedata.sgm.misc.Preconditions;
+import org.trvedata.sgm.misc.RandomSource;
+import org.trvedata.sgm.misc.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Per-user cache of X3DH handshakes with peers, shared by the {@link TwoPartyProtocol} sessions in all of the user's
+ * groups.  Without it, every group's session with a peer starts with its own X3DH handshake, consuming one of the
+ * peer's one-time prekeys; with it, the first session with a peer does the handshake and later sessions (in other
+ * groups) reuse its secret, salted per message.  The recipient caches the secret as well, so it also computes the
+ * handshake only once.
+ * <p>
+ * Only the prekey bootstrap is shared, not the sessions themselves: a {@link TwoPartyProtocol} session must decrypt
+ * messages in the order they were encrypted, which holds within a group but not across groups.  Since each message
+ * carries the full handshake, the recipient can decrypt it regardless of the order in which groups deliver messages.
+ * <p>
+ * This weakens forward secrecy: a cached secret decrypts the initial message of every session that used it, so
+ * compromising the user while a secret is cached exposes those messages, not just one.  To bound the exposure, a
+ * secret is used for at most {@code maxUses} messages and at most {@code maxAgeMillis} after the handshake, after
+ * which the next message does a new handshake.  The recipient keeps secrets for twice as long and twice as many
+ * messages, so that messages delivered late or twice still decrypt without the one-time prekey, which its state may
+ * have dropped.  Both directions are
+ * also bounded by {@code capacity} peers each, evicting the least recently used.  Secrets are overwritten when they
+ * are evicted for any of these reasons.  Evicting a peer only costs a new handshake the next time a group contacts
+ * it.  Thread-safe.
+ */
+public class TwoPartySessionStore {
+    public static final int DEFAULT_MAX_USES = 100;
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final int capacity;
+    private final int maxUses;
+    private final long maxAgeNanos;
+    private final LinkedHashMap<IdentityKey, Cached<PreKeySecret.Handshake>> outgoing; // guarded by this
+    private final LinkedHashMap<ByteBuffer, Cached<byte[]>> incoming; // guarded by this
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong reusedHandshakes = new AtomicLong();
+
+    public TwoPartySessionStore(int capacity) {
+        this(capacity, DEFAULT_MAX_USES, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param capacity     The maximum number of peers cached in each direction.
+     * @param maxUses      The maximum number of messages encrypted (or decrypted) with one cached secret.
+     * @param maxAgeMillis The maximum time after a handshake that its secret is used to encrypt.
+     */
+    public TwoPartySessionStore(int capacity, int maxUses, long maxAgeMillis) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        Preconditions.checkArgument(maxUses > 0, "maxUses must be positive");
+        Preconditions.checkArgument(maxAgeMillis > 0, "maxAgeMillis must be positive");
+        this.capacity = capacity;
+        this.maxUses = maxUses;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+        this.outgoing = lruMap(PreKeySecret.Handshake::erase);
+        this.incoming = lruMap(sk -> Arrays.fill(sk, (byte) 0));
+    }
+
+    private <K, V> LinkedHashMap<K, Cached<V>> lruMap(Consumer<V> eraser) {
+        return new LinkedHashMap<K, Cached<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Cached<V>> eldest) {
+                if (size() <= capacity) return false;
+                eraser.accept(eldest.getValue().secret);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Encrypts plaintext for peer using the cached handshake with peer, doing a new handshake (with a prekey from
+     * preKeySource) if there is none or it is used up.  The handshake's ephemeral key and the message's salt come
+     * from random.
+     */
+    /* package */ byte[] encrypt(PreKeySecret preKeySecret, PreKeySource preKeySource, IdentityKey peer,
+                                 byte[] plaintext, RandomSource random) {
+        byte[] salt = random.nextBytes(Constants.KEY_SIZE_BYTES);
+        PreKeySecret.Handshake handshake;
+        byte[] key;
+        synchronized (this) {
+            Cached<PreKeySecret.Handshake> cached = take(outgoing, peer, PreKeySecret.Handshake::erase);
+            handshake = (cached == null) ? null : cached.secret;
+            // Derived under the lock, since the secret is erased once another thread uses it up
+            key = (handshake == null) ? null : handshake.messageKey(salt);
+        }
+        if (handshake == null) {
+            // Done outside the lock; if two groups race, both handshakes are valid and the later one is kept
+            handshake = preKeySecret.initiateHandshake(preKeySource.getPreKey(peer), random);
+            handshakes.incrementAndGet();
+            key = handshake.messageKey(salt);
+            synchronized (this) {
+                expire(outgoing, PreKeySecret.Handshake::erase);
+                Cached<PreKeySecret.Handshake> replaced = outgoing.put(peer, new Cached<>(handshake,
+                        System.nanoTime() + maxAgeNanos, maxUses - 1));
+                if (replaced != null) replaced.secret.erase();
+            }
+        } else reusedHandshakes.incrementAndGet();
+        return handshake.encrypt(plaintext, salt, key);
+    }
+
+    /**
+     * Returns a copy of the secret cached for the given handshake, which the caller should overwrite after use, or
+     * null if there is none.
+     */
+    /* package */ synchronized byte[] getIncomingSecret(IdentityKey sender, byte[] ephemeralKey, int preKeyId) {
+        ByteBuffer key = incomingKey(sender, ephemeralKey, preKeyId);
+        Cached<byte[]> cached = incoming.get(key);
+        if (cached == null) return null;
+        if (cached.expiresAtNanos - System.nanoTime() < 0) {
+            incoming.remove(key);
+            Arrays.fill(cached.secret, (byte) 0);
+            return null;
+        }
+        return cached.secret.clone();
+    }
+
+    /**
+     * Records that the given handshake's secret decrypted a message, caching a copy of {@code sk} if it is not
+     * cached yet.
+     */
+    /* package */ synchronized void putIncomingSecret(IdentityKey sender, byte[] ephemeralKey, int preKeyId,
+                                                      byte[] sk) {
+        ByteBuffer key = incomingKey(sender, ephemeralKey, preKeyId);
+        Cached<byte[]> cached = incoming.get(key);
+        if (cached == null) {
+            expire(incoming, secret -> Arrays.fill(secret, (byte) 0));
+            cached = new Cached<>(sk.clone(), System.nanoTime() + 2 * maxAgeNanos, 2 * maxUses);
+            incoming.put(key, cached);
+        }
+        if (--cached.remainingUses <= 0) {
+            incoming.remove(key);
+            Arrays.fill(cached.secret, (byte) 0);
+        }
+    }
+
+    private static ByteBuffer incomingKey(IdentityKey sender, byte[] ephemeralKey, int preKeyId) {
+        return ByteBuffer.wrap(Utils.concat(sender.serialize(), ephemeralKey,
+                ByteBuffer.allocate(Integer.BYTES).putInt(preKeyId).array()));
+    }
+
+    /**
+     * Returns the entry for key and counts a use of it, or returns null (erasing the entry) if it has expired or is
+     * used up.  Must hold the lock.
+     */
+    private <K, V> Cached<V> take(LinkedHashMap<K, Cached<V>> map, K key, Consumer<V> eraser) {
+        Cached<V> cached = map.get(key);
+        if (cached == null) return null;
+        if (cached.remainingUses <= 0 || cached.expiresAtNanos - System.nanoTime() < 0) {
+            map.remove(key);
+            eraser.accept(cached.secret);
+            return null;
+        }
+        cached.remainingUses--;
+        return cached;
+    }
+
+    /**
+     * Removes and erases all expired entries, so that secrets of peers that are no longer contacted do not outlive
+     * their age limit by long.  Must hold the lock.
+     */
+    private <K, V> void expire(LinkedHashMap<K, Cached<V>> map, Consumer<V> eraser) {
+        long now = System.nanoTime();
+        Iterator<Cached<V>> iterator = map.values().iterator();
+        while (iterator.hasNext()) {
+            Cached<V> cached = iterator.next();
+            if (cached.expiresAtNanos - now < 0) {
+                iterator.remove();
+                eraser.accept(cached.secret);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of X3DH handshakes initiated through this store, i.e., the number of prekeys consumed.
+     */
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /**
+     * Returns the number of initial messages that reused a cached handshake instead of consuming a prekey.
+     */
+    public long getReusedHandshakeCount() {
+        return reusedHandshakes.get();
+    }
+
+    private static final class Cached<V> {
+        final V secret;
+        final long expiresAtNanos;
+        int remainingUses; // guarded by the store
+
+        Cached(V secret, long expiresAtNanos, int remainingUses) {
+            this.secret = secret;
+            this.expiresAtNanos = expiresAtNanos;
+            this.remainingUses = remainingUses;
+        }
+    }
+}
@@ -2,27 +2,33 @@ package org.trvedata.sgm.message;
 
 import org.trvedata.sgm.crypto.IdentityKey;
 
-public final class MessageId {
+import java.io.Serializable;
+
+public final class MessageId implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public final IdentityKey author;
     public final int number;
+    private final int hashCode;
 
     public MessageId(IdentityKey author, int number) {
         this.author = author;
         this.number = number;
+        int hashCode = 1;
+        hashCode = hashCode * 8191 + author.hashCode();
+        hashCode = hashCode * 8191 + number;
+        this.hashCode = hashCode;
     }
 
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof MessageId)) return false;
         MessageId other = (MessageId) o;
-        return (author.equals(other.author) && (number == other.number));
+        return (number == other.number && hashCode == other.hashCode && author.equals(other.author));
     }
 
     @Override
     public int hashCode() {
-        int hashCode = 1;
-        hashCode = hashCode * 8191 + author.hashCode();
-        hashCode = hashCode * 8191 + number;
         return hashCode;
     }
 
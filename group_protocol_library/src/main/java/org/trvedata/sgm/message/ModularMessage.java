@@ -4,11 +4,15 @@ import org.apache.thrift.TException;
 import org.trvedata.sgm.Orderer;
 import org.trvedata.sgm.SignatureProtocol;
 import org.trvedata.sgm.misc.ByteHolder;
+import org.trvedata.sgm.misc.StructView;
 import org.trvedata.sgm.misc.Utils;
 
+import java.io.Serializable;
 import java.nio.ByteBuffer;
 
-public class ModularMessage {
+public class ModularMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public final boolean isDcgka;
     public final boolean isWelcome;
     public final byte[] content; // DcgkaProtocol.ControlMessage or application ciphertext
@@ -28,17 +32,19 @@ public class ModularMessage {
     }
 
     public ModularMessage(Serialized serialized) {
-        ModularMessageStruct struct = new ModularMessageStruct();
+        // Read the fields straight out of the (usually view-backed) serialized message, copying each one once.
         try {
-            Utils.deserialize(struct, serialized.getBytes());
+            StructView struct = StructView.of(serialized.getView(), ModularMessageStruct._Fields.DCGKA,
+                    ModularMessageStruct._Fields.WELCOME, ModularMessageStruct._Fields.CONTENT);
+            this.isDcgka = struct.getBool(ModularMessageStruct._Fields.DCGKA);
+            this.isWelcome = struct.getBool(ModularMessageStruct._Fields.WELCOME);
+            this.content = struct.getBinaryCopy(ModularMessageStruct._Fields.CONTENT);
+            this.orderInfo = Orderer.OrderInfo.of(struct.getBinaryCopy(ModularMessageStruct._Fields.ORDER_INFO));
+            this.signatureUpdate = SignatureProtocol.Update.of(
+                    struct.getBinaryCopy(ModularMessageStruct._Fields.SIGNATURE_UPDATE));
         } catch (TException exc) {
             throw new IllegalArgumentException("Failed to deserialize ModularMessageStruct", exc);
         }
-        this.isDcgka = struct.isDcgka();
-        this.isWelcome = struct.isWelcome();
-        this.content = struct.getContent();
-        this.orderInfo = Orderer.OrderInfo.of(struct.getOrderInfo());
-        this.signatureUpdate = SignatureProtocol.Update.of(struct.getSignatureUpdate());
     }
 
     public Serialized serialize() {
@@ -55,12 +61,25 @@ public class ModularMessage {
     }
 
     public static class Serialized extends ByteHolder {
+        private static final long serialVersionUID = 1L;
+
         public Serialized(byte[] bytes) {
             super(bytes);
         }
 
+        private Serialized(ByteBuffer view) {
+            super(view);
+        }
+
         public static Serialized of(byte[] bytes) {
             return new Serialized(bytes);
         }
+
+        /**
+         * Returns a Serialized holding the remaining bytes of {@code view}, without copying them.
+         */
+        public static Serialized ofView(ByteBuffer view) {
+            return new Serialized(view);
+        }
     }
 }
@@ -3,36 +3,59 @@ package org.trvedata.sgm.message;
 import org.apache.thrift.TException;
 import org.trvedata.sgm.SignatureProtocol;
 import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.misc.StructView;
 import org.trvedata.sgm.misc.Utils;
 
+import java.io.Serializable;
 import java.nio.ByteBuffer;
 
-public class SignedMessage {
+public class SignedMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     public final ModularMessage.Serialized content;
     public final IdentityKey sender;
     public final SignatureProtocol.Signature signature;
+    public final byte[] attachment; // not signed; see DcgkaProtocol.ControlMessage.attachment.  May be null.
 
     public SignedMessage(ModularMessage.Serialized content, IdentityKey sender, SignatureProtocol.Signature signature) {
+        this(content, sender, signature, null);
+    }
+
+    public SignedMessage(ModularMessage.Serialized content, IdentityKey sender, SignatureProtocol.Signature signature,
+                         byte[] attachment) {
         this.content = content;
         this.sender = sender;
         this.signature = signature;
+        this.attachment = attachment;
     }
 
     public SignedMessage(byte[] serialized) {
         try {
-            SignedMessageStruct struct = new SignedMessageStruct();
-            Utils.deserialize(struct, serialized);
-            this.content = ModularMessage.Serialized.of(struct.getContent());
-            this.sender = new IdentityKey(struct.getSender());
-            this.signature = SignatureProtocol.Signature.of(struct.getSignature());
+            // The content is usually most of the message, so we keep it as a view into serialized instead of
+            // copying it out.  It is then verified and decoded from that view.
+            StructView struct = StructView.of(ByteBuffer.wrap(serialized), SignedMessageStruct._Fields.CONTENT,
+                    SignedMessageStruct._Fields.SENDER, SignedMessageStruct._Fields.SIGNATURE);
+            this.content = ModularMessage.Serialized.ofView(struct.getBinary(SignedMessageStruct._Fields.CONTENT));
+            this.sender = IdentityKey.intern(struct.getBinaryCopy(SignedMessageStruct._Fields.SENDER));
+            this.signature = SignatureProtocol.Signature.of(
+                    struct.getBinaryCopy(SignedMessageStruct._Fields.SIGNATURE));
+            this.attachment = struct.getBinaryCopy(SignedMessageStruct._Fields.ATTACHMENT);
         } catch (TException | IllegalArgumentException exc) {
             throw new IllegalArgumentException("Failed to deserialize ModularMessageStruct", exc);
         }
     }
 
     public byte[] serialize() {
-        SignedMessageStruct struct = new SignedMessageStruct(ByteBuffer.wrap(content.getBytes()),
+        SignedMessageStruct struct = new SignedMessageStruct(content.getView(),
                 ByteBuffer.wrap(sender.serialize()), ByteBuffer.wrap(signature.getBytes()));
+        if (attachment != null) struct.setAttachment(attachment);
         return Utils.serialize(struct);
     }
+
+    /**
+     * Returns this message with a different attachment, which does not affect the signature.
+     */
+    public SignedMessage withAttachment(byte[] attachment) {
+        return new SignedMessage(content, sender, signature, attachment);
+    }
 }
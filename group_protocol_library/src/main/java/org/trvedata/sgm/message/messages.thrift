@@ -40,6 +40,14 @@ struct RemoveInfoStruct {
     4: required set<i32> acks,
 }
 
+//***********************************************************************
+// Structs for MultiGroupDsgmClient
+
+struct GroupMessageStruct {
+    1: required string groupId,
+    2: required binary content, // serialized message from ModularDsgm
+}
+
 //***********************************************************************
 // Structs for modular version
 
@@ -47,6 +55,7 @@ struct SignedMessageStruct {
     1: required binary content,
     2: required binary sender,
     3: required binary signature,
+    4: optional binary attachment, // not covered by the signature, see DcgkaProtocol.ControlMessage
 }
 
 struct ModularMessageStruct {
@@ -97,18 +106,32 @@ struct FullDcgkaMessage {
     2: required binary message, // one of the message types below, depending on type.
 }
 
+// In the following three messages, ciphertexts is empty if ciphertextsRoot is set: the message then only commits
+// to the ciphertexts by their Merkle root, and they are sent along in a CiphertextBundle attachment.
+
 struct CreateMessage {
     1: required list<binary> idsExcludingSender,
     2: required list<binary> ciphertexts,
+    3: optional binary ciphertextsRoot,
 }
 
 struct UpdateMessage {
     1: required list<binary> ciphertexts,
+    2: optional binary ciphertextsRoot,
 }
 
 struct RemoveMessage {
     1: required binary removed,
     2: required list<binary> ciphertexts,
+    3: optional binary ciphertextsRoot,
+}
+
+// The ciphertexts committed to by ciphertextsRoot, in the sorted order of their recipients: either all of them, as
+// output by the sender, or only one recipient's, with its inclusion proof.
+struct CiphertextBundle {
+    1: required list<binary> ciphertexts,
+    2: optional list<binary> recipients, // only when all ciphertexts are included; used to split the bundle
+    3: optional list<binary> proof, // only when one recipient's ciphertext is included
 }
 
 struct AddMessage {
@@ -170,4 +193,6 @@ struct PreKeyCiphertext {
     1: required binary ephemeralKey,
     2: required i32 preKeyId,
     3: required binary ciphertext,
+    4: optional binary salt, // set if the X3DH secret is reused (see TwoPartySessionStore); the AEAD key is then
+            // the hash of the secret and the salt
 }
\ No newline at end of file
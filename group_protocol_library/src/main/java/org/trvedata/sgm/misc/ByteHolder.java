@@ -1,13 +1,48 @@
 package org.trvedata.sgm.misc;
 
-public class ByteHolder {
-    private final byte[] bytes;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+public class ByteHolder implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private volatile byte[] bytes;
+    private final transient ByteBuffer view; // not serialized; writeObject copies it into bytes instead
 
     public ByteHolder(final byte[] bytes) {
         this.bytes = bytes;
+        this.view = null;
+    }
+
+    /**
+     * Holds the remaining bytes of {@code view} without copying them, e.g., a field of a received message that was
+     * unwrapped using {@link StructView}.  The bytes are only copied if {@link #getBytes} is called.
+     */
+    protected ByteHolder(final ByteBuffer view) {
+        this.view = view.slice();
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        getBytes();
+        out.defaultWriteObject();
     }
 
     public final byte[] getBytes() {
+        if (bytes == null && view != null) {
+            // Benign race: concurrent callers may each make an (identical) copy.
+            bytes = Utils.asArray(view.duplicate());
+        }
         return bytes;
     }
+
+    /**
+     * Returns a view of the held bytes, or null if the held bytes are null.  Unlike {@link #getBytes}, this never
+     * copies.  Callers may move the returned buffer's position and limit, but must not modify its contents.
+     */
+    public final ByteBuffer getView() {
+        if (view != null) return view.duplicate();
+        return (bytes == null) ? null : ByteBuffer.wrap(bytes);
+    }
 }
@@ -0,0 +1,50 @@
+package org.trvedata.sgm.misc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link RandomSource} whose output is determined by a seed: the i-th 32-byte block is SHA-256(seed, i).  This is
+ * NOT secure and is only meant for reproducible test and benchmark runs.
+ * <p>
+ * Calls are serialized, so a run is only reproducible if it requests random bytes in the same order each time,
+ * e.g., if it is single-threaded, or if each concurrent task draws from its own {@link #fork}.
+ */
+public class DeterministicRandomSource implements RandomSource {
+    private final byte[] seed;
+    private long counter = 0;
+    private byte[] block = new byte[0];
+    private int blockOffset = 0;
+
+    public DeterministicRandomSource(final long seed) {
+        this(ByteBuffer.allocate(Long.BYTES).putLong(seed).array());
+    }
+
+    private DeterministicRandomSource(final byte[] seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public synchronized void nextBytes(final byte[] bytes) {
+        int filled = 0;
+        while (filled < bytes.length) {
+            if (blockOffset == block.length) {
+                block = Utils.hash(seed, ByteBuffer.allocate(Long.BYTES).putLong(counter++).array());
+                blockOffset = 0;
+            }
+            final int length = Math.min(bytes.length - filled, block.length - blockOffset);
+            System.arraycopy(block, blockOffset, bytes, filled, length);
+            blockOffset += length;
+            filled += length;
+        }
+    }
+
+    @Override
+    public RandomSource fork() {
+        return new DeterministicRandomSource(nextBytes(Constants.KEY_SIZE_BYTES));
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+}
@@ -0,0 +1,41 @@
+package org.trvedata.sgm.misc;
+
+/**
+ * Source of the randomness behind keys, seed secrets, and signing nonces.  Protocols and key generation methods take
+ * one as a parameter (e.g., a {@link DeterministicRandomSource} for reproducible benchmarks); the overloads without
+ * one use {@link Utils#getRandomSource}, a {@link SecureRandomSource}.
+ * <p>
+ * Implementations must be safe to call from multiple threads concurrently.
+ */
+public interface RandomSource {
+    /**
+     * Fills {@code bytes} with random bytes.
+     */
+    void nextBytes(byte[] bytes);
+
+    /**
+     * Returns {@code length} random bytes.
+     */
+    default byte[] nextBytes(int length) {
+        final byte[] result = new byte[length];
+        nextBytes(result);
+        return result;
+    }
+
+    /**
+     * Returns a source for one of several tasks that may run concurrently.  A deterministic source returns a new
+     * source seeded from its own output, so that a run stays reproducible as long as it calls fork in the same order,
+     * however the tasks interleave.  By default, returns this source, which is thread-safe.
+     */
+    default RandomSource fork() {
+        return this;
+    }
+
+    /**
+     * Returns whether the output is reproducible, in which case wrappers such as {@link
+     * org.trvedata.sgm.crypto.HPKEKeyPairPool} must not draw from this source on background threads.
+     */
+    default boolean isDeterministic() {
+        return false;
+    }
+}
@@ -0,0 +1,40 @@
+package org.trvedata.sgm.misc;
+
+import java.security.SecureRandom;
+
+/**
+ * {@link RandomSource} backed by one {@link SecureRandom} per thread, so that threads neither contend on a shared
+ * generator nor pay for seeding a new one on every call.  Each thread's generator is replaced by a freshly seeded
+ * one after it has produced {@code reseedIntervalBytes} bytes.
+ */
+public class SecureRandomSource implements RandomSource {
+    public static final long DEFAULT_RESEED_INTERVAL_BYTES = 1L << 20;
+
+    private final long reseedIntervalBytes;
+    private final ThreadLocal<Generator> generators = ThreadLocal.withInitial(Generator::new);
+
+    public SecureRandomSource() {
+        this(DEFAULT_RESEED_INTERVAL_BYTES);
+    }
+
+    public SecureRandomSource(final long reseedIntervalBytes) {
+        Preconditions.checkArgument(reseedIntervalBytes > 0, "reseedIntervalBytes must be positive");
+        this.reseedIntervalBytes = reseedIntervalBytes;
+    }
+
+    @Override
+    public void nextBytes(final byte[] bytes) {
+        final Generator generator = generators.get();
+        if (generator.bytesSinceSeed >= reseedIntervalBytes) {
+            generator.random = new SecureRandom();
+            generator.bytesSinceSeed = 0;
+        }
+        generator.random.nextBytes(bytes);
+        generator.bytesSinceSeed += bytes.length;
+    }
+
+    private static final class Generator {
+        SecureRandom random = new SecureRandom();
+        long bytesSinceSeed = 0;
+    }
+}
@@ -0,0 +1,130 @@
+package org.trvedata.sgm.misc;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TMemoryInputTransport;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Read-only view of the top-level fields of a Thrift struct serialized by {@link Utils#serialize}.
+ * <p>
+ * The generated struct classes copy binary fields out of the serialized bytes, so unwrapping a message nested
+ * several layers deep copies the innermost bytes once per layer.  A StructView instead returns binary fields as
+ * views into the serialized bytes, so envelopes can be unwrapped (and their contents hashed or decoded further)
+ * without copying.  Only binary, bool, and i32 (including enum) fields are retained; other fields are skipped.
+ */
+public final class StructView {
+    private static final ThreadLocal<TCompactProtocol> PROTOCOL =
+            ThreadLocal.withInitial(() -> new TCompactProtocol(new TMemoryInputTransport()));
+    // Fields with larger ids are skipped; our structs have far fewer fields.
+    private static final int MAX_FIELD_ID = 63;
+
+    private Object[] fields = new Object[8]; // indexed by field id
+
+    private StructView() {
+    }
+
+    /**
+     * Reads the struct in the remaining bytes of {@code data}, without changing its position.  If {@code data} is
+     * backed by an array, binary fields are views into that array, which the caller must not modify afterwards.
+     *
+     * @param requiredFields Fields whose absence is an error, like a missing required field when deserializing
+     *                       into the generated class.
+     */
+    public static StructView of(final ByteBuffer data, final TFieldIdEnum... requiredFields) throws TException {
+        final ByteBuffer arrayData = data.hasArray() ? data : ByteBuffer.wrap(Utils.asArray(data));
+        final TCompactProtocol protocol = PROTOCOL.get();
+        final TMemoryInputTransport transport = (TMemoryInputTransport) protocol.getTransport();
+        transport.reset(arrayData.array(), arrayData.arrayOffset() + arrayData.position(), arrayData.remaining());
+        protocol.reset();
+        final StructView view = new StructView();
+        try {
+            protocol.readStructBegin();
+            while (true) {
+                final TField field = protocol.readFieldBegin();
+                if (field.type == TType.STOP) break;
+                if (field.id < 0 || field.id > MAX_FIELD_ID) {
+                    TProtocolUtil.skip(protocol, field.type);
+                } else if (field.type == TType.STRING) {
+                    view.put(field.id, protocol.readBinary().slice());
+                } else if (field.type == TType.BOOL) {
+                    view.put(field.id, protocol.readBool());
+                } else if (field.type == TType.I32) {
+                    view.put(field.id, protocol.readI32());
+                } else {
+                    TProtocolUtil.skip(protocol, field.type);
+                }
+                protocol.readFieldEnd();
+            }
+            protocol.readStructEnd();
+        } finally {
+            transport.clear();
+        }
+        for (TFieldIdEnum required : requiredFields) {
+            if (!view.isSet(required)) {
+                throw new TProtocolException("Required field '" + required.getFieldName() + "' was not present!");
+            }
+        }
+        return view;
+    }
+
+    public boolean isSet(final TFieldIdEnum field) {
+        return get(field) != null;
+    }
+
+    /**
+     * Returns a view of the given binary field (positioned at 0), or null if it is not set.
+     */
+    public ByteBuffer getBinary(final TFieldIdEnum field) throws TProtocolException {
+        return (ByteBuffer) getTyped(field, ByteBuffer.class);
+    }
+
+    /**
+     * Like {@link #getBinary}, but returns a copy of the field.
+     */
+    public byte[] getBinaryCopy(final TFieldIdEnum field) throws TProtocolException {
+        final ByteBuffer view = getBinary(field);
+        return (view == null) ? null : Utils.asArray(view);
+    }
+
+    /**
+     * Returns the given bool field, or false if it is not set (like the generated classes).
+     */
+    public boolean getBool(final TFieldIdEnum field) throws TProtocolException {
+        final Boolean value = (Boolean) getTyped(field, Boolean.class);
+        return value != null && value;
+    }
+
+    /**
+     * Returns the given i32 or enum field, or 0 if it is not set (like the generated classes).
+     */
+    public int getI32(final TFieldIdEnum field) throws TProtocolException {
+        final Integer value = (Integer) getTyped(field, Integer.class);
+        return (value == null) ? 0 : value;
+    }
+
+    private void put(final short id, final Object value) {
+        if (id >= fields.length) fields = Arrays.copyOf(fields, MAX_FIELD_ID + 1);
+        fields[id] = value;
+    }
+
+    private Object get(final TFieldIdEnum field) {
+        final short id = field.getThriftFieldId();
+        return (id < fields.length) ? fields[id] : null;
+    }
+
+    private Object getTyped(final TFieldIdEnum field, final Class<?> type) throws TProtocolException {
+        final Object value = get(field);
+        if (value != null && !type.isInstance(value)) {
+            throw new TProtocolException("Field '" + field.getFieldName() + "' has the wrong type");
+        }
+        return value;
+    }
+}
@@ -3,8 +3,9 @@ package org.trvedata.sgm.misc;
 import org.apache.thrift.TBase;
 import org.apache.thrift.TDeserializer;
 import org.apache.thrift.TException;
-import org.apache.thrift.TSerializer;
 import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
 import org.pcollections.HashPMap;
 import org.pcollections.TreePVector;
 import org.trvedata.sgm.message.AeadMessage;
@@ -15,67 +16,137 @@ import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
  * Encapsulation of common cryptographic primitives
  */
 public class Utils {
+    private static final ThreadLocal<ThriftCodec> CODEC = ThreadLocal.withInitial(ThriftCodec::new);
+    private static final ThreadLocal<CryptoPrimitives> CRYPTO = ThreadLocal.withInitial(CryptoPrimitives::new);
+    private static final String AES_GCM = "AES/GCM/NoPadding";
+
+    private static final RandomSource DEFAULT_RANDOM_SOURCE = new SecureRandomSource();
+
     public static byte[] getSecureRandomBytes(final int byteLength) {
-        final byte[] result = new byte[byteLength];
-        new SecureRandom().nextBytes(result);
-        return result;
+        return DEFAULT_RANDOM_SOURCE.nextBytes(byteLength);
+    }
+
+    /**
+     * Returns the source of randomness used when none is passed in, which is shared by the whole process.
+     */
+    public static RandomSource getRandomSource() {
+        return DEFAULT_RANDOM_SOURCE;
     }
 
     public static byte[] serialize(final TBase thrift) {
-        final TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+        final ThriftCodec codec = CODEC.get();
+        codec.output.length = 0;
+        try {
+            codec.protocol.reset();
+            thrift.write(codec.protocol);
+            return Arrays.copyOf(codec.output.buffer, codec.output.length);
+        } catch (TException exc) {
+            throw new RuntimeException(exc);
+        } finally {
+            codec.output.releaseLargeBuffer();
+        }
+    }
+
+    /**
+     * Like {@link #serialize(TBase)}, but writes the serialized bytes into {@code target} starting at its
+     * position, which is advanced past them.  Returns the number of bytes written.
+     *
+     * @throws BufferOverflowException if {@code target} does not have enough space remaining, in which case its
+     *                                 position is left unchanged.
+     */
+    public static int serializeInto(final TBase thrift, final ByteBuffer target) {
+        final ThriftCodec codec = CODEC.get();
+        final int start = target.position();
+        codec.output.target = target;
         try {
-            return serializer.serialize(thrift);
+            codec.protocol.reset();
+            thrift.write(codec.protocol);
+            return target.position() - start;
         } catch (TException exc) {
+            target.position(start);
             throw new RuntimeException(exc);
+        } catch (BufferOverflowException exc) {
+            target.position(start);
+            throw exc;
+        } finally {
+            codec.output.target = null;
         }
     }
 
     public static <TObject extends TBase> void deserialize(final TObject object, final byte[] data) throws TException {
-        final TDeserializer deserializer = new TDeserializer(new TCompactProtocol.Factory());
-        deserializer.deserialize(object, data);
+        CODEC.get().deserializer.deserialize(object, data);
+    }
+
+    /**
+     * Like {@link #deserialize(TBase, byte[])}, but reads the remaining bytes of {@code data}, without copying them
+     * (if {@code data} is backed by an array) or changing its position.
+     */
+    public static <TObject extends TBase> void deserialize(final TObject object, final ByteBuffer data)
+            throws TException {
+        if (data.hasArray()) {
+            CODEC.get().deserializer.deserialize(object, data.array(), data.arrayOffset() + data.position(),
+                    data.remaining());
+        } else {
+            deserialize(object, asArray(data));
+        }
     }
 
     public static byte[] hash(final byte[]... inputByteArrays) {
-        return hash(null, inputByteArrays);
+        return hash((String) null, inputByteArrays);
+    }
+
+    /**
+     * Like {@link #hash(byte[]...)}, but hashes the remaining bytes of {@code input} first, without copying them or
+     * changing its position.
+     */
+    public static byte[] hash(final ByteBuffer input, final byte[]... inputByteArrays) {
+        final MessageDigest md = CRYPTO.get().sha256;
+        md.reset();
+        md.update(input.duplicate());
+        for (byte[] array : inputByteArrays) md.update(array);
+        return md.digest();
     }
 
     public static byte[] hash(final String inputString, final byte[]... inputByteArrays) {
-        try {
-            final MessageDigest md = MessageDigest.getInstance("SHA-256");
-            if (inputString != null) {
-                md.update(inputString.getBytes(StandardCharsets.UTF_8));
-            }
-            for (byte[] input : inputByteArrays) md.update(input);
-            return md.digest();
-        } catch (NoSuchAlgorithmException exc) {
-            throw new RuntimeException(exc);
+        final MessageDigest md = CRYPTO.get().sha256;
+        md.reset();
+        if (inputString != null) {
+            md.update(inputString.getBytes(StandardCharsets.UTF_8));
         }
+        for (byte[] input : inputByteArrays) md.update(input);
+        return md.digest();
     }
 
     public static byte[] aeadEncrypt(final byte[] plaintext, final byte[] associatedData, final byte[] key,
                                      final boolean includeAd) {
         Preconditions.checkArgument(key.length > 0, "key must not be empty");
 
-        final byte[] trueKey = hash("key", key);
-        final byte[] iv = hash("iv", key);
+        final CryptoPrimitives crypto = CRYPTO.get();
+        final KeySchedule schedule = crypto.keySchedule(key);
         try {
             // From https://proandroiddev.com/security-best-practices-symmetric-encryption-with-aes-in-java-7616beaaade9
-            final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            final SecretKeySpec keySpec = new SecretKeySpec(trueKey, "AES");
-
-            final GCMParameterSpec parameterSpec = new GCMParameterSpec(8 * Constants.KEY_SIZE_BYTES, iv);
-            cipher.init(Cipher.ENCRYPT_MODE, keySpec, parameterSpec);
+            Cipher cipher = crypto.aesGcm;
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, schedule.keySpec, schedule.parameterSpec);
+            } catch (InvalidAlgorithmParameterException exc) {
+                // The JDK refuses to let one Cipher instance encrypt twice in a row under the same key and IV.
+                // Our IVs are derived from the key, so this happens whenever a key is reused; a fresh instance
+                // behaves like the per-call instances we used to create.
+                cipher = crypto.aesGcm = Cipher.getInstance(AES_GCM);
+                cipher.init(Cipher.ENCRYPT_MODE, schedule.keySpec, schedule.parameterSpec);
+            }
             cipher.updateAAD(associatedData);
 
             final byte[] c = cipher.doFinal(plaintext);
@@ -105,15 +176,12 @@ public class Utils {
     public static byte[] aeadDecrypt(final byte[] ciphertext, final byte[] key, final byte[] associatedData) {
         Preconditions.checkArgument(key.length > 0, "key must not be empty");
 
-        final byte[] trueKey = hash("key", key);
-        final byte[] iv = hash("iv", key);
+        final CryptoPrimitives crypto = CRYPTO.get();
+        final KeySchedule schedule = crypto.keySchedule(key);
         try {
             // From https://proandroiddev.com/security-best-practices-symmetric-encryption-with-aes-in-java-7616beaaade9
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            SecretKeySpec keySpec = new SecretKeySpec(trueKey, "AES");
-
-            final GCMParameterSpec parameterSpec = new GCMParameterSpec(8 * Constants.KEY_SIZE_BYTES, iv);
-            cipher.init(Cipher.DECRYPT_MODE, keySpec, parameterSpec);
+            final Cipher cipher = crypto.aesGcm;
+            cipher.init(Cipher.DECRYPT_MODE, schedule.keySpec, schedule.parameterSpec);
             cipher.updateAAD(associatedData);
 
             try {
@@ -175,4 +243,114 @@ public class Utils {
         vector = vector.plus(value);
         return map.plus(key, vector);
     }
+
+    /**
+     * Per-thread hash and cipher instances, which are expensive to look up, and a small cache of key schedules.
+     * Each use re-initializes the instance, so no state carries over between calls.
+     */
+    private static final class CryptoPrimitives {
+        // Large enough for encrypt-then-decrypt round trips and a few interleaved keys, and small enough that
+        // derived keys do not outlive the (forward-secret) keys they came from for long.
+        private static final int KEY_SCHEDULE_CACHE_SIZE = 4;
+
+        final MessageDigest sha256;
+        Cipher aesGcm;
+        private final KeySchedule[] keySchedules = new KeySchedule[KEY_SCHEDULE_CACHE_SIZE];
+        private int nextKeySchedule = 0;
+
+        CryptoPrimitives() {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+                aesGcm = Cipher.getInstance(AES_GCM);
+            } catch (GeneralSecurityException exc) {
+                throw new RuntimeException(exc);
+            }
+        }
+
+        /**
+         * Returns the AES key and IV derived from {@code key}, i.e., hash("key", key) and hash("iv", key).
+         */
+        KeySchedule keySchedule(final byte[] key) {
+            for (KeySchedule schedule : keySchedules) {
+                if (schedule != null && MessageDigest.isEqual(schedule.key, key)) return schedule;
+            }
+            final KeySchedule schedule = new KeySchedule(key.clone(),
+                    new SecretKeySpec(hash("key", key), "AES"),
+                    new GCMParameterSpec(8 * Constants.KEY_SIZE_BYTES, hash("iv", key)));
+            keySchedules[nextKeySchedule] = schedule;
+            nextKeySchedule = (nextKeySchedule + 1) % KEY_SCHEDULE_CACHE_SIZE;
+            return schedule;
+        }
+    }
+
+    private static final class KeySchedule {
+        final byte[] key;
+        final SecretKeySpec keySpec;
+        final GCMParameterSpec parameterSpec;
+
+        KeySchedule(final byte[] key, final SecretKeySpec keySpec, final GCMParameterSpec parameterSpec) {
+            this.key = key;
+            this.keySpec = keySpec;
+            this.parameterSpec = parameterSpec;
+        }
+    }
+
+    /**
+     * Per-thread Thrift codec, so that serialize and deserialize reuse their protocol, transport, and output
+     * buffer instead of allocating new ones on every call.
+     */
+    private static final class ThriftCodec {
+        final OutputTransport output = new OutputTransport();
+        final TCompactProtocol protocol = new TCompactProtocol(output);
+        final TDeserializer deserializer = new TDeserializer(new TCompactProtocol.Factory());
+    }
+
+    /**
+     * Write-only transport that writes either into a caller-supplied ByteBuffer (target) or, if target is
+     * null, into a growable buffer that is kept between calls.
+     */
+    private static final class OutputTransport extends TTransport {
+        // Buffers that grew larger than this (e.g. for a big Welcome message) are not kept after use.
+        private static final int MAX_RETAINED_BUFFER_BYTES = 64 * 1024;
+        private static final int INITIAL_BUFFER_BYTES = 1024;
+
+        ByteBuffer target;
+        byte[] buffer = new byte[INITIAL_BUFFER_BYTES];
+        int length;
+
+        @Override
+        public void write(final byte[] buf, final int off, final int len) {
+            if (target != null) {
+                target.put(buf, off, len);
+            } else {
+                if (length + len > buffer.length) {
+                    buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, length + len));
+                }
+                System.arraycopy(buf, off, buffer, length, len);
+                length += len;
+            }
+        }
+
+        void releaseLargeBuffer() {
+            if (buffer.length > MAX_RETAINED_BUFFER_BYTES) buffer = new byte[INITIAL_BUFFER_BYTES];
+        }
+
+        @Override
+        public int read(final byte[] buf, final int off, final int len) throws TTransportException {
+            throw new TTransportException("OutputTransport is write-only");
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 }
@@ -0,0 +1,474 @@
+package org.trvedata.sgm.storage;
+
+import org.trvedata.sgm.DsgmProtocol;
+import org.trvedata.sgm.misc.Logger;
+import org.trvedata.sgm.misc.Preconditions;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * {@link StateStore} that keeps an append-only log of committed states in a local directory, plus periodic
+ * snapshots of all groups' latest states, after which older log segments are deleted.
+ * <p>
+ * Each log record holds one group's serialized state and a checksum.  {@link #commit} appends the record and waits
+ * until an fsync covers it; concurrent commits share fsyncs (group commit), and {@code maxSyncDelayNanos} lets the
+ * thread that performs an fsync wait for more records to join it.  On opening, the store loads the newest intact
+ * snapshot and replays the log records after it, stopping at (and truncating) a record that was torn by a crash.
+ * Since a commit only returns once its record is durable, every commit that returned is recovered.
+ * <p>
+ * Directory layout: {@code snapshot-<seq>} covers all records up to seq; {@code log-<seq>} is a segment whose first
+ * record is seq (both hexadecimal).  The serializer's {@link StateSerializer#sync} is called before records or
+ * snapshots are made durable, and {@link StateSerializer#retainOnly} after each snapshot, with the latest states.
+ */
+public class FileStateStore implements StateStore {
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 1000;
+
+    private static final String TAG = "FileStateStore";
+    private static final String LOG_PREFIX = "log-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int SNAPSHOT_MAGIC = 0x53474d53;
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES; // length, crc
+
+    private final Path directory;
+    private final StateSerializer serializer;
+    private final int snapshotInterval;
+    private final long maxSyncDelayNanos;
+    private final Map<String, byte[]> recovered;
+
+    // Guarded by this
+    private final HashMap<String, byte[]> latest = new HashMap<>();
+    private FileChannel log;
+    private long logStartSeq;
+    private long lastSeq;
+    private int recordsSinceSnapshot = 0;
+    private boolean closed = false;
+
+    // Guarded by syncLock
+    private final Object syncLock = new Object();
+    private long durableSeq;
+    private boolean syncInProgress = false;
+
+    private long commitCount = 0; // guarded by this
+    private long syncCount = 0; // guarded by syncLock
+    private long snapshotCount = 0; // guarded by this
+
+    public FileStateStore(Path directory, StateSerializer serializer) throws IOException {
+        this(directory, serializer, DEFAULT_SNAPSHOT_INTERVAL, 0);
+    }
+
+    /**
+     * Opens the store in {@code directory}, creating it if needed, and recovers its contents.
+     *
+     * @param snapshotInterval  Number of commits after which a snapshot is written and older log segments deleted.
+     * @param maxSyncDelayNanos How long the thread performing an fsync waits for other commits to batch with it.
+     *                          0 still batches commits that arrive while an fsync is in progress.
+     */
+    public FileStateStore(Path directory, StateSerializer serializer, int snapshotInterval, long maxSyncDelayNanos)
+            throws IOException {
+        Preconditions.checkArgument(snapshotInterval > 0, "snapshotInterval must be positive");
+        Preconditions.checkArgument(maxSyncDelayNanos >= 0, "maxSyncDelayNanos must not be negative");
+        this.directory = directory;
+        this.serializer = serializer;
+        this.snapshotInterval = snapshotInterval;
+        this.maxSyncDelayNanos = maxSyncDelayNanos;
+
+        Files.createDirectories(directory);
+        for (Path temp : list("", TEMP_SUFFIX)) Files.delete(temp);
+        long snapshotSeq = loadNewestSnapshot();
+        lastSeq = snapshotSeq;
+        replayLog(snapshotSeq);
+        durableSeq = lastSeq;
+        recovered = Collections.unmodifiableMap(new HashMap<>(latest));
+        openLogSegment(lastSeq + 1);
+    }
+
+    @Override
+    public Map<String, DsgmProtocol.State> recover() throws IOException {
+        LinkedHashMap<String, DsgmProtocol.State> states = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : recovered.entrySet()) {
+            states.put(entry.getKey(), serializer.deserialize(entry.getValue()));
+        }
+        return states;
+    }
+
+    @Override
+    public void commit(String groupId, DsgmProtocol.State state) throws IOException {
+        // Serialize outside the lock, so that commits for different groups do that in parallel
+        byte[] serialized = serializer.serialize(state);
+        byte[] groupIdBytes = groupId.getBytes(StandardCharsets.UTF_8);
+        long seq;
+        synchronized (this) {
+            if (closed) throw new ClosedChannelException();
+            seq = ++lastSeq;
+            ByteBuffer payload = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + groupIdBytes.length +
+                    serialized.length);
+            payload.putLong(seq).putInt(groupIdBytes.length).put(groupIdBytes).put(serialized).flip();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            header.putInt(payload.remaining()).putInt(crc(payload)).flip();
+            writeFully(log, header, payload);
+            latest.put(groupId, serialized);
+            commitCount++;
+            if (++recordsSinceSnapshot >= snapshotInterval) trySnapshot();
+        }
+        awaitDurable(seq);
+    }
+
+    /**
+     * Takes a snapshot, but only logs a failure: the committed record is in the log regardless, so the commit has
+     * not failed, and the snapshot is retried after another {@code snapshotInterval} commits.  Called with this
+     * locked.
+     */
+    private void trySnapshot() {
+        try {
+            snapshot();
+        } catch (IOException exc) {
+            Logger.w(TAG, "Failed to write snapshot, retrying after " + snapshotInterval + " more commits: " + exc);
+            recordsSinceSnapshot = 0;
+        }
+    }
+
+    /**
+     * Returns the number of fsyncs of the log so far, excluding snapshots.  Compare with {@link #getCommitCount} to
+     * see how well commits are batched.
+     */
+    public long getSyncCount() {
+        synchronized (syncLock) {
+            return syncCount;
+        }
+    }
+
+    public synchronized long getCommitCount() {
+        return commitCount;
+    }
+
+    public synchronized long getSnapshotCount() {
+        return snapshotCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            serializer.sync();
+            log.force(false);
+            synchronized (syncLock) {
+                durableSeq = Math.max(durableSeq, lastSeq);
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    private void awaitDurable(long seq) throws IOException {
+        while (true) {
+            synchronized (syncLock) {
+                while (syncInProgress && durableSeq < seq) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException exc) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for fsync");
+                    }
+                }
+                if (durableSeq >= seq) return;
+                syncInProgress = true;
+            }
+            // We are the syncing thread; our fsync covers every record appended before it starts
+            try {
+                if (maxSyncDelayNanos > 0) {
+                    long deadline = System.nanoTime() + maxSyncDelayNanos;
+                    long remaining;
+                    while ((remaining = deadline - System.nanoTime()) > 0) {
+                        try {
+                            Thread.sleep(remaining / 1_000_000, (int) (remaining % 1_000_000));
+                        } catch (InterruptedException exc) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+                FileChannel channel;
+                long target;
+                synchronized (this) {
+                    channel = log;
+                    target = lastSeq;
+                }
+                try {
+                    // The records up to target were serialized before they were appended
+                    serializer.sync();
+                    channel.force(false);
+                } catch (ClosedChannelException exc) {
+                    // A snapshot replaced the segment or the store was closed, both of which make the records
+                    // durable unless close() failed
+                    synchronized (this) {
+                        if (closed && !durableSeqAtLeast(seq)) throw exc;
+                    }
+                    continue;
+                }
+                synchronized (syncLock) {
+                    durableSeq = Math.max(durableSeq, target);
+                    syncCount++;
+                }
+            } finally {
+                synchronized (syncLock) {
+                    syncInProgress = false;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private boolean durableSeqAtLeast(long seq) {
+        synchronized (syncLock) {
+            return durableSeq >= seq;
+        }
+    }
+
+    /**
+     * Writes all latest states to a new snapshot, then starts a new log segment and deletes the old ones, which the
+     * snapshot makes redundant.  If this throws, the current log segment stays open, so commits can continue.  Called
+     * with this locked.
+     */
+    private void snapshot() throws IOException {
+        serializer.sync();
+        Path temp = directory.resolve(SNAPSHOT_PREFIX + hex(lastSeq) + TEMP_SUFFIX);
+        try {
+            writeSnapshot(temp);
+        } catch (IOException | RuntimeException exc) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException deleteExc) {
+                exc.addSuppressed(deleteExc);
+            }
+            throw exc;
+        }
+        Path snapshot = directory.resolve(SNAPSHOT_PREFIX + hex(lastSeq));
+        Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        synchronized (syncLock) {
+            durableSeq = Math.max(durableSeq, lastSeq);
+        }
+        snapshotCount++;
+        recordsSinceSnapshot = 0;
+
+        // Open the new segment before closing the old one, so that a failure leaves a usable log
+        FileChannel previous = log;
+        openLogSegment(lastSeq + 1);
+        previous.close();
+        for (Path segment : list(LOG_PREFIX, "")) {
+            if (parseSeq(segment, LOG_PREFIX) < logStartSeq) Files.delete(segment);
+        }
+        for (Path old : list(SNAPSHOT_PREFIX, "")) {
+            if (!old.equals(snapshot)) Files.delete(old);
+        }
+        serializer.retainOnly(latest.values());
+    }
+
+    private void writeSnapshot(Path temp) throws IOException {
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            CRC32 crc = new CRC32();
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Long.BYTES + Integer.BYTES);
+            header.putInt(SNAPSHOT_MAGIC).putLong(lastSeq).putInt(latest.size());
+            writeChecked(out, crc, header.array());
+            for (Map.Entry<String, byte[]> entry : latest.entrySet()) {
+                byte[] groupIdBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                writeChecked(out, crc, ByteBuffer.allocate(Integer.BYTES).putInt(groupIdBytes.length).array());
+                writeChecked(out, crc, groupIdBytes);
+                writeChecked(out, crc, ByteBuffer.allocate(Integer.BYTES).putInt(entry.getValue().length).array());
+                writeChecked(out, crc, entry.getValue());
+            }
+            out.writeLong(crc.getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    /**
+     * Makes a new segment starting at startSeq the current one; if this throws, the current one is unchanged.
+     */
+    private void openLogSegment(long startSeq) throws IOException {
+        log = FileChannel.open(directory.resolve(LOG_PREFIX + hex(startSeq)), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        logStartSeq = startSeq;
+        syncDirectory();
+    }
+
+    /**
+     * Loads the newest snapshot that is intact into {@link #latest}, returning its seq, or 0 if there is none.
+     */
+    private long loadNewestSnapshot() throws IOException {
+        List<Path> snapshots = list(SNAPSHOT_PREFIX, "");
+        snapshots.sort((a, b) -> Long.compare(parseSeq(b, SNAPSHOT_PREFIX), parseSeq(a, SNAPSHOT_PREFIX)));
+        for (Path snapshot : snapshots) {
+            byte[] bytes = Files.readAllBytes(snapshot);
+            try {
+                if (bytes.length < Long.BYTES) throw new IOException("truncated");
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, bytes.length - Long.BYTES);
+                if (crc.getValue() != buffer.getLong(bytes.length - Long.BYTES) || buffer.getInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("checksum mismatch");
+                }
+                long seq = buffer.getLong();
+                int count = buffer.getInt();
+                HashMap<String, byte[]> states = new HashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String groupId = new String(getBytes(buffer, buffer.getInt()), StandardCharsets.UTF_8);
+                    states.put(groupId, getBytes(buffer, buffer.getInt()));
+                }
+                latest.putAll(states);
+                return seq;
+            } catch (IOException | RuntimeException exc) {
+                Logger.w(TAG, "Skipping corrupt snapshot " + snapshot + ": " + exc);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Applies the log records after snapshotSeq to {@link #latest}, truncating a torn record at the end of the log.
+     */
+    private void replayLog(long snapshotSeq) throws IOException {
+        List<Path> segments = list(LOG_PREFIX, "");
+        segments.sort((a, b) -> Long.compare(parseSeq(a, LOG_PREFIX), parseSeq(b, LOG_PREFIX)));
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            long validLength = replaySegment(segment, snapshotSeq);
+            if (validLength < Files.size(segment)) {
+                if (i != segments.size() - 1) {
+                    throw new IOException("Corrupt record in " + segment + ", which is not the last log segment");
+                }
+                // A crash during the last (unacknowledged) append; drop it
+                Logger.w(TAG, "Truncating torn record at offset " + validLength + " of " + segment);
+                try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                    channel.force(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the prefix of segment consisting of intact records.
+     */
+    private long replaySegment(Path segment, long snapshotSeq) throws IOException {
+        long segmentLength = Files.size(segment);
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(segment))) {
+            while (true) {
+                int length;
+                int expectedCrc;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    expectedCrc = in.readInt();
+                    // A torn or corrupt length must not make us allocate more than the rest of the segment
+                    if (length < Long.BYTES + Integer.BYTES ||
+                            length > segmentLength - validLength - RECORD_HEADER_BYTES) {
+                        return validLength;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException exc) {
+                    return validLength;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                if (crc(buffer) != expectedCrc) return validLength;
+                long seq = buffer.getLong();
+                int groupIdLength = buffer.getInt();
+                if (groupIdLength < 0 || groupIdLength > buffer.remaining()) return validLength;
+                String groupId = new String(getBytes(buffer, groupIdLength), StandardCharsets.UTF_8);
+                if (seq > snapshotSeq) {
+                    latest.put(groupId, getBytes(buffer, buffer.remaining()));
+                    lastSeq = Math.max(lastSeq, seq);
+                }
+                validLength += RECORD_HEADER_BYTES + length;
+            }
+        }
+    }
+
+    private List<Path> list(String prefix, String suffix) throws IOException {
+        ArrayList<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(prefix) && name.endsWith(suffix) &&
+                        (!suffix.isEmpty() || !name.endsWith(TEMP_SUFFIX))) {
+                    result.add(path);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void syncDirectory() {
+        // Makes file creations and renames durable; not supported on all platforms, where this is best effort
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException exc) {
+            // ignore
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer... buffers) throws IOException {
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    private static void writeChecked(DataOutputStream out, CRC32 crc, byte[] bytes) throws IOException {
+        out.write(bytes);
+        crc.update(bytes, 0, bytes.length);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Length " + length + " exceeds the remaining " + buffer.remaining());
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static int crc(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        ByteBuffer duplicate = buffer.duplicate();
+        byte[] bytes = new byte[duplicate.remaining()];
+        duplicate.get(bytes);
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static String hex(long seq) {
+        return String.format("%016x", seq);
+    }
+
+    private static long parseSeq(Path path, String prefix) {
+        return Long.parseUnsignedLong(path.getFileName().toString().substring(prefix.length()), 16);
+    }
+}
@@ -0,0 +1,201 @@
+package org.trvedata.sgm.storage;
+
+import org.trvedata.sgm.DsgmProtocol;
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.crypto.PreKeySource;
+import org.trvedata.sgm.crypto.TwoPartySessionStore;
+import org.trvedata.sgm.misc.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * {@link StateSerializer} using Java serialization of the state objects.
+ * <p>
+ * A few objects that states refer to are handled specially: the {@link PreKeySource} and {@link
+ * TwoPartySessionStore} are services shared with other groups rather than part of the state, so they are written as
+ * placeholders and replaced with this serializer's instances on deserialization; {@link IdentityKey}s are written as
+ * their bytes and re-{@link IdentityKey#intern}ed; and {@link ByteBuffer}s (which are not {@link Serializable}) are
+ * written as their remaining bytes.
+ * <p>
+ * Only classes accepted by {@link #isAllowedClass} are deserialized, so that a corrupted or tampered state file
+ * cannot make us instantiate arbitrary serializable classes on the classpath.
+ */
+public class JavaStateSerializer implements StateSerializer {
+    // Everything in these packages (states, their components, and the persistent collections and tuples they use)
+    private static final String[] ALLOWED_PACKAGES = {
+            "org.trvedata.sgm.", "org.pcollections.", "org.apache.commons.lang3.tuple."};
+    // Other (JDK) classes that states contain
+    private static final Set<String> ALLOWED_CLASSES = new HashSet<>(Arrays.asList(
+            "java.lang.Boolean", "java.lang.Enum", "java.lang.Integer", "java.lang.Long", "java.lang.Number",
+            "java.lang.String", "java.util.AbstractMap$SimpleImmutableEntry", "java.util.ArrayList",
+            "java.util.BitSet", "java.util.HashMap", "java.util.HashSet", "java.util.concurrent.ConcurrentHashMap",
+            // Written by ConcurrentHashMap for compatibility with older versions
+            "java.util.concurrent.ConcurrentHashMap$Segment", "java.util.concurrent.locks.ReentrantLock",
+            "java.util.concurrent.locks.ReentrantLock$Sync", "java.util.concurrent.locks.ReentrantLock$NonfairSync",
+            "java.util.concurrent.locks.AbstractQueuedSynchronizer",
+            "java.util.concurrent.locks.AbstractOwnableSynchronizer"));
+
+    private final PreKeySource preKeySource;
+    private final TwoPartySessionStore sessionStore;
+
+    /**
+     * @param preKeySource Substituted into deserialized states.
+     * @param sessionStore Substituted into deserialized states; may be null.
+     */
+    public JavaStateSerializer(PreKeySource preKeySource, TwoPartySessionStore sessionStore) {
+        this.preKeySource = preKeySource;
+        this.sessionStore = sessionStore;
+    }
+
+    @Override
+    public byte[] serialize(DsgmProtocol.State state) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = newOutputStream(bytes)) {
+            out.writeObject(state);
+        } catch (IOException exc) {
+            // Only thrown for classes that are not Serializable, which is a bug
+            throw new UncheckedIOException("Failed to serialize state", exc);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public DsgmProtocol.State deserialize(byte[] serialized) throws IOException {
+        try (ObjectInputStream in = newInputStream(new ByteArrayInputStream(serialized))) {
+            return (DsgmProtocol.State) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException exc) {
+            throw new InvalidObjectException("Not a serialized state: " + exc);
+        }
+    }
+
+    /**
+     * Returns a stream that writes the placeholders described in the class comment.
+     */
+    protected ObjectOutputStream newOutputStream(OutputStream out) throws IOException {
+        return new ObjectOutputStream(out) {
+            {
+                enableReplaceObject(true);
+            }
+
+            @Override
+            protected Object replaceObject(Object obj) throws IOException {
+                return JavaStateSerializer.this.replaceObject(obj);
+            }
+        };
+    }
+
+    /**
+     * Returns a stream that resolves the placeholders written by {@link #newOutputStream}.
+     */
+    protected ObjectInputStream newInputStream(InputStream in) throws IOException {
+        return new ObjectInputStream(in) {
+            {
+                enableResolveObject(true);
+            }
+
+            @Override
+            protected Object resolveObject(Object obj) throws IOException {
+                return JavaStateSerializer.this.resolveObject(obj);
+            }
+
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                checkAllowedClass(desc.getName());
+                return super.resolveClass(desc);
+            }
+
+            @Override
+            protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+                throw new InvalidClassException("Proxy classes are not allowed in serialized states");
+            }
+        };
+    }
+
+    /**
+     * Returns whether the class with the given name (as in {@link Class#getName()}) may appear in serialized states.
+     * Arrays are allowed if their element type is.  Subclasses whose states contain other classes may extend this.
+     */
+    protected boolean isAllowedClass(String name) {
+        if (name.startsWith("[")) {
+            String element = name.replaceFirst("^\\[+", "");
+            if (element.length() == 1) return true; // primitive
+            return element.startsWith("L") && element.endsWith(";") &&
+                    isAllowedClass(element.substring(1, element.length() - 1));
+        }
+        if (ALLOWED_CLASSES.contains(name)) return true;
+        for (String prefix : ALLOWED_PACKAGES) {
+            if (name.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @throws InvalidClassException If {@link #isAllowedClass} rejects name.
+     */
+    protected final void checkAllowedClass(String name) throws InvalidClassException {
+        if (!isAllowedClass(name)) throw new InvalidClassException(name, "not allowed in serialized states");
+    }
+
+    /**
+     * Returns the placeholder to write instead of obj, or obj itself.  Used by the streams of {@link
+     * #newOutputStream}.
+     */
+    protected Object replaceObject(Object obj) throws IOException {
+        if (obj instanceof IdentityKey) return new IdentityKeyPlaceholder(((IdentityKey) obj).serialize());
+        if (obj instanceof ByteBuffer) return new ByteBufferPlaceholder(Utils.asArray(((ByteBuffer) obj).duplicate()));
+        if (obj instanceof PreKeySource) return ServicePlaceholder.PRE_KEY_SOURCE;
+        if (obj instanceof TwoPartySessionStore) return ServicePlaceholder.SESSION_STORE;
+        return obj;
+    }
+
+    /**
+     * Inverse of {@link #replaceObject}.
+     */
+    protected Object resolveObject(Object obj) throws IOException {
+        if (obj instanceof IdentityKeyPlaceholder) return IdentityKey.intern(((IdentityKeyPlaceholder) obj).key);
+        if (obj instanceof ByteBufferPlaceholder) return ByteBuffer.wrap(((ByteBufferPlaceholder) obj).bytes);
+        if (obj == ServicePlaceholder.PRE_KEY_SOURCE) return preKeySource;
+        if (obj == ServicePlaceholder.SESSION_STORE) return sessionStore;
+        return obj;
+    }
+
+    static final class IdentityKeyPlaceholder implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final byte[] key;
+
+        IdentityKeyPlaceholder(byte[] key) {
+            this.key = key;
+        }
+    }
+
+    static final class ByteBufferPlaceholder implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final byte[] bytes;
+
+        ByteBufferPlaceholder(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private enum ServicePlaceholder {
+        PRE_KEY_SOURCE,
+        SESSION_STORE
+    }
+}
@@ -0,0 +1,195 @@
+package org.trvedata.sgm.storage;
+
+import org.trvedata.sgm.misc.Logger;
+import org.trvedata.sgm.misc.Utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content-addressed store of immutable records, kept in an append-only file with an in-memory index from each
+ * record's hash to its position.  Used by {@link SharingStateSerializer} to store state nodes.
+ * <p>
+ * Each entry is the record's SHA-256 hash, its length, and the record.  On opening, entries whose hash does not
+ * match (a write torn by a crash) end the file and are truncated.  Thread-safe.
+ */
+public class NodeStore implements Closeable {
+    public static final int HASH_BYTES = 32;
+
+    private static final String TAG = "NodeStore";
+    private static final int HEADER_BYTES = HASH_BYTES + Integer.BYTES;
+
+    private final Path file;
+    private FileChannel channel;
+    private final HashMap<ByteBuffer, Long> offsets = new HashMap<>(); // hash -> offset of the entry
+    private long end;
+
+    public NodeStore(Path file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        end = scan();
+        if (end < channel.size()) {
+            Logger.w(TAG, "Truncating torn entry at offset " + end + " of " + file);
+            channel.truncate(end);
+            channel.force(true);
+        }
+    }
+
+    public static byte[] hash(byte[] record) {
+        return Utils.hash(record);
+    }
+
+    public synchronized boolean contains(byte[] hash) {
+        return offsets.containsKey(ByteBuffer.wrap(hash));
+    }
+
+    /**
+     * Adds record under the given hash, which must be {@link #hash}(record), unless it is already present.
+     */
+    public synchronized void put(byte[] hash, byte[] record) throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        if (offsets.containsKey(key)) return;
+        ByteBuffer entry = ByteBuffer.allocate(HEADER_BYTES + record.length);
+        entry.put(hash).putInt(record.length).put(record).flip();
+        long offset = end;
+        while (entry.hasRemaining()) end += channel.write(entry, end);
+        offsets.put(key, offset);
+    }
+
+    /**
+     * Returns the record with the given hash, or null if there is none.
+     */
+    public synchronized byte[] get(byte[] hash) throws IOException {
+        Long offset = offsets.get(ByteBuffer.wrap(hash));
+        if (offset == null) return null;
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        readFully(offset + HASH_BYTES, length);
+        ByteBuffer record = ByteBuffer.allocate(length.getInt(0));
+        readFully(offset + HEADER_BYTES, record);
+        return record.array();
+    }
+
+    /**
+     * Makes all records put so far durable.
+     */
+    public void sync() throws IOException {
+        while (true) {
+            FileChannel current;
+            synchronized (this) {
+                current = channel;
+            }
+            try {
+                current.force(false);
+                return;
+            } catch (ClosedChannelException exc) {
+                // Replaced by retainOnly, which syncs the records it keeps; the others need not be durable
+                synchronized (this) {
+                    if (channel == current) throw exc;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes all records except those whose hashes are in live, by copying the live ones to a new file that then
+     * atomically replaces the current one.
+     */
+    public synchronized void retainOnly(Set<ByteBuffer> live) throws IOException {
+        if (live.containsAll(offsets.keySet())) return;
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        HashMap<ByteBuffer, Long> newOffsets = new HashMap<>();
+        long newEnd = 0;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<ByteBuffer, Long> entry : offsets.entrySet()) {
+                if (!live.contains(entry.getKey())) continue;
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                readFully(entry.getValue(), header);
+                long length = HEADER_BYTES + header.getInt(HASH_BYTES);
+                long copied = 0;
+                while (copied < length) {
+                    copied += channel.transferTo(entry.getValue() + copied, length - copied, out);
+                }
+                newOffsets.put(entry.getKey(), newEnd);
+                newEnd += length;
+            }
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException exc) {
+            // Not supported on all platforms; best effort
+        }
+        channel.close();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        offsets.clear();
+        offsets.putAll(newOffsets);
+        end = newEnd;
+    }
+
+    /**
+     * Returns the number of records.
+     */
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    /**
+     * Returns the size of the store's file in bytes.
+     */
+    public synchronized long getByteSize() {
+        return end;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Indexes the entries in the file, returning the end of the last intact one.
+     */
+    private long scan() throws IOException {
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (offset + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(offset, header);
+            int length = header.getInt(HASH_BYTES);
+            if (length < 0 || offset + HEADER_BYTES + length > size) break;
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(offset + HEADER_BYTES, record);
+            byte[] hash = Arrays.copyOf(header.array(), HASH_BYTES);
+            if (!Arrays.equals(hash, hash(record.array()))) break;
+            offsets.put(ByteBuffer.wrap(hash), offset);
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private void readFully(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of " + file);
+            position += read;
+        }
+        buffer.flip();
+    }
+}
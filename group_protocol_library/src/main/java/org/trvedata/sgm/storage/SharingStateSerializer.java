@@ -0,0 +1,700 @@
+package org.trvedata.sgm.storage;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.trvedata.sgm.DcgkaProtocol;
+import org.trvedata.sgm.DsgmProtocol;
+import org.trvedata.sgm.ForwardSecureEncryptionProtocol;
+import org.trvedata.sgm.MemberRegistry;
+import org.trvedata.sgm.Orderer;
+import org.trvedata.sgm.SignatureProtocol;
+import org.trvedata.sgm.StrongRemoveDgm;
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.crypto.IdentityKeyPair;
+import org.trvedata.sgm.crypto.PreKeySecret;
+import org.trvedata.sgm.crypto.PreKeySource;
+import org.trvedata.sgm.crypto.TwoPartyProtocol;
+import org.trvedata.sgm.crypto.TwoPartySessionStore;
+import org.trvedata.sgm.message.ModularMessage;
+import org.trvedata.sgm.message.SignedMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link StateSerializer} that exploits the structural sharing between consecutive persistent states: the nodes of a
+ * state's object graph are written as content-addressed records to a {@link NodeStore}, each at most once, and the
+ * serialized state only contains hashes.  Since the serializer remembers the hash of every node object it has
+ * written or read, serializing a state that shares unchanged subtrees with an earlier one only writes the nodes on
+ * the paths to the changed entries, so checkpointing after every message is cheap.
+ * <p>
+ * The nodes are the components' states (which are immutable), the internal nodes of the pcollections trees and lists
+ * they are made of, and a few immutable classes that are large or referred to from many places, such as messages
+ * and {@link TwoPartyProtocol}s.  Other objects are written inline in their closest node, using Java serialization
+ * with the placeholders of {@link JavaStateSerializer} and abbreviated class descriptors, which keep the class's
+ * serialVersionUID so that incompatible changes are detected.
+ * <p>
+ * Two classes of objects in a state are mutable, {@link MemberRegistry} and {@link StrongRemoveDgm}: they are shared
+ * by a group's consecutive states, and the latter is modified in place.  Nodes refer to these by an id, and each state
+ * has one more record listing the records of its mutable objects' current contents.  The serializer remembers which
+ * contents it has written, so only objects that changed since are written again: a registry, which only grows, as a
+ * record of the keys registered since, chained to the previous record; a {@link StrongRemoveDgm}, whose {@link
+ * StrongRemoveDgm#getModificationCount} tells whether it changed, as a whole.
+ * <p>
+ * Serialization and deserialization may run concurrently, as long as the states involved are not modified meanwhile.
+ * {@link #retainOnly} waits for them to finish, then deletes the nodes that are neither reachable from the given
+ * serialized states nor part of a state object this serializer still remembers, so that concurrently committed
+ * states remain complete.
+ */
+public class SharingStateSerializer extends JavaStateSerializer {
+    private static final int ROOT_MAGIC = 0x53474d33;
+    private static final int SERIALIZED_BYTES = Integer.BYTES + 2 * NodeStore.HASH_BYTES;
+    private static final Set<String> TREE_NODE_CLASSES = new HashSet<>(Arrays.asList(
+            "org.pcollections.IntTree", "org.pcollections.ConsPStack"));
+    // Classes whose descriptors in nodes are abbreviated to their index here.  Only append to this list, so that
+    // existing nodes remain readable.
+    private static final List<String> COMMON_CLASSES = Arrays.asList(
+            NodeReference.class.getName(), MutableReference.class.getName(),
+            JavaStateSerializer.IdentityKeyPlaceholder.class.getName(),
+            JavaStateSerializer.ByteBufferPlaceholder.class.getName(),
+            "org.pcollections.IntTree", "org.pcollections.ConsPStack", "org.pcollections.IntTreePMap",
+            "org.pcollections.HashPMap", "org.pcollections.MapPSet", "org.pcollections.TreePVector",
+            "java.util.AbstractMap$SimpleImmutableEntry", "java.lang.Number", "java.lang.Integer", "java.lang.Long",
+            "org.apache.commons.lang3.tuple.Pair", "org.apache.commons.lang3.tuple.ImmutablePair",
+            "org.apache.commons.lang3.tuple.Triple", "org.apache.commons.lang3.tuple.ImmutableTriple",
+            "org.trvedata.sgm.message.MessageId");
+    private static final int FULL_DESCRIPTOR = 0;
+    private static final int NAMED_DESCRIPTOR = 1;
+    private static final int COMMON_DESCRIPTORS = 2;
+    private static final byte REGISTRY_RECORD = 0;
+    private static final byte OBJECT_RECORD = 1;
+    // After this many chained registry records, a registry is written anew, so that reading it stays cheap
+    private static final int MAX_REGISTRY_CHAIN = 64;
+
+    private final NodeStore nodes;
+    // Held for reading by serialize and deserialize, and for writing by retainOnly
+    private final ReadWriteLock retainLock = new ReentrantReadWriteLock();
+    private final WeakIdentityMap<NodeInfo> nodeInfos = new WeakIdentityMap<>();
+    private final WeakIdentityMap<MutableInfo> mutableInfos = new WeakIdentityMap<>();
+    private final AtomicLong nextMutableId = new AtomicLong();
+
+    /**
+     * @param nodes Where node records are stored.  Must not be shared with other serializers, as {@link #retainOnly}
+     *              deletes records they may need.
+     */
+    public SharingStateSerializer(NodeStore nodes, PreKeySource preKeySource, TwoPartySessionStore sessionStore) {
+        super(preKeySource, sessionStore);
+        this.nodes = nodes;
+    }
+
+    @Override
+    public byte[] serialize(DsgmProtocol.State state) {
+        retainLock.readLock().lock();
+        try {
+            NodeInfo root = writeNode(state);
+            root.mutablesHash = writeMutables(root.mutables);
+            ByteBuffer serialized = ByteBuffer.allocate(SERIALIZED_BYTES);
+            serialized.putInt(ROOT_MAGIC).put(root.hash).put(root.mutablesHash);
+            return serialized.array();
+        } catch (IOException exc) {
+            throw new UncheckedIOException("Failed to serialize state", exc);
+        } finally {
+            retainLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public DsgmProtocol.State deserialize(byte[] serialized) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(serialized);
+        if (serialized.length != SERIALIZED_BYTES || buffer.getInt() != ROOT_MAGIC) {
+            throw new InvalidObjectException("Not a serialized state");
+        }
+        byte[] rootHash = new byte[NodeStore.HASH_BYTES];
+        byte[] mutablesHash = new byte[NodeStore.HASH_BYTES];
+        buffer.get(rootHash).get(mutablesHash);
+        retainLock.readLock().lock();
+        try {
+            Record mutablesRecord = readRecord(mutablesHash);
+            DataInputStream in = new DataInputStream(mutablesRecord.payload);
+            int count = in.readInt();
+            if (count != mutablesRecord.children.size()) throw new InvalidObjectException("Invalid state node");
+            MutableReader mutables = new MutableReader();
+            for (int i = 0; i < count; i++) {
+                long id = in.readLong();
+                byte kind = in.readByte();
+                mutables.records.put(id, Pair.of(kind, mutablesRecord.children.get(i)));
+            }
+            Pair<Object, NodeInfo> root = readNode(rootHash, mutables, new HashMap<>());
+            if (!(root.getLeft() instanceof DsgmProtocol.State)) {
+                throw new InvalidObjectException("Not a serialized state");
+            }
+            root.getRight().mutablesHash = mutablesHash;
+            return (DsgmProtocol.State) root.getLeft();
+        } finally {
+            retainLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        nodes.sync();
+    }
+
+    @Override
+    public void retainOnly(Collection<byte[]> live) throws IOException {
+        retainLock.writeLock().lock();
+        try {
+            HashSet<ByteBuffer> reachable = new HashSet<>();
+            ArrayDeque<byte[]> toVisit = new ArrayDeque<>();
+            for (byte[] serialized : live) {
+                toVisit.add(Arrays.copyOfRange(serialized, Integer.BYTES, Integer.BYTES + NodeStore.HASH_BYTES));
+                toVisit.add(Arrays.copyOfRange(serialized, Integer.BYTES + NodeStore.HASH_BYTES, SERIALIZED_BYTES));
+            }
+            for (NodeInfo info : nodeInfos.values()) {
+                toVisit.add(info.hash);
+                if (info.mutablesHash != null) toVisit.add(info.mutablesHash);
+            }
+            for (MutableInfo info : mutableInfos.values()) {
+                MutableRecord record = info.record;
+                if (record != null) toVisit.add(record.hash);
+            }
+            while (!toVisit.isEmpty()) {
+                byte[] hash = toVisit.poll();
+                if (!reachable.add(ByteBuffer.wrap(hash))) continue;
+                byte[] record = nodes.get(hash);
+                if (record == null) continue;
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+                int childCount = in.readInt();
+                for (int i = 0; i < childCount; i++) {
+                    byte[] child = new byte[NodeStore.HASH_BYTES];
+                    in.readFully(child);
+                    toVisit.add(child);
+                }
+            }
+            nodes.retainOnly(reachable);
+        } finally {
+            retainLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes obj, which must be a node, and the nodes it refers to that are not written yet.
+     */
+    private NodeInfo writeNode(Object obj) throws IOException {
+        NodeInfo info = nodeInfos.get(obj);
+        if (info != null) return info;
+        Pair<byte[], Object[]> written = writeRecord(obj);
+        // If another thread wrote obj concurrently, its record is the same
+        return nodeInfos.putIfAbsent(obj, new NodeInfo(written.getLeft(), written.getRight()));
+    }
+
+    /**
+     * Writes a record containing obj, returning its hash and the mutable objects obj refers to.
+     */
+    private Pair<byte[], Object[]> writeRecord(Object obj) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        NodeOutputStream out = new NodeOutputStream(payload, obj);
+        out.writeObject(obj);
+        out.close();
+        byte[] hash = putRecord(out.children, payload);
+        return Pair.of(hash, out.mutables.toArray());
+    }
+
+    private byte[] putRecord(List<byte[]> children, ByteArrayOutputStream payload) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(record);
+        recordOut.writeInt(children.size());
+        for (byte[] child : children) recordOut.write(child);
+        payload.writeTo(recordOut);
+        byte[] recordBytes = record.toByteArray();
+        byte[] hash = NodeStore.hash(recordBytes);
+        nodes.put(hash, recordBytes);
+        return hash;
+    }
+
+    /**
+     * Writes the contents of the given mutable objects, and of those they refer to, that changed since they were last
+     * written, then a record listing all of them.  Returns the hash of the latter.
+     */
+    private byte[] writeMutables(Object[] roots) throws IOException {
+        Set<Object> mutables = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayDeque<Object> toWrite = new ArrayDeque<>(Arrays.asList(roots));
+        ArrayList<byte[]> children = new ArrayList<>();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream payloadOut = new DataOutputStream(payload);
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream entriesOut = new DataOutputStream(entries);
+        while (!toWrite.isEmpty()) {
+            Object mutable = toWrite.poll();
+            if (!mutables.add(mutable)) continue;
+            MutableInfo info = getMutableInfo(mutable);
+            MutableRecord record = writeMutable(mutable, info);
+            children.add(record.hash);
+            entriesOut.writeLong(info.id);
+            entriesOut.writeByte(mutable instanceof MemberRegistry ? REGISTRY_RECORD : OBJECT_RECORD);
+            toWrite.addAll(Arrays.asList(record.mutables));
+        }
+        payloadOut.writeInt(children.size());
+        entries.writeTo(payloadOut);
+        return putRecord(children, payload);
+    }
+
+    /**
+     * Returns the record of mutable's current contents, writing it if mutable changed since it was last written.
+     */
+    private MutableRecord writeMutable(Object mutable, MutableInfo info) throws IOException {
+        // Serializations of different states of the same group may share mutable objects; only one writes them
+        synchronized (info) {
+            MutableRecord previous = info.record;
+            if (mutable instanceof MemberRegistry) {
+                MemberRegistry registry = (MemberRegistry) mutable;
+                int size = registry.size();
+                if (previous != null && previous.version == size) return previous;
+                boolean chained = previous != null && previous.chainLength < MAX_REGISTRY_CHAIN;
+                int from = chained ? (int) previous.version : 0;
+                IdentityKey[] ids = new IdentityKey[size - from];
+                for (int i = from; i < size; i++) ids[i - from] = registry.get(i);
+                ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                try (ObjectOutputStream out = newOutputStream(payload)) {
+                    out.writeObject(new RegistryChunk(from, ids));
+                }
+                byte[] hash = putRecord(chained ? Collections.singletonList(previous.hash) :
+                        Collections.emptyList(), payload);
+                info.record = new MutableRecord(size, hash, chained ? previous.chainLength + 1 : 1, new Object[0]);
+            } else {
+                long version = ((StrongRemoveDgm) mutable).getModificationCount();
+                if (previous != null && previous.version == version) return previous;
+                Pair<byte[], Object[]> written = writeRecord(mutable);
+                info.record = new MutableRecord(version, written.getLeft(), 1, written.getRight());
+            }
+            return info.record;
+        }
+    }
+
+    private MutableInfo getMutableInfo(Object mutable) {
+        MutableInfo info = mutableInfos.get(mutable);
+        if (info != null) return info;
+        return mutableInfos.putIfAbsent(mutable, new MutableInfo(nextMutableId.getAndIncrement()));
+    }
+
+    private Record readRecord(byte[] hash) throws IOException {
+        byte[] record = nodes.get(hash);
+        if (record == null) throw new InvalidObjectException("Missing state node");
+        DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+        int childCount = recordIn.readInt();
+        if (childCount < 0 || childCount > (record.length - Integer.BYTES) / NodeStore.HASH_BYTES) {
+            throw new InvalidObjectException("Invalid state node");
+        }
+        List<byte[]> children = new ArrayList<>(childCount);
+        for (int i = 0; i < childCount; i++) {
+            byte[] child = new byte[NodeStore.HASH_BYTES];
+            recordIn.readFully(child);
+            children.add(child);
+        }
+        return new Record(children, recordIn);
+    }
+
+    /**
+     * Reads the node with the given hash, returning it and the mutable objects it refers to.  Nodes read earlier
+     * during the same deserialization are reused from cache, so that they are shared as they were when written.
+     */
+    private Pair<Object, NodeInfo> readNode(
+            byte[] hash, MutableReader mutables,
+            Map<ByteBuffer, Pair<Object, NodeInfo>> cache) throws IOException {
+        Pair<Object, NodeInfo> cached = cache.get(ByteBuffer.wrap(hash));
+        if (cached != null) return cached;
+        Pair<Object, Object[]> read = readObjectRecord(hash, mutables, cache);
+        NodeInfo info = new NodeInfo(hash, read.getRight());
+        // Later states that still contain the object need not write it again
+        nodeInfos.put(read.getLeft(), info);
+        Pair<Object, NodeInfo> result = Pair.of(read.getLeft(), info);
+        cache.put(ByteBuffer.wrap(hash), result);
+        return result;
+    }
+
+    /**
+     * Reads a record written by {@link #writeRecord}, returning its object and the mutable objects it refers to.
+     */
+    private Pair<Object, Object[]> readObjectRecord(
+            byte[] hash, MutableReader mutables,
+            Map<ByteBuffer, Pair<Object, NodeInfo>> cache) throws IOException {
+        Record record = readRecord(hash);
+        NodeInputStream in = new NodeInputStream(record.payload, record.children, mutables, cache);
+        Object obj;
+        try {
+            obj = in.readObject();
+        } catch (ClassNotFoundException exc) {
+            throw new InvalidObjectException("Not a serialized state node: " + exc);
+        }
+        in.close();
+        return Pair.of(obj, in.mutables.toArray());
+    }
+
+    /**
+     * Reads a chain of records written for a {@link MemberRegistry} by {@link #writeMutable}, oldest first.
+     */
+    private MemberRegistry readRegistry(byte[] hash, MutableInfo info) throws IOException {
+        ArrayList<RegistryChunk> chunks = new ArrayList<>();
+        byte[] next = hash;
+        while (next != null) {
+            Record record = readRecord(next);
+            if (record.children.size() > 1) throw new InvalidObjectException("Invalid registry node");
+            try (ObjectInputStream in = newInputStream(record.payload)) {
+                chunks.add((RegistryChunk) in.readObject());
+            } catch (ClassNotFoundException | ClassCastException exc) {
+                throw new InvalidObjectException("Not a serialized registry: " + exc);
+            }
+            next = record.children.isEmpty() ? null : record.children.get(0);
+            if (chunks.size() > MAX_REGISTRY_CHAIN) throw new InvalidObjectException("Invalid registry node");
+        }
+        Collections.reverse(chunks);
+        MemberRegistry registry = new MemberRegistry();
+        for (RegistryChunk chunk : chunks) {
+            if (chunk.from != registry.size()) throw new InvalidObjectException("Invalid registry node");
+            for (IdentityKey id : chunk.ids) registry.register(id);
+        }
+        info.record = new MutableRecord(registry.size(), hash, chunks.size(), new Object[0]);
+        return registry;
+    }
+
+    private static boolean isNode(Object obj) {
+        return obj instanceof DsgmProtocol.State || obj instanceof DcgkaProtocol.State ||
+                obj instanceof Orderer.State || obj instanceof ForwardSecureEncryptionProtocol.State ||
+                obj instanceof SignatureProtocol.State || TREE_NODE_CLASSES.contains(obj.getClass().getName()) ||
+                obj instanceof TwoPartyProtocol || obj instanceof PreKeySecret || obj instanceof IdentityKeyPair ||
+                obj instanceof ModularMessage || obj instanceof SignedMessage;
+    }
+
+    private static boolean isMutable(Object obj) {
+        return obj instanceof MemberRegistry || obj instanceof StrongRemoveDgm;
+    }
+
+
+    /**
+     * Writes one node, replacing the nodes and mutable objects it refers to with references.
+     */
+    private final class NodeOutputStream extends ObjectOutputStream {
+        final Object node;
+        final List<byte[]> children = new ArrayList<>();
+        final Set<Object> mutables = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        NodeOutputStream(OutputStream out, Object node) throws IOException {
+            super(out);
+            this.node = node;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (obj == node) return obj;
+            if (isMutable(obj)) {
+                mutables.add(obj);
+                return new MutableReference(getMutableInfo(obj).id);
+            }
+            if (isNode(obj)) {
+                NodeInfo child = writeNode(obj);
+                children.add(child.hash);
+                mutables.addAll(Arrays.asList(child.mutables));
+                // The record lists the children's hashes, so the reference is just an index into that list
+                return new NodeReference(children.size() - 1);
+            }
+            return SharingStateSerializer.this.replaceObject(obj);
+        }
+
+        @Override
+        protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+            // Nodes are small, so full class descriptors would dominate them; write just the name (or its index)
+            // where the local class suffices to read it back
+            Class<?> clazz = desc.forClass();
+            if (clazz == null || clazz.isPrimitive() || clazz.isArray() || clazz.isInterface() ||
+                    desc.getSerialVersionUID() == 0) {
+                write(FULL_DESCRIPTOR);
+                super.writeClassDescriptor(desc);
+                return;
+            }
+            int index = COMMON_CLASSES.indexOf(desc.getName());
+            if (index >= 0) {
+                write(COMMON_DESCRIPTORS + index);
+            } else {
+                write(NAMED_DESCRIPTOR);
+                writeUTF(desc.getName());
+            }
+            // Lets the reader detect that the local class is no longer compatible, as a full descriptor would
+            writeLong(desc.getSerialVersionUID());
+        }
+    }
+
+    private final class NodeInputStream extends ObjectInputStream {
+        final List<byte[]> children;
+        final MutableReader mutableReader;
+        final Map<ByteBuffer, Pair<Object, NodeInfo>> cache;
+        final Set<Object> mutables = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        NodeInputStream(InputStream in, List<byte[]> children, MutableReader mutableReader,
+                        Map<ByteBuffer, Pair<Object, NodeInfo>> cache) throws IOException {
+            super(in);
+            this.children = children;
+            this.mutableReader = mutableReader;
+            this.cache = cache;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            if (obj instanceof MutableReference) {
+                Object mutable = mutableReader.get(((MutableReference) obj).id, cache);
+                mutables.add(mutable);
+                return mutable;
+            }
+            if (obj instanceof NodeReference) {
+                int index = ((NodeReference) obj).index;
+                if (index < 0 || index >= children.size()) throw new InvalidObjectException("Invalid node reference");
+                Pair<Object, NodeInfo> child = readNode(children.get(index), mutableReader, cache);
+                mutables.addAll(Arrays.asList(child.getRight().mutables));
+                return child.getLeft();
+            }
+            return SharingStateSerializer.this.resolveObject(obj);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            checkAllowedClass(desc.getName());
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException {
+            throw new InvalidClassException("Proxy classes are not allowed in serialized states");
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            int type = read();
+            if (type == FULL_DESCRIPTOR) return super.readClassDescriptor();
+            String name;
+            if (type == NAMED_DESCRIPTOR) {
+                name = readUTF();
+            } else if (type >= COMMON_DESCRIPTORS && type < COMMON_DESCRIPTORS + COMMON_CLASSES.size()) {
+                name = COMMON_CLASSES.get(type - COMMON_DESCRIPTORS);
+            } else {
+                throw new InvalidObjectException("Invalid class descriptor");
+            }
+            checkAllowedClass(name);
+            long serialVersionUID = readLong();
+            ClassLoader loader = SharingStateSerializer.class.getClassLoader();
+            ObjectStreamClass desc = ObjectStreamClass.lookupAny(Class.forName(name, false, loader));
+            if (desc.getSerialVersionUID() != serialVersionUID) {
+                throw new InvalidClassException(name, "stream serialVersionUID " + serialVersionUID +
+                        " does not match local class serialVersionUID " + desc.getSerialVersionUID());
+            }
+            return desc;
+        }
+    }
+
+    private static final class NodeInfo {
+        final byte[] hash;
+        // The mutable objects the node refers to, directly or through other nodes
+        final Object[] mutables;
+        // For a state, the record of its mutable objects' contents when it was last serialized
+        volatile byte[] mutablesHash;
+
+        NodeInfo(byte[] hash, Object[] mutables) {
+            this.hash = hash;
+            this.mutables = mutables;
+        }
+    }
+
+    private static final class MutableInfo {
+        final long id;
+        // The record of the object's contents that was last written or read; replaced with the MutableInfo locked
+        volatile MutableRecord record;
+
+        MutableInfo(long id) {
+            this.id = id;
+        }
+    }
+
+    private static final class MutableRecord {
+        // For a registry its size, else the modification count, when the record was written
+        final long version;
+        final byte[] hash;
+        // The number of records in a registry's chain
+        final int chainLength;
+        // The other mutable objects the record refers to
+        final Object[] mutables;
+
+        MutableRecord(long version, byte[] hash, int chainLength, Object[] mutables) {
+            this.version = version;
+            this.hash = hash;
+            this.chainLength = chainLength;
+            this.mutables = mutables;
+        }
+    }
+
+    private static final class Record {
+        final List<byte[]> children;
+        final InputStream payload;
+
+        Record(List<byte[]> children, InputStream payload) {
+            this.children = children;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Reads the mutable objects of one state on demand, given the records listed for them.
+     */
+    private final class MutableReader {
+        final HashMap<Long, Pair<Byte, byte[]>> records = new HashMap<>();
+        final HashMap<Long, Object> read = new HashMap<>();
+        final HashSet<Long> reading = new HashSet<>();
+
+        Object get(long id, Map<ByteBuffer, Pair<Object, NodeInfo>> cache) throws IOException {
+            Object mutable = read.get(id);
+            if (mutable != null) return mutable;
+            Pair<Byte, byte[]> record = records.get(id);
+            if (record == null || !reading.add(id)) throw new InvalidObjectException("Missing mutable state object");
+            MutableInfo info = new MutableInfo(id);
+            if (record.getLeft() == REGISTRY_RECORD) {
+                mutable = readRegistry(record.getRight(), info);
+            } else {
+                Pair<Object, Object[]> object = readObjectRecord(record.getRight(), this, cache);
+                if (!(object.getLeft() instanceof StrongRemoveDgm)) {
+                    throw new InvalidObjectException("Not a serialized mutable state object");
+                }
+                mutable = object.getLeft();
+                info.record = new MutableRecord(((StrongRemoveDgm) mutable).getModificationCount(),
+                        record.getRight(), 1, object.getRight());
+            }
+            read.put(id, mutable);
+            mutableInfos.put(mutable, info);
+            // Mutable objects created later may end up in the same state as this one
+            nextMutableId.accumulateAndGet(id + 1, Math::max);
+            return mutable;
+        }
+    }
+
+    /**
+     * The keys registered in a {@link MemberRegistry} from index {@code from} on.
+     */
+    private static final class RegistryChunk implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int from;
+        final IdentityKey[] ids;
+
+        RegistryChunk(int from, IdentityKey[] ids) {
+            this.from = from;
+            this.ids = ids;
+        }
+    }
+
+    private static final class NodeReference implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int index;
+
+        NodeReference(int index) {
+            this.index = index;
+        }
+    }
+
+    private static final class MutableReference implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final long id;
+
+        MutableReference(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Thread-safe map from objects, compared by identity, that does not keep them alive.
+     */
+    private static final class WeakIdentityMap<V> {
+        private final ConcurrentHashMap<Key, V> map = new ConcurrentHashMap<>();
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+        V get(Object key) {
+            expunge();
+            return map.get(new Key(key, null));
+        }
+
+        void put(Object key, V value) {
+            expunge();
+            map.put(new Key(key, queue), value);
+        }
+
+        /**
+         * Maps key to value unless it is mapped already, and returns the value it is mapped to.
+         */
+        V putIfAbsent(Object key, V value) {
+            expunge();
+            V existing = map.putIfAbsent(new Key(key, queue), value);
+            return (existing != null) ? existing : value;
+        }
+
+        Collection<V> values() {
+            expunge();
+            return map.values();
+        }
+
+        private void expunge() {
+            Reference<?> reference;
+            while ((reference = queue.poll()) != null) map.remove(reference);
+        }
+
+        private static final class Key extends WeakReference<Object> {
+            private final int hash;
+
+            Key(Object referent, ReferenceQueue<Object> queue) {
+                super(referent, queue);
+                hash = System.identityHashCode(referent);
+            }
+
+            @Override
+            public int hashCode() {
+                return hash;
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                if (this == other) return true;
+                if (!(other instanceof Key)) return false;
+                Object referent = get();
+                return referent != null && referent == ((Key) other).get();
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.trvedata.sgm.storage;
+
+import org.trvedata.sgm.DsgmProtocol;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Converts {@link DsgmProtocol.State}s to bytes and back, for a {@link StateStore}.
+ * <p>
+ * The bytes may refer to data the serializer keeps elsewhere (see {@link SharingStateSerializer}); the two default
+ * methods below let a store keep that data consistent with its own.
+ */
+public interface StateSerializer {
+    byte[] serialize(DsgmProtocol.State state);
+
+    /**
+     * @throws IOException If {@code serialized} is not a state serialized by this serializer.
+     */
+    DsgmProtocol.State deserialize(byte[] serialized) throws IOException;
+
+    /**
+     * Makes durable any data that the results of {@link #serialize} so far depend on.  A store calls this before it
+     * makes those results durable.
+     */
+    default void sync() throws IOException {
+    }
+
+    /**
+     * Tells the serializer that of the results of {@link #serialize} so far, the store only still needs {@code
+     * live}, so that data only needed by other results may be deleted.  Results returned later are unaffected.
+     */
+    default void retainOnly(Collection<byte[]> live) throws IOException {
+    }
+}
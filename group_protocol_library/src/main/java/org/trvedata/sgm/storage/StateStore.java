@@ -0,0 +1,28 @@
+package org.trvedata.sgm.storage;
+
+import org.trvedata.sgm.DsgmProtocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Durable storage for the latest {@link DsgmProtocol.State} of each of a user's groups, so that a restarted client
+ * can resume where it left off without any protocol traffic.
+ * <p>
+ * A client should commit the state resulting from each operation or received message before sending the messages that
+ * operation produced: otherwise a crash could lose secrets that other members already rely on.  Conversely, a
+ * received message whose resulting state was not committed before a crash must be delivered again.
+ */
+public interface StateStore extends Closeable {
+    /**
+     * Records {@code state} as the latest state of group {@code groupId}, returning once it is durable.  May be called
+     * concurrently for different groups, but the caller must serialize commits to the same group.
+     */
+    void commit(String groupId, DsgmProtocol.State state) throws IOException;
+
+    /**
+     * Returns the latest committed state of each group, as of when this store was opened.
+     */
+    Map<String, DsgmProtocol.State> recover() throws IOException;
+}
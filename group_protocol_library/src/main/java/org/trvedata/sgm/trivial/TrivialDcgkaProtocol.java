@@ -173,6 +173,8 @@ public class TrivialDcgkaProtocol implements DcgkaProtocol<AckOrderer.Timestamp,
     }
 
     public static class State implements DcgkaProtocol.State {
+        private static final long serialVersionUID = 1L;
+
         private final IdentityKey id;
         private final HashSet<IdentityKey> members;
         private final HashSet<IdentityKey> removedMembers;
@@ -20,6 +20,8 @@ public class TrivialDsgmProtocol extends ModularDsgm<AckOrderer.Timestamp, Messa
     public static class State extends ModularDsgm.State<TrivialDcgkaProtocol.State,
             TrivialForwardSecureEncryptionProtocol.State, TrivialOrderer.State<Pair<ModularMessage, SignedMessage>>,
             TrivialSignatureProtocol.State> {
+        private static final long serialVersionUID = 1L;
+
         public State(IdentityKey id) {
             super(id, new TrivialDcgkaProtocol.State(id),
                     new TrivialOrderer.State<>(), new TrivialSignatureProtocol.State());
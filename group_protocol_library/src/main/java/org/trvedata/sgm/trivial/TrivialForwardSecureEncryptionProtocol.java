@@ -24,5 +24,6 @@ public class TrivialForwardSecureEncryptionProtocol implements
     }
 
     public static class State implements ForwardSecureEncryptionProtocol.State {
+        private static final long serialVersionUID = 1L;
     }
 }
@@ -53,6 +53,8 @@ public class TrivialOrderer<M, T, I> implements Orderer<M, T, I, TrivialOrderer.
     }
 
     public static class State<M> implements Orderer.State {
+        private static final long serialVersionUID = 1L;
+
         private Queue<Pair<M, IdentityKey>> messages;
 
         private State(Queue<Pair<M, IdentityKey>> messages) {
@@ -4,6 +4,8 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.trvedata.sgm.SignatureProtocol;
 import org.trvedata.sgm.crypto.IdentityKey;
 
+import java.nio.ByteBuffer;
+
 /**
  * Trivial implementation of {@link SignatureProtocol}, which fulfills all the class's contracts but does
  * not do any cryptography.
@@ -19,6 +21,11 @@ public class TrivialSignatureProtocol implements SignatureProtocol<TrivialSignat
         return true;
     }
 
+    @Override
+    public boolean verify(State state, boolean isWelcome, ByteBuffer message, IdentityKey sender, Signature signature) {
+        return true;
+    }
+
     @Override
     public Pair<State, Update> update(State state) {
         return Pair.of(state, Update.of(new byte[0]));
@@ -45,5 +52,6 @@ public class TrivialSignatureProtocol implements SignatureProtocol<TrivialSignat
     }
 
     public static class State implements SignatureProtocol.State {
+        private static final long serialVersionUID = 1L;
     }
 }
@@ -0,0 +1,376 @@
+package org.trvedata.sgm;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.junit.Before;
+import org.junit.Test;
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.crypto.IdentityKeyPair;
+import org.trvedata.sgm.crypto.InMemoryPreKeySource;
+import org.trvedata.sgm.crypto.PreKeySecret;
+import org.trvedata.sgm.message.CiphertextBundle;
+import org.trvedata.sgm.message.MessageId;
+import org.trvedata.sgm.misc.DeterministicRandomSource;
+import org.trvedata.sgm.misc.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class FullDcgkaProtocolTest {
+
+    private final FullDcgkaProtocol protocol = new FullDcgkaProtocol();
+    private final InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+    private final HashMap<IdentityKey, FullDcgkaProtocol.State> states = new HashMap<>();
+    private final HashMap<IdentityKey, Integer> messageNumbers = new HashMap<>();
+    private IdentityKey alice, bob, charlie, dave, eve;
+
+    @Before
+    public void setUp() {
+        alice = newUser();
+        bob = newUser();
+        charlie = newUser();
+        dave = newUser();
+        eve = newUser();
+    }
+
+    @Test
+    public void testPprf_whenLastAckProcessed_thenPruned() {
+        Message create = own(alice, protocol.create(states.get(alice), Arrays.asList(bob, charlie)));
+        List<Message> acks = deliver(create, bob, charlie);
+        assertThat(acks).hasSize(2);
+        assertThat(protocol.getPprfCount(states.get(alice))).isEqualTo(1);
+
+        deliver(acks.get(0), alice, charlie);
+        // Only charlie has popped all of alice, bob and charlie's values
+        assertThat(protocol.getPprfCount(states.get(alice))).isEqualTo(1);
+        assertThat(protocol.getPprfCount(states.get(bob))).isEqualTo(1);
+        assertThat(protocol.getPprfCount(states.get(charlie))).isEqualTo(0);
+
+        deliver(acks.get(1), alice, bob);
+        for (IdentityKey member : Arrays.asList(alice, bob, charlie)) {
+            assertThat(protocol.getPprfCount(states.get(member))).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testPprf_whenUpdatesFullyAcked_thenReclaimedCounted() {
+        createGroup(alice, bob, charlie);
+        for (int i = 0; i < 5; i++) {
+            Message update = own(alice, protocol.update(states.get(alice)));
+            deliverAll(deliver(update, bob, charlie), alice, bob, charlie);
+        }
+
+        // The creation's PPRF and those of the updates
+        for (IdentityKey member : Arrays.asList(alice, bob, charlie)) {
+            assertThat(protocol.getPprfCount(states.get(member))).isEqualTo(0);
+            assertThat(protocol.getReclaimedPprfCount(states.get(member))).isEqualTo(6);
+        }
+    }
+
+    @Test
+    public void testPprf_whenAckArrivesAfterPruning_thenIgnored() {
+        createGroup(alice, bob, charlie);
+        // alice updates while charlie concurrently adds dave, so dave is not a recipient of the update
+        Message update = own(alice, protocol.update(states.get(alice)));
+        Triple<FullDcgkaProtocol.State, DcgkaProtocol.ControlMessage, DcgkaProtocol.ControlMessage> added =
+                protocol.add(states.get(charlie), dave);
+        states.put(charlie, added.getLeft());
+        Message add = own(charlie, Pair.of(states.get(charlie), added.getRight()));
+        Message welcome = new Message(charlie, added.getMiddle(),
+                new AckOrderer.Timestamp(add.timestamp.messageId, null, null));
+        List<Message> welcomeAck = deliver(welcome, dave);
+        List<Message> addAcks = deliver(add, alice, bob);
+        deliverAll(welcomeAck, alice, bob, charlie);
+        List<Message> updateAcks = deliver(update, bob, charlie, dave);
+        // alice's ack of the add follows her update, so dave can only get it now
+        deliverAll(addAcks, alice, bob, charlie, dave);
+
+        // dave has no PPRF for the update, and so no use for the other acks of it
+        deliverAll(updateAcks.subList(0, 2), alice, bob, charlie);
+        // Everyone in alice's view has acked the update, so bob has pruned its PPRF before dave's ack arrives
+        assertThat(protocol.getPprfCount(states.get(bob))).isEqualTo(0);
+
+        deliverAll(updateAcks.subList(2, 3), alice, bob, charlie);
+        assertThat(protocol.getPprfCount(states.get(bob))).isEqualTo(0);
+    }
+
+    @Test
+    public void testPprf_whenRemoveShrinksSendersView_thenEarlierRemovePruned() {
+        createGroup(alice, bob, charlie, dave, eve);
+        // eve never acks alice's removal of dave, so its PPRF stays until alice removes eve too
+        Message removeDave = own(alice, protocol.remove(states.get(alice), dave));
+        deliverAll(deliver(removeDave, bob, charlie), alice, bob, charlie);
+        assertThat(protocol.getPprfCount(states.get(bob))).isEqualTo(1);
+
+        Message removeEve = own(alice, protocol.remove(states.get(alice), eve));
+        deliverAll(deliver(removeEve, bob, charlie), alice, bob, charlie);
+        for (IdentityKey member : Arrays.asList(alice, bob, charlie)) {
+            assertThat(protocol.getPprfCount(states.get(member))).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void testCreate_whenProtocolsHaveSameDeterministicRandomSource_thenSameMessage() {
+        List<IdentityKeyPair> keys = Arrays.asList(IdentityKey.generateKeyPair(), IdentityKey.generateKeyPair(),
+                IdentityKey.generateKeyPair());
+        byte[] first = createDeterministically(keys,
+                new FullDcgkaProtocol(null, false, new DeterministicRandomSource(1)));
+        byte[] second = createDeterministically(keys,
+                new FullDcgkaProtocol(null, false, new DeterministicRandomSource(1)));
+        assertThat(second).isEqualTo(first);
+        // Another protocol's deterministic source does not affect the default source
+        assertThat(createDeterministically(keys, protocol)).isNotEqualTo(first);
+    }
+
+    @Test
+    public void testGenerateSeedSecret_whenParallelWithSameDeterministicRandomSource_thenSameMessagesAsSequential() {
+        List<IdentityKeyPair> keys = new ArrayList<>();
+        for (int i = 0; i < 6; i++) keys.add(IdentityKey.generateKeyPair());
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<byte[]> sequential = createAndUpdateDeterministically(keys,
+                    new FullDcgkaProtocol(null, false, new DeterministicRandomSource(1)));
+            List<byte[]> parallel = createAndUpdateDeterministically(keys,
+                    new FullDcgkaProtocol(pool, false, new DeterministicRandomSource(1)));
+            assertThat(parallel).hasSameSizeAs(sequential);
+            for (int i = 0; i < sequential.size(); i++) assertThat(parallel.get(i)).isEqualTo(sequential.get(i));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCommittedCiphertexts_whenOwnPartOrWholeBundle_thenAccepted() throws Exception {
+        CommittedCreate create = new CommittedCreate();
+        assertThat(create.processAtBob(create.whole).updateSecret).isNotNull();
+        assertThat(create.processAtBob(Utils.serialize(create.bobsPart)).updateSecret).isNotNull();
+    }
+
+    @Test
+    public void testCommittedCiphertexts_whenLeafTampered_thenRejected() throws Exception {
+        CommittedCreate create = new CommittedCreate();
+        byte[] leaf = Utils.asArray(create.bobsPart.getCiphertexts().get(0));
+        leaf[0] ^= 1;
+        create.bobsPart.setCiphertexts(Collections.singletonList(ByteBuffer.wrap(leaf)));
+        create.assertRejected(Utils.serialize(create.bobsPart), "Ciphertext does not match ciphertextsRoot");
+    }
+
+    @Test
+    public void testCommittedCiphertexts_whenWrongCount_thenRejected() throws Exception {
+        CommittedCreate create = new CommittedCreate();
+        CiphertextBundle bundle = new CiphertextBundle();
+        Utils.deserialize(bundle, create.whole);
+        bundle.setCiphertexts(new ArrayList<>(bundle.getCiphertexts().subList(0, bundle.getCiphertextsSize() - 1)));
+        create.assertRejected(Utils.serialize(bundle), "Ciphertexts do not match ciphertextsRoot");
+    }
+
+    @Test
+    public void testCommittedCiphertexts_whenTruncated_thenRejected() throws Exception {
+        CommittedCreate create = new CommittedCreate();
+        create.assertRejected(Arrays.copyOf(create.whole, create.whole.length / 2),
+                "Failed to deserialize CiphertextBundle");
+        byte[] part = Utils.serialize(create.bobsPart);
+        create.assertRejected(Arrays.copyOf(part, part.length - 1), "Failed to deserialize CiphertextBundle");
+    }
+
+    @Test
+    public void testCommittedCiphertexts_whenCiphertextsFieldRepeated_thenRejected() throws Exception {
+        CommittedCreate create = new CommittedCreate();
+        CiphertextBundle bundle = new CiphertextBundle();
+        Utils.deserialize(bundle, create.whole);
+        // Together, the two fields hash to the signed root, but each restarts the count that ours is picked by
+        List<ByteBuffer> ciphertexts = bundle.getCiphertexts();
+        TMemoryBuffer buffer = new TMemoryBuffer(create.whole.length);
+        TCompactProtocol out = new TCompactProtocol(buffer);
+        out.writeStructBegin(new TStruct("CiphertextBundle"));
+        for (List<ByteBuffer> half : Arrays.asList(ciphertexts.subList(0, 1),
+                ciphertexts.subList(1, ciphertexts.size()))) {
+            out.writeFieldBegin(new TField("ciphertexts", TType.LIST,
+                    CiphertextBundle._Fields.CIPHERTEXTS.getThriftFieldId()));
+            out.writeListBegin(new TList(TType.STRING, half.size()));
+            for (ByteBuffer ciphertext : half) out.writeBinary(ciphertext);
+            out.writeListEnd();
+            out.writeFieldEnd();
+        }
+        out.writeFieldStop();
+        out.writeStructEnd();
+        create.assertRejected(Arrays.copyOf(buffer.getArray(), buffer.length()), "Repeated ciphertexts");
+    }
+
+    @Test
+    public void testCommittedCiphertexts_whenProofWithMoreThanOneCiphertext_thenRejected() throws Exception {
+        CommittedCreate create = new CommittedCreate();
+        List<ByteBuffer> ciphertexts = new ArrayList<>(create.bobsPart.getCiphertexts());
+        ciphertexts.add(ciphertexts.get(0));
+        create.bobsPart.setCiphertexts(ciphertexts);
+        create.assertRejected(Utils.serialize(create.bobsPart), "Ciphertext does not match ciphertextsRoot");
+    }
+
+    /**
+     * A group creation by alice, with bob, charlie, dave and eve, whose ciphertexts are committed to by a Merkle root.
+     */
+    private class CommittedCreate {
+        final FullDcgkaProtocol committing = new FullDcgkaProtocol(null, true);
+        final DcgkaProtocol.ControlMessage message;
+        final AckOrderer.Timestamp timestamp;
+        // The attachment with all ciphertexts
+        final byte[] whole;
+        // The attachment split off for bob
+        final CiphertextBundle bobsPart = new CiphertextBundle();
+
+        CommittedCreate() throws TException {
+            message = committing.create(states.get(alice), Arrays.asList(bob, charlie, dave, eve)).getRight();
+            timestamp = new AckOrderer.Timestamp(nextMessageId(alice), null, null);
+            whole = message.attachment;
+            Utils.deserialize(bobsPart, committing.splitAttachment(whole).get(bob));
+        }
+
+        DcgkaProtocol.ProcessReturn<FullDcgkaProtocol.State> processAtBob(byte[] attachment) {
+            return committing.process(states.get(bob), DcgkaProtocol.ControlMessage.of(message.getBytes(), attachment),
+                    alice, timestamp);
+        }
+
+        /**
+         * Asserts that processing the message with the given attachment fails for the given reason.
+         */
+        void assertRejected(byte[] attachment, String reason) {
+            assertThatThrownBy(() -> processAtBob(attachment)).isInstanceOf(IllegalArgumentException.class)
+                    .hasStackTraceContaining(reason);
+        }
+    }
+
+    /**
+     * Creates a group of the given users, with the first as creator, from freshly registered pre-keys that are the
+     * same on every call.
+     */
+    private byte[] createDeterministically(List<IdentityKeyPair> keys, FullDcgkaProtocol protocol) {
+        Pair<FullDcgkaProtocol.State, List<IdentityKey>> creator = newDeterministicCreator(keys);
+        return protocol.create(creator.getLeft(), creator.getRight()).getRight().getBytes();
+    }
+
+    /**
+     * Like {@link #createDeterministically}, but then has the creator process its create message and update twice.
+     * Returns the three messages; each depends on the state left by the previous ones.
+     */
+    private List<byte[]> createAndUpdateDeterministically(List<IdentityKeyPair> keys, FullDcgkaProtocol protocol) {
+        Pair<FullDcgkaProtocol.State, List<IdentityKey>> creator = newDeterministicCreator(keys);
+        IdentityKey id = keys.get(0).getPublicKey();
+        ArrayList<byte[]> messages = new ArrayList<>();
+        Pair<FullDcgkaProtocol.State, DcgkaProtocol.ControlMessage> generated =
+                protocol.create(creator.getLeft(), creator.getRight());
+        for (int i = 1; i <= 3; i++) {
+            messages.add(generated.getRight().getBytes());
+            FullDcgkaProtocol.State state = protocol.process(generated.getLeft(), generated.getRight(), id,
+                    new AckOrderer.Timestamp(new MessageId(id, i), null, null)).state;
+            if (i < 3) generated = protocol.update(state);
+        }
+        return messages;
+    }
+
+    /**
+     * Returns the state of the first of the given users, from freshly registered pre-keys that are the same on every
+     * call, and the other users.
+     */
+    private Pair<FullDcgkaProtocol.State, List<IdentityKey>> newDeterministicCreator(List<IdentityKeyPair> keys) {
+        InMemoryPreKeySource source = new InMemoryPreKeySource();
+        ArrayList<IdentityKey> members = new ArrayList<>();
+        FullDcgkaProtocol.State state = null;
+        for (IdentityKeyPair pair : keys) {
+            PreKeySecret secret = source.registerUser(pair, 1, new DeterministicRandomSource(2));
+            if (state == null) state = new FullDcgkaProtocol.State(pair.getPublicKey(), secret, source);
+            else members.add(pair.getPublicKey());
+        }
+        return Pair.of(state, members);
+    }
+
+    private IdentityKey newUser() {
+        IdentityKeyPair keys = IdentityKey.generateKeyPair();
+        IdentityKey id = keys.getPublicKey();
+        states.put(id, new FullDcgkaProtocol.State(id, preKeySource.registerUser(keys, 3), preKeySource));
+        return id;
+    }
+
+    /**
+     * Creates a group of the given members, in which every member has processed every ack.
+     */
+    private void createGroup(IdentityKey creator, IdentityKey... others) {
+        Message create = own(creator, protocol.create(states.get(creator), Arrays.asList(others)));
+        ArrayList<IdentityKey> members = new ArrayList<>(Arrays.asList(others));
+        members.add(creator);
+        deliverAll(deliver(create, others), members.toArray(new IdentityKey[0]));
+    }
+
+    /**
+     * Processes a message that sender just generated at sender, like {@link ModularDsgm} does.
+     */
+    private Message own(IdentityKey sender, Pair<FullDcgkaProtocol.State, DcgkaProtocol.ControlMessage> generated) {
+        states.put(sender, generated.getLeft());
+        Message message = new Message(sender, generated.getRight(),
+                new AckOrderer.Timestamp(nextMessageId(sender), null, null));
+        states.put(sender, protocol.process(states.get(sender), message.content, sender, message.timestamp).state);
+        return message;
+    }
+
+    /**
+     * Processes message at each recipient and returns their responses, which their senders have processed.
+     */
+    private List<Message> deliver(Message message, IdentityKey... recipients) {
+        ArrayList<Message> responses = new ArrayList<>();
+        for (IdentityKey recipient : recipients) {
+            DcgkaProtocol.ProcessReturn<FullDcgkaProtocol.State> result = protocol.process(states.get(recipient),
+                    message.content, message.sender, message.timestamp);
+            states.put(recipient, result.state);
+            if (result.responseMessage.getBytes() != null) {
+                Message response = new Message(recipient, result.responseMessage,
+                        new AckOrderer.Timestamp(nextMessageId(recipient), message.timestamp.messageId, null));
+                states.put(recipient, protocol.process(states.get(recipient), response.content, recipient,
+                        response.timestamp).state);
+                responses.add(response);
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Delivers each message to the recipients other than its sender; the messages must not cause responses.
+     */
+    private void deliverAll(List<Message> messages, IdentityKey... recipients) {
+        for (Message message : messages) {
+            for (IdentityKey recipient : recipients) {
+                if (!recipient.equals(message.sender)) assertThat(deliver(message, recipient)).isEmpty();
+            }
+        }
+    }
+
+    private MessageId nextMessageId(IdentityKey sender) {
+        return new MessageId(sender, messageNumbers.merge(sender, 1, Integer::sum));
+    }
+
+    private static class Message {
+        final IdentityKey sender;
+        final DcgkaProtocol.ControlMessage content;
+        final AckOrderer.Timestamp timestamp;
+
+        Message(IdentityKey sender, DcgkaProtocol.ControlMessage content, AckOrderer.Timestamp timestamp) {
+            this.sender = sender;
+            this.content = content;
+            this.timestamp = timestamp;
+        }
+    }
+}
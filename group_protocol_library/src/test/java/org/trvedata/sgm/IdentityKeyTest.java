@@ -4,6 +4,14 @@ import org.junit.Test;
 import org.trvedata.sgm.crypto.IdentityKey;
 import org.trvedata.sgm.crypto.IdentityKeyPair;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class IdentityKeyTest {
@@ -29,4 +37,69 @@ public class IdentityKeyTest {
         IdentityKey deserialized = new IdentityKey(identityKey.serialize());
         assertThat(identityKey.equals(deserialized)).isTrue();
     }
+
+    @Test
+    public void test_compareTo_thenMatchesByteBufferOrder() {
+        Random random = new Random(1234);
+        for (int i = 0; i < 1000; i++) {
+            byte[] first = new byte[32];
+            byte[] second = new byte[32];
+            random.nextBytes(first);
+            random.nextBytes(second);
+            // Make the keys share a random-length prefix, so that all lanes get compared
+            System.arraycopy(first, 0, second, 0, random.nextInt(33));
+            int expected = Integer.signum(ByteBuffer.wrap(first).compareTo(ByteBuffer.wrap(second)));
+            assertThat(Integer.signum(new IdentityKey(first).compareTo(new IdentityKey(second)))).isEqualTo(expected);
+            assertThat(new IdentityKey(first).equals(new IdentityKey(second))).isEqualTo(expected == 0);
+        }
+    }
+
+    @Test
+    public void test_intern_thenSameInstanceForEqualKeys() {
+        IdentityKey identityKey = IdentityKey.generateKeyPair().getPublicKey();
+        byte[] serialized = identityKey.serialize().clone();
+        IdentityKey interned = IdentityKey.intern(serialized);
+        assertThat(interned).isEqualTo(identityKey);
+        assertThat(interned.hashCode()).isEqualTo(identityKey.hashCode());
+        assertThat(IdentityKey.intern(identityKey.serialize())).isSameAs(interned);
+        // The canonical instance does not alias the caller's array
+        serialized[0]++;
+        assertThat(interned).isEqualTo(identityKey);
+    }
+
+    @Test
+    public void test_internConcurrently_thenOneInstancePerKey() throws Exception {
+        List<IdentityKey> keys = new ArrayList<>();
+        for (int i = 0; i < 16; i++) keys.add(IdentityKey.generateKeyPair().getPublicKey());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<IdentityKey>>> results = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                results.add(executor.submit(() -> {
+                    List<IdentityKey> interned = new ArrayList<>();
+                    for (IdentityKey key : keys) interned.add(IdentityKey.intern(key.serialize().clone()));
+                    return interned;
+                }));
+            }
+            List<IdentityKey> first = results.get(0).get();
+            assertThat(first).isEqualTo(keys);
+            for (Future<List<IdentityKey>> result : results) {
+                List<IdentityKey> interned = result.get();
+                for (int i = 0; i < keys.size(); i++) assertThat(interned.get(i)).isSameAs(first.get(i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void test_generateKeyPairs_thenDistinctWorkingKeys() {
+        List<IdentityKeyPair> pairs = IdentityKey.generateKeyPairs(3);
+        assertThat(pairs).hasSize(3);
+        assertThat(pairs.stream().map(IdentityKeyPair::getPublicKey).distinct().count()).isEqualTo(3);
+        for (IdentityKeyPair pair : pairs) {
+            byte[] plaintext = "plaintext".getBytes();
+            assertThat(pair.getPublicKey().verify(plaintext, pair.sign(plaintext))).isTrue();
+        }
+    }
 }
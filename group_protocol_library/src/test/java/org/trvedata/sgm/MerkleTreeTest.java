@@ -0,0 +1,67 @@
+package org.trvedata.sgm;
+
+import org.junit.Test;
+import org.trvedata.sgm.crypto.MerkleTree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MerkleTreeTest {
+
+    @Test
+    public void testMerkleTree_whenProvingEachLeaf_thenProofsVerify() {
+        for (int size = 1; size <= 17; size++) {
+            List<ByteBuffer> leaves = leaves(size);
+            MerkleTree tree = new MerkleTree(leaves);
+            for (int i = 0; i < size; i++) {
+                List<ByteBuffer> proof = tree.getProof(i);
+                assertThat(proof.size()).isLessThanOrEqualTo(32 - Integer.numberOfLeadingZeros(size - 1));
+                assertThat(MerkleTree.verify(tree.getRoot(), size, i, leaves.get(i), proof)).isTrue();
+            }
+        }
+    }
+
+    @Test
+    public void testMerkleTree_whenLeafProofOrPositionIsWrong_thenRejected() {
+        List<ByteBuffer> leaves = leaves(7);
+        MerkleTree tree = new MerkleTree(leaves);
+        List<ByteBuffer> proof = tree.getProof(3);
+
+        assertThat(MerkleTree.verify(tree.getRoot(), 7, 3, leaves.get(4), proof)).isFalse();
+        assertThat(MerkleTree.verify(tree.getRoot(), 7, 2, leaves.get(3), proof)).isFalse();
+        assertThat(MerkleTree.verify(tree.getRoot(), 7, 3, leaves.get(3), proof.subList(0, 2))).isFalse();
+        assertThat(MerkleTree.verify(tree.getRoot(), 7, 3, leaves.get(3), tree.getProof(4))).isFalse();
+    }
+
+    @Test
+    public void testMerkleTree_whenLeavesDiffer_thenRootsDiffer() {
+        List<ByteBuffer> leaves = leaves(5);
+        byte[] root = new MerkleTree(leaves).getRoot();
+        leaves.set(4, ByteBuffer.wrap("other".getBytes()));
+
+        assertThat(new MerkleTree(leaves).getRoot()).isNotEqualTo(root);
+        assertThat(new MerkleTree(leaves.subList(0, 4)).getRoot()).isNotEqualTo(root);
+        assertThat(new MerkleTree(Collections.emptyList()).getRoot()).isNotEqualTo(root);
+    }
+
+    @Test
+    public void testRootBuilder_whenAddingLeavesOneByOne_thenSameRootAsTree() {
+        MerkleTree.RootBuilder builder = new MerkleTree.RootBuilder();
+        List<ByteBuffer> leaves = leaves(33);
+        for (int size = 0; size <= leaves.size(); size++) {
+            assertThat(builder.size()).isEqualTo(size);
+            assertThat(builder.getRoot()).isEqualTo(new MerkleTree(leaves.subList(0, size)).getRoot());
+            if (size < leaves.size()) builder.add(leaves.get(size));
+        }
+    }
+
+    private static List<ByteBuffer> leaves(int size) {
+        ArrayList<ByteBuffer> leaves = new ArrayList<>();
+        for (int i = 0; i < size; i++) leaves.add(ByteBuffer.wrap(("ciphertext " + i).getBytes()));
+        return leaves;
+    }
+}
@@ -0,0 +1,143 @@
+package org.trvedata.sgm;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.crypto.IdentityKeyPair;
+import org.trvedata.sgm.crypto.InMemoryPreKeySource;
+import org.trvedata.sgm.message.ModularMessage;
+import org.trvedata.sgm.message.SignedMessage;
+import org.trvedata.sgm.storage.JavaStateSerializer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MessageLogTest {
+    private static final int MESSAGES = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+    private final IdentityKeyPair aliceKey = IdentityKey.generateKeyPair();
+    private final IdentityKeyPair bobKey = IdentityKey.generateKeyPair();
+    private final DsgmProtocol aliceProtocol = new FullDsgmProtocol();
+    private MessageLog<Pair<ModularMessage, SignedMessage>> log;
+    private DsgmProtocol bobProtocol;
+
+    @Before
+    public void setUp() throws Exception {
+        // Small segments, so that the backlog spans several of them
+        log = new MessageLog<>(folder.getRoot().toPath(), ModularDsgm.MESSAGE_CODEC, 4096);
+        bobProtocol = new FullDsgmProtocol(null, log);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        log.close();
+    }
+
+    @Test
+    public void testBacklog_whenReceivedBeforeWelcomeInReverse_thenSpilledAndDeliveredInOrder() {
+        DsgmProtocol.State bob = newState(bobKey);
+        Pair<byte[], List<byte[]>> traffic = createAndSend();
+        for (int i = MESSAGES - 1; i >= 0; i--) {
+            Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> result =
+                    bobProtocol.receive(bob, traffic.getRight().get(i));
+            assertThat(result.getRight()).isEmpty();
+            bob = result.getLeft();
+        }
+        assertThat(log.getLiveEntryCount()).isEqualTo(MESSAGES);
+        assertThat(log.getSegmentCount()).isGreaterThan(1);
+
+        Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> welcomed =
+                bobProtocol.receive(bob, traffic.getLeft());
+        assertThat(welcomed.getRight()).hasSize(MESSAGES + 1);
+        for (int i = 0; i < MESSAGES; i++) {
+            assertThat(welcomed.getRight().get(i + 1).plaintext).isEqualTo(("message " + i).getBytes());
+        }
+        assertThat(log.getLiveEntryCount()).isZero();
+        assertThat(log.getSegmentCount()).isLessThanOrEqualTo(1);
+        assertThat(folder.getRoot().list()).hasSize(log.getSegmentCount());
+    }
+
+    @Test
+    public void testBacklog_whenOldStateReusedAfterFailedCommit_thenSpilledMessagesDeliveredAgain() {
+        DsgmProtocol.State bob = newState(bobKey);
+        Pair<byte[], List<byte[]>> traffic = createAndSend();
+        for (int i = MESSAGES - 1; i >= 0; i--) {
+            Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> result =
+                    bobProtocol.receive(bob, traffic.getRight().get(i));
+            bob = result.getLeft();
+        }
+        Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> welcomed =
+                bobProtocol.receive(bob, traffic.getLeft());
+        assertThat(welcomed.getRight()).hasSize(MESSAGES + 1);
+        assertThat(log.getLiveEntryCount()).isZero();
+
+        // Like a client whose StateStore failed to commit welcomed's state, and which hence keeps the old one
+        Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> retried =
+                bobProtocol.receive(bob, traffic.getLeft());
+        assertThat(retried.getRight()).hasSize(MESSAGES + 1);
+        for (int i = 0; i < MESSAGES; i++) {
+            assertThat(retried.getRight().get(i + 1).plaintext).isEqualTo(("message " + i).getBytes());
+        }
+        assertThat(log.getLiveEntryCount()).isZero();
+    }
+
+    @Test
+    public void testBacklog_whenStateSerialized_thenSpilledMessagesWrittenInline() throws Exception {
+        DsgmProtocol.State bob = newState(bobKey);
+        Pair<byte[], List<byte[]>> traffic = createAndSend();
+        Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> welcomed =
+                bobProtocol.receive(bob, traffic.getLeft());
+        bob = welcomed.getLeft();
+        for (int i = MESSAGES - 1; i >= 1; i--) {
+            Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> result =
+                    bobProtocol.receive(bob, traffic.getRight().get(i));
+            bob = result.getLeft();
+        }
+        assertThat(log.getLiveEntryCount()).isEqualTo(MESSAGES - 1);
+
+        JavaStateSerializer serializer = new JavaStateSerializer(preKeySource, null);
+        byte[] serialized = serializer.serialize(bob);
+        log.close();
+        DsgmProtocol.State restored = serializer.deserialize(serialized);
+        DsgmProtocol withoutLog = new FullDsgmProtocol();
+        Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> received =
+                withoutLog.receive(restored, traffic.getRight().get(0));
+        assertThat(received.getRight()).hasSize(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            assertThat(received.getRight().get(i).plaintext).isEqualTo(("message " + i).getBytes());
+        }
+    }
+
+    /**
+     * Creates a group of alice and bob as alice and sends {@link #MESSAGES} application messages, returning the
+     * welcome and the messages.
+     */
+    private Pair<byte[], List<byte[]>> createAndSend() {
+        Pair<? extends DsgmProtocol.State, byte[]> created = aliceProtocol.create(newState(aliceKey),
+                Arrays.asList(aliceKey.getPublicKey(), bobKey.getPublicKey()));
+        DsgmProtocol.State alice = created.getLeft();
+        ArrayList<byte[]> messages = new ArrayList<>();
+        for (int i = 0; i < MESSAGES; i++) {
+            Pair<? extends DsgmProtocol.State, byte[]> sent = aliceProtocol.send(alice, ("message " + i).getBytes());
+            alice = sent.getLeft();
+            messages.add(sent.getRight());
+        }
+        return Pair.of(created.getRight(), messages);
+    }
+
+    private DsgmProtocol.State newState(IdentityKeyPair identityKeyPair) {
+        return new FullDsgmProtocol.State(identityKeyPair, preKeySource.registerUser(identityKeyPair, 5),
+                preKeySource);
+    }
+}
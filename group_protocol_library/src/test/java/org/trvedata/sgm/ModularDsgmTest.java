@@ -1,12 +1,34 @@
 package org.trvedata.sgm;
 
+import org.apache.commons.lang3.tuple.Pair;
 import org.junit.Test;
+import org.trvedata.sgm.communication.Client;
 import org.trvedata.sgm.communication.Network;
+import org.trvedata.sgm.communication.SimpleNetwork;
 import org.trvedata.sgm.communication.TotalOrderSimpleNetwork;
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.crypto.IdentityKeyPair;
 import org.trvedata.sgm.crypto.InMemoryPreKeySource;
+import org.trvedata.sgm.crypto.PreKeySecret;
+import org.trvedata.sgm.message.MessageId;
+import org.trvedata.sgm.message.ModularMessage;
+import org.trvedata.sgm.message.SignedMessage;
 import org.trvedata.sgm.testhelper.PrintingDsgmListener;
+import org.trvedata.sgm.testhelper.RecordingDsgmListener;
+import org.trvedata.sgm.trivial.TrivialDcgkaProtocol;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class ModularDsgmTest {
     private void testGeneral_staticGroupTotallyOrdered_thenProcessedCorrectly(final DsgmClient.DgmClientImplementationConfiguration implementationConfiguration) {
@@ -65,6 +87,13 @@ public class ModularDsgmTest {
                 new DsgmClient.DgmClientImplementationConfiguration(DsgmClient.DcgkaChoice.FULL, true, true, true));
     }
 
+    @Test
+    public void testFullParallelEncryption_staticGroupTotallyOrdered_thenProcessedCorrectly() {
+        testGeneral_staticGroupTotallyOrdered_thenProcessedCorrectly(
+                new DsgmClient.DgmClientImplementationConfiguration(DsgmClient.DcgkaChoice.FULL, true, true, true,
+                        ForkJoinPool.commonPool()));
+    }
+
 
     /**
      * For the configuration, AckOrderer is required so the added user ignores the initial messages.
@@ -135,6 +164,20 @@ public class ModularDsgmTest {
                 new DsgmClient.DgmClientImplementationConfiguration(DsgmClient.DcgkaChoice.FULL, true, true, true));
     }
 
+    @Test
+    public void testFullParallelEncryption_addTotallyOrdered_thenProcessedCorrectly() {
+        testGeneral_addTotallyOrdered_thenProcessedCorrectly(
+                new DsgmClient.DgmClientImplementationConfiguration(DsgmClient.DcgkaChoice.FULL, true, true, true,
+                        ForkJoinPool.commonPool()));
+    }
+
+    @Test
+    public void testFullUnicastCiphertexts_addTotallyOrdered_thenProcessedCorrectly() {
+        testGeneral_addTotallyOrdered_thenProcessedCorrectly(
+                new DsgmClient.DgmClientImplementationConfiguration(DsgmClient.DcgkaChoice.FULL, true, true, true,
+                        null, true));
+    }
+
     /**
      * For the configuration, AckOrderer is required so the added user ignores the initial messages.
      */
@@ -203,8 +246,395 @@ public class ModularDsgmTest {
                 new DsgmClient.DgmClientImplementationConfiguration(DsgmClient.DcgkaChoice.FULL, true, true, true));
     }
 
+    @Test
+    public void testFullParallelEncryption_removeTotallyOrdered_thenProcessedCorrectly() {
+        testGeneral_removeTotallyOrdered_thenProcessedCorrectly(
+                new DsgmClient.DgmClientImplementationConfiguration(DsgmClient.DcgkaChoice.FULL, true, true, true,
+                        ForkJoinPool.commonPool()));
+    }
+
+    @Test
+    public void testFullUnicastCiphertexts_removeTotallyOrdered_thenProcessedCorrectly() {
+        testGeneral_removeTotallyOrdered_thenProcessedCorrectly(
+                new DsgmClient.DgmClientImplementationConfiguration(DsgmClient.DcgkaChoice.FULL, true, true, true,
+                        null, true));
+    }
+
+    @Test
+    public void testFullUnicastCiphertexts_whenUpdating_thenRecipientsOnlyGetTheirCiphertext() {
+        final int groupSize = 16;
+        long broadcastBytes = updateTraffic(groupSize, false, new ArrayList<>());
+        ArrayList<RecordingDsgmListener> listeners = new ArrayList<>();
+        long unicastBytes = updateTraffic(groupSize, true, listeners);
+
+        // Each recipient's version carries one ciphertext and a logarithmic proof instead of all ciphertexts, so
+        // even with the copy without attachment that recipients also get, they receive far less
+        assertThat(unicastBytes).isLessThan(broadcastBytes / 3);
+        for (RecordingDsgmListener listener : listeners.subList(1, groupSize)) {
+            assertThat(listener.recordedUpdates).hasSize(1);
+            assertThat(listener.recordedIncomingMessages).hasSize(1);
+            assertThat(listener.recordedIncomingMessages.get(0).plaintext).isEqualTo("after update".getBytes());
+        }
+    }
+
+    @Test
+    public void testFullUnicastCiphertexts_whenRecipientsAlsoGetBroadcast_thenProcessedOnce() {
+        // SimpleNetwork uses the default tailored broadcast, so recipients also get the version without attachment
+        DsgmClientFactory.DgmClientFactoryResult factoryResult = DsgmClientFactory.createClients(new SimpleNetwork(),
+                new InMemoryPreKeySource(), 4,
+                new DsgmClient.DgmClientImplementationConfiguration(DsgmClient.DcgkaChoice.FULL, true, true, true,
+                        null, true));
+        DsgmClient creator = factoryResult.clients[0];
+        creator.create(Arrays.stream(factoryResult.clients).map(DsgmClient::getIdentifier)
+                .collect(Collectors.toList()));
+        ArrayList<RecordingDsgmListener> listeners = new ArrayList<>();
+        for (DsgmClient client : factoryResult.clients) {
+            RecordingDsgmListener listener = new RecordingDsgmListener();
+            client.addListener(listener);
+            listeners.add(listener);
+        }
+
+        creator.update();
+        creator.send("after update".getBytes());
+        for (RecordingDsgmListener listener : listeners.subList(1, listeners.size())) {
+            assertThat(listener.recordedUpdates).hasSize(1);
+            assertThat(listener.recordedIncomingMessages).hasSize(1);
+            assertThat(listener.recordedIncomingMessages.get(0).plaintext).isEqualTo("after update".getBytes());
+        }
+    }
+
+    @Test
+    public void testFullUnicastCiphertexts_whenRecipientsAlsoGetBroadcastOfRemove_thenRemovedOnce() {
+        DsgmClientFactory.DgmClientFactoryResult factoryResult = DsgmClientFactory.createClients(new SimpleNetwork(),
+                new InMemoryPreKeySource(), 4,
+                new DsgmClient.DgmClientImplementationConfiguration(DsgmClient.DcgkaChoice.FULL, true, true, true,
+                        null, true));
+        DsgmClient remover = factoryResult.clients[0];
+        IdentityKey removed = factoryResult.clients[3].getIdentifier();
+        remover.create(Arrays.stream(factoryResult.clients).map(DsgmClient::getIdentifier)
+                .collect(Collectors.toList()));
+        ArrayList<RecordingDsgmListener> listeners = new ArrayList<>();
+        for (DsgmClient client : factoryResult.clients) {
+            RecordingDsgmListener listener = new RecordingDsgmListener();
+            client.addListener(listener);
+            listeners.add(listener);
+        }
+
+        remover.remove(removed);
+        remover.send("after remove".getBytes());
+        factoryResult.clients[1].update();
+        factoryResult.clients[1].send("after update".getBytes());
+        List<IdentityKey> remaining = Arrays.stream(factoryResult.clients).limit(3).map(DsgmClient::getIdentifier)
+                .collect(Collectors.toList());
+        for (int i = 0; i < 3; i++) {
+            assertThat(factoryResult.clients[i].getMembers()).containsExactlyInAnyOrderElementsOf(remaining);
+        }
+        for (RecordingDsgmListener listener : listeners.subList(1, 3)) {
+            assertThat(listener.recordedRemoves).hasSize(1);
+            assertThat(listener.recordedRemoves.get(0).remover).isEqualTo(remover.getIdentifier());
+            assertThat(listener.recordedRemoves.get(0).removed).containsExactly(removed);
+        }
+        assertThat(listeners.get(2).recordedIncomingMessages).extracting(message -> new String(message.plaintext))
+                .containsExactly("after remove", "after update");
+    }
+
+    @Test
+    public void testSplit_whenDcgkaDoesNotSplitAttachment_thenMessageUnsplit() {
+        assertThat(new TrivialDcgkaProtocol().splitAttachment(new byte[]{1, 2, 3})).isEmpty();
+
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        IdentityKeyPair aliceKeys = IdentityKey.generateKeyPair();
+        IdentityKeyPair bobKeys = IdentityKey.generateKeyPair();
+        PreKeySecret alicePreKeySecret = preKeySource.registerUser(aliceKeys, 3);
+        preKeySource.registerUser(bobKeys, 3);
+        ModularDsgm<AckOrderer.Timestamp, MessageId, FullDcgkaProtocol.State,
+                InOrderForwardSecureEncryptionProtocol.State, AckOrderer.State<Pair<ModularMessage, SignedMessage>>,
+                RotatingSignatureProtocol.State> protocol = new ModularDsgm<>(new FullDcgkaProtocol(null, true) {
+                    @Override
+                    public Map<IdentityKey, byte[]> splitAttachment(byte[] attachment) {
+                        return Collections.emptyMap();
+                    }
+                }, new InOrderForwardSecureEncryptionProtocol(), new AckOrderer<>(), new RotatingSignatureProtocol());
+        List<byte[]> messages = createWelcomeUpdateAndSend(protocol,
+                new FullDsgmProtocol.State(aliceKeys, alicePreKeySecret, preKeySource),
+                Collections.singletonList(bobKeys.getPublicKey()));
+
+        for (byte[] message : messages) {
+            Pair<byte[], Map<IdentityKey, byte[]>> split = protocol.split(message);
+            assertThat(split.getLeft()).isEqualTo(message);
+            assertThat(split.getRight()).isEmpty();
+        }
+    }
+
+    @Test
+    public void testFullCommittedCiphertexts_whenReceivingWholeBundle_thenVerifiedAndDecrypted() {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        IdentityKeyPair aliceKeys = IdentityKey.generateKeyPair();
+        IdentityKeyPair bobKeys = IdentityKey.generateKeyPair();
+        PreKeySecret alicePreKeySecret = preKeySource.registerUser(aliceKeys, 3);
+        PreKeySecret bobPreKeySecret = preKeySource.registerUser(bobKeys, 3);
+        List<IdentityKey> others = new ArrayList<>();
+        others.add(bobKeys.getPublicKey());
+        for (int i = 0; i < 6; i++) {
+            IdentityKeyPair otherKeys = IdentityKey.generateKeyPair();
+            preKeySource.registerUser(otherKeys, 3);
+            others.add(otherKeys.getPublicKey());
+        }
+        // Without splitting, every recipient gets all ciphertexts and checks them against the signed root
+        ModularDsgm<AckOrderer.Timestamp, MessageId, FullDcgkaProtocol.State,
+                InOrderForwardSecureEncryptionProtocol.State, AckOrderer.State<Pair<ModularMessage, SignedMessage>>,
+                RotatingSignatureProtocol.State> protocol = new ModularDsgm<>(new FullDcgkaProtocol(null, true),
+                new InOrderForwardSecureEncryptionProtocol(), new AckOrderer<>(), new RotatingSignatureProtocol());
+        List<byte[]> messages = createWelcomeUpdateAndSend(protocol,
+                new FullDsgmProtocol.State(aliceKeys, alicePreKeySecret, preKeySource), others);
+
+        List<DsgmProtocol.MessageEffect> effects = receiveSequentially(protocol,
+                new FullDsgmProtocol.State(bobKeys, bobPreKeySecret, preKeySource), messages);
+
+        assertThat(effects).extracting(effect -> effect.type).containsExactly(DsgmProtocol.DgmMessageType.WELCOME,
+                DsgmProtocol.DgmMessageType.UPDATE, DsgmProtocol.DgmMessageType.APPLICATION);
+        assertThat(effects.get(2).plaintext).isEqualTo("after update".getBytes());
+    }
 
+    private <S extends DsgmProtocol.State> List<byte[]> createWelcomeUpdateAndSend(
+            DsgmProtocol<S> protocol, S alice, List<IdentityKey> others) {
+        List<byte[]> messages = new ArrayList<>();
+        Pair<S, byte[]> result = protocol.create(alice, others);
+        messages.add(result.getRight());
+        result = protocol.update(result.getLeft());
+        messages.add(result.getRight());
+        result = protocol.send(result.getLeft(), "after update".getBytes());
+        messages.add(result.getRight());
+        return messages;
+    }
 
+    /**
+     * Creates a group, in which the first member then does an update and sends a message.  Returns the number of
+     * bytes the other members received for the update, over a network using the default tailored broadcast.
+     */
+    private long updateTraffic(int groupSize, boolean unicastCiphertexts, List<RecordingDsgmListener> listeners) {
+        final long[] received = {0};
+        final boolean[] counting = {false};
+        Network network = new SimpleNetwork() {
+            @Override
+            public void broadcast(Client sender, byte[] message) {
+                if (counting[0]) {
+                    received[0] += (long) (numClients() - 1) * message.length;
+                    counting[0] = false; // only the update itself, not the acks it causes
+                }
+                super.broadcast(sender, message);
+            }
+
+            @Override
+            public void broadcast(Client sender, byte[] message, Map<?, byte[]> tailored) {
+                // The tailored recipients get their version in addition to the broadcast, counted above
+                if (counting[0]) for (byte[] version : tailored.values()) received[0] += version.length;
+                super.broadcast(sender, message, tailored);
+            }
+        };
+        DsgmClientFactory.DgmClientFactoryResult factoryResult = DsgmClientFactory.createClients(network,
+                new InMemoryPreKeySource(), groupSize,
+                new DsgmClient.DgmClientImplementationConfiguration(DsgmClient.DcgkaChoice.FULL, true, true, true,
+                        null, unicastCiphertexts));
+        DsgmClient creator = factoryResult.clients[0];
+        creator.create(Arrays.stream(factoryResult.clients).map(DsgmClient::getIdentifier)
+                .collect(Collectors.toList()));
+        for (DsgmClient client : factoryResult.clients) {
+            RecordingDsgmListener listener = new RecordingDsgmListener();
+            client.addListener(listener);
+            listeners.add(listener);
+        }
+
+        counting[0] = true;
+        creator.update();
+        creator.send("after update".getBytes());
+        return received[0];
+    }
+
+
+    @Test
+    public void testFull_receiveBatch_thenSameEffectsAsSequentialReceive() {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        IdentityKeyPair aliceKeys = IdentityKey.generateKeyPair();
+        IdentityKeyPair bobKeys = IdentityKey.generateKeyPair();
+        PreKeySecret alicePreKeySecret = preKeySource.registerUser(aliceKeys, 3);
+        PreKeySecret bobPreKeySecret = preKeySource.registerUser(bobKeys, 3);
+        testGeneral_receiveBatch_thenSameEffectsAsSequentialReceive(new FullDsgmProtocol(ForkJoinPool.commonPool()),
+                new FullDsgmProtocol.State(aliceKeys, alicePreKeySecret, preKeySource),
+                new FullDsgmProtocol.State(bobKeys, bobPreKeySecret, preKeySource), bobKeys.getPublicKey());
+    }
+
+    private <S extends DsgmProtocol.State> void testGeneral_receiveBatch_thenSameEffectsAsSequentialReceive(
+            DsgmProtocol<S> protocol, S alice, S bob, IdentityKey bobId) {
+        List<byte[]> messages = createWelcomeUpdateAndForgedMessages(protocol, alice, bobId);
+        List<DsgmProtocol.MessageEffect> sequentialEffects = receiveSequentially(protocol, bob, messages);
+        List<DsgmProtocol.MessageEffect> batchEffects = protocol.receiveBatch(bob, messages).getRight();
+
+        assertSameEffects(batchEffects, sequentialEffects);
+    }
+
+    @Test
+    public void testFull_pipelinedReceiver_thenSameEffectsAsSequentialReceive() throws InterruptedException {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        IdentityKeyPair aliceKeys = IdentityKey.generateKeyPair();
+        IdentityKeyPair bobKeys = IdentityKey.generateKeyPair();
+        PreKeySecret alicePreKeySecret = preKeySource.registerUser(aliceKeys, 3);
+        PreKeySecret bobPreKeySecret = preKeySource.registerUser(bobKeys, 3);
+        FullDsgmProtocol protocol = new FullDsgmProtocol();
+        FullDsgmProtocol.State bob = new FullDsgmProtocol.State(bobKeys, bobPreKeySecret, preKeySource);
+        List<byte[]> messages = createWelcomeUpdateAndForgedMessages(protocol,
+                new FullDsgmProtocol.State(aliceKeys, alicePreKeySecret, preKeySource), bobKeys.getPublicKey());
+        List<DsgmProtocol.MessageEffect> sequentialEffects = receiveSequentially(protocol, bob, messages);
+
+        List<DsgmProtocol.MessageEffect> pipelinedEffects = Collections.synchronizedList(new ArrayList<>());
+        // Capacity 2 makes submit block until earlier messages are applied
+        PipelinedReceiver<FullDcgkaProtocol.State, InOrderForwardSecureEncryptionProtocol.State,
+                AckOrderer.State<Pair<ModularMessage, SignedMessage>>, RotatingSignatureProtocol.State> receiver =
+                new PipelinedReceiver<>(protocol, bob, ForkJoinPool.commonPool(), 2, pipelinedEffects::addAll);
+        for (byte[] message : messages) receiver.submit(message);
+        receiver.close();
+
+        assertSameEffects(pipelinedEffects, sequentialEffects);
+        assertThat(protocol.getMembers(receiver.getState())).hasSize(2);
+    }
+
+    @Test
+    public void testFull_pipelinedReceiver_whenDecodeThrows_thenMessageSkipped() {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        IdentityKeyPair aliceKeys = IdentityKey.generateKeyPair();
+        IdentityKeyPair bobKeys = IdentityKey.generateKeyPair();
+        PreKeySecret alicePreKeySecret = preKeySource.registerUser(aliceKeys, 3);
+        PreKeySecret bobPreKeySecret = preKeySource.registerUser(bobKeys, 3);
+        FullDsgmProtocol protocol = new FullDsgmProtocol();
+        FullDsgmProtocol.State bob = new FullDsgmProtocol.State(bobKeys, bobPreKeySecret, preKeySource);
+        List<byte[]> messages = createWelcomeUpdateAndForgedMessages(protocol,
+                new FullDsgmProtocol.State(aliceKeys, alicePreKeySecret, preKeySource), bobKeys.getPublicKey());
+        List<DsgmProtocol.MessageEffect> sequentialEffects = receiveSequentially(protocol, bob, messages);
+
+        List<DsgmProtocol.MessageEffect> pipelinedEffects = Collections.synchronizedList(new ArrayList<>());
+        try (PipelinedReceiver<FullDcgkaProtocol.State, InOrderForwardSecureEncryptionProtocol.State,
+                AckOrderer.State<Pair<ModularMessage, SignedMessage>>, RotatingSignatureProtocol.State> receiver =
+                     new PipelinedReceiver<>(protocol, bob, ForkJoinPool.commonPool(), 2, pipelinedEffects::addAll)) {
+            for (int i = 0; i < messages.size(); i++) {
+                // A null message makes decode throw rather than return null
+                if (i == 2) receiver.submit(null);
+                receiver.submit(messages.get(i));
+            }
+        } catch (InterruptedException exc) {
+            throw new AssertionError(exc);
+        }
+
+        assertSameEffects(pipelinedEffects, sequentialEffects);
+    }
+
+    @Test
+    public void testFull_apply_thenDecodedMessagesRemovedOnceProcessed() {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        IdentityKeyPair aliceKeys = IdentityKey.generateKeyPair();
+        IdentityKeyPair bobKeys = IdentityKey.generateKeyPair();
+        PreKeySecret alicePreKeySecret = preKeySource.registerUser(aliceKeys, 3);
+        PreKeySecret bobPreKeySecret = preKeySource.registerUser(bobKeys, 3);
+        FullDsgmProtocol protocol = new FullDsgmProtocol();
+        ModularDsgm.State<FullDcgkaProtocol.State, InOrderForwardSecureEncryptionProtocol.State,
+                AckOrderer.State<Pair<ModularMessage, SignedMessage>>, RotatingSignatureProtocol.State> bob =
+                new FullDsgmProtocol.State(bobKeys, bobPreKeySecret, preKeySource);
+        List<byte[]> messages = createWelcomeUpdateAndForgedMessages(protocol,
+                new FullDsgmProtocol.State(aliceKeys, alicePreKeySecret, preKeySource), bobKeys.getPublicKey());
+
+        HashMap<SignedMessage, ModularDsgm.DecodedMessage> decodedMessages = new HashMap<>();
+        for (byte[] message : messages) {
+            ModularDsgm.DecodedMessage decoded = protocol.decode(bob, message);
+            protocol.preVerify(bob, decoded);
+            bob = protocol.apply(bob, decoded, decodedMessages).getLeft();
+        }
+
+        // Every message was processed or dropped as soon as it was applied
+        assertThat(decodedMessages).isEmpty();
+    }
+
+    @Test
+    public void testFull_pipelinedReceiver_whenEffectConsumerThrows_thenBlockedSubmitFails()
+            throws InterruptedException {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        IdentityKeyPair aliceKeys = IdentityKey.generateKeyPair();
+        IdentityKeyPair bobKeys = IdentityKey.generateKeyPair();
+        PreKeySecret alicePreKeySecret = preKeySource.registerUser(aliceKeys, 3);
+        PreKeySecret bobPreKeySecret = preKeySource.registerUser(bobKeys, 3);
+        FullDsgmProtocol protocol = new FullDsgmProtocol();
+        FullDsgmProtocol.State bob = new FullDsgmProtocol.State(bobKeys, bobPreKeySecret, preKeySource);
+        List<byte[]> messages = createWelcomeUpdateAndForgedMessages(protocol,
+                new FullDsgmProtocol.State(aliceKeys, alicePreKeySecret, preKeySource), bobKeys.getPublicKey());
+
+        CountDownLatch consumerReleased = new CountDownLatch(1);
+        RuntimeException consumerFailure = new RuntimeException("Effect consumer failed");
+        PipelinedReceiver<FullDcgkaProtocol.State, InOrderForwardSecureEncryptionProtocol.State,
+                AckOrderer.State<Pair<ModularMessage, SignedMessage>>, RotatingSignatureProtocol.State> receiver =
+                new PipelinedReceiver<>(protocol, bob, ForkJoinPool.commonPool(), 1, effects -> {
+                    try {
+                        consumerReleased.await();
+                    } catch (InterruptedException exc) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw consumerFailure;
+                });
+        // The apply thread blocks in the consumer on the first message, and the second fills the queue
+        receiver.submit(messages.get(0));
+        receiver.submit(messages.get(1));
+        Throwable[] thrown = new Throwable[1];
+        Thread submitter = new Thread(() -> {
+            try {
+                receiver.submit(messages.get(2));
+            } catch (Throwable exc) {
+                thrown[0] = exc;
+            }
+        });
+        submitter.start();
+        while (submitter.getState() != Thread.State.WAITING) Thread.sleep(1);
+        consumerReleased.countDown();
+        submitter.join();
+
+        assertThat(thrown[0]).isInstanceOf(IllegalStateException.class).hasCause(consumerFailure);
+        assertThatThrownBy(receiver::close).isInstanceOf(IllegalStateException.class).hasCause(consumerFailure);
+    }
+
+    private <S extends DsgmProtocol.State> List<byte[]> createWelcomeUpdateAndForgedMessages(
+            DsgmProtocol<S> protocol, S alice, IdentityKey bobId) {
+        List<byte[]> messages = new ArrayList<>();
+        Pair<S, byte[]> result = protocol.create(alice, Collections.singletonList(bobId));
+        messages.add(result.getRight());
+        result = protocol.send(result.getLeft(), "before update".getBytes());
+        messages.add(result.getRight());
+        // The update rotates alice's signing key, so the next message's precomputed verification is stale
+        result = protocol.update(result.getLeft());
+        messages.add(result.getRight());
+        result = protocol.send(result.getLeft(), "after update".getBytes());
+        messages.add(result.getRight());
+        byte[] forged = protocol.send(result.getLeft(), "forged".getBytes()).getRight();
+        forged[forged.length - 5] ^= 1;
+        messages.add(forged);
+        return messages;
+    }
+
+    private <S extends DsgmProtocol.State> List<DsgmProtocol.MessageEffect> receiveSequentially(
+            DsgmProtocol<S> protocol, S bob, List<byte[]> messages) {
+        List<DsgmProtocol.MessageEffect> effects = new ArrayList<>();
+        for (byte[] message : messages) {
+            Pair<S, List<DsgmProtocol.MessageEffect>> received = protocol.receive(bob, message);
+            bob = received.getLeft();
+            effects.addAll(received.getRight());
+        }
+        return effects;
+    }
+
+    private void assertSameEffects(List<DsgmProtocol.MessageEffect> actual,
+                                   List<DsgmProtocol.MessageEffect> sequentialEffects) {
+        assertThat(actual).extracting(effect -> effect.type)
+                .containsExactlyElementsOf(sequentialEffects.stream().map(effect -> effect.type)
+                        .collect(Collectors.toList()))
+                .containsExactly(DsgmProtocol.DgmMessageType.WELCOME, DsgmProtocol.DgmMessageType.APPLICATION,
+                        DsgmProtocol.DgmMessageType.UPDATE, DsgmProtocol.DgmMessageType.APPLICATION);
+        assertThat(actual.get(3).plaintext).isEqualTo("after update".getBytes());
+    }
 
     /*
 
@@ -0,0 +1,229 @@
+package org.trvedata.sgm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.trvedata.sgm.communication.Network;
+import org.trvedata.sgm.communication.SimpleNetwork;
+import org.trvedata.sgm.communication.TotalOrderSimpleNetwork;
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.crypto.IdentityKeyPair;
+import org.trvedata.sgm.crypto.InMemoryPreKeySource;
+import org.trvedata.sgm.crypto.PreKeySecret;
+import org.trvedata.sgm.crypto.TwoPartySessionStore;
+import org.trvedata.sgm.message.GroupMessageStruct;
+import org.trvedata.sgm.misc.Utils;
+import org.trvedata.sgm.storage.FileStateStore;
+import org.trvedata.sgm.storage.JavaStateSerializer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MultiGroupDsgmClientTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMultiGroup_whenOverlappingGroups_thenMessagesRoutedByGroup() {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        Network network = new TotalOrderSimpleNetwork();
+        MultiGroupDsgmClient alice = createClient(network, preKeySource, "alice", null);
+        MultiGroupDsgmClient bob = createClient(network, preKeySource, "bob", null);
+        MultiGroupDsgmClient charlie = createClient(network, preKeySource, "charlie", null);
+        RecordingListener bobListener = new RecordingListener();
+        RecordingListener charlieListener = new RecordingListener();
+        bob.addListener(bobListener);
+        charlie.addListener(charlieListener);
+
+        alice.create("pair", Arrays.asList(alice.getIdentifier(), bob.getIdentifier()));
+        alice.create("all", Arrays.asList(alice.getIdentifier(), bob.getIdentifier(), charlie.getIdentifier()));
+        alice.send("pair", "to bob".getBytes());
+        alice.send("all", "to everyone".getBytes());
+        bob.send("pair", "to alice".getBytes());
+
+        assertThat(alice.getMembers("pair")).containsExactlyInAnyOrder(alice.getIdentifier(), bob.getIdentifier());
+        assertThat(charlie.getMembers("all")).hasSize(3);
+        assertThat(charlie.getMembers("pair")).isEmpty();
+        assertThat(charlie.getGroupIds()).containsExactly("all");
+        assertThat(bobListener.messages).containsExactly("pair: to bob", "all: to everyone");
+        assertThat(charlieListener.messages).containsExactly("all: to everyone");
+    }
+
+    @Test
+    public void testMultiGroup_whenWorkerPool_thenGroupsProcessedConcurrentlyAndCorrectly() throws Exception {
+        final int numGroups = 8;
+        ExecutorService workerPool = Executors.newFixedThreadPool(4);
+        try {
+            InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+            // SimpleNetwork delivers synchronously, which here just enqueues on the recipient's group worker
+            Network network = new SimpleNetwork();
+            MultiGroupDsgmClient alice = createClient(network, preKeySource, "alice", workerPool);
+            MultiGroupDsgmClient bob = createClient(network, preKeySource, "bob", workerPool);
+            RecordingListener aliceListener = new RecordingListener();
+            RecordingListener bobListener = new RecordingListener();
+            alice.addListener(aliceListener);
+            bob.addListener(bobListener);
+
+            List<String> expectedAtBob = new ArrayList<>();
+            for (int i = 0; i < numGroups; i++) {
+                alice.create("group" + i, Arrays.asList(alice.getIdentifier(), bob.getIdentifier()));
+                alice.send("group" + i, ("hello " + i).getBytes());
+                expectedAtBob.add("group" + i + ": hello " + i);
+            }
+            awaitCondition(() -> bobListener.messages.size() == numGroups);
+            assertThat(bobListener.messages).containsExactlyInAnyOrderElementsOf(expectedAtBob);
+
+            List<String> expectedAtAlice = new ArrayList<>();
+            for (int i = 0; i < numGroups; i++) {
+                bob.send("group" + i, ("reply " + i).getBytes()).get();
+                expectedAtAlice.add("group" + i + ": reply " + i);
+            }
+            awaitCondition(() -> aliceListener.messages.size() == numGroups);
+            assertThat(aliceListener.messages).containsExactlyInAnyOrderElementsOf(expectedAtAlice);
+            assertThat(bob.getGroupIds()).hasSize(numGroups);
+        } finally {
+            workerPool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMultiGroup_whenSessionStore_thenOnePrekeyPerPeerAcrossGroups() {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        Network network = new TotalOrderSimpleNetwork();
+        TwoPartySessionStore aliceStore = new TwoPartySessionStore(100);
+        // Two prekeys each only suffice for the first group without sharing handshakes, since charlie is first
+        // contacted by both alice (create) and bob (update) in each group
+        MultiGroupDsgmClient alice = createClient(network, preKeySource, "alice", null, aliceStore, 2);
+        MultiGroupDsgmClient bob = createClient(network, preKeySource, "bob", null, new TwoPartySessionStore(100), 2);
+        MultiGroupDsgmClient charlie = createClient(network, preKeySource, "charlie", null,
+                new TwoPartySessionStore(100), 2);
+        RecordingListener charlieListener = new RecordingListener();
+        charlie.addListener(charlieListener);
+
+        for (int i = 0; i < 3; i++) {
+            alice.create("group" + i,
+                    Arrays.asList(alice.getIdentifier(), bob.getIdentifier(), charlie.getIdentifier())).join();
+            bob.update("group" + i).join();
+            alice.send("group" + i, ("hello " + i).getBytes()).join();
+        }
+
+        assertThat(charlieListener.messages).containsExactly("group0: hello 0", "group1: hello 1", "group2: hello 2");
+        assertThat(aliceStore.getHandshakeCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testMultiGroup_whenRestartedFromStateStore_thenResumesWithoutProtocolTraffic() throws Exception {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        Network network = new TotalOrderSimpleNetwork();
+        IdentityKeyPair aliceKey = IdentityKey.generateKeyPair();
+        PreKeySecret alicePreKeySecret = preKeySource.registerUser(aliceKey, 20);
+        JavaStateSerializer serializer = new JavaStateSerializer(preKeySource, null);
+        MultiGroupDsgmClient bob = createClient(network, preKeySource, "bob", null);
+
+        try (FileStateStore store = new FileStateStore(folder.getRoot().toPath(), serializer)) {
+            MultiGroupDsgmClient alice = new MultiGroupDsgmClient(network, alicePreKeySecret, preKeySource, "alice",
+                    aliceKey, null, null, store);
+            alice.create("group", Arrays.asList(alice.getIdentifier(), bob.getIdentifier())).join();
+            alice.send("group", "before".getBytes()).join();
+        }
+
+        // The restarted client replaces the old one on the network
+        try (FileStateStore store = new FileStateStore(folder.getRoot().toPath(), serializer)) {
+            MultiGroupDsgmClient alice = new MultiGroupDsgmClient(network, alicePreKeySecret, preKeySource, "alice",
+                    aliceKey, null, null, store);
+            RecordingListener aliceListener = new RecordingListener();
+            alice.addListener(aliceListener);
+            assertThat(alice.getMembers("group")).containsExactlyInAnyOrder(alice.getIdentifier(),
+                    bob.getIdentifier());
+
+            bob.send("group", "after".getBytes()).join();
+            assertThat(aliceListener.messages).containsExactly("group: after");
+        }
+    }
+
+    @Test
+    public void testMultiGroup_whenMessagesForUnknownGroups_thenNoStateCommitted() throws Exception {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        Network network = new TotalOrderSimpleNetwork();
+        IdentityKeyPair charlieKey = IdentityKey.generateKeyPair();
+        PreKeySecret charliePreKeySecret = preKeySource.registerUser(charlieKey, 20);
+        MultiGroupDsgmClient alice = createClient(network, preKeySource, "alice", null);
+        MultiGroupDsgmClient bob = createClient(network, preKeySource, "bob", null);
+
+        try (FileStateStore store = new FileStateStore(folder.getRoot().toPath(),
+                new JavaStateSerializer(preKeySource, null))) {
+            MultiGroupDsgmClient charlie = new MultiGroupDsgmClient(network, charliePreKeySecret, preKeySource,
+                    "charlie", charlieKey, null, null, store);
+            alice.create("pair", Arrays.asList(alice.getIdentifier(), bob.getIdentifier())).join();
+            alice.send("pair", "to bob".getBytes()).join();
+            for (int i = 0; i < 100; i++) {
+                network.broadcast(alice, Utils.serialize(new GroupMessageStruct("spam" + i,
+                        ByteBuffer.wrap("not a message".getBytes()))));
+            }
+
+            assertThat(charlie.getGroupIds()).isEmpty();
+            assertThat(store.recover()).isEmpty();
+            assertThatThrownBy(() -> charlie.send("pair", "hello".getBytes()).join())
+                    .hasCauseInstanceOf(IllegalArgumentException.class);
+            assertThatThrownBy(() -> alice.create("pair", Collections.singletonList(alice.getIdentifier())).join())
+                    .hasCauseInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    private static MultiGroupDsgmClient createClient(Network network, InMemoryPreKeySource preKeySource, String name,
+                                                     Executor workerPool) {
+        return createClient(network, preKeySource, name, workerPool, null, 20);
+    }
+
+    private static MultiGroupDsgmClient createClient(Network network, InMemoryPreKeySource preKeySource, String name,
+                                                     Executor workerPool, TwoPartySessionStore sessionStore,
+                                                     int numOneTimeKeys) {
+        IdentityKeyPair identityKeyPair = IdentityKey.generateKeyPair();
+        PreKeySecret preKeySecret = preKeySource.registerUser(identityKeyPair, numOneTimeKeys);
+        return new MultiGroupDsgmClient(network, preKeySecret, preKeySource, name, identityKeyPair, workerPool,
+                sessionStore);
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).as("timed out").isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static class RecordingListener implements MultiGroupDsgmClient.MultiGroupDsgmListener {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onIncomingMessage(String groupId, IdentityKey sender, byte[] plaintext) {
+            messages.add(groupId + ": " + new String(plaintext));
+        }
+
+        @Override
+        public void onUpdate(String groupId, IdentityKey updater, Object messageId) {
+        }
+
+        @Override
+        public void onAdd(String groupId, IdentityKey adder, IdentityKey added, Object messageId) {
+        }
+
+        @Override
+        public void onRemove(String groupId, IdentityKey remover, ArrayList<IdentityKey> removed, Object messageId) {
+        }
+
+        @Override
+        public void onAck(String groupId, IdentityKey acker, Object acked) {
+        }
+    }
+}
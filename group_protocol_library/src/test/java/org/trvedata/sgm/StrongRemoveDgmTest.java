@@ -286,12 +286,246 @@ public class StrongRemoveDgmTest {
         assertThat(compare(set.queryView(members.get(4)), members)).isTrue();
     }
 
+    @Test
+    public void testSet_queryViewAfterRemoveOrAck_thenViewAfterApplyingIt() {
+        ArrayList<IdentityKey> members = generateIdentityKeys(4);
+        StrongRemoveDgm set = new StrongRemoveDgm(members, members.get(0));
+        members.addAll(generateIdentityKeys(2));
+        set.add(members.get(1), members.get(4), new MessageId(members.get(1), 0));
+        set.add(members.get(4), members.get(5), new MessageId(members.get(4), 0));
+        MessageId remove = new MessageId(members.get(2), 0);
+
+        // The remove also cancels the concurrent transitive adds by members.get(1)
+        HashSet<IdentityKey> before = set.queryView(members.get(2));
+        HashSet<IdentityKey> predicted = set.queryViewAfterRemove(members.get(2),
+                Collections.singleton(members.get(1)));
+        assertThat(set.queryView(members.get(2))).isEqualTo(before);
+        set.remove(members.get(2), Collections.singleton(members.get(1)), remove);
+        assertThat(set.queryView(members.get(2))).isEqualTo(predicted);
+
+        predicted = set.queryViewAfterAck(members.get(3), remove);
+        assertThat(predicted).isEqualTo(new HashSet<>(Arrays.asList(members.get(0), members.get(2), members.get(3))));
+        set.ack(members.get(3), remove);
+        assertThat(set.queryView(members.get(3))).isEqualTo(predicted);
+    }
+
     @Test
     public void testSet_randomCausalActionsCauseNoErrorsAndPrintsTranscript() {
         GenerateSetCausally gen = new GenerateSetCausally(new Random(1234), 10);
         for (int i = 0; i < 100; i++) gen.doOneTask(10, true);
     }
 
+    @Test
+    public void testSet_randomCausalActions_thenIncrementalViewsMatchComputedViews() {
+        GenerateSetCausally gen = new GenerateSetCausally(new Random(4321), 10);
+        for (int i = 0; i < 200; i++) {
+            gen.doOneTask(5, false);
+            for (IdentityKey viewer : gen.members) {
+                if (viewer.equals(gen.set.getMyId())) continue;
+                HashSet<IdentityKey> view = gen.set.queryView(viewer);
+                assertThat(view).isEqualTo(gen.set.computeView(viewer));
+                for (IdentityKey member : gen.members) {
+                    assertThat(gen.set.isInView(viewer, member)).isEqualTo(view.contains(member));
+                }
+            }
+        }
+        StrongRemoveDgm copy = StrongRemoveDgm.deserialize(gen.set.serialize().getLeft(), gen.set.getMyId()).getLeft();
+        for (IdentityKey viewer : gen.members) {
+            assertThat(copy.queryView(viewer)).isEqualTo(gen.set.queryView(viewer));
+        }
+    }
+
+    @Test
+    public void testSet_randomCausalActions_thenIncrementalAcksMatchComputedAcks() {
+        GenerateSetCausally gen = new GenerateSetCausally(new Random(2468), 10);
+        for (int i = 0; i < 200; i++) {
+            gen.doOneTask(5, false);
+            for (Pair<MessageId, HashMap<IdentityKey, Integer>> message : gen.messageVvs) {
+                MessageId messageId = message.getLeft();
+                Set<IdentityKey> acks = gen.set.getAcks(messageId);
+                assertThat(acks).isEqualTo(gen.set.computeAcks(messageId));
+                for (IdentityKey viewer : gen.members) {
+                    assertThat(gen.set.isAckedByViewOf(messageId, viewer))
+                            .isEqualTo(acks.containsAll(gen.set.queryView(viewer)));
+                }
+            }
+        }
+        StrongRemoveDgm copy = StrongRemoveDgm.deserialize(gen.set.serialize().getLeft(), gen.set.getMyId()).getLeft();
+        for (Pair<MessageId, HashMap<IdentityKey, Integer>> message : gen.messageVvs) {
+            assertThat(copy.getAcks(message.getLeft())).isEqualTo(gen.set.getAcks(message.getLeft()));
+        }
+    }
+
+    @Test
+    public void testSet_addedUserInheritsAddersAcks() {
+        ArrayList<IdentityKey> members = generateIdentityKeys(3);
+        StrongRemoveDgm set = new StrongRemoveDgm(members, members.get(0));
+        members.addAll(generateIdentityKeys(2));
+        MessageId add1 = new MessageId(members.get(0), 0);
+        set.add(members.get(0), members.get(3), add1);
+        MessageId remove1 = new MessageId(members.get(1), 0);
+        set.remove(members.get(1), Collections.singleton(members.get(2)), remove1);
+        set.ack(members.get(3), remove1);
+        // members[3] has ack'd remove1, so the user they add counts as having ack'd it too, but not add1,
+        // which only members[0] and members[3] have ack'd
+        MessageId add2 = new MessageId(members.get(3), 0);
+        set.add(members.get(3), members.get(4), add2);
+
+        assertThat(set.getAcks(remove1)).containsExactlyInAnyOrder(members.get(0), members.get(1), members.get(3),
+                members.get(4));
+        assertThat(set.getAcks(add1)).containsExactlyInAnyOrder(members.get(0), members.get(3), members.get(4));
+        assertThat(set.getAcks(add2)).containsExactlyInAnyOrder(members.get(0), members.get(3), members.get(4));
+        assertThat(set.isAckedByViewOf(add1, members.get(1))).isFalse();
+        assertThat(set.isAckedByViewOf(remove1, members.get(1))).isTrue();
+
+        set.ack(members.get(1), add1);
+        set.ack(members.get(1), add2);
+        assertThat(set.getAcks(add2)).contains(members.get(1)).doesNotContain(members.get(2));
+        assertThat(set.isAckedByViewOf(add1, members.get(1))).isTrue();
+        assertThat(set.isAckedByViewOf(add2, members.get(1))).isTrue();
+        for (MessageId messageId : Arrays.asList(add1, remove1, add2)) {
+            assertThat(set.getAcks(messageId)).isEqualTo(set.computeAcks(messageId));
+        }
+    }
+
+    @Test
+    public void testSet_addedUserAndAdderAckAfterAdd_thenInheritedAcksKept() {
+        ArrayList<IdentityKey> members = generateIdentityKeys(4);
+        StrongRemoveDgm set = new StrongRemoveDgm(members, members.get(0));
+        members.addAll(generateIdentityKeys(1));
+        MessageId remove1 = new MessageId(members.get(2), 0);
+        set.remove(members.get(2), Collections.singleton(members.get(3)), remove1);
+        set.ack(members.get(1), remove1);
+        MessageId add1 = new MessageId(members.get(1), 0);
+        set.add(members.get(1), members.get(4), add1);
+        MessageId remove2 = new MessageId(members.get(2), 1);
+        set.remove(members.get(2), Collections.emptyList(), remove2);
+
+        // The adder acks first, so the added user alone keeps the inherited acks, then acks too
+        List<MessageId> messageIds = Arrays.asList(remove1, add1, remove2);
+        set.ack(members.get(1), remove2);
+        for (MessageId messageId : messageIds) {
+            assertThat(set.getAcks(messageId)).isEqualTo(set.computeAcks(messageId));
+        }
+        assertThat(set.getAcks(remove1)).contains(members.get(4));
+        set.ack(members.get(4), remove2);
+        for (MessageId messageId : messageIds) {
+            assertThat(set.getAcks(messageId)).isEqualTo(set.computeAcks(messageId));
+        }
+        assertThat(set.getAcks(remove1)).contains(members.get(4));
+        assertThat(set.getAcks(remove2)).containsExactlyInAnyOrder(members.get(0), members.get(1), members.get(2),
+                members.get(4));
+    }
+
+    @Test
+    public void testSet_deserializedIntoEmptyRegistry_thenRegistryIndicesMatchSerializedIndices() {
+        GenerateSetCausally gen = new GenerateSetCausally(new Random(1234), 10);
+        for (int i = 0; i < 100; i++) gen.doOneTask(5, false);
+        Pair<byte[], ArrayList<IdentityKey>> serialized = gen.set.serialize();
+        MemberRegistry registry = new MemberRegistry();
+        StrongRemoveDgm copy = StrongRemoveDgm.deserialize(serialized.getLeft(), gen.set.getMyId(), registry)
+                .getLeft();
+        for (int i = 0; i < serialized.getRight().size(); i++) {
+            assertThat(registry.get(i)).isEqualTo(serialized.getRight().get(i));
+        }
+        // Re-serializing gives the same member order
+        assertThat(copy.serialize().getRight()).isEqualTo(serialized.getRight());
+    }
+
+    @Test
+    public void testSet_sharedRegistryWithNonMembers_thenSameViews() {
+        GenerateSetCausally gen = new GenerateSetCausally(new Random(1234), 10);
+        for (int i = 0; i < 100; i++) gen.doOneTask(5, false);
+        MemberRegistry registry = new MemberRegistry();
+        ArrayList<IdentityKey> nonMembers = generateIdentityKeys(3);
+        for (IdentityKey nonMember : nonMembers) registry.register(nonMember);
+        StrongRemoveDgm copy = StrongRemoveDgm.deserialize(gen.set.serialize().getLeft(), gen.set.getMyId(),
+                registry).getLeft();
+        assertThat(copy).isEqualTo(gen.set);
+        for (IdentityKey viewer : gen.members) {
+            assertThat(copy.queryView(viewer)).isEqualTo(gen.set.queryView(viewer));
+        }
+        for (IdentityKey nonMember : nonMembers) {
+            assertThat(copy.queryView(nonMember)).isEqualTo(gen.set.queryView(nonMember));
+            assertThat(copy.isInView(gen.members.get(0), nonMember)).isFalse();
+        }
+        assertThat(copy.getMembersAndRemovedMembers()).doesNotContainAnyElementsOf(nonMembers);
+    }
+
+    @Test
+    public void testSet_concurrentRemovesOfSameAdder_thenCascadeMatchesFixpoint() {
+        ArrayList<IdentityKey> members = generateIdentityKeys(4);
+        StrongRemoveDgm set = new StrongRemoveDgm(members, members.get(0));
+        FixpointDgm reference = new FixpointDgm(members, members.get(0));
+        members.addAll(generateIdentityKeys(3));
+        // members[1] adds members[4], who adds members[5], who adds members[6]; no one else acks these adds
+        for (int i = 0; i < 3; i++) {
+            MessageId add = new MessageId(members.get(i == 0 ? 1 : i + 3), 0);
+            set.add(add.author, members.get(i + 4), add);
+            reference.add(add.author, members.get(i + 4), add);
+        }
+        // members[2] and members[3] concurrently remove members[1]: the first removes the whole chain, and the
+        // second re-removes it without removing anyone new
+        MessageId remove1 = new MessageId(members.get(2), 0);
+        List<IdentityKey> removed1 = set.remove(members.get(2), Collections.singleton(members.get(1)), remove1);
+        assertThat(removed1).containsExactlyInAnyOrderElementsOf(
+                reference.remove(members.get(2), Collections.singleton(members.get(1))));
+        assertThat(removed1).containsExactlyInAnyOrder(members.get(1), members.get(4), members.get(5),
+                members.get(6));
+        MessageId remove2 = new MessageId(members.get(3), 0);
+        List<IdentityKey> removed2 = set.remove(members.get(3), Collections.singleton(members.get(1)), remove2);
+        assertThat(removed2).isEmpty();
+        assertThat(reference.remove(members.get(3), Collections.singleton(members.get(1)))).isEmpty();
+
+        assertThat(set.queryWhole()).isEqualTo(reference.queryWhole());
+        assertThat(compare(set.queryWhole(), Arrays.asList(members.get(0), members.get(2), members.get(3)))).isTrue();
+        // Both removers' views agree with the local membership
+        assertThat(compare(set.queryView(members.get(2)), set.queryWhole())).isTrue();
+        assertThat(compare(set.queryView(members.get(3)), set.queryWhole())).isTrue();
+    }
+
+    @Test
+    public void testSet_cascadeStopsAtAckedAdd_thenMatchesFixpoint() {
+        ArrayList<IdentityKey> members = generateIdentityKeys(3);
+        StrongRemoveDgm set = new StrongRemoveDgm(members, members.get(0));
+        FixpointDgm reference = new FixpointDgm(members, members.get(0));
+        members.addAll(generateIdentityKeys(3));
+        // members[1] adds members[3] and members[4]; members[2] acks only the first add.  members[3] then adds
+        // members[5] concurrently to everything members[2] does.
+        MessageId add1 = new MessageId(members.get(1), 0);
+        MessageId add2 = new MessageId(members.get(1), 1);
+        MessageId add3 = new MessageId(members.get(3), 0);
+        set.add(members.get(1), members.get(3), add1);
+        reference.add(members.get(1), members.get(3), add1);
+        set.ack(members.get(2), add1);
+        reference.ack(members.get(2), add1);
+        set.add(members.get(1), members.get(4), add2);
+        reference.add(members.get(1), members.get(4), add2);
+        set.add(members.get(3), members.get(5), add3);
+        reference.add(members.get(3), members.get(5), add3);
+
+        // members[2] removes members[1] and members[3].  members[4] goes with members[1]; members[5] survives
+        // members[1]'s removal, since members[2] ack'd members[3]'s add, but goes with members[3].
+        MessageId remove1 = new MessageId(members.get(2), 0);
+        List<IdentityKey> removed = Arrays.asList(members.get(1), members.get(3));
+        assertThat(set.remove(members.get(2), removed, remove1))
+                .containsExactlyInAnyOrderElementsOf(reference.remove(members.get(2), removed));
+        assertThat(set.queryWhole()).isEqualTo(reference.queryWhole());
+        assertThat(compare(set.queryWhole(), Arrays.asList(members.get(0), members.get(2)))).isTrue();
+    }
+
+    @Test
+    public void testSet_randomCausalActions_thenRemovesMatchFixpoint() {
+        for (int seed = 0; seed < 20; seed++) {
+            GenerateSetCausally gen = new GenerateSetCausally(new Random(seed), 6);
+            gen.reference = new FixpointDgm(gen.members, gen.set.getMyId());
+            for (int i = 0; i < 100; i++) {
+                gen.doOneTask(3, false);
+                assertThat(gen.set.queryWhole()).isEqualTo(gen.reference.queryWhole());
+            }
+        }
+    }
+
     @Test
     public void testSet_operationsCommuteInRandomState() {
         // TODO
@@ -322,6 +556,8 @@ public class StrongRemoveDgmTest {
         ArrayList<IdentityKey> members;
         HashMap<IdentityKey, HashMap<IdentityKey, Integer>> vvs = new HashMap<>();
         StrongRemoveDgm set;
+        // If non-null, receives the same adds, removes and acks as set.
+        FixpointDgm reference;
         // Contains MessageId's and their version vectors.
         ArrayList<Pair<MessageId, HashMap<IdentityKey, Integer>>> messageVvs = new ArrayList<>();
 
@@ -379,6 +615,7 @@ public class StrongRemoveDgmTest {
                             // This happens because we don't yet stop users from acking their own removal (see TODO below)
                             return;
                         }
+                        if (reference != null) reference.ack(actor, messageVv.getLeft());
                         // Adjust actor's vv
                         vvs.get(actor).put(messageVv.getLeft().author,
                                 vvs.get(actor).get(messageVv.getLeft().author) + 1);
@@ -415,6 +652,7 @@ public class StrongRemoveDgmTest {
                             " of " + indexString(added) + " (" + indexString(messageId) + ")");
                 }
                 set.add(actor, added, messageId);
+                if (reference != null) reference.add(actor, added, messageId);
                 messageVvs.add(Pair.of(messageId, new HashMap<>(vvs.get(actor))));
             } else {
                 // A random user removes a random subset of other users.  We definitely add 1,
@@ -442,7 +680,10 @@ public class StrongRemoveDgmTest {
                     Logger.i("group_protocol", "Removal by " + indexString(actor) + " of " +
                             indexString(removed) + " (" + indexString(messageId) + ")");
                 }
-                set.remove(actor, removed, messageId);
+                ArrayList<IdentityKey> newlyRemoved = set.remove(actor, removed, messageId);
+                if (reference != null) {
+                    assertThat(newlyRemoved).containsExactlyInAnyOrderElementsOf(reference.remove(actor, removed));
+                }
                 messageVvs.add(Pair.of(messageId, new HashMap<>(vvs.get(actor))));
             }
             if (outputInfo) {
@@ -479,6 +720,101 @@ public class StrongRemoveDgmTest {
     }
 
 
+    /**
+     * The membership rules of StrongRemoveDgm as they were before its remove cascade became a single pass over
+     * an adder index: each remove rescans every member and removed member until no more adds are cancelled.
+     * Only tracks what the cascade needs, i.e. the local membership and add acks.
+     */
+    private static class FixpointDgm {
+        private final IdentityKey myId;
+        private final HashMap<IdentityKey, AddInfo> members = new HashMap<>();
+        private final HashMap<IdentityKey, AddInfo> removedMembers = new HashMap<>();
+        private final HashMap<MessageId, AddInfo> addsById = new HashMap<>();
+
+        private static class AddInfo {
+            final IdentityKey adder;
+            final HashSet<IdentityKey> acks = new HashSet<>();
+            final HashSet<Object> removeMessages = new HashSet<>();
+
+            AddInfo(IdentityKey adder) {
+                this.adder = adder;
+            }
+        }
+
+        FixpointDgm(Collection<IdentityKey> initialMembers, IdentityKey myId) {
+            this.myId = myId;
+            for (IdentityKey member : initialMembers) {
+                AddInfo info = new AddInfo(null);
+                info.acks.addAll(initialMembers);
+                members.put(member, info);
+            }
+        }
+
+        void add(IdentityKey adder, IdentityKey added, MessageId messageId) {
+            AddInfo addedInfo = new AddInfo(adder);
+            addedInfo.acks.addAll(Arrays.asList(adder, added, myId));
+            if (members.containsKey(adder)) {
+                members.put(added, addedInfo);
+            } else {
+                // Cancelled by the removes that removed adder
+                addedInfo.removeMessages.addAll(removedMembers.get(adder).removeMessages);
+                removedMembers.put(added, addedInfo);
+            }
+            for (AddInfo info : members.values()) if (info.acks.contains(adder)) info.acks.add(added);
+            for (AddInfo info : removedMembers.values()) if (info.acks.contains(adder)) info.acks.add(added);
+            addsById.put(messageId, addedInfo);
+        }
+
+        ArrayList<IdentityKey> remove(IdentityKey remover, Collection<IdentityKey> removed) {
+            Object removeMessage = new Object();
+            HashSet<IdentityKey> removedUsers = new HashSet<>(removed);
+            ArrayList<IdentityKey> returnValue = new ArrayList<>();
+            for (IdentityKey oneRemoved : removed) {
+                AddInfo info = members.remove(oneRemoved);
+                if (info != null) {
+                    removedMembers.put(oneRemoved, info);
+                    returnValue.add(oneRemoved);
+                } else {
+                    info = removedMembers.get(oneRemoved);
+                }
+                info.removeMessages.add(removeMessage);
+            }
+            boolean madeProgress;
+            do {
+                madeProgress = false;
+                Iterator<Map.Entry<IdentityKey, AddInfo>> iterator = members.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<IdentityKey, AddInfo> entry = iterator.next();
+                    if (removedUsers.contains(entry.getValue().adder) && !entry.getValue().acks.contains(remover)) {
+                        returnValue.add(entry.getKey());
+                        iterator.remove();
+                        removedMembers.put(entry.getKey(), entry.getValue());
+                        entry.getValue().removeMessages.add(removeMessage);
+                        removedUsers.add(entry.getKey());
+                        madeProgress = true;
+                    }
+                }
+                for (Map.Entry<IdentityKey, AddInfo> entry : removedMembers.entrySet()) {
+                    if (removedUsers.contains(entry.getValue().adder) && !entry.getValue().acks.contains(remover)
+                            && entry.getValue().removeMessages.add(removeMessage)) {
+                        removedUsers.add(entry.getKey());
+                        madeProgress = true;
+                    }
+                }
+            } while (madeProgress);
+            return returnValue;
+        }
+
+        void ack(IdentityKey acker, MessageId messageId) {
+            AddInfo info = addsById.get(messageId);
+            if (info != null) info.acks.add(acker);
+        }
+
+        HashSet<IdentityKey> queryWhole() {
+            return new HashSet<>(members.keySet());
+        }
+    }
+
     private static ArrayList<IdentityKey> generateIdentityKeys(int number) {
         ArrayList<IdentityKey> ret = new ArrayList<>();
         for (int i = 0; i < number; i++) {
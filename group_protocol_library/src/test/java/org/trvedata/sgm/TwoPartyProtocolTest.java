@@ -3,6 +3,9 @@ package org.trvedata.sgm;
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.Test;
 import org.trvedata.sgm.crypto.*;
+import org.trvedata.sgm.misc.DeterministicRandomSource;
+
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -24,6 +27,54 @@ public class TwoPartyProtocolTest {
         }
     }
 
+    @Test
+    public void test_withKeyPairPool_thenDecryptsCorrectlyAndCountsHits() throws InterruptedException {
+        try (final HPKEKeyPairPool pool = new HPKEKeyPairPool(16)) {
+            for (int i = 0; i < 100 && pool.size() < 16; i++) Thread.sleep(10);
+
+            final Pair<TwoPartyProtocol, TwoPartyProtocol> protocols = initialize();
+            TwoPartyProtocol alice = protocols.getLeft();
+            TwoPartyProtocol bob = protocols.getRight();
+            for (int i = 0; i < 10; i++) {
+                byte[] plaintext = ("plaintext" + i).getBytes();
+                Pair<TwoPartyProtocol, byte[]> encryptionResult = alice.encrypt(plaintext, pool);
+                alice = encryptionResult.getLeft();
+                Pair<TwoPartyProtocol, byte[]> decryptionResult = bob.decrypt(encryptionResult.getRight());
+                bob = decryptionResult.getLeft();
+                assertThat(plaintext).isEqualTo(decryptionResult.getRight());
+            }
+
+            final HPKEKeyPairPool.Metrics metrics = pool.getMetrics();
+            assertThat(metrics.hits).isGreaterThan(0);
+            assertThat(metrics.hits + metrics.misses).isGreaterThanOrEqualTo(20);
+            assertThat(metrics.refilledKeyPairs).isGreaterThanOrEqualTo(16);
+        }
+    }
+
+    @Test
+    public void test_withKeyPairPool_whenSourceDeterministic_thenKeyPairsGeneratedOnDemand() {
+        try (final HPKEKeyPairPool pool = new HPKEKeyPairPool(16, new DeterministicRandomSource(3))) {
+            final Pair<HPKEPublicKey, HPKESecretKey> expected =
+                    HPKEPublicKey.generateKeyPair(new DeterministicRandomSource(3));
+            assertThat(HPKEPublicKey.generateKeyPair(pool).getLeft().serialize())
+                    .isEqualTo(expected.getLeft().serialize());
+            assertThat(pool.size()).isEqualTo(0);
+            assertThat(pool.getMetrics().misses).isEqualTo(1);
+            assertThat(pool.getMetrics().refilledKeyPairs).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void test_withoutKeyPairPool_thenPoolUnused() {
+        try (final HPKEKeyPairPool pool = new HPKEKeyPairPool(16)) {
+            final Pair<TwoPartyProtocol, TwoPartyProtocol> protocols = initialize();
+            final Pair<TwoPartyProtocol, byte[]> encryptionResult = protocols.getLeft().encrypt("plaintext".getBytes());
+            assertThat(protocols.getRight().decrypt(encryptionResult.getRight()).getRight())
+                    .isEqualTo("plaintext".getBytes());
+            assertThat(pool.getMetrics().hits + pool.getMetrics().misses).isEqualTo(0);
+        }
+    }
+
     @Test
     public void test_strictAlternation_thenDecryptsCorrectly() {
         final Pair<TwoPartyProtocol, TwoPartyProtocol> protocols = initialize();
@@ -92,6 +143,101 @@ public class TwoPartyProtocolTest {
         assertThat(decryptionResult2.getLeft().decrypt(encryptionResult2.getRight())).isNull();
     }
 
+    @Test
+    public void test_withSessionStore_whenSessionsInSeveralGroups_thenOneHandshakeDecryptsInAnyOrder() {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        IdentityKeyPair aliceKeyPair = IdentityKey.generateKeyPair();
+        PreKeySecret alicePreKeySecret = preKeySource.registerUser(aliceKeyPair, 1);
+        IdentityKeyPair bobKeyPair = IdentityKey.generateKeyPair();
+        // Only one prekey, so without the store the second group's session would fail to get one
+        PreKeySecret bobPreKeySecret = preKeySource.registerUser(bobKeyPair, 1);
+        TwoPartySessionStore aliceStore = new TwoPartySessionStore(10);
+        TwoPartySessionStore bobStore = new TwoPartySessionStore(10);
+
+        final int numGroups = 3;
+        byte[][] ciphertexts = new byte[numGroups][];
+        for (int i = 0; i < numGroups; i++) {
+            TwoPartyProtocol alice = new TwoPartyProtocol(alicePreKeySecret, preKeySource, aliceStore,
+                    bobKeyPair.getPublicKey());
+            ciphertexts[i] = alice.encrypt(("group" + i).getBytes()).getRight();
+        }
+        // Deliver in the reverse order, as if the first group's message were held back by its orderer
+        for (int i = numGroups - 1; i >= 0; i--) {
+            TwoPartyProtocol bob = new TwoPartyProtocol(bobPreKeySecret, preKeySource, bobStore,
+                    aliceKeyPair.getPublicKey());
+            Pair<TwoPartyProtocol, byte[]> decryptionResult = bob.decrypt(ciphertexts[i]);
+            assertThat(decryptionResult.getRight()).isEqualTo(("group" + i).getBytes());
+        }
+
+        assertThat(aliceStore.getHandshakeCount()).isEqualTo(1);
+        assertThat(aliceStore.getReusedHandshakeCount()).isEqualTo(numGroups - 1);
+        // A session without the store can still decrypt a message from one with it
+        assertThat(new TwoPartyProtocol(bobPreKeySecret, preKeySource, aliceKeyPair.getPublicKey())
+                .decrypt(ciphertexts[1]).getRight()).isEqualTo("group1".getBytes());
+    }
+
+    @Test
+    public void test_withSessionStore_whenCapacityExceeded_thenEvictsLeastRecentlyUsedPeer() {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        IdentityKeyPair aliceKeyPair = IdentityKey.generateKeyPair();
+        PreKeySecret alicePreKeySecret = preKeySource.registerUser(aliceKeyPair, 1);
+        TwoPartySessionStore aliceStore = new TwoPartySessionStore(1);
+        IdentityKeyPair bobKeyPair = IdentityKey.generateKeyPair();
+        IdentityKeyPair charlieKeyPair = IdentityKey.generateKeyPair();
+        preKeySource.registerUser(bobKeyPair, 2);
+        preKeySource.registerUser(charlieKeyPair, 1);
+
+        for (IdentityKeyPair peer : new IdentityKeyPair[]{bobKeyPair, bobKeyPair, charlieKeyPair, bobKeyPair}) {
+            new TwoPartyProtocol(alicePreKeySecret, preKeySource, aliceStore, peer.getPublicKey())
+                    .encrypt("hello".getBytes());
+        }
+
+        // bob, (bob reused), charlie evicts bob, bob again
+        assertThat(aliceStore.getHandshakeCount()).isEqualTo(3);
+        assertThat(aliceStore.getReusedHandshakeCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_withSessionStore_whenSecretUsedUp_thenNewHandshake() {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        IdentityKeyPair aliceKeyPair = IdentityKey.generateKeyPair();
+        PreKeySecret alicePreKeySecret = preKeySource.registerUser(aliceKeyPair, 1);
+        IdentityKeyPair bobKeyPair = IdentityKey.generateKeyPair();
+        PreKeySecret bobPreKeySecret = preKeySource.registerUser(bobKeyPair, 2);
+        TwoPartySessionStore aliceStore = new TwoPartySessionStore(10, 2, TimeUnit.HOURS.toMillis(1));
+        TwoPartySessionStore bobStore = new TwoPartySessionStore(10, 2, TimeUnit.HOURS.toMillis(1));
+
+        for (int i = 0; i < 3; i++) {
+            byte[] ciphertext = new TwoPartyProtocol(alicePreKeySecret, preKeySource, aliceStore,
+                    bobKeyPair.getPublicKey()).encrypt(("group" + i).getBytes()).getRight();
+            assertThat(new TwoPartyProtocol(bobPreKeySecret, preKeySource, bobStore, aliceKeyPair.getPublicKey())
+                    .decrypt(ciphertext).getRight()).isEqualTo(("group" + i).getBytes());
+        }
+
+        // The third message needs a new handshake, consuming bob's second prekey
+        assertThat(aliceStore.getHandshakeCount()).isEqualTo(2);
+        assertThat(aliceStore.getReusedHandshakeCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_withSessionStore_whenSecretExpired_thenNewHandshake() throws InterruptedException {
+        InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+        IdentityKeyPair aliceKeyPair = IdentityKey.generateKeyPair();
+        PreKeySecret alicePreKeySecret = preKeySource.registerUser(aliceKeyPair, 1);
+        IdentityKeyPair bobKeyPair = IdentityKey.generateKeyPair();
+        preKeySource.registerUser(bobKeyPair, 2);
+        TwoPartySessionStore aliceStore = new TwoPartySessionStore(10, 100, 1);
+
+        for (int i = 0; i < 2; i++) {
+            new TwoPartyProtocol(alicePreKeySecret, preKeySource, aliceStore, bobKeyPair.getPublicKey())
+                    .encrypt("hello".getBytes());
+            Thread.sleep(5);
+        }
+
+        assertThat(aliceStore.getHandshakeCount()).isEqualTo(2);
+        assertThat(aliceStore.getReusedHandshakeCount()).isEqualTo(0);
+    }
+
     private Pair<TwoPartyProtocol, TwoPartyProtocol> initialize() {
         InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
         IdentityKeyPair aliceKeyPair = IdentityKey.generateKeyPair();
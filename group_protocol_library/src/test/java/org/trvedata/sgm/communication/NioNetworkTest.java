@@ -0,0 +1,137 @@
+package org.trvedata.sgm.communication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NioNetworkTest {
+
+    final byte[] TEST_MESSAGE_1 = "hello".getBytes();
+    final byte[] TEST_MESSAGE_2 = "hallo".getBytes();
+    final byte[] TEST_MESSAGE_3 = "hola".getBytes();
+
+    private NioRelay relay;
+    private NioNetwork network;
+    private NioNetwork otherNetwork; // stands in for another process
+
+    @Before
+    public void setUp() throws IOException {
+        relay = new NioRelay(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).start();
+        final InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), relay.getPort());
+        network = new NioNetwork(address, NioNetwork.STRINGS);
+        otherNetwork = new NioNetwork(address, NioNetwork.STRINGS);
+    }
+
+    @After
+    public void tearDown() {
+        network.close();
+        otherNetwork.close();
+        relay.close();
+    }
+
+    @Test
+    public void testNetwork_whenSendingMessages_thenArriveInOrder() throws InterruptedException {
+        final TestClient clientAlice = new TestClient(network, "alice");
+        final TestClient clientBob = new TestClient(otherNetwork, "bob");
+        awaitClients(2);
+
+        clientAlice.send("bob", TEST_MESSAGE_1);
+        clientAlice.send("bob", TEST_MESSAGE_2);
+        clientBob.send("alice", TEST_MESSAGE_3);
+
+        assertThat(clientBob.receive()).isEqualTo(TEST_MESSAGE_1);
+        assertThat(clientBob.receive()).isEqualTo(TEST_MESSAGE_2);
+        assertThat(clientAlice.receive()).isEqualTo(TEST_MESSAGE_3);
+        assertThat(network.idToName("bob")).isEqualTo("bob");
+    }
+
+    @Test
+    public void testNetwork_whenSendingLargeMessages_thenArriveIntact() throws InterruptedException {
+        final TestClient clientAlice = new TestClient(network, "alice");
+        final TestClient clientBob = new TestClient(otherNetwork, "bob");
+        awaitClients(2);
+        final byte[][] messages = new byte[4][];
+        final Random random = new Random(0);
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new byte[(3 << 20) + i];
+            random.nextBytes(messages[i]);
+        }
+
+        for (byte[] message : messages) clientAlice.send("bob", message);
+
+        for (byte[] message : messages) assertThat(clientBob.receive()).isEqualTo(message);
+    }
+
+    @Test
+    public void testNetwork_whenBroadcasting_thenEveryoneElseReceives() throws InterruptedException {
+        final TestClient clientAlice = new TestClient(network, "alice");
+        final TestClient clientBob = new TestClient(network, "bob");
+        final TestClient clientCharlie = new TestClient(otherNetwork, "charlie");
+        awaitClients(3);
+
+        clientAlice.broadcast(TEST_MESSAGE_1);
+        clientCharlie.broadcast(TEST_MESSAGE_2);
+
+        // Broadcasts from different senders may arrive in either order
+        assertThat(new byte[][]{clientBob.receive(), clientBob.receive()})
+                .containsExactlyInAnyOrder(TEST_MESSAGE_1, TEST_MESSAGE_2);
+        assertThat(clientCharlie.receive()).isEqualTo(TEST_MESSAGE_1);
+        assertThat(clientAlice.receive()).isEqualTo(TEST_MESSAGE_2);
+        assertThat(clientAlice.receivedMessages.poll(100, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNetwork_whenSendingMessagesToUnknownRecipient_thenThrows() {
+        final TestClient clientAlice = new TestClient(network, "alice");
+
+        clientAlice.send("bob", TEST_MESSAGE_1);
+    }
+
+    /**
+     * Waits until both networks have heard from the relay about all clients.
+     */
+    private void awaitClients(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (network.numClients() < count || otherNetwork.numClients() < count) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static class TestClient extends Client {
+
+        private final String name;
+        private final LinkedBlockingQueue<byte[]> receivedMessages = new LinkedBlockingQueue<>();
+
+        private TestClient(final NioNetwork network, final String name) {
+            this.name = name;
+            super.init(network, name);
+        }
+
+        @Override
+        public Object getIdentifier() {
+            return this.name;
+        }
+
+        @Override
+        public void handleMessageFromNetwork(Object senderIdentifier, byte[] message) {
+            receivedMessages.add(message);
+        }
+
+        private byte[] receive() throws InterruptedException {
+            final byte[] message = receivedMessages.poll(10, TimeUnit.SECONDS);
+            assertThat(message).isNotNull();
+            return message;
+        }
+    }
+
+}
@@ -1,10 +1,16 @@
 package org.trvedata.sgm.misc;
 
+import org.apache.thrift.TException;
 import org.junit.Test;
+import org.trvedata.sgm.message.AeadMessage;
+import org.trvedata.sgm.message.SignedMessageStruct;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class UtilsTest {
 
@@ -14,6 +20,42 @@ public class UtilsTest {
         assertThat(actual).hasSize(42);
     }
 
+    @Test
+    public void testDeterministicRandomSource_whenSameSeed_thenSameBytesRegardlessOfChunking() {
+        final byte[] whole = new byte[100];
+        new DeterministicRandomSource(7).nextBytes(whole);
+
+        final DeterministicRandomSource chunked = new DeterministicRandomSource(7);
+        final byte[] first = new byte[30];
+        final byte[] second = new byte[70];
+        chunked.nextBytes(first);
+        chunked.nextBytes(second);
+        assertThat(Utils.concat(first, second)).isEqualTo(whole);
+
+        final byte[] otherSeed = new byte[100];
+        new DeterministicRandomSource(8).nextBytes(otherSeed);
+        assertThat(otherSeed).isNotEqualTo(whole);
+    }
+
+    @Test
+    public void testRandomSource_whenNextBytesOfLength_thenSameAsFillingArray() {
+        final byte[] filled = new byte[48];
+        new DeterministicRandomSource(1).nextBytes(filled);
+        final RandomSource source = new DeterministicRandomSource(1);
+        assertThat(source.nextBytes(48)).isEqualTo(filled);
+        assertThat(source.nextBytes(0)).isEmpty();
+    }
+
+    @Test
+    public void testSecureRandomSource_whenReseeding_thenStillProducesBytes() {
+        final SecureRandomSource source = new SecureRandomSource(16);
+        final byte[] first = new byte[32];
+        final byte[] second = new byte[32];
+        source.nextBytes(first);
+        source.nextBytes(second);
+        assertThat(second).isNotEqualTo(first);
+    }
+
     @Test
     public void testHashFunctions_whenGivenMultipleArrays_thenSameAsCallingWithOne() {
         final String text1 = "Hello ";
@@ -91,6 +133,98 @@ public class UtilsTest {
         assertThat(actual).isNull();
     }
 
+    @Test
+    public void testAeadCrypt_whenSameKeyUsedRepeatedly_thenSameCiphertextAndDecryptCorrect() {
+        final byte[] key = Utils.getSecureRandomBytes(Constants.KEY_SIZE_BYTES);
+        final byte[] ciphertext1 = Utils.aeadEncrypt("message".getBytes(), new byte[0], key, true);
+        final byte[] ciphertext2 = Utils.aeadEncrypt("message".getBytes(), new byte[0], key, true);
+        assertThat(ciphertext2).isEqualTo(ciphertext1);
+        assertThat(Utils.aeadDecrypt(ciphertext1, key)).isEqualTo("message".getBytes());
+        assertThat(Utils.aeadDecrypt(ciphertext1, Utils.getSecureRandomBytes(Constants.KEY_SIZE_BYTES))).isNull();
+        assertThat(Utils.aeadDecrypt(ciphertext2, key)).isEqualTo("message".getBytes());
+    }
+
+    @Test
+    public void testSerializeInto_whenEnoughSpace_thenSameBytesAsSerialize() throws TException {
+        final AeadMessage message = new AeadMessage(ByteBuffer.wrap("c".getBytes()), ByteBuffer.wrap("a".getBytes()));
+        final byte[] expected = Utils.serialize(message);
+        final ByteBuffer target = ByteBuffer.allocate(expected.length + 10);
+        target.put((byte) 42);
+
+        final int written = Utils.serializeInto(message, target);
+
+        assertThat(written).isEqualTo(expected.length);
+        assertThat(target.position()).isEqualTo(1 + expected.length);
+        assertThat(Arrays.copyOfRange(target.array(), 1, 1 + written)).isEqualTo(expected);
+        final AeadMessage deserialized = new AeadMessage();
+        Utils.deserialize(deserialized, Arrays.copyOfRange(target.array(), 1, 1 + written));
+        assertThat(deserialized).isEqualTo(message);
+    }
+
+    @Test
+    public void testSerializeInto_whenNotEnoughSpace_thenThrowsAndLeavesPosition() {
+        final AeadMessage message = new AeadMessage(ByteBuffer.wrap(new byte[100]), ByteBuffer.wrap(new byte[100]));
+        final ByteBuffer target = ByteBuffer.allocate(150);
+        target.position(3);
+
+        assertThatThrownBy(() -> Utils.serializeInto(message, target)).isInstanceOf(BufferOverflowException.class);
+        assertThat(target.position()).isEqualTo(3);
+    }
+
+    @Test
+    public void testSerialize_whenLargeThenSmallMessage_thenBothCorrect() throws TException {
+        final AeadMessage large = new AeadMessage(ByteBuffer.wrap(new byte[200 * 1024]), ByteBuffer.wrap(new byte[1]));
+        final AeadMessage small = new AeadMessage(ByteBuffer.wrap("c".getBytes()), ByteBuffer.wrap("a".getBytes()));
+        for (AeadMessage message : Arrays.asList(large, small, large)) {
+            final AeadMessage deserialized = new AeadMessage();
+            Utils.deserialize(deserialized, Utils.serialize(message));
+            assertThat(deserialized).isEqualTo(message);
+        }
+    }
+
+    @Test
+    public void testDeserialize_whenGivenBufferSlice_thenReadsOnlyRemainingBytes() throws TException {
+        final AeadMessage message = new AeadMessage(ByteBuffer.wrap("c".getBytes()), ByteBuffer.wrap("a".getBytes()));
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.position(5);
+        final int length = Utils.serializeInto(message, buffer);
+        buffer.position(5).limit(5 + length);
+
+        final AeadMessage deserialized = new AeadMessage();
+        Utils.deserialize(deserialized, buffer);
+        assertThat(deserialized).isEqualTo(message);
+        assertThat(buffer.position()).isEqualTo(5);
+    }
+
+    @Test
+    public void testHash_whenGivenBuffer_thenSameAsArray() {
+        final ByteBuffer buffer = ByteBuffer.wrap("xxHello World".getBytes());
+        buffer.position(2);
+        assertThat(Utils.hash(buffer, "!".getBytes())).isEqualTo(Utils.hash("Hello World!".getBytes()));
+        assertThat(buffer.position()).isEqualTo(2);
+    }
+
+    @Test
+    public void testStructView_whenReadingBinaryFields_thenViewsShareSerializedBytes() throws TException {
+        final byte[] serialized = Utils.serialize(
+                new AeadMessage(ByteBuffer.wrap("ciphertext".getBytes()), ByteBuffer.wrap("ad".getBytes())));
+        final StructView view = StructView.of(ByteBuffer.wrap(serialized), AeadMessage._Fields.C, AeadMessage._Fields.A);
+
+        final ByteBuffer c = view.getBinary(AeadMessage._Fields.C);
+        assertThat(Utils.asArray(c)).isEqualTo("ciphertext".getBytes());
+        assertThat(view.getBinaryCopy(AeadMessage._Fields.A)).isEqualTo("ad".getBytes());
+        assertThat(c.array()).isSameAs(serialized);
+    }
+
+    @Test
+    public void testStructView_whenRequiredFieldMissing_thenThrows() {
+        final byte[] serialized = Utils.serialize(
+                new AeadMessage(ByteBuffer.wrap("c".getBytes()), ByteBuffer.wrap("a".getBytes())));
+        // AeadMessage has no field 3
+        assertThatThrownBy(() -> StructView.of(ByteBuffer.wrap(serialized), SignedMessageStruct._Fields.SIGNATURE))
+                .isInstanceOf(TException.class);
+    }
+
     private byte[] aeadEncryptThenDecrypt(final byte[] plaintext, final byte[] associatedData, final byte[] key) {
         return aeadEncryptThenDecrypt(plaintext, associatedData, key, null);
     }
@@ -0,0 +1,232 @@
+package org.trvedata.sgm.storage;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.trvedata.sgm.DsgmProtocol;
+import org.trvedata.sgm.FullDsgmProtocol;
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.crypto.IdentityKeyPair;
+import org.trvedata.sgm.crypto.InMemoryPreKeySource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FileStateStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DsgmProtocol protocol = new FullDsgmProtocol();
+    private final InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+    private final JavaStateSerializer serializer = new JavaStateSerializer(preKeySource, null);
+    private final IdentityKeyPair aliceKey = IdentityKey.generateKeyPair();
+    private final IdentityKeyPair bobKey = IdentityKey.generateKeyPair();
+
+    @Test
+    public void testRecover_whenReopened_thenProtocolContinuesFromCommittedState() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        DsgmProtocol.State alice = newState(aliceKey);
+        DsgmProtocol.State bob = newState(bobKey);
+        Pair<? extends DsgmProtocol.State, byte[]> created = protocol.create(alice,
+                Arrays.asList(aliceKey.getPublicKey(), bobKey.getPublicKey()));
+        try (FileStateStore store = new FileStateStore(dir, serializer)) {
+            store.commit("group", created.getLeft());
+        }
+        Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> welcomed =
+                protocol.receive(bob, created.getRight());
+        byte[] ack = welcomed.getRight().get(0).responseMessage;
+        Pair<? extends DsgmProtocol.State, byte[]> sent = protocol.send(welcomed.getLeft(), "hello".getBytes());
+
+        DsgmProtocol.State recovered;
+        try (FileStateStore store = new FileStateStore(dir, serializer)) {
+            Map<String, DsgmProtocol.State> states = store.recover();
+            assertThat(states).containsOnlyKeys("group");
+            recovered = states.get("group");
+        }
+        Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> acked = protocol.receive(recovered, ack);
+        Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> received =
+                protocol.receive(acked.getLeft(), sent.getRight());
+        assertThat(received.getRight()).hasSize(1);
+        assertThat(received.getRight().get(0).plaintext).isEqualTo("hello".getBytes());
+    }
+
+    @Test
+    public void testRecover_whenLastRecordTorn_thenTruncatedToPreviousCommit() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        DsgmProtocol.State empty = newState(aliceKey);
+        newState(bobKey); // registers bob's prekeys
+        Pair<? extends DsgmProtocol.State, byte[]> created = protocol.create(empty,
+                Arrays.asList(aliceKey.getPublicKey(), bobKey.getPublicKey()));
+        try (FileStateStore store = new FileStateStore(dir, serializer)) {
+            store.commit("group", empty);
+            store.commit("group", created.getLeft());
+        }
+        File segment = onlyFile("log-");
+        long fullLength = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(fullLength - 10);
+        }
+
+        try (FileStateStore store = new FileStateStore(dir, serializer)) {
+            assertThat(protocol.getMembers(store.recover().get("group"))).isEmpty();
+            assertThat(segment.length()).isLessThan(fullLength - 10);
+            // Commits after the truncated record must be recoverable too
+            store.commit("group", created.getLeft());
+        }
+        try (FileStateStore store = new FileStateStore(dir, serializer)) {
+            assertThat(protocol.getMembers(store.recover().get("group"))).hasSize(2);
+        }
+    }
+
+    @Test
+    public void testSnapshot_whenIntervalReached_thenOldSegmentsDeletedAndAllGroupsRecovered() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        DsgmProtocol.State state = newState(aliceKey);
+        try (FileStateStore store = new FileStateStore(dir, serializer, 3, 0)) {
+            for (int i = 0; i < 7; i++) store.commit("group" + (i % 4), state);
+            assertThat(store.getSnapshotCount()).isEqualTo(2);
+        }
+        assertThat(folder.getRoot().list((d, name) -> name.startsWith("snapshot-"))).hasSize(1);
+        // The segment started by the last snapshot holds the seventh commit
+        assertThat(folder.getRoot().list((d, name) -> name.startsWith("log-"))).hasSize(1);
+
+        try (FileStateStore store = new FileStateStore(dir, serializer, 3, 0)) {
+            assertThat(store.recover()).containsOnlyKeys("group0", "group1", "group2", "group3");
+        }
+    }
+
+    @Test
+    public void testSnapshot_whenWriteFails_thenCommitSucceedsAndSnapshotRetried() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        DsgmProtocol.State state = newState(aliceKey);
+        File blocker = new File(folder.getRoot(), String.format("snapshot-%016x.tmp", 2));
+        try (FileStateStore store = new FileStateStore(dir, serializer, 2, 0)) {
+            // A non-empty directory in place of the first snapshot's temp file makes writing and deleting it fail
+            assertThat(blocker.mkdir()).isTrue();
+            assertThat(new File(blocker, "file").createNewFile()).isTrue();
+            store.commit("group0", state);
+            store.commit("group1", state);
+            assertThat(store.getSnapshotCount()).isEqualTo(0);
+            store.commit("group2", state);
+            store.commit("group3", state);
+            assertThat(store.getSnapshotCount()).isEqualTo(1);
+        }
+        assertThat(new File(blocker, "file").delete() && blocker.delete()).isTrue();
+
+        try (FileStateStore store = new FileStateStore(dir, serializer, 2, 0)) {
+            assertThat(store.recover()).containsOnlyKeys("group0", "group1", "group2", "group3");
+        }
+    }
+
+    @Test
+    public void testRecover_whenRecordLengthCorrupt_thenTruncatedWithoutAllocatingIt() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        DsgmProtocol.State state = newState(aliceKey);
+        try (FileStateStore store = new FileStateStore(dir, serializer)) {
+            store.commit("group", state);
+        }
+        File segment = onlyFile("log-");
+        long validLength = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(validLength);
+            file.writeInt(Integer.MAX_VALUE - 8);
+            file.writeInt(0);
+            file.write(new byte[16]);
+        }
+
+        try (FileStateStore store = new FileStateStore(dir, serializer)) {
+            assertThat(store.recover()).containsOnlyKeys("group");
+        }
+        assertThat(segment.length()).isEqualTo(validLength);
+    }
+
+    @Test
+    public void testRecover_whenSnapshotShorterThanChecksum_thenSkipped() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        DsgmProtocol.State state = newState(aliceKey);
+        try (FileStateStore store = new FileStateStore(dir, serializer)) {
+            store.commit("group", state);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(),
+                String.format("snapshot-%016x", 5)), "rw")) {
+            file.write(new byte[3]);
+        }
+
+        try (FileStateStore store = new FileStateStore(dir, serializer)) {
+            assertThat(store.recover()).containsOnlyKeys("group");
+        }
+    }
+
+    @Test
+    public void testRecover_whenSharingSerializer_thenStatesRecoveredAfterSnapshots() throws Exception {
+        Path dir = folder.newFolder("states").toPath();
+        Path nodesFile = folder.getRoot().toPath().resolve("nodes");
+        DsgmProtocol.State empty = newState(aliceKey);
+        newState(bobKey); // registers bob's prekeys
+        Pair<? extends DsgmProtocol.State, byte[]> created = protocol.create(empty,
+                Arrays.asList(aliceKey.getPublicKey(), bobKey.getPublicKey()));
+        try (NodeStore nodes = new NodeStore(nodesFile);
+             FileStateStore store = new FileStateStore(dir, new SharingStateSerializer(nodes, preKeySource, null),
+                     2, 0)) {
+            store.commit("empty", empty);
+            store.commit("created", created.getLeft());
+            store.commit("empty", empty);
+            assertThat(store.getSnapshotCount()).isEqualTo(1);
+        }
+
+        try (NodeStore nodes = new NodeStore(nodesFile);
+             FileStateStore store = new FileStateStore(dir, new SharingStateSerializer(nodes, preKeySource, null),
+                     2, 0)) {
+            Map<String, DsgmProtocol.State> states = store.recover();
+            assertThat(protocol.getMembers(states.get("empty"))).isEmpty();
+            assertThat(protocol.getMembers(states.get("created"))).hasSize(2);
+        }
+    }
+
+    @Test
+    public void testCommit_whenConcurrent_thenFsyncsShared() throws Exception {
+        final int numThreads = 8;
+        final int commitsPerThread = 20;
+        DsgmProtocol.State state = newState(aliceKey);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try (FileStateStore store = new FileStateStore(folder.getRoot().toPath(), serializer,
+                FileStateStore.DEFAULT_SNAPSHOT_INTERVAL, 1_000_000)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                final String groupId = "group" + t;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < commitsPerThread; i++) store.commit(groupId, state);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+            assertThat(store.getCommitCount()).isEqualTo(numThreads * commitsPerThread);
+            assertThat(store.getSyncCount()).isLessThan(store.getCommitCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private DsgmProtocol.State newState(IdentityKeyPair identityKeyPair) {
+        return new FullDsgmProtocol.State(identityKeyPair, preKeySource.registerUser(identityKeyPair, 5),
+                preKeySource);
+    }
+
+    private File onlyFile(String prefix) throws IOException {
+        File[] files = folder.getRoot().listFiles((d, name) -> name.startsWith(prefix));
+        if (files == null || files.length != 1) throw new IOException("Expected one " + prefix + " file");
+        return files[0];
+    }
+}
@@ -0,0 +1,42 @@
+package org.trvedata.sgm.storage;
+
+import org.junit.Test;
+import org.trvedata.sgm.DsgmProtocol;
+import org.trvedata.sgm.FullDsgmProtocol;
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.crypto.IdentityKeyPair;
+import org.trvedata.sgm.crypto.InMemoryPreKeySource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class JavaStateSerializerTest {
+    private final DsgmProtocol protocol = new FullDsgmProtocol();
+    private final InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+    private final JavaStateSerializer serializer = new JavaStateSerializer(preKeySource, null);
+
+    @Test
+    public void testDeserialize_whenState_thenSameMembers() throws Exception {
+        IdentityKeyPair aliceKey = IdentityKey.generateKeyPair();
+        DsgmProtocol.State state = new FullDsgmProtocol.State(aliceKey, preKeySource.registerUser(aliceKey, 5),
+                preKeySource);
+        DsgmProtocol.State deserialized = serializer.deserialize(serializer.serialize(state));
+        assertThat(protocol.getMembers(deserialized)).isEqualTo(protocol.getMembers(state));
+    }
+
+    @Test
+    public void testDeserialize_whenClassNotAllowed_thenThrowsBeforeInstantiating() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new Date());
+        }
+        assertThatThrownBy(() -> serializer.deserialize(bytes.toByteArray()))
+                .isInstanceOf(InvalidClassException.class)
+                .hasMessageContaining("java.util.Date");
+    }
+}
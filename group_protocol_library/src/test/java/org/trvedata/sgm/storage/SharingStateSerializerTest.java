@@ -0,0 +1,195 @@
+package org.trvedata.sgm.storage;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.trvedata.sgm.DsgmProtocol;
+import org.trvedata.sgm.FullDsgmProtocol;
+import org.trvedata.sgm.crypto.IdentityKey;
+import org.trvedata.sgm.crypto.IdentityKeyPair;
+import org.trvedata.sgm.crypto.InMemoryPreKeySource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharingStateSerializerTest {
+    private static final int GROUP_SIZE = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DsgmProtocol protocol = new FullDsgmProtocol();
+    private final InMemoryPreKeySource preKeySource = new InMemoryPreKeySource();
+    private DsgmProtocol.State alice;
+    private DsgmProtocol.State bob;
+
+    @Test
+    public void testSerialize_whenConsecutiveStates_thenOnlyChangedNodesWritten() throws Exception {
+        createGroup();
+        try (NodeStore nodes = new NodeStore(nodesFile())) {
+            SharingStateSerializer serializer = new SharingStateSerializer(nodes, preKeySource, null);
+            serializer.serialize(alice);
+            receiveFromBob("hello");
+
+            long sizeBefore = nodes.getByteSize();
+            byte[] serialized = serializer.serialize(alice);
+            long written = nodes.getByteSize() - sizeBefore + serialized.length;
+            int fullSize = new JavaStateSerializer(preKeySource, null).serialize(alice).length;
+            assertThat(written).isLessThan(fullSize / 4);
+        }
+    }
+
+    @Test
+    public void testDeserialize_whenStoreReopened_thenProtocolContinues() throws Exception {
+        createGroup();
+        byte[] serialized;
+        try (NodeStore nodes = new NodeStore(nodesFile())) {
+            SharingStateSerializer serializer = new SharingStateSerializer(nodes, preKeySource, null);
+            serializer.serialize(alice);
+            receiveFromBob("first");
+            serialized = serializer.serialize(alice);
+        }
+
+        try (NodeStore nodes = new NodeStore(nodesFile())) {
+            alice = new SharingStateSerializer(nodes, preKeySource, null).deserialize(serialized);
+        }
+        assertThat(protocol.getMembers(alice)).hasSize(GROUP_SIZE);
+        assertThat(receiveFromBob("second")).containsExactly("second");
+    }
+
+    @Test
+    public void testRetainOnly_whenOldStatesNotLive_thenTheirNodesDeleted() throws Exception {
+        createGroup();
+        byte[] serialized = null;
+        try (NodeStore nodes = new NodeStore(nodesFile())) {
+            SharingStateSerializer serializer = new SharingStateSerializer(nodes, preKeySource, null);
+            for (int i = 0; i < 5; i++) {
+                receiveFromBob("message " + i);
+                serialized = serializer.serialize(alice);
+            }
+        }
+
+        // A new serializer does not remember any nodes, so only those of the live state are kept
+        try (NodeStore nodes = new NodeStore(nodesFile())) {
+            int sizeBefore = nodes.size();
+            SharingStateSerializer serializer = new SharingStateSerializer(nodes, preKeySource, null);
+            serializer.retainOnly(Collections.singletonList(serialized));
+            assertThat(nodes.size()).isLessThan(sizeBefore);
+            alice = serializer.deserialize(serialized);
+        }
+        assertThat(receiveFromBob("after compaction")).containsExactly("after compaction");
+    }
+
+    @Test
+    public void testSerialize_whenStateSerializedAgain_thenMutableStateNotWrittenAgain() throws Exception {
+        createGroup();
+        try (CountingNodeStore nodes = new CountingNodeStore(nodesFile())) {
+            SharingStateSerializer serializer = new SharingStateSerializer(nodes, preKeySource, null);
+            serializer.serialize(alice);
+            nodes.bytesPut = 0;
+            serializer.serialize(alice);
+            // Only the list of the state's mutable objects is written, not the group's members
+            int keyBytes = ((IdentityKey) protocol.getMembers(alice).iterator().next()).serialize().length;
+            assertThat(nodes.bytesPut).isLessThan(GROUP_SIZE * keyBytes);
+        }
+    }
+
+    @Test
+    public void testSerialize_whenCalledConcurrently_thenEachStateDeserializable() throws Exception {
+        createGroup();
+        List<DsgmProtocol.State> states = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            receiveFromBob("message " + i);
+            states.add(alice);
+        }
+        List<byte[]> serialized;
+        try (NodeStore nodes = new NodeStore(nodesFile())) {
+            SharingStateSerializer serializer = new SharingStateSerializer(nodes, preKeySource, null);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<byte[]>> futures = new ArrayList<>();
+                for (DsgmProtocol.State state : states) futures.add(executor.submit(() -> serializer.serialize(state)));
+                serialized = new ArrayList<>();
+                for (Future<byte[]> future : futures) serialized.add(future.get());
+            } finally {
+                executor.shutdown();
+            }
+        }
+
+        try (NodeStore nodes = new NodeStore(nodesFile())) {
+            SharingStateSerializer serializer = new SharingStateSerializer(nodes, preKeySource, null);
+            for (byte[] state : serialized) {
+                assertThat(protocol.getMembers(serializer.deserialize(state))).hasSize(GROUP_SIZE);
+            }
+            alice = serializer.deserialize(serialized.get(serialized.size() - 1));
+        }
+        assertThat(receiveFromBob("after concurrent serialization")).containsExactly("after concurrent serialization");
+    }
+
+    private Path nodesFile() {
+        return folder.getRoot().toPath().resolve("nodes");
+    }
+
+    /**
+     * Creates a group of GROUP_SIZE members in which alice and bob have processed each other's messages.
+     */
+    private void createGroup() {
+        List<IdentityKey> members = new ArrayList<>();
+        List<DsgmProtocol.State> states = new ArrayList<>();
+        for (int i = 0; i < GROUP_SIZE; i++) {
+            IdentityKeyPair identityKeyPair = IdentityKey.generateKeyPair();
+            members.add(identityKeyPair.getPublicKey());
+            states.add(new FullDsgmProtocol.State(identityKeyPair, preKeySource.registerUser(identityKeyPair, 5),
+                    preKeySource));
+        }
+        Pair<? extends DsgmProtocol.State, byte[]> created = protocol.create(states.get(0), members);
+        Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> welcomed =
+                protocol.receive(states.get(1), created.getRight());
+        Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> acked =
+                protocol.receive(created.getLeft(), welcomed.getRight().get(0).responseMessage);
+        alice = acked.getLeft();
+        bob = welcomed.getLeft();
+    }
+
+    /**
+     * {@link NodeStore} that counts the bytes of the records put into it.
+     */
+    private static class CountingNodeStore extends NodeStore {
+        long bytesPut = 0;
+
+        CountingNodeStore(Path file) throws IOException {
+            super(file);
+        }
+
+        @Override
+        public synchronized void put(byte[] hash, byte[] record) throws IOException {
+            bytesPut += record.length;
+            super.put(hash, record);
+        }
+    }
+
+    /**
+     * Has bob send plaintext to alice, returning the application messages alice received.
+     */
+    private List<String> receiveFromBob(String plaintext) {
+        Pair<? extends DsgmProtocol.State, byte[]> sent = protocol.send(bob, plaintext.getBytes());
+        bob = sent.getLeft();
+        Pair<? extends DsgmProtocol.State, List<DsgmProtocol.MessageEffect>> received =
+                protocol.receive(alice, sent.getRight());
+        alice = received.getLeft();
+        List<String> messages = new ArrayList<>();
+        for (DsgmProtocol.MessageEffect effect : received.getRight()) {
+            if (effect.type == DsgmProtocol.DgmMessageType.APPLICATION) messages.add(new String(effect.plaintext));
+        }
+        return messages;
+    }
+}